@@ -0,0 +1,103 @@
+package femtodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import femtodbexceptions.FemtoDBIOException;
+
+/** Daemon thread started by FemtoDB.startBackgroundFlusher that trickles modified cache pages to disk. 
+ * Pages modified for longer than maxDirtyAge are written, as are the oldest modified pages of any tableCore whose proportion of modified pages exceeds dirtyRatio.
+ * This lets eviction almost always find a clean page, and leaves little for backup and shutdown to write. */
+final class BackgroundFlusher extends Thread {
+	/** The most pages written while holding a tableCores lock, so foreground operations are only briefly held up */
+	static final int 				PAGES_PER_BATCH = 4;
+	
+	private final FemtoDB 			database;
+	private final long 				intervalMillis;
+	private final long 				maxDirtyAgeMillis;
+	private final double 			dirtyRatio;
+	private volatile boolean 		running;
+	
+	/** Waited on between batches, so shutdown can wake the thread without interrupting it while it writes through a FileChannel */
+	private final Object 			sleepLock;
+	
+	/** The last exception thrown while writing pages, or null if there has not been one */
+	private volatile FemtoDBIOException lastFailure;
+	
+	BackgroundFlusher(final FemtoDB database, final long intervalMillis, final long maxDirtyAgeMillis, final double dirtyRatio)
+	{
+		super("FemtoDB background flusher " + database.getName());
+		this.database 			= database;
+		this.intervalMillis 	= intervalMillis;
+		this.maxDirtyAgeMillis 	= maxDirtyAgeMillis;
+		this.dirtyRatio 		= dirtyRatio;
+		this.running 			= true;
+		this.sleepLock 			= new Object();
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run()
+	{
+		while(running)
+		{
+			synchronized(sleepLock)
+			{
+				if(!running)return;
+				try {
+					sleepLock.wait(intervalMillis);
+				} catch (InterruptedException e) {}
+			}
+			if(!running)return;
+			flushTables();
+		}
+	}
+	
+	/** Stops the thread, waiting for any batch being written to complete */
+	final void shutdown()
+	{
+		synchronized(sleepLock)
+		{
+			running = false;
+			sleepLock.notifyAll();
+		}
+		boolean joined = false;
+		while(!joined)
+		{
+			try {
+				join();
+				joined = true;
+			} catch (InterruptedException e) {}
+		}
+	}
+	
+	final FemtoDBIOException getLastFailure()
+	{
+		return lastFailure;
+	}
+	
+	/** Writes modified pages in every tableCore. Skipped if the database lock is held, as backup and shutdown flush the caches themselves. */
+	private final void flushTables()
+	{
+		if(!database.tryLock())return;
+		List<TableCore> tables;
+		try{
+			tables = new ArrayList<TableCore>(database.getTableCores());
+		}
+		finally
+		{
+			database.unlock();
+		}
+		
+		long modifiedBefore = System.currentTimeMillis() - maxDirtyAgeMillis;
+		for(TableCore t: tables)
+		{
+			try{
+				while(running && (t.flushModifiedPages(modifiedBefore, dirtyRatio, PAGES_PER_BATCH) == PAGES_PER_BATCH)){}
+			}
+			catch(FemtoDBIOException e)
+			{
+				lastFailure = e;
+			}
+		}
+	}
+}
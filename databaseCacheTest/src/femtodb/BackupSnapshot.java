@@ -0,0 +1,129 @@
+package femtodb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A logical snapshot of a tableCore's files, taken holding the tableCore's lock at the start of an online backup, which is then streamed into the backup without holding the lock.
+ * Before the tableCore overwrites or deletes a file the snapshot has not yet streamed it calls preserve, so the snapshot keeps the files contents as they were (copy on write).
+ * The pending files are guarded by this objects monitor. */
+final class BackupSnapshot {
+	private final PageStore 				pageStore;
+	/** Where each file lived when the snapshot was taken, used to place the files in the backup */
+	private final PageStore 				layout;
+	private final String 					destDirectory;
+	private final int 						tableWidth;
+	/** Every file in the table when the snapshot was taken */
+	private final List<FileMetadata> 		files;
+	/** The files still to be streamed keyed by filenumber */
+	private final Map<Long,SnapshotFile> 	pending;
+	/** The service number of the table when the snapshot was taken */
+	final long 								serviceNumber;
+	/** The service number the backup was up to date with before the snapshot was taken, or -1 if the backup is complete */
+	final long 								backedUpServiceNumber;
+	/** The id recorded with the service number once the snapshot has been streamed */
+	final long 								backupId;
+	/** Set if a file could not be preserved */
+	private IOException 					failure;
+
+	/** Takes a snapshot of the given files, which must all be on disk. Only files modified after backedUpServiceNumber will be streamed, unless it is -1. Must be called holding the tableCore's lock. */
+	BackupSnapshot(final PageStore pageStore, final String destDirectory, final int tableWidth, final List<FileMetadata> fmds, final long serviceNumber, final long backedUpServiceNumber, final long backupId)
+	{
+		this.pageStore 				= pageStore;
+		this.layout 				= pageStore.snapshotLayout();
+		this.destDirectory 			= destDirectory;
+		this.tableWidth 			= tableWidth;
+		this.files 					= new ArrayList<FileMetadata>(fmds);
+		this.pending 				= new LinkedHashMap<Long,SnapshotFile>();
+		this.serviceNumber 			= serviceNumber;
+		this.backedUpServiceNumber 	= backedUpServiceNumber;
+		this.backupId 				= backupId;
+		for(FileMetadata fmd : fmds)
+		{
+			if((backedUpServiceNumber != -1L)&&(fmd.modificationServiceNumber <= backedUpServiceNumber))continue;
+			pending.put(fmd.filenumber, new SnapshotFile(fmd));
+		}
+	}
+
+	/** Writes the snapshot into the backup using the pools threads. Only this objects monitor is held while each file is read, so the tableCore is free to continue. */
+	final void stream(final CopyPool pool) throws IOException
+	{
+		if(backedUpServiceNumber != -1L)layout.removeFromBackup(destDirectory, files);
+		int workers;
+		synchronized(this)
+		{
+			workers = Math.min(pool.getThreads(), pending.size());
+		}
+		final CopyPool.Batch batch = pool.newBatch();
+		for(int x = 0; x < workers; x++)
+		{
+			batch.execute(new CopyPool.CopyTask()
+			{
+				@Override
+				public void run() throws IOException
+				{
+					streamFiles(batch);
+				}
+			});
+		}
+		batch.await();
+	}
+
+	/** Streams pending files until none remain */
+	private final void streamFiles(final CopyPool.Batch batch) throws IOException
+	{
+		while(true)
+		{
+			SnapshotFile next;
+			byte[] contents;
+			synchronized(this)
+			{
+				if(failure != null)throw failure;
+				Iterator<SnapshotFile> it = pending.values().iterator();
+				if(!it.hasNext())return;
+				next = it.next();
+				it.remove();
+				contents = (next.contents != null) ? next.contents : read(next);
+			}
+			layout.backupContents(destDirectory, next.fmd, ByteBuffer.wrap(contents));
+			batch.addCopied(1, contents.length);
+		}
+	}
+
+	/** Called by the tableCore holding its lock before it overwrites or deletes a file, keeping the files contents if they have not yet been streamed. */
+	synchronized
+	final void preserve(final FileMetadata fmd)
+	{
+		SnapshotFile snapshotFile = pending.get(fmd.filenumber);
+		if((snapshotFile == null)||(snapshotFile.contents != null))return;
+		try{
+			snapshotFile.contents = read(snapshotFile);
+		}
+		catch(IOException e){failure = e;}
+	}
+
+	/** Reads the file as it was when the snapshot was taken, which is still what is on disk as it has not been preserved. Must be called holding this objects monitor. */
+	private final byte[] read(final SnapshotFile snapshotFile) throws IOException
+	{
+		byte[] retval = new byte[snapshotFile.rows * tableWidth];
+		pageStore.read(snapshotFile.fmd, ByteBuffer.wrap(retval));
+		return retval;
+	}
+
+	private static final class SnapshotFile {
+		final FileMetadata 	fmd;
+		final int 			rows;
+		/** The files contents once preserved, otherwise null */
+		byte[] 				contents;
+
+		SnapshotFile(final FileMetadata fmd)
+		{
+			this.fmd 	= fmd;
+			this.rows 	= fmd.rows;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package femtodb;
+
+/** Describes the work done by a backup or by restoring a database from a backup. */
+public final class BackupStatistics {
+	private final long 	files;
+	private final long 	bytes;
+	private final long 	elapsedNanos;
+	private final int 	threads;
+
+	BackupStatistics(final long files, final long bytes, final long elapsedNanos, final int threads)
+	{
+		this.files 			= files;
+		this.bytes 			= bytes;
+		this.elapsedNanos 	= elapsedNanos;
+		this.threads 		= threads;
+	}
+
+	/** Returns the number of files (or parts of segment files) written */
+	public final long getFiles() {
+		return files;
+	}
+
+	/** Returns the number of bytes written */
+	public final long getBytes() {
+		return bytes;
+	}
+
+	public final long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+
+	/** Returns the number of threads used to copy files */
+	public final int getThreads() {
+		return threads;
+	}
+
+	/** Returns the bytes written per second, or zero if no time was measured */
+	public final double getBytesPerSecond() {
+		if(elapsedNanos <= 0)return 0.0;
+		return (bytes * 1000000000.0) / elapsedNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		return files + " files, " + bytes + " bytes in " + getElapsedMillis() + "ms using " + threads + " threads (" + (long)(getBytesPerSecond() / 1024.0) + " KB/s)";
+	}
+}
@@ -0,0 +1,79 @@
+package femtodb;
+
+import java.io.Serializable;
+import java.util.TreeMap;
+
+/** A bitmap index mapping each value of one low cardinality byte, boolean or short column of a tableCore, such as a status code, to a LongBitmap of the primary keys of the rows holding it (see TableCore.createBitmapIndex).
+ * The bitmaps of several values or columns are combined with LongBitmap's and, or and andNot, so queries over several such columns are answered without reading the table's files.
+ * The tableCore maintains the index as rows are inserted, updated and deleted, and saves it with itself. */
+final class BitmapIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int 							column;
+	private final byte 							columnType;
+	private final int 							columnByteOffset;
+
+	/** The primary keys of the rows holding each value, by the value's key */
+	private final TreeMap<Long, LongBitmap> 	bitmaps 	= new TreeMap<Long, LongBitmap>();
+
+	BitmapIndex(final int column, final byte columnType, final int columnByteOffset)
+	{
+		this.column 			= column;
+		this.columnType 		= columnType;
+		this.columnByteOffset 	= columnByteOffset;
+	}
+
+	/** Returns true if columns of the given type can have a bitmap index */
+	static final boolean canIndex(final byte columnType)
+	{
+		switch(columnType)
+		{
+			case TableCore.COLUMN_TYPE_BYTE:
+			case TableCore.COLUMN_TYPE_BOOLEAN:
+			case TableCore.COLUMN_TYPE_SHORT:
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns the key of the indexed column of the row, which is its value, or one or zero for a boolean */
+	final long keyOf(final byte[] row)
+	{
+		return SecondaryIndex.keyOf(row, columnType, columnByteOffset);
+	}
+
+	final void insert(final long key, final long primaryKey)
+	{
+		LongBitmap bitmap = bitmaps.get(key);
+		if(bitmap == null)
+		{
+			bitmap = new LongBitmap();
+			bitmaps.put(key, bitmap);
+		}
+		bitmap.add(primaryKey);
+	}
+
+	final void remove(final long key, final long primaryKey)
+	{
+		LongBitmap bitmap = bitmaps.get(key);
+		if(bitmap == null)return;
+		bitmap.remove(primaryKey);
+		if(bitmap.isEmpty())bitmaps.remove(key);
+	}
+
+	/** Returns a new bitmap of the primary keys of the rows whose key is from lowKey to highKey inclusive */
+	final LongBitmap primaryKeysOf(final long lowKey, final long highKey)
+	{
+		LongBitmap retval = new LongBitmap();
+		if(lowKey > highKey)return retval;
+		for(LongBitmap bitmap : bitmaps.subMap(lowKey, true, highKey, true).values())
+		{
+			retval = retval.isEmpty() ? bitmap.copy() : retval.or(bitmap);
+		}
+		return retval;
+	}
+
+	final int getColumn() {
+		return column;
+	}
+}
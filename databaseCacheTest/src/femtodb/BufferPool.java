@@ -0,0 +1,244 @@
+package femtodb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import femtodbexceptions.FemtoDBIOException;
+
+/** A single memory budget shared by the on heap caches of a database's tableCores (see FemtoDB.setBufferPoolSize).
+ * A table's cache starts with a couple of pages and takes another buffer from the pool whenever it must load a file and the budget allows,
+ * so the tables in use hold the memory rather than each having a fixed share.
+ * Buffers are handed out in power of two size classes, so tables with differing file sizes share the budget. Free buffers of one class are dropped to make room for another.
+ * When a table is refused a buffer, a daemon thread takes pages from the table making the least use of its pages, one table at a time so no two tables' locks are ever held together.
+ * The refused table meanwhile reuses its own pages, so a cache miss never waits for another table. */
+public final class BufferPool {
+	/** The smallest buffer handed out */
+	static final int 								MINIMUM_SIZE_CLASS 	= 1024;
+
+	/** The fewest pages taken from a table at a time */
+	static final int 								PAGES_PER_RELEASE 	= 4;
+
+	private final String 							name;
+	private final long 								budget;
+	/** The bytes of every buffer handed out or held free */
+	private long 									allocatedBytes;
+	private final Map<Integer,ArrayDeque<byte[]>> 	freeBuffers;
+	private final List<PooledCacheMemory> 			members;
+
+	/** The member last refused a buffer, or null if none has been since the balancer last ran */
+	private PooledCacheMemory 						starving;
+	private Thread 									balancer;
+	private boolean 								running;
+
+	/** The last exception thrown writing pages taken from a table, or null if there has not been one */
+	private volatile FemtoDBIOException 			lastFailure;
+
+	BufferPool(final String name, final long budget)
+	{
+		this.name 			= name;
+		this.budget 		= budget;
+		this.freeBuffers 	= new HashMap<Integer,ArrayDeque<byte[]>>();
+		this.members 		= new ArrayList<PooledCacheMemory>();
+		this.running 		= true;
+	}
+
+	/** Returns the size of the buffers handed out for pages of the given size */
+	static final int sizeClassOf(final int pageSize)
+	{
+		if(pageSize <= MINIMUM_SIZE_CLASS)return MINIMUM_SIZE_CLASS;
+		int retval = Integer.highestOneBit(pageSize);
+		if(retval == pageSize)return retval;
+		retval = retval << 1;
+		return (retval > 0) ? retval : pageSize;
+	}
+
+	/** Returns the bytes the pool may hold */
+	public final long getBudget() {
+		return budget;
+	}
+
+	/** Returns the bytes of the buffers handed out or held free. This can exceed the budget by the couple of pages every table is always given. */
+	synchronized
+	public final long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/** Returns the last exception encountered writing pages taken from a table, or null if there has been none */
+	public final FemtoDBIOException getLastFailure() {
+		return lastFailure;
+	}
+
+	synchronized
+	final void register(final PooledCacheMemory member)
+	{
+		members.add(member);
+	}
+
+	/** Returns true while any table's cache is borrowing pages from the pool */
+	synchronized
+	final boolean hasMembers()
+	{
+		return !members.isEmpty();
+	}
+
+	synchronized
+	final void unregister(final PooledCacheMemory member)
+	{
+		members.remove(member);
+		if(starving == member)starving = null;
+	}
+
+	/** Returns a buffer for one of the members pages, or null if the budget is used up. A reserved buffer is always given, even over the budget. */
+	synchronized
+	final byte[] acquire(final PooledCacheMemory member, final boolean reserved)
+	{
+		int sizeClass = member.sizeClass;
+		member.recentDemand++;
+		ArrayDeque<byte[]> free = freeBuffers.get(sizeClass);
+		byte[] retval = (free == null) ? null : free.pollFirst();
+		if(retval == null)
+		{
+			// drop free buffers of other sizes to make room
+			if(allocatedBytes + sizeClass > budget)dropFreeBuffers(sizeClass);
+			if(!reserved && (allocatedBytes + sizeClass > budget))
+			{
+				starving = member;
+				startBalancer();
+				notifyAll();
+				return null;
+			}
+			retval = new byte[sizeClass];
+			allocatedBytes += sizeClass;
+		}
+		member.heldPages++;
+		return retval;
+	}
+
+	/** Takes back a buffer from a member, keeping it for reuse unless the pool is over its budget */
+	synchronized
+	final void release(final PooledCacheMemory member, final byte[] buffer)
+	{
+		member.heldPages--;
+		if(allocatedBytes > budget)
+		{
+			allocatedBytes -= buffer.length;
+			return;
+		}
+		ArrayDeque<byte[]> free = freeBuffers.get(buffer.length);
+		if(free == null)
+		{
+			free = new ArrayDeque<byte[]>();
+			freeBuffers.put(buffer.length, free);
+		}
+		free.addFirst(buffer);
+	}
+
+	/** Stops the balancer, waiting for it to finish taking any pages */
+	final void shutdown()
+	{
+		Thread balancerL;
+		synchronized(this)
+		{
+			running = false;
+			notifyAll();
+			balancerL = balancer;
+		}
+		if(balancerL == null)return;
+		boolean joined = false;
+		while(!joined)
+		{
+			try {
+				balancerL.join();
+				joined = true;
+			} catch (InterruptedException e) {}
+		}
+	}
+
+	/** Drops free buffers not of the given size class until a buffer of that class fits the budget */
+	private final void dropFreeBuffers(final int sizeClass)
+	{
+		for(Map.Entry<Integer,ArrayDeque<byte[]>> entry : freeBuffers.entrySet())
+		{
+			if(entry.getKey() == sizeClass)continue;
+			ArrayDeque<byte[]> free = entry.getValue();
+			while((allocatedBytes + sizeClass > budget)&&(!free.isEmpty()))
+			{
+				allocatedBytes -= free.pollFirst().length;
+			}
+		}
+	}
+
+	/** Must be called holding this objects monitor */
+	private final void startBalancer()
+	{
+		if((balancer != null)||(!running))return;
+		balancer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				balance();
+			}
+		}, "FemtoDB buffer pool " + name);
+		balancer.setDaemon(true);
+		balancer.start();
+	}
+
+	/** Run by the balancer, each time a member is refused a buffer taking pages from the member making the least use of its pages */
+	private final void balance()
+	{
+		while(true)
+		{
+			PooledCacheMemory victim;
+			int pages;
+			synchronized(this)
+			{
+				while(running && (starving == null))
+				{
+					try {
+						wait();
+					} catch (InterruptedException e) {}
+				}
+				if(!running)return;
+				victim 	= findVictim(starving);
+				pages 	= PAGES_PER_RELEASE;
+				if(victim != null)pages = Math.max(pages, (starving.sizeClass + victim.sizeClass - 1) / victim.sizeClass);
+				starving = null;
+
+				// older demand counts for less
+				for(PooledCacheMemory member : members)
+				{
+					member.recentDemand = member.recentDemand >> 1;
+				}
+			}
+			if(victim == null)continue;
+
+			// holding no other lock
+			try {
+				victim.table.releasePooledPages(pages);
+			} catch (FemtoDBIOException e) {
+				lastFailure = e;
+			}
+		}
+	}
+
+	/** Returns the member other than the one given with the least recent demand for each page it holds, that has pages to spare. Must be called holding this objects monitor. */
+	private final PooledCacheMemory findVictim(final PooledCacheMemory starvingMember)
+	{
+		PooledCacheMemory retval = null;
+		double bestScore = Double.MAX_VALUE;
+		for(PooledCacheMemory member : members)
+		{
+			if((member == starvingMember)||(member.heldPages <= TableCore.MINIMUM_POOLED_PAGES))continue;
+			double score = (double)member.recentDemand / member.heldPages;
+			if(score < bestScore)
+			{
+				bestScore 	= score;
+				retval 		= member;
+			}
+		}
+		return retval;
+	}
+}
@@ -0,0 +1,27 @@
+package femtodb;
+
+import java.nio.ByteBuffer;
+
+/** Interface implemented by the memory holding a tableCore's cache pages. 
+ * Locations are given as a cache page and a byte offset within that page, so a cache is not limited to the size an int can address. */
+interface CacheMemory {
+	/** Returns a ByteBuffer whose remaining bytes are the given region of a cache page, used for reading and writing the page to disk */
+	ByteBuffer buffer(int page, int offset, int length);
+	
+	/** Copies bytes out of a cache page into the dest array */
+	void get(int page, int offset, byte[] dest, int destPos, int length);
+	
+	/** Copies bytes from the src array into a cache page */
+	void put(int page, int offset, byte[] src, int srcPos, int length);
+	
+	/** Copies bytes between (or within) cache pages, behaving correctly when the regions overlap */
+	void copy(int srcPage, int srcOffset, int destPage, int destOffset, int length);
+	
+	byte readByte(int page, int offset);
+	
+	short readShort(int page, int offset);
+	
+	int readInt(int page, int offset);
+	
+	long readLong(int page, int offset);
+}
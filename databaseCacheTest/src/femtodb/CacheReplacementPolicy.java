@@ -0,0 +1,23 @@
+package femtodb;
+
+/** Interface implemented by the policies a tableCore uses to choose which cache page to free when a file must be loaded (see TableCore.setCacheReplacementPolicy).
+ * Implementations are serialised with the tableCore, so should hold the state describing the cache pages in transient fields set up by allocate. They are only used holding the tableCore's lock. */
+public interface CacheReplacementPolicy {
+	/** Prepares the policy for a cache of the given number of empty pages, each holding a file of up to rowsPerFile rows. Called whenever the tableCore allocates its cache, including after it is loaded. */
+	void allocate(int cachePages, int rowsPerFile, int notModifiedBoost, int overHalfFullBoost);
+
+	/** Restricts the pages that may be chosen to those below activePages, as a tableCore sharing a BufferPool only holds memory for those pages. Pages given up have already been freed. */
+	void setActivePages(int activePages);
+
+	/** Sets the extra weight given to unmodified pages and to pages no more than half full, see TableCore.setCacheBoosts */
+	void setBoosts(int notModifiedBoost, int overHalfFullBoost);
+
+	/** Called once a file has been loaded into the given page */
+	void pageLoaded(int page, FileMetadata fmd);
+
+	/** Called once the given page has been freed. The fmd is null if the file was deleted. */
+	void pageFreed(int page, FileMetadata fmd);
+
+	/** Returns the page to free, never the page given by pageToExclude nor, when cleanOnly is set, a modified page. Returns -1 if no page may be chosen. */
+	int findVictim(FileMetadata[] cacheContents, int pageToExclude, boolean cleanOnly);
+}
@@ -0,0 +1,100 @@
+package femtodb;
+
+/** A view of one row of a tableCore in place in its cache, passed to a RowPredicate while scanning, so column values are read without copying the row into a RowAccessType.
+ * The view is moved from row to row as the scan proceeds, so it is only valid during the call to RowPredicate.matches. Columns are read as RowAccessType reads them. */
+public final class CacheRow {
+	private final CacheMemory 	cache;
+	private final int[] 		columnByteOffset;
+	private final byte[] 		columnTypes;
+	private int 				page;
+	private int 				rowOffset;
+	
+	CacheRow(final CacheMemory cache, final int[] columnByteOffset, final byte[] columnTypes)
+	{
+		this.cache 				= cache;
+		this.columnByteOffset 	= columnByteOffset;
+		this.columnTypes 		= columnTypes;
+	}
+	
+	/** Returns true if the view reads the given cache, which is replaced when the cache is resized */
+	final boolean views(final CacheMemory cache)
+	{
+		return this.cache == cache;
+	}
+	
+	/** Moves the view to the row at the given byte offset in the cache page */
+	final void moveTo(final int page, final int rowOffset)
+	{
+		this.page 		= page;
+		this.rowOffset 	= rowOffset;
+	}
+	
+	public final long getPrimaryKey()
+	{
+		return cache.readLong(page, rowOffset);
+	}
+	
+	public final byte get_byte(final int column)
+	{
+		return cache.readByte(page, rowOffset + columnByteOffset[column]);
+	}
+	
+	public final boolean get_boolean(final int column)
+	{
+		return cache.readByte(page, rowOffset + columnByteOffset[column]) != 0;
+	}
+	
+	public final short get_short(final int column)
+	{
+		return cache.readShort(page, rowOffset + columnByteOffset[column]);
+	}
+	
+	public final char get_char(final int column)
+	{
+		return (char)cache.readShort(page, rowOffset + columnByteOffset[column]);
+	}
+	
+	public final int get_int(final int column)
+	{
+		return cache.readInt(page, rowOffset + columnByteOffset[column]);
+	}
+	
+	public final long get_long(final int column)
+	{
+		return cache.readLong(page, rowOffset + columnByteOffset[column]);
+	}
+	
+	public final float get_float(final int column)
+	{
+		return Float.intBitsToFloat(cache.readInt(page, rowOffset + columnByteOffset[column]));
+	}
+	
+	public final double get_double(final int column)
+	{
+		return Double.longBitsToDouble(cache.readLong(page, rowOffset + columnByteOffset[column]));
+	}
+	
+	/** Returns the key a SecondaryIndex on the column would index the row by, for a byte, boolean, short, char, int, long, float or double column */
+	public final long keyOf(final int column)
+	{
+		switch(columnTypes[column])
+		{
+			case TableCore.COLUMN_TYPE_BYTE:
+				return get_byte(column);
+			case TableCore.COLUMN_TYPE_BOOLEAN:
+				return get_boolean(column) ? 1 : 0;
+			case TableCore.COLUMN_TYPE_SHORT:
+				return get_short(column);
+			case TableCore.COLUMN_TYPE_CHAR:
+				return get_char(column);
+			case TableCore.COLUMN_TYPE_INT:
+				return get_int(column);
+			case TableCore.COLUMN_TYPE_FLOAT:
+				return SecondaryIndex.keyOf(get_float(column));
+			case TableCore.COLUMN_TYPE_DOUBLE:
+				return SecondaryIndex.keyOf(get_double(column));
+			default:
+				return get_long(column);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package femtodb;
+
+import java.io.Serializable;
+
+/** Chooses which cache page of a tableCore to free using the GCLOCK algorithm, so a cache miss costs the same however many pages the cache holds.
+ * Each page holds a weight which a hand sweeping round the pages decrements, freeing the first page whose weight has run out.
+ * A page used since the hand last passed, seen as a change of its FileMetadata's lastUsedServiceNumber, has its weight restored.
+ * Unmodified pages and pages no more than half full are given extra weight, so as with the earlier LRU ranking modified and fuller pages are freed first.
+ * This is the default CacheReplacementPolicy. */
+public final class ClockReplacement implements CacheReplacementPolicy, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** The weight given to every page when used */
+	static final int 				REFERENCED_WEIGHT 	= 1;
+
+	private transient int[] 		weights;
+	/** The lastUsedServiceNumber of each page's file when the hand last passed it or it was loaded */
+	private transient long[] 		seenServiceNumbers;
+	private transient int 			halfOfRowsPerFile;
+	private transient int 			notModifiedBoost;
+	private transient int 			overHalfFullBoost;
+	private transient int 			hand;
+	private transient int 			activePages;
+
+	@Override
+	public final void allocate(final int cachePages, final int rowsPerFile, final int notModifiedBoost, final int overHalfFullBoost)
+	{
+		this.weights 			= new int[cachePages];
+		this.seenServiceNumbers = new long[cachePages];
+		this.halfOfRowsPerFile 	= rowsPerFile >> 1;
+		this.hand 				= 0;
+		this.activePages 		= cachePages;
+		setBoosts(notModifiedBoost, overHalfFullBoost);
+	}
+
+	@Override
+	public final void setActivePages(final int activePages)
+	{
+		this.activePages = activePages;
+		if(hand >= activePages)hand = 0;
+	}
+
+	@Override
+	public final void setBoosts(final int notModifiedBoost, final int overHalfFullBoost)
+	{
+		this.notModifiedBoost 	= notModifiedBoost;
+		this.overHalfFullBoost 	= overHalfFullBoost;
+	}
+
+	@Override
+	public final void pageLoaded(final int page, final FileMetadata fmd)
+	{
+		weights[page] 				= weightOf(fmd);
+		seenServiceNumbers[page] 	= fmd.lastUsedServiceNumber;
+	}
+
+	@Override
+	public final void pageFreed(final int page, final FileMetadata fmd)
+	{
+		// free pages are found by the hand
+	}
+
+	/** Returns the page to free, which is a free page if one is found first */
+	@Override
+	public final int findVictim(final FileMetadata[] cacheContents, final int pageToExclude, final boolean cleanOnly)
+	{
+		int[] 	weightsL 			= weights;
+		long[] 	seenServiceNumbersL = seenServiceNumbers;
+		int 	pages 				= activePages;
+
+		// every page runs out of weight within this many passes of the hand
+		long maxSteps = (long)pages * (REFERENCED_WEIGHT + notModifiedBoost + overHalfFullBoost + 2);
+		int handL = hand;
+		for(long step = 0; step < maxSteps; step++)
+		{
+			int page = handL;
+			handL++;
+			if(handL == pages)handL = 0;
+			if(page == pageToExclude)continue;
+
+			FileMetadata fmd = cacheContents[page];
+			if(fmd == null){hand = handL; return page;} // perfect an unused page :-)
+			if(cleanOnly && fmd.modified)continue;
+
+			if(fmd.lastUsedServiceNumber != seenServiceNumbersL[page])
+			{
+				// used since the hand last passed
+				seenServiceNumbersL[page] 	= fmd.lastUsedServiceNumber;
+				weightsL[page] 				= weightOf(fmd);
+			}
+			if(weightsL[page] <= 0){hand = handL; return page;}
+			weightsL[page]--;
+		}
+		hand = handL;
+		return -1;
+	}
+
+	private final int weightOf(final FileMetadata fmd)
+	{
+		int retval = REFERENCED_WEIGHT;
+		if(!fmd.modified)retval += notModifiedBoost;
+		if(fmd.rows <= halfOfRowsPerFile)retval += overHalfFullBoost;
+		return retval;
+	}
+}
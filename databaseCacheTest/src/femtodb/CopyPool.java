@@ -0,0 +1,169 @@
+package femtodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** A bounded pool of threads copying files for a backup or a restore, counting the files and bytes copied.
+ * Work is submitted in batches, so each table can wait for its own files while the files of other tables are still being copied.
+ * Tasks never wait for other tasks, so the pool cannot deadlock however few threads it has. */
+public final class CopyPool {
+	/** A unit of work copying part of a backup */
+	interface CopyTask {
+		void run() throws IOException;
+	}
+
+	private final ExecutorService 	executor;
+	private final int 				threads;
+	private final long 				startNanos;
+	private long 					files;
+	private long 					bytes;
+
+	CopyPool(final int threads, final String purpose)
+	{
+		this.threads 	= (threads < 1) ? 1 : threads;
+		this.startNanos = System.nanoTime();
+		this.executor 	= Executors.newFixedThreadPool(this.threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(r, "FemtoDB " + purpose);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	final int getThreads()
+	{
+		return threads;
+	}
+
+	final Batch newBatch()
+	{
+		return new Batch();
+	}
+
+	/** Records work done by a task that wrote files itself */
+	synchronized
+	final void addCopied(final long filesCopied, final long bytesCopied)
+	{
+		files += filesCopied;
+		bytes += bytesCopied;
+	}
+
+	/** Stops the threads, returning the statistics for everything copied */
+	final BackupStatistics finish()
+	{
+		executor.shutdownNow();
+		synchronized(this)
+		{
+			return new BackupStatistics(files, bytes, System.nanoTime() - startNanos, threads);
+		}
+	}
+
+	/** Copies a directory and all it contains, as FileUtils.recursiveCopy does, spreading the file copies over the pool. */
+	final void copyDirectory(final File source, final File dest) throws IOException
+	{
+		if(!source.exists())return;
+		if(dest.exists())FileUtils.recursiveDelete(dest);
+		Batch batch = newBatch();
+		batch.copyTree(source, dest);
+		batch.await();
+	}
+
+	/** A group of tasks that can be waited for together, reporting the first failure */
+	final class Batch {
+		private int 			outstanding;
+		private IOException 	failure;
+
+		private Batch()
+		{}
+
+		final void execute(final CopyTask task)
+		{
+			synchronized(this)
+			{
+				outstanding++;
+			}
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					IOException taskFailure = null;
+					try{
+						task.run();
+					}
+					catch(IOException e){taskFailure = e;}
+					catch(RuntimeException e){taskFailure = new IOException(e);}
+					finished(taskFailure);
+				}
+			});
+		}
+
+		/** Copies a file in the pool. The destination directory must already exist. */
+		final void copyFile(final File source, final File dest)
+		{
+			execute(new CopyTask()
+			{
+				@Override
+				public void run() throws IOException
+				{
+					FileUtils.copyFile(source, dest);
+					addCopied(1, dest.length());
+				}
+			});
+		}
+
+		/** Records work done by a task that wrote files itself */
+		final void addCopied(final long filesCopied, final long bytesCopied)
+		{
+			CopyPool.this.addCopied(filesCopied, bytesCopied);
+		}
+
+		/** Blocks until every task in the batch has finished, throwing the first failure */
+		synchronized
+		final void await() throws IOException
+		{
+			while(outstanding > 0)
+			{
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted waiting for files to be copied", e);
+				}
+			}
+			if(failure != null)throw failure;
+		}
+
+		synchronized
+		private final void finished(final IOException taskFailure)
+		{
+			if((taskFailure != null)&&(failure == null))failure = taskFailure;
+			outstanding--;
+			notifyAll();
+		}
+
+		private final void copyTree(final File source, final File dest)
+		{
+			if(source.isDirectory())
+			{
+				dest.mkdirs();
+				File[] subs = source.listFiles();
+				if(subs == null)return;
+				for(File f: subs)
+				{
+					copyTree(f, new File(dest, f.getName()));
+				}
+			}
+			else
+			{
+				copyFile(source, dest);
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package femtodb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Default implementation of PageStore, each file is read or written through a freshly opened file stream. */
+public class DefaultPageStore implements PageStore, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	DefaultPageStore()
+	{}
+
+	@Override
+	public void read(final FileMetadata fmd, final ByteBuffer dest) throws IOException
+	{
+		int bytesToRead = dest.remaining();
+		FileInputStream fis = new FileInputStream(new File(fmd.filename));
+		try
+		{
+			FileChannel channel = fis.getChannel();
+			while(dest.hasRemaining())
+			{
+				if(channel.read(dest) < 0)
+				{
+					throw new IOException("Read incorrect number of bytes from file " + fmd.filename + " expected " + bytesToRead + " and read " + (bytesToRead - dest.remaining()));
+				}
+			}
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	@Override
+	public void write(final FileMetadata fmd, final ByteBuffer src) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(new File(fmd.filename));
+		try
+		{
+			FileChannel channel = fos.getChannel();
+			while(src.hasRemaining())
+			{
+				channel.write(src);
+			}
+			fos.flush();
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	@Override
+	public void delete(final FileMetadata fmd)
+	{
+		File f = new File(fmd.filename);
+		f.delete();
+	}
+
+	@Override
+	public void backup(final String destDirectory, final List<FileMetadata> fmds, final CopyPool.Batch batch) throws IOException
+	{
+		for(FileMetadata fmd : fmds)
+		{
+			File sourceFile = new File(fmd.filename);
+			File destFile = new File(destDirectory + File.separator + Long.toString(fmd.filenumber));
+			batch.copyFile(sourceFile, destFile);
+		}
+	}
+
+	@Override
+	public void backupModified(final String destDirectory, final List<FileMetadata> fmds, final long backedUpServiceNumber, final CopyPool.Batch batch) throws IOException
+	{
+		Set<String> backedUp = new HashSet<String>();
+		String[] backedUpFilenames = new File(destDirectory).list();
+		if(backedUpFilenames != null)backedUp.addAll(Arrays.asList(backedUpFilenames));
+		
+		for(FileMetadata fmd : fmds)
+		{
+			String filenumberString = Long.toString(fmd.filenumber);
+			boolean present = backedUp.remove(filenumberString);
+			if(present && (fmd.modificationServiceNumber <= backedUpServiceNumber))continue;
+			batch.copyFile(new File(fmd.filename), new File(destDirectory + File.separator + filenumberString));
+		}
+		
+		// whatever remains belongs to files that have since been combined away
+		for(String filename : backedUp)
+		{
+			if(isFilenumber(filename))new File(destDirectory + File.separator + filename).delete();
+		}
+	}
+	
+	@Override
+	public PageStore snapshotLayout()
+	{
+		return this;
+	}
+	
+	@Override
+	public void backupContents(final String destDirectory, final FileMetadata fmd, final ByteBuffer contents) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(new File(destDirectory + File.separator + Long.toString(fmd.filenumber)));
+		try
+		{
+			FileChannel channel = fos.getChannel();
+			while(contents.hasRemaining())
+			{
+				channel.write(contents);
+			}
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+	
+	@Override
+	public void removeFromBackup(final String destDirectory, final List<FileMetadata> fmds)
+	{
+		String[] backedUpFilenames = new File(destDirectory).list();
+		if(backedUpFilenames == null)return;
+		Set<String> current = new HashSet<String>();
+		for(FileMetadata fmd : fmds)
+		{
+			current.add(Long.toString(fmd.filenumber));
+		}
+		for(String filename : backedUpFilenames)
+		{
+			if(isFilenumber(filename) && !current.contains(filename))new File(destDirectory + File.separator + filename).delete();
+		}
+	}
+	
+	private static final boolean isFilenumber(final String filename)
+	{
+		if(filename.isEmpty())return false;
+		for(int x = 0; x < filename.length(); x++)
+		{
+			if(!Character.isDigit(filename.charAt(x)))return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean validate(final String directory, final List<FileMetadata> fmds, final int tableWidth)
+	{
+		for(FileMetadata fmd : fmds)
+		{
+			String fileString = directory + File.separator + Long.toString(fmd.filenumber);
+			File fileToCheck = new File(fileString);
+			if( !fileToCheck.exists() )return false;
+			long fileToCheckSize = fileToCheck.length();
+			long expectedSize = fmd.rows * tableWidth;
+			if( fileToCheckSize != expectedSize )return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void close()
+	{
+		// Nothing held open
+	}
+}
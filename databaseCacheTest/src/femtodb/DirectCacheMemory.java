@@ -0,0 +1,96 @@
+package femtodb;
+
+import java.nio.ByteBuffer;
+
+/** CacheMemory held off the heap in direct ByteBuffers. The pages are spread over chunks of up to CHUNK_SIZE_IN_BYTES, 
+ * so the cache can be far larger than an int can address without adding to the heap the garbage collector has to manage. */
+final class DirectCacheMemory implements CacheMemory {
+	/** The largest direct ByteBuffer allocated to hold pages */
+	static final int			CHUNK_SIZE_IN_BYTES = 1 << 30;
+	
+	private final ByteBuffer[] 	chunks;
+	private final int			pageSize;
+	private final int			pagesPerChunk;
+	
+	/** Used by copy so that overlapping regions are moved correctly */
+	private final byte[]		copyBuffer;
+	
+	DirectCacheMemory(final int pages, final int pageSize)
+	{
+		this.pageSize 		= pageSize;
+		int pagesPerChunkL 	= CHUNK_SIZE_IN_BYTES / pageSize;
+		if(pagesPerChunkL < 1)pagesPerChunkL = 1;
+		this.pagesPerChunk 	= pagesPerChunkL;
+		
+		int chunkCount 		= (pages + pagesPerChunkL - 1) / pagesPerChunkL;
+		chunks 				= new ByteBuffer[chunkCount];
+		int pagesLeft 		= pages;
+		for(int x = 0; x < chunkCount; x++)
+		{
+			int pagesInChunk = (pagesLeft < pagesPerChunkL) ? pagesLeft : pagesPerChunkL;
+			chunks[x] = ByteBuffer.allocateDirect(pagesInChunk * pageSize);
+			pagesLeft -= pagesInChunk;
+		}
+		copyBuffer = new byte[pageSize];
+	}
+
+	@Override
+	public final ByteBuffer buffer(final int page, final int offset, final int length)
+	{
+		ByteBuffer retval = chunks[page / pagesPerChunk].duplicate();
+		int index = indexInChunk(page, offset);
+		retval.limit(index + length);
+		retval.position(index);
+		return retval;
+	}
+
+	@Override
+	public final void get(final int page, final int offset, final byte[] dest, final int destPos, final int length)
+	{
+		buffer(page, offset, length).get(dest, destPos, length);
+	}
+
+	@Override
+	public final void put(final int page, final int offset, final byte[] src, final int srcPos, final int length)
+	{
+		buffer(page, offset, length).put(src, srcPos, length);
+	}
+
+	@Override
+	public final void copy(final int srcPage, final int srcOffset, final int destPage, final int destOffset, final int length)
+	{
+		// regions never exceed a page, so staging through copyBuffer is always possible
+		byte[] copyBufferL = copyBuffer;
+		get(srcPage, srcOffset, copyBufferL, 0, length);
+		put(destPage, destOffset, copyBufferL, 0, length);
+	}
+
+	@Override
+	public final byte readByte(final int page, final int offset)
+	{
+		return chunks[page / pagesPerChunk].get(indexInChunk(page, offset));
+	}
+
+	@Override
+	public final short readShort(final int page, final int offset)
+	{
+		return chunks[page / pagesPerChunk].getShort(indexInChunk(page, offset));
+	}
+
+	@Override
+	public final int readInt(final int page, final int offset)
+	{
+		return chunks[page / pagesPerChunk].getInt(indexInChunk(page, offset));
+	}
+
+	@Override
+	public final long readLong(final int page, final int offset)
+	{
+		return chunks[page / pagesPerChunk].getLong(indexInChunk(page, offset));
+	}
+	
+	private final int indexInChunk(final int page, final int offset)
+	{
+		return (page % pagesPerChunk) * pageSize + offset;
+	}
+}
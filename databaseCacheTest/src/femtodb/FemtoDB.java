@@ -1,5 +1,6 @@
 package femtodb;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,12 +13,20 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import femtodbexceptions.FemtoDBIOException;
+import femtodbexceptions.FemtoDBInvalidValueException;
 import femtodbexceptions.FemtoDBShuttingDownException;
 
 /** Implements the databases core functionality, It is responsible for holding the list of tableCore objects as well as providing open, backup and flush the cache functionality. */
@@ -27,6 +36,9 @@ public class FemtoDB implements Serializable, Lock {
 	private transient String 		path;
 	private List<TableCore> 		tableCores;
 	private Map<String,TableCore>	tableCoreMap;
+	
+	/** The numbers of the tables of a database read from its database file, until loadTableFiles reads each from its own tableCore file */
+	private transient long[]		tableNumbersToLoad;
 	private long 					nextUnusedTableNumber;
 
 	
@@ -34,6 +46,34 @@ public class FemtoDB implements Serializable, Lock {
 	private boolean 				shuttingDown;
 	private String					backupDirectory;	
 	
+	/** Set when backups only hold each tables lock while taking a snapshot of its files, rather than while copying them */
+	private boolean					onlineBackup;
+	
+	/** The number of tables backed up at a time, and the number of threads copying their files */
+	private int						backupThreads;
+	static final int				DEFAULT_BACKUP_THREADS 	= 4;
+	
+	private transient BackupStatistics lastBackupStatistics;
+	private transient BackupStatistics lastRestoreStatistics;
+	
+	/** Writes modified cache pages to disk in the background, null unless started by startBackgroundFlusher */
+	private transient BackgroundFlusher backgroundFlusher;
+	
+	/** Set when the database logs its operations to a write ahead log kept in the backup directory */
+	private boolean					writeAheadLogEnabled;
+	private long					groupCommitDelayMillis;
+	private transient WriteAheadLog	writeAheadLog;
+	
+	/** The bytes shared by the tables caches when set, see setBufferPoolSize */
+	private long					bufferPoolSize;
+	private transient BufferPool	bufferPool;
+	
+	/** Set when the tables caches are reloaded in the background with the files they held when the database was last saved, see setWarmUpOnOpen */
+	private boolean					warmUpOnOpen;
+	
+	static final String				WAL_DIRECTORY_NAME 		= "wal";
+	static final String				WAL_SEGMENT_FILENAME 	= "walsegment";
+	
 	/** Constructs a database core requiring a name as an argument. The setPath method must be also called before the database can be used */
 	public FemtoDB(final String name)
 	{
@@ -45,6 +85,7 @@ public class FemtoDB implements Serializable, Lock {
 		databaseLock			= new DatabaseLock();
 		shuttingDown			= false;
 		backupDirectory			= null;	
+		backupThreads			= DEFAULT_BACKUP_THREADS;
 	}
 	
 	/** Obtains the database lock then creates a new tableCore in the database, requiring a name for the tableCore and (optionally) a name for the primary key column 
@@ -77,6 +118,7 @@ public class FemtoDB implements Serializable, Lock {
 		}
 		TableCore retval = tableCoreMap.get(name);
 		unlock();
+		if(retval != null)retval.activate();
 		return retval;
 	}
 	
@@ -96,9 +138,10 @@ public class FemtoDB implements Serializable, Lock {
 		if(t != null)
 		{
 			tableCores.remove(t);
-			tableCoreMap.remove(t);
+			tableCoreMap.remove(name);
 			try{
 				t.deleteTable(path);
+				logTableOperation(t.getTableNumber(), WriteAheadLog.DELETE_TABLE, null);
 			}
 			catch(FemtoDBIOException e)
 			{
@@ -109,11 +152,24 @@ public class FemtoDB implements Serializable, Lock {
 		unlock();
 	}
 	
+	/** Logs a table being made operational or deleted, waiting for the record to become durable, so replaying the log after a crash recreates or deletes the table before replaying later records */
+	final void logTableOperation(final long tableNumber, final byte operation, final byte[] definition) throws FemtoDBIOException
+	{
+		WriteAheadLog writeAheadLogL = writeAheadLog;
+		if(writeAheadLogL == null)return;
+		try{
+			writeAheadLogL.append(tableNumber, operation, 0L, (short)0, definition, ((definition == null) ? 0 : definition.length));
+			writeAheadLogL.awaitDurable();
+		}
+		catch(IOException e){throw new FemtoDBIOException("Database " + name + " was unable to log table " + tableNumber + " to its write ahead log",e);}
+	}
+	
 	/** Shuts down the database 
 	 * @throws FemtoDBIOException */
 	public final void shutdown() throws FemtoDBIOException 
 	{
 		if(shuttingDown)return;
+		stopBackgroundFlusher();
 		
 		// acquire the database lock as a high priority
 		databaseLock.shutdownLock();
@@ -127,8 +183,21 @@ public class FemtoDB implements Serializable, Lock {
 				t.shutdownTable();
 			}
 			
+			if(bufferPool != null)bufferPool.shutdown();
+			
 			// generate a finish file that indicates the shutdown completed
 			generateFinishFile(path);
+			generateManifest(path);
+			
+			if(writeAheadLog != null)
+			{
+				try {
+					writeAheadLog.close();
+				} catch (IOException e) {
+					throw new FemtoDBIOException("Database " + name + " was unable to close its write ahead log during shutdown",e);
+				}
+				writeAheadLog = null;
+			}
 		}
 		catch(FemtoDBIOException e)
 		{
@@ -140,6 +209,115 @@ public class FemtoDB implements Serializable, Lock {
 		}
 	}
 	
+	/** Gives the on heap caches of the tables a single memory budget of bufferPoolSize bytes, instead of each table allocating its own cache of its cache size.
+	 * A table's cache then borrows pages from the pool as it needs them up to its cache size, which defaults to the pool divided by the number of tables the database holds when the table is made operational, 
+	 * and a daemon thread takes pages back from the tables using them least. It applies to tables made operational or first used after it is called, and is remembered when the database is saved. 
+	 * Zero stops tables using a pool. It cannot be changed once a table's cache is using the pool. */
+	synchronized
+	public final void setBufferPoolSize(final long bufferPoolSize) throws FemtoDBInvalidValueException
+	{
+		if(bufferPoolSize < 0)throw new FemtoDBInvalidValueException("Database " + name + " buffer pool size cannot be negative. It was " + bufferPoolSize);
+		if(bufferPool != null)
+		{
+			if(bufferPool.hasMembers())throw new FemtoDBInvalidValueException("Database " + name + " buffer pool size cannot be changed while tables are using the pool");
+			bufferPool.shutdown();
+		}
+		this.bufferPoolSize = bufferPoolSize;
+		bufferPool 			= (bufferPoolSize > 0) ? new BufferPool(name, bufferPoolSize) : null;
+	}
+	
+	public final long getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+	
+	/** When set, opening the database starts reading the files each table held in its cache when the database was last shutdown or backed up back into its cache in the background,
+	 * so the working set is cached again soon after a restart rather than faulted in by the first queries. Tables with files to reload are activated when opened rather than when first used.
+	 * It is remembered when the database is saved. */
+	synchronized
+	public final void setWarmUpOnOpen(final boolean warmUpOnOpen) {
+		this.warmUpOnOpen = warmUpOnOpen;
+	}
+	
+	public final boolean isWarmUpOnOpen() {
+		return warmUpOnOpen;
+	}
+	
+	/** Returns the pool the tables caches borrow their pages from, or null if they each have their own cache */
+	synchronized
+	public final BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/** Starts a daemon thread that writes modified cache pages to disk in the background, so that loading a file into the cache rarely has to wait for a modified page to be written first. 
+	 * Every intervalMillis it writes the pages that have been modified for longer than maxDirtyAgeMillis, and the oldest modified pages of any tableCore with more than dirtyRatio of its cache pages modified.
+	 * Calling it again replaces the running flusher. */
+	synchronized
+	public final void startBackgroundFlusher(final long intervalMillis, final long maxDirtyAgeMillis, final double dirtyRatio)
+	{
+		if(shuttingDown)return;
+		stopBackgroundFlusher();
+		backgroundFlusher = new BackgroundFlusher(this, intervalMillis, maxDirtyAgeMillis, dirtyRatio);
+		backgroundFlusher.start();
+	}
+	
+	/** Stops the background flusher if it is running, waiting for it to finish any pages it is writing */
+	synchronized
+	public final void stopBackgroundFlusher()
+	{
+		if(backgroundFlusher == null)return;
+		backgroundFlusher.shutdown();
+		backgroundFlusher = null;
+	}
+	
+	/** Returns the last exception the background flusher encountered writing pages, or null if there has been none */
+	synchronized
+	public final FemtoDBIOException getBackgroundFlusherFailure()
+	{
+		if(backgroundFlusher == null)return null;
+		return backgroundFlusher.getLastFailure();
+	}
+	
+	/** Starts logging every insert, update and delete to a write ahead log kept in the backup directory, which must already be set. Each operation returns once its log record has been synced to disk. 
+	 * The thread syncing the log first waits groupCommitDelayMillis, letting operations from other threads share the sync. If the database is not shutdown correctly,
+	 * open replays the log on top of the most recent backup, so backups can be taken far less often. Tables made operational or deleted since the last backup are recreated or deleted again. 
+	 * The log stays enabled when the database is reopened. 
+	 * @throws FemtoDBShuttingDownException */
+	public final void enableWriteAheadLog(final long groupCommitDelayMillis) throws FemtoDBIOException, FemtoDBShuttingDownException
+	{
+		lock();
+		try{
+			if(shuttingDown)throw new FemtoDBShuttingDownException();
+			if(writeAheadLog != null)return;
+			if(backupDirectory == null)throw new FemtoDBIOException("Database " + name + " requires a backup directory to hold its write ahead log");
+			
+			// any existing segments belong to an earlier database
+			WriteAheadLog writeAheadLogL = new WriteAheadLog(backupDirectory + File.separator + WAL_DIRECTORY_NAME, groupCommitDelayMillis);
+			writeAheadLogL.deleteSegmentsBefore(Long.MAX_VALUE);
+			for(TableCore t: tableCores)
+			{
+				writeAheadLogL.advanceLSN(t.getWalLSN());
+			}
+			try {
+				writeAheadLogL.startSegment();
+			} catch (IOException e) {
+				throw new FemtoDBIOException("Database " + name + " was unable to create its write ahead log",e);
+			}
+			this.groupCommitDelayMillis = groupCommitDelayMillis;
+			this.writeAheadLogEnabled 	= true;
+			this.writeAheadLog 			= writeAheadLogL;
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+	
+	/** Returns the write ahead log, or null if operations are not being logged */
+	final WriteAheadLog getWriteAheadLog()
+	{
+		return writeAheadLog;
+	}
+	
 	/** Obtains the database lock then creates a backup of the database at its backupDirectory. The method automatically creates ping and pong subdirectories if they do not exist. If a backup exists the method will overwrite the oldest (or the most invalid) ping or pong backup. 
 	 * @throws FemtoDBShuttingDownException */
 	public final void backup()  throws FemtoDBIOException, FemtoDBShuttingDownException
@@ -223,31 +401,56 @@ public class FemtoDB implements Serializable, Lock {
 			}
 		}
 		
+		// start a new log segment, the backup will hold every operation logged before it
+		long walSegment = -1L;
+		if(writeAheadLog != null)
+		{
+			try {
+				walSegment = writeAheadLog.startSegment();
+			} catch (IOException e) {
+				throw new FemtoDBIOException("Database " + name + " was unable to start a new write ahead log segment when backing up",e);
+			}
+		}
+		
 		if(usePong)
 		{
 			if(validPongDatabaseStart == -1)
 			{
-				backupCompletelyTo(pongDirectoryString);
+				backupCompletelyTo(pongDirectoryString, walSegment);
 			}
 			else
 			{
-				backupIncrementalTo(pongDirectoryString);
+				backupIncrementalTo(pongDirectoryString, walSegment);
 			}
 		}
 		else
 		{
 			if(validPingDatabaseStart == -1)
 			{
-				backupCompletelyTo(pingDirectoryString);
+				backupCompletelyTo(pingDirectoryString, walSegment);
 			}
 			else
 			{
-				backupIncrementalTo(pingDirectoryString);
+				backupIncrementalTo(pingDirectoryString, walSegment);
 			}			
 		}
+		
+		// delete the log segments that neither backup needs
+		if(writeAheadLog != null)
+		{
+			String otherDirectoryString = usePong ? pingDirectoryString : pongDirectoryString;
+			long otherDatabaseStart 	= usePong ? validPingDatabaseStart : validPongDatabaseStart;
+			long firstSegmentNeeded 	= walSegment;
+			if(otherDatabaseStart != -1L)
+			{
+				long otherWalSegment = readWalSegmentFile(otherDirectoryString);
+				if(otherWalSegment < firstSegmentNeeded)firstSegmentNeeded = otherWalSegment;
+			}
+			writeAheadLog.deleteSegmentsBefore(firstSegmentNeeded);
+		}
 	}
 	
-	private final void backupCompletelyTo(final String destDirectory) throws FileNotFoundException, FemtoDBIOException
+	private final void backupCompletelyTo(final String destDirectory, final long walSegment) throws FileNotFoundException, FemtoDBIOException
 	{
 		if(path == null)throw new FemtoDBIOException("Database " + name + " backup was attempted before the database path was set");
 		// remove the old directory if it exists and generate a new one
@@ -261,18 +464,162 @@ public class FemtoDB implements Serializable, Lock {
 		// add the database file
 		generateDatabaseFile(destDirectory);
 		
-		for(TableCore t: tableCores)
+		// record the first log segment to replay on top of this backup
+		if(walSegment != -1L)generateWalSegmentFile(destDirectory, walSegment);
+		
+		backupTables(destDirectory, false);
+		
+		generateFinishFile(destDirectory);
+		generateManifest(destDirectory);
+	}
+	
+	/** Brings a valid backup up to date, only copying the files modified since it was made and removing those of deleted tables and combined files. */
+	private final void backupIncrementalTo(final String destDirectory, final long walSegment) throws FileNotFoundException, FemtoDBIOException
+	{
+		if(path == null)throw new FemtoDBIOException("Database " + name + " backup was attempted before the database path was set");
+		
+		// invalidate the backup until it has been brought up to date
+		File finishFile = new File(destDirectory + File.separator + "finish");
+		if(finishFile.exists() && !finishFile.delete())throw new FemtoDBIOException("Database " + name + " was unable to invalidate the following backup before updating it: " + destDirectory);
+		new File(destDirectory + File.separator + Manifest.FILENAME).delete();
+		
+		// add a start file
+		generateStartFile(destDirectory);
+		
+		// add the database file
+		generateDatabaseFile(destDirectory);
+		
+		// record the first log segment to replay on top of this backup
+		if(walSegment != -1L)
 		{
-			t.backupCompletely(destDirectory);
-		}	
+			generateWalSegmentFile(destDirectory, walSegment);
+		}
+		else
+		{
+			new File(destDirectory + File.separator + WAL_SEGMENT_FILENAME).delete();
+		}
+		
+		deleteBackedUpTablesNotIn(destDirectory);
+		
+		backupTables(destDirectory, true);
 		
 		generateFinishFile(destDirectory);
+		generateManifest(destDirectory);
+	}
+	
+	/** Backs up backupThreads tables at a time, their files being copied by a pool of backupThreads threads. Waits for every table to finish before reporting the first failure. */
+	private final void backupTables(final String destDirectory, final boolean incremental) throws FemtoDBIOException
+	{
+		final CopyPool pool 	= new CopyPool(backupThreads, "backup " + name);
+		final boolean onlineL 	= onlineBackup;
+		ExecutorService tableExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(pool.getThreads(), tableCores.size())));
+		try{
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(final TableCore t: tableCores)
+			{
+				results.add(tableExecutor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws FemtoDBIOException
+					{
+						if(incremental)
+						{
+							t.backupIncremental(destDirectory, onlineL, pool);
+						}
+						else
+						{
+							t.backupCompletely(destDirectory, onlineL, pool);
+						}
+						return null;
+					}
+				}));
+			}
+			
+			FemtoDBIOException failure = null;
+			for(Future<Void> result : results)
+			{
+				try {
+					result.get();
+				} catch (InterruptedException e) {
+					if(failure == null)failure = new FemtoDBIOException("Database " + name + " was interrupted while backing up to " + destDirectory, e);
+				} catch (ExecutionException e) {
+					if(failure != null)continue;
+					if(e.getCause() instanceof FemtoDBIOException)failure = (FemtoDBIOException)e.getCause();
+					else failure = new FemtoDBIOException("Database " + name + " failed while backing up to " + destDirectory, e.getCause());
+				}
+			}
+			if(failure != null)throw failure;
+		}
+		finally
+		{
+			tableExecutor.shutdown();
+			lastBackupStatistics = pool.finish();
+		}
+	}
+	
+	/** Removes the table files and data directories of tables deleted since the backup in the given directory was made */
+	private final void deleteBackedUpTablesNotIn(final String destDirectory)
+	{
+		Set<String> current = new HashSet<String>();
+		for(TableCore t: tableCores)
+		{
+			current.add(Long.toString(t.getTableNumber()));
+		}
+		File[] backedUp = new File(destDirectory).listFiles();
+		if(backedUp == null)return;
+		for(File f : backedUp)
+		{
+			String filename = f.getName();
+			if(filename.startsWith("tableCore"))
+			{
+				if(!current.contains(filename.substring("tableCore".length())))f.delete();
+			}
+			else if(f.isDirectory() && filename.matches("[0-9]+") && !current.contains(filename))
+			{
+				FileUtils.recursiveDelete(f);
+			}
+		}
+	}
+	
+	/** Generates a file in the directory given by the destString argument holding the first write ahead log segment needed to bring the backup up to date. */
+	private final void generateWalSegmentFile(final String destString, final long walSegment) throws FemtoDBIOException
+	{
+		String walSegmentFileString = destString + File.separator + WAL_SEGMENT_FILENAME;
+		ObjectOutputStream oos = null;
+		try {
+			oos = new ObjectOutputStream(new FileOutputStream(walSegmentFileString));
+			oos.writeLong(walSegment);
+		} catch (IOException e) {
+			throw new FemtoDBIOException("Database " + name + " was unable to create the following log segment file while backing up: " + walSegmentFileString,e);
+		} finally
+		{
+			if(oos != null)
+			{
+				try {
+					oos.close();
+				} catch (IOException e) {
+					throw new FemtoDBIOException("Database " + name + " was unable to close the following log segment file while backing up: " + walSegmentFileString,e);
+				}
+			}
+		}
 	}
 	
-	private final void backupIncrementalTo(final String destString) throws FileNotFoundException, FemtoDBIOException
+	/** Returns the first write ahead log segment needed by the backup in the given directory, or Long.MIN_VALUE if it does not record one so every segment must be kept. */
+	private static final long readWalSegmentFile(final String backupString)
 	{
-		//TODO
-		backupCompletelyTo(destString);
+		ObjectInputStream ois = null;
+		try {
+			ois = new ObjectInputStream(new FileInputStream(backupString + File.separator + WAL_SEGMENT_FILENAME));
+			return ois.readLong();
+		} catch (IOException e) {
+			return Long.MIN_VALUE;
+		} finally
+		{
+			if(ois != null)
+			{
+				try {ois.close();} catch (IOException e) {}
+			}
+		}
 	}
 	
 	/** Generates a start file in the directory given by the destString argument, removing the older one if it exists. */
@@ -354,6 +701,16 @@ public class FemtoDB implements Serializable, Lock {
 		}
 	}
 	
+	/** Generates a manifest of the completed directory given by the destString argument, so it can be validated quickly when opened */
+	private final void generateManifest(final String destString) throws FemtoDBIOException
+	{
+		try {
+			Manifest.write(destString);
+		} catch (IOException e) {
+			throw new FemtoDBIOException("Database " + name + " was unable to create the manifest in " + destString, e);
+		}
+	}
+	
 	/** Generates a finish file in the directory given by the destString argument, removing the older one if it exists. */
 	private final void generateFinishFile(final String destString) throws FemtoDBIOException
 	{
@@ -416,9 +773,13 @@ public class FemtoDB implements Serializable, Lock {
 			ois.close();
 			retval.setPath(path);
 			retval.setBackupDirectory(backupDirectory);
+			if(retval.bufferPoolSize > 0)retval.bufferPool = new BufferPool(retval.name, retval.bufferPoolSize);
+			retval.loadTableFiles();
 			retval.loadTables();
 			retval.databaseLock = new DatabaseLock();
 			retval.shuttingDown = false;
+			if(retval.writeAheadLogEnabled)retval.openWriteAheadLog();
+			if(retval.warmUpOnOpen)retval.warmUpTables();
 			return retval;
 
 		} catch (IOException e) {
@@ -432,10 +793,46 @@ public class FemtoDB implements Serializable, Lock {
 	public final void setBackupDirectory(final String backupDirectory) {
 		this.backupDirectory = backupDirectory;	
 	}
+	
+	/** When set, backups take a copy on write snapshot of each tables files holding its lock only briefly, then copy the snapshot while the table continues to be used. 
+	 * Files overwritten or deleted before they have been copied are first read into memory. */
+	public final void setOnlineBackup(final boolean onlineBackup) {
+		this.onlineBackup = onlineBackup;	
+	}
+	
+	public final boolean isOnlineBackup() {
+		return onlineBackup;	
+	}
+	
+	/** Sets the number of tables backed up at a time, which is also the number of threads copying their files */
+	public final void setBackupThreads(final int backupThreads) throws FemtoDBInvalidValueException {
+		if(backupThreads < 1)throw new FemtoDBInvalidValueException("Database " + name + " needs at least one thread to backup. It was given " + backupThreads);
+		this.backupThreads = backupThreads;	
+	}
+	
+	public final int getBackupThreads() {
+		return backupThreads;	
+	}
+	
+	/** Returns the files and bytes copied by the last backup and its throughput, or null if no backup has been made since the database was opened */
+	public final BackupStatistics getLastBackupStatistics() {
+		return lastBackupStatistics;	
+	}
+	
+	/** Returns the files and bytes copied restoring the database from a backup when it was opened and the throughput, or null if it was opened without a restore */
+	public final BackupStatistics getLastRestoreStatistics() {
+		return lastRestoreStatistics;	
+	}
 
 	/** Returns the database at the location given by the path argument. If it appears to be corrupt or was incorrectly shutdown then
 	 * the ping and pong backups present in the directory given by the backup argument are used to attempt a database recovery.  */
 	public final static FemtoDB open(final String path, final String backupDirectory) throws FileNotFoundException, FemtoDBIOException
+	{
+		return open(path, backupDirectory, DEFAULT_BACKUP_THREADS);
+	}
+	
+	/** Opens the database as open(path, backupDirectory) does, restoring a backup using restoreThreads threads to copy its files. */
+	public final static FemtoDB open(final String path, final String backupDirectory, final int restoreThreads) throws FileNotFoundException, FemtoDBIOException
 	{
 		// Open the database if it is not corrupt or was incorrectly shutdown
 		long databaseStart = getDatabaseStart(path,true);
@@ -466,15 +863,13 @@ public class FemtoDB implements Serializable, Lock {
 			{
 				// recover using ping			
 				try {
-					FileUtils.recursiveCopy(pingFile,databaseFile);
-					return openInternal(path,backupDirectory);				
+					return openFromBackup(pingFile, databaseFile, path, backupDirectory, restoreThreads);				
 				} 
 				catch (IOException e)
 				{
 					// ping failed try pong
 					try {
-						FileUtils.recursiveCopy(pongFile,databaseFile);
-						return openInternal(path,backupDirectory);
+						return openFromBackup(pongFile, databaseFile, path, backupDirectory, restoreThreads);
 					} catch (IOException e1) {
 						throw new FemtoDBIOException("Failed to open the database. The database appears to be corrupt, both the backups appear to be functional but threw IOExceptions whilst copying.", e1);
 					}					
@@ -485,8 +880,7 @@ public class FemtoDB implements Serializable, Lock {
 				// recover using pong	
 				System.out.println(" recover using pong ");
 				try {
-					FileUtils.recursiveCopy(pongFile,databaseFile);
-					return openInternal(path,backupDirectory);				
+					return openFromBackup(pongFile, databaseFile, path, backupDirectory, restoreThreads);				
 				} 
 				catch (IOException e)
 				{
@@ -495,8 +889,7 @@ public class FemtoDB implements Serializable, Lock {
 					System.out.println(" pong failed trying ping ");
 					// pong failed try ping
 					try {
-						FileUtils.recursiveCopy(pingFile,databaseFile);
-						return openInternal(path,backupDirectory);
+						return openFromBackup(pingFile, databaseFile, path, backupDirectory, restoreThreads);
 					} catch (IOException e1) {
 						throw new FemtoDBIOException("Failed to open the database. The database appears to be corrupt, both the backups appear to be functional but threw IOExceptions whilst copying.", e1);
 					}					
@@ -508,8 +901,7 @@ public class FemtoDB implements Serializable, Lock {
 		{
 			// recover using ping only		
 			try {
-				FileUtils.recursiveCopy(pingFile,databaseFile);
-				return openInternal(path,backupDirectory);				
+				return openFromBackup(pingFile, databaseFile, path, backupDirectory, restoreThreads);				
 			} 
 			catch (IOException e)
 			{
@@ -521,8 +913,7 @@ public class FemtoDB implements Serializable, Lock {
 		{
 			// recover using pong only		
 			try {
-				FileUtils.recursiveCopy(pongFile,databaseFile);
-				return openInternal(path,backupDirectory);				
+				return openFromBackup(pongFile, databaseFile, path, backupDirectory, restoreThreads);				
 			} 
 			catch (IOException e)
 			{
@@ -532,18 +923,214 @@ public class FemtoDB implements Serializable, Lock {
 		throw new FemtoDBIOException("Failed to open the database. The database and both its backups appear to be corrupted, everythings gone totally foobar. Its time to go get a coffee");
 	}
 	
-	/** Aligns all the paths held in tableCores to the databases current path */ 
+	/** Replays the write ahead log over the tables just loaded, bringing a database recovered from a backup up to date, then starts appending to a new log segment. */
+	private final void openWriteAheadLog() throws FemtoDBIOException
+	{
+		if(backupDirectory == null)throw new FemtoDBIOException("Database " + name + " uses a write ahead log, so must be opened with the backup directory holding it");
+		WriteAheadLog writeAheadLogL = new WriteAheadLog(backupDirectory + File.separator + WAL_DIRECTORY_NAME, groupCommitDelayMillis);
+		try {
+			writeAheadLogL.replay(this);
+			for(TableCore t: tableCores)
+			{
+				writeAheadLogL.advanceLSN(t.getWalLSN());
+			}
+			writeAheadLogL.startSegment();
+		} catch (IOException e) {
+			throw new FemtoDBIOException("Database " + name + " was unable to replay its write ahead log",e);
+		}
+		writeAheadLog = writeAheadLogL;
+	}
+	
+	/** Called by the WriteAheadLog while replaying, to apply a logged operation to the table it was logged against. Operations on tables deleted before the backup was taken are skipped, 
+	 * while an operation on a table the database has never held means the log does not belong to the backup, so fails the replay. */
+	final void replayLogRecord(final long lsn, final long tableNumber, final byte operation, final long primaryKey, final short flag, final byte[] row) throws IOException
+	{
+		if(operation == WriteAheadLog.CREATE_TABLE)
+		{
+			replayCreateTable(lsn, tableNumber, row);
+			return;
+		}
+		TableCore t = tableByNumber(tableNumber);
+		if(t == null)
+		{
+			if(tableNumber < nextUnusedTableNumber)return;
+			throw new IOException("Unable to replay log record " + lsn + " as the database has no table " + tableNumber);
+		}
+		try {
+			if(operation == WriteAheadLog.DELETE_TABLE)
+			{
+				tableCores.remove(t);
+				tableCoreMap.remove(t.getName());
+				t.deleteTable(path);
+				return;
+			}
+			t.replayLogRecord(lsn, operation, primaryKey, flag, row);
+		} catch (Exception e) {
+			throw new IOException("Unable to replay log record " + lsn + " on table " + tableNumber, e);
+		}
+	}
+	
+	/** Recreates a table made operational after the backup was taken from the definition logged when it was, replacing the backups copy if it holds the table before it was made operational.
+	 * Tables the backup holds operational already have the definition, and a table deleted before the backup was taken stays deleted. */
+	private final void replayCreateTable(final long lsn, final long tableNumber, final byte[] definition) throws IOException
+	{
+		TableCore existing = tableByNumber(tableNumber);
+		if((existing == null)&&(tableNumber < nextUnusedTableNumber))return;
+		if((existing != null)&&(existing.isOperational()))return;
+		
+		TableCore t;
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(definition));
+		try{
+			t = (TableCore)ois.readObject();
+		}
+		catch(ClassNotFoundException e){throw new IOException("Unable to replay log record " + lsn + " creating table " + tableNumber, e);}
+		finally
+		{
+			ois.close();
+		}
+		t.finishLoadingLazily(this);
+		try {
+			t.makeOperational();
+		} catch (Exception e) {
+			throw new IOException("Unable to replay log record " + lsn + " creating table " + tableNumber, e);
+		}
+		
+		if(existing != null)
+		{
+			tableCores.remove(existing);
+			tableCoreMap.remove(existing.getName());
+		}
+		tableCores.add(t);
+		tableCoreMap.put(t.getName(), t);
+		if(tableNumber >= nextUnusedTableNumber)nextUnusedTableNumber = tableNumber + 1;
+	}
+	
+	/** Returns the table with the given number, or null if the database does not hold it */
+	private final TableCore tableByNumber(final long tableNumber)
+	{
+		for(TableCore t: tableCores)
+		{
+			if(t.getTableNumber() == tableNumber)return t;
+		}
+		return null;
+	}
+	
+	/** Copies a backup over the database directory using a pool of restoreThreads threads, then opens it */
+	private final static FemtoDB openFromBackup(final File backupFile, final File databaseFile, final String path, final String backupDirectory, final int restoreThreads) throws IOException, FemtoDBIOException
+	{
+		CopyPool pool = new CopyPool(restoreThreads, "restore " + path);
+		BackupStatistics restoreStatistics;
+		try{
+			pool.copyDirectory(backupFile, databaseFile);
+		}
+		finally
+		{
+			restoreStatistics = pool.finish();
+		}
+		FemtoDB retval = openInternal(path,backupDirectory);
+		retval.lastRestoreStatistics = restoreStatistics;
+		return retval;
+	}
+	
+	/** Reads each table from its own tableCore file, which was written at the same moment as the tables data files were backed up or saved. 
+	 * Databases saved before their tables were left to the tableCore files already hold them. */
+	private final void loadTableFiles() throws IOException, ClassNotFoundException
+	{
+		long[] tableNumbersToLoadL = tableNumbersToLoad;
+		if(tableNumbersToLoadL == null)return;
+		tableCores 		= new ArrayList<TableCore>();
+		tableCoreMap 	= new HashMap<String,TableCore>();
+		for(long tableNumber : tableNumbersToLoadL)
+		{
+			File tableFile = new File(path + File.separator + "tableCore" + Long.toString(tableNumber));
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(tableFile));
+			try{
+				TableCore readTable = (TableCore)ois.readObject();
+				tableCores.add(readTable);
+				tableCoreMap.put(readTable.getName(), readTable);
+			}
+			finally
+			{
+				ois.close();
+			}
+		}
+		tableNumbersToLoad = null;
+	}
+	
+	/** Returns the numbers of the tables of a database read from its database file */
+	private final long[] savedTableNumbers()
+	{
+		if(tableNumbersToLoad != null)return tableNumbersToLoad;
+		long[] retval = new long[tableCores.size()];
+		for(int x = 0; x < retval.length; x++)
+		{
+			retval[x] = tableCores.get(x).getTableNumber();
+		}
+		return retval;
+	}
+	
+	/** Writes the database with only the numbers of its tables, as each table is saved in its own tableCore file at the moment its data files are backed up or saved. 
+	 * The database file is written before the tables are backed up, so tables held in it may not match their data files if the tables were in use. Called holding the database lock. */
+	private void writeObject(final ObjectOutputStream out) throws IOException
+	{
+		List<TableCore> 		tableCoresL 	= tableCores;
+		Map<String,TableCore> 	tableCoreMapL 	= tableCoreMap;
+		tableCores 		= null;
+		tableCoreMap 	= null;
+		try{
+			out.defaultWriteObject();
+		}
+		finally
+		{
+			tableCores 		= tableCoresL;
+			tableCoreMap 	= tableCoreMapL;
+		}
+		out.writeInt(tableCoresL.size());
+		for(TableCore t: tableCoresL)
+		{
+			out.writeLong(t.getTableNumber());
+		}
+	}
+	
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		
+		// databases saved before their tables were left to the tableCore files hold the tables themselves
+		if(tableCores != null)return;
+		long[] tableNumbers = new long[in.readInt()];
+		for(int x = 0; x < tableNumbers.length; x++)
+		{
+			tableNumbers[x] = in.readLong();
+		}
+		tableNumbersToLoad = tableNumbers;
+	}
+	
+	/** Aligns all the paths held in tableCores to the databases current path. Each table's cache is only allocated when it is first obtained with getTable. */ 
 	private final void loadTables()
 	{
 		for(TableCore t: tableCores)
 		{
-			t.finishLoading(this);
+			t.finishLoadingLazily(this);
+		}
+	}
+	
+	/** Starts each table reloading the files it held in its cache when the database was saved, the reads running in the background on each table's ReadAhead threads */
+	private final void warmUpTables()
+	{
+		for(TableCore t: tableCores)
+		{
+			t.warmUp();
 		}
 	}
 	
-	/** Returns the start time (in milliseconds) of the database or backup at the given path, or -1 if that backup looks corrupt or did not complete. */
+	/** Returns the start time (in milliseconds) of the database or backup at the given path, or -1 if that backup looks corrupt or did not complete. 
+	 * A manifest matching the directory is trusted, otherwise the database and tableCore files are deserialised (and with validateFully the data files checked). */
 	private static final long getDatabaseStart(final String path, final boolean validateFully)
 	{
+		long manifestStart = Manifest.validate(path);
+		if(manifestStart != -1L)return manifestStart;
+		
 		String startFileString		= path + File.separator + "start";
 		String finishFileString		= path + File.separator + "finish";
 		String databaseFileString	= path + File.separator + "database";
@@ -582,12 +1169,12 @@ public class FemtoDB implements Serializable, Lock {
 			long temp = 0; // used to force tableCore de-serialisation
 			if(backedUpDatabase != null)
 			{
-					List<TableCore> backedUpTables = backedUpDatabase.tableCores;
+					long[] backedUpTableNumbers = backedUpDatabase.savedTableNumbers();
 					
 					// check it is possible to read all the tableCore files
-					for(TableCore t: backedUpTables)
+					for(long tableNumber: backedUpTableNumbers)
 					{
-						String tableFileString = path + File.separator + "tableCore" + Long.toString(t.getTableNumber());
+						String tableFileString = path + File.separator + "tableCore" + Long.toString(tableNumber);
 						InputStream isForTable = null;
 						ObjectInputStream oisForTable = null;
 						TableCore readTable = null;
@@ -648,6 +1235,11 @@ public class FemtoDB implements Serializable, Lock {
 		return path;
 	}
 	
+	/** Returns the list of tableCores, which must only be used while holding the database lock */
+	final List<TableCore> getTableCores() {
+		return tableCores;
+	}
+	
 	/** Returns the name of the database */
 	public final String getName() {
 		return name;
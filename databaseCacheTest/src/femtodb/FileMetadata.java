@@ -37,6 +37,19 @@ public class FileMetadata implements Serializable{
 	/** Set true if the cache page has been modified since it was loaded from disk */
 	boolean				modified;
 	
+	/** The time (in milliseconds) the cache page was first modified since it was last written to disk */
+	transient long		dirtySince;
+	
+	/** The primary keys the file may hold, or null if not yet built. Saved by MetadataFormat */
+	transient PrimaryKeyBloomFilter bloomFilter;
+	
+	/** The range of each numeric column's values in the file, or null if not yet built or the table's column types are unknown. Saved by MetadataFormat */
+	transient ZoneMap 	zoneMap;
+	
+	/** Used by MetadataFormat when loading, the owner and filename are set by finishLoading */
+	FileMetadata()
+	{}
+	
 	FileMetadata(
 			final TableCore owner,
 			final long filenumber, 
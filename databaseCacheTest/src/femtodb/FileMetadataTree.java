@@ -0,0 +1,352 @@
+package femtodb;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/** The ordered list of a tableCore's FileMetadata held as an AVL tree whose nodes count the files beneath them, so positional get, add and remove, finding the file holding a primary key and finding a file's position all take O(log n) with millions of files.
+ * Files are ordered by lowerBound. A file's position is found by searching on its lowerBound, so a file's lowerBound may only change in ways that keep the order, as splits and combines do.
+ * Guarded by the owning tableCore's lock. */
+final class FileMetadataTree extends AbstractList<FileMetadata> implements RandomAccess {
+
+	private static final class Node {
+		FileMetadata 	fmd;
+		Node 			left;
+		Node 			right;
+		int 			height 	= 1;
+		/** Number of files in this subtree */
+		int 			size 	= 1;
+
+		Node(final FileMetadata fmd)
+		{
+			this.fmd = fmd;
+		}
+	}
+
+	private Node root;
+
+	FileMetadataTree()
+	{}
+
+	/** Creates a balanced tree holding the given files, which must already be ordered by lowerBound */
+	FileMetadataTree(final Collection<FileMetadata> fmds)
+	{
+		FileMetadata[] fmdArray = fmds.toArray(new FileMetadata[fmds.size()]);
+		root = build(fmdArray, 0, fmdArray.length);
+	}
+
+	@Override
+	public final int size()
+	{
+		return size(root);
+	}
+
+	@Override
+	public final FileMetadata get(final int index)
+	{
+		checkIndex(index, size());
+		return nodeAt(index).fmd;
+	}
+
+	@Override
+	public final FileMetadata set(final int index, final FileMetadata fmd)
+	{
+		checkIndex(index, size());
+		Node node = nodeAt(index);
+		FileMetadata retval = node.fmd;
+		node.fmd = fmd;
+		return retval;
+	}
+
+	@Override
+	public final void add(final int index, final FileMetadata fmd)
+	{
+		checkIndex(index, size() + 1);
+		root = insertAt(root, index, fmd);
+		modCount++;
+	}
+
+	@Override
+	public final FileMetadata remove(final int index)
+	{
+		checkIndex(index, size());
+		FileMetadata retval = nodeAt(index).fmd;
+		root = removeAt(root, index);
+		modCount++;
+		return retval;
+	}
+
+	@Override
+	public final boolean remove(final Object o)
+	{
+		int index = indexOf(o);
+		if(index < 0)return false;
+		remove(index);
+		return true;
+	}
+
+	@Override
+	public final void clear()
+	{
+		root = null;
+		modCount++;
+	}
+
+	/** Returns the position of the given FileMetadata, found by its lowerBound, or -1 if it is not held. A held file whose lowerBound has been changed out of order is not found. */
+	@Override
+	public final int indexOf(final Object o)
+	{
+		if(!(o instanceof FileMetadata))return -1;
+		FileMetadata fmd = (FileMetadata)o;
+
+		// files briefly share a lowerBound while being combined
+		for(int index = indexOfKey(fmd.lowerBound); index >= 0; index--)
+		{
+			FileMetadata candidate = get(index);
+			if(candidate == fmd)return index;
+			if(candidate.lowerBound != fmd.lowerBound)break;
+		}
+		return -1;
+	}
+
+	/** Walks the tree in order, taking O(1) per file on average rather than a positional get for each */
+	@Override
+	public final Iterator<FileMetadata> iterator()
+	{
+		return new InOrderIterator();
+	}
+
+	/** Returns the position of the file whose range holds the given primary key, being the last file with a lowerBound no greater than it, or -1 if there is none */
+	final int indexOfKey(final long primaryKey)
+	{
+		int retval 	= -1;
+		int base 	= 0;
+		Node node 	= root;
+		while(node != null)
+		{
+			if(node.fmd.lowerBound <= primaryKey)
+			{
+				retval 	= base + size(node.left);
+				base 	= retval + 1;
+				node 	= node.right;
+			}
+			else
+			{
+				node 	= node.left;
+			}
+		}
+		return retval;
+	}
+
+	/** Iterates the files in order, holding the path from the root to the next node. Removing a file rebuilds the path, as rebalancing may have moved the nodes on it. */
+	private final class InOrderIterator implements Iterator<FileMetadata> {
+		private Node[] 	path 			= new Node[height(root) + 1];
+		private int 	pathLength;
+		private int 	nextIndex;
+		private int 	lastReturned 	= -1;
+		private int 	expectedModCount = modCount;
+
+		InOrderIterator()
+		{
+			pushLeft(root);
+		}
+
+		@Override
+		public final boolean hasNext()
+		{
+			return pathLength > 0;
+		}
+
+		@Override
+		public final FileMetadata next()
+		{
+			if(modCount != expectedModCount)throw new ConcurrentModificationException();
+			if(pathLength == 0)throw new NoSuchElementException();
+			Node node = path[--pathLength];
+			pushLeft(node.right);
+			lastReturned = nextIndex++;
+			return node.fmd;
+		}
+
+		@Override
+		public final void remove()
+		{
+			if(lastReturned < 0)throw new IllegalStateException();
+			if(modCount != expectedModCount)throw new ConcurrentModificationException();
+			FileMetadataTree.this.remove(lastReturned);
+			expectedModCount 	= modCount;
+			nextIndex 			= lastReturned;
+			lastReturned 		= -1;
+			seek(nextIndex);
+		}
+
+		/** Pushes the node and its chain of left children, the next of which is the smallest */
+		private final void pushLeft(Node node)
+		{
+			while(node != null)
+			{
+				path[pathLength++] = node;
+				node = node.left;
+			}
+		}
+
+		/** Rebuilds the path so the next node returned is the one at the given position */
+		private final void seek(int index)
+		{
+			path 		= new Node[height(root) + 1];
+			pathLength 	= 0;
+			Node node 	= root;
+			while(node != null)
+			{
+				int leftSize = size(node.left);
+				if(index <= leftSize)
+				{
+					// this node follows the position so is returned after its left subtree
+					path[pathLength++] = node;
+					if(index == leftSize)return;
+					node = node.left;
+				}
+				else
+				{
+					index -= leftSize + 1;
+					node = node.right;
+				}
+			}
+		}
+	}
+
+	private final Node nodeAt(int index)
+	{
+		Node node = root;
+		while(true)
+		{
+			int leftSize = size(node.left);
+			if(index < leftSize)
+			{
+				node = node.left;
+			}
+			else if(index == leftSize)
+			{
+				return node;
+			}
+			else
+			{
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	private static final Node build(final FileMetadata[] fmds, final int from, final int to)
+	{
+		if(from >= to)return null;
+		int middle = (from + to) >>> 1;
+		Node node = new Node(fmds[middle]);
+		node.left 	= build(fmds, from, middle);
+		node.right 	= build(fmds, middle + 1, to);
+		update(node);
+		return node;
+	}
+
+	private static final Node insertAt(final Node node, final int index, final FileMetadata fmd)
+	{
+		if(node == null)return new Node(fmd);
+		int leftSize = size(node.left);
+		if(index <= leftSize)
+		{
+			node.left = insertAt(node.left, index, fmd);
+		}
+		else
+		{
+			node.right = insertAt(node.right, index - leftSize - 1, fmd);
+		}
+		return balance(node);
+	}
+
+	private static final Node removeAt(final Node node, final int index)
+	{
+		int leftSize = size(node.left);
+		if(index < leftSize)
+		{
+			node.left = removeAt(node.left, index);
+			return balance(node);
+		}
+		if(index > leftSize)
+		{
+			node.right = removeAt(node.right, index - leftSize - 1);
+			return balance(node);
+		}
+
+		// remove this node
+		if(node.left == null)return node.right;
+		if(node.right == null)return node.left;
+
+		// replace it with the first node of its right subtree
+		Node successor = node.right;
+		while(successor.left != null)successor = successor.left;
+		node.fmd 	= successor.fmd;
+		node.right 	= removeAt(node.right, 0);
+		return balance(node);
+	}
+
+	private static final Node balance(final Node node)
+	{
+		update(node);
+		int skew = height(node.left) - height(node.right);
+		if(skew > 1)
+		{
+			if(height(node.left.left) < height(node.left.right))node.left = rotateLeft(node.left);
+			return rotateRight(node);
+		}
+		if(skew < -1)
+		{
+			if(height(node.right.right) < height(node.right.left))node.right = rotateRight(node.right);
+			return rotateLeft(node);
+		}
+		return node;
+	}
+
+	private static final Node rotateLeft(final Node node)
+	{
+		Node newTop 	= node.right;
+		node.right 		= newTop.left;
+		newTop.left 	= node;
+		update(node);
+		update(newTop);
+		return newTop;
+	}
+
+	private static final Node rotateRight(final Node node)
+	{
+		Node newTop 	= node.left;
+		node.left 		= newTop.right;
+		newTop.right 	= node;
+		update(node);
+		update(newTop);
+		return newTop;
+	}
+
+	private static final void update(final Node node)
+	{
+		node.height = Math.max(height(node.left), height(node.right)) + 1;
+		node.size 	= size(node.left) + size(node.right) + 1;
+	}
+
+	private static final int height(final Node node)
+	{
+		return (node == null) ? 0 : node.height;
+	}
+
+	private static final int size(final Node node)
+	{
+		return (node == null) ? 0 : node.size;
+	}
+
+	private static final void checkIndex(final int index, final int limit)
+	{
+		if((index < 0)||(index >= limit))throw new IndexOutOfBoundsException("Index " + index + " outside 0 to " + (limit - 1));
+	}
+}
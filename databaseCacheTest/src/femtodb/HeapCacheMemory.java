@@ -0,0 +1,63 @@
+package femtodb;
+
+import java.nio.ByteBuffer;
+
+/** CacheMemory held in a single byte array on the heap, limiting it to Integer.MAX_VALUE bytes. */
+final class HeapCacheMemory implements CacheMemory {
+	private final byte[] 	cache;
+	private final int		pageSize;
+	
+	HeapCacheMemory(final int pages, final int pageSize)
+	{
+		this.cache 		= new byte[pages * pageSize];
+		this.pageSize 	= pageSize;
+	}
+
+	@Override
+	public final ByteBuffer buffer(final int page, final int offset, final int length)
+	{
+		return ByteBuffer.wrap(cache, (page * pageSize + offset), length);
+	}
+
+	@Override
+	public final void get(final int page, final int offset, final byte[] dest, final int destPos, final int length)
+	{
+		System.arraycopy(cache, (page * pageSize + offset), dest, destPos, length);
+	}
+
+	@Override
+	public final void put(final int page, final int offset, final byte[] src, final int srcPos, final int length)
+	{
+		System.arraycopy(src, srcPos, cache, (page * pageSize + offset), length);
+	}
+
+	@Override
+	public final void copy(final int srcPage, final int srcOffset, final int destPage, final int destOffset, final int length)
+	{
+		System.arraycopy(cache, (srcPage * pageSize + srcOffset), cache, (destPage * pageSize + destOffset), length);
+	}
+
+	@Override
+	public final byte readByte(final int page, final int offset)
+	{
+		return cache[page * pageSize + offset];
+	}
+
+	@Override
+	public final short readShort(final int page, final int offset)
+	{
+		return BuffRead.readShort(cache, (page * pageSize + offset));
+	}
+
+	@Override
+	public final int readInt(final int page, final int offset)
+	{
+		return BuffRead.readInt(cache, (page * pageSize + offset));
+	}
+
+	@Override
+	public final long readLong(final int page, final int offset)
+	{
+		return BuffRead.readLong(cache, (page * pageSize + offset));
+	}
+}
@@ -0,0 +1,476 @@
+package femtodb;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/** A compressed set of longs, such as the primary keys of the rows holding a value in a BitmapIndex, held in the manner of a roaring bitmap.
+ * Values are grouped by their high 48 bits into containers holding their low 16 bits, either as a sorted array while the container holds few values or as a bitmap of 65536 bits once it holds many.
+ * The and, or and andNot methods combine two sets container by container into a new set, so sets of many values are combined quickly and in little memory. Not thread safe. */
+public final class LongBitmap implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** The most values held in an array container, above which a container is a bitmap */
+	static final int 					ARRAY_LIMIT 	= 4096;
+
+	/** The words of a bitmap container */
+	private static final int 			WORDS 			= 1024;
+
+	/** The high 48 bits of the values in each container, ascending */
+	private transient long[] 			keys;
+	private transient Container[] 		containers;
+	private transient int 				count;
+	private transient long 				cardinality;
+
+	/** Creates an empty set */
+	public LongBitmap()
+	{
+		keys 		= new long[4];
+		containers 	= new Container[4];
+	}
+
+	/** Adds a value, returning false if it was already held */
+	public final boolean add(final long value)
+	{
+		long key = value >> 16;
+		int position = Arrays.binarySearch(keys, 0, count, key);
+		if(position < 0)
+		{
+			position = -position - 1;
+			insertContainer(position, key, new Container(new char[4], null, 0));
+		}
+		if(!containers[position].add((int)(value & 0xFFFF)))return false;
+		cardinality++;
+		return true;
+	}
+
+	/** Removes a value, returning false if it was not held */
+	public final boolean remove(final long value)
+	{
+		int position = Arrays.binarySearch(keys, 0, count, value >> 16);
+		if(position < 0)return false;
+		Container container = containers[position];
+		if(!container.remove((int)(value & 0xFFFF)))return false;
+		cardinality--;
+		if(container.size == 0)
+		{
+			System.arraycopy(keys, position + 1, keys, position, count - position - 1);
+			System.arraycopy(containers, position + 1, containers, position, count - position - 1);
+			count--;
+			containers[count] = null;
+		}
+		return true;
+	}
+
+	public final boolean contains(final long value)
+	{
+		int position = Arrays.binarySearch(keys, 0, count, value >> 16);
+		if(position < 0)return false;
+		return containers[position].contains((int)(value & 0xFFFF));
+	}
+
+	/** Returns the number of values held */
+	public final long cardinality()
+	{
+		return cardinality;
+	}
+
+	public final boolean isEmpty()
+	{
+		return cardinality == 0;
+	}
+
+	/** Finds the smallest value held no less than the given value, placing it in result[0]. Returns false if there is none */
+	public final boolean ceiling(final long value, final long[] result)
+	{
+		long key = value >> 16;
+		int position = Arrays.binarySearch(keys, 0, count, key);
+		if(position >= 0)
+		{
+			int low = containers[position].ceiling((int)(value & 0xFFFF));
+			if(low >= 0)
+			{
+				result[0] = (key << 16) | low;
+				return true;
+			}
+			position++;
+		}
+		else
+		{
+			position = -position - 1;
+		}
+		if(position >= count)return false;
+		result[0] = (keys[position] << 16) | containers[position].ceiling(0);
+		return true;
+	}
+
+	/** Returns a new set of the values held by both sets */
+	public final LongBitmap and(final LongBitmap other)
+	{
+		LongBitmap retval = new LongBitmap();
+		int x = 0;
+		int y = 0;
+		while((x < count)&&(y < other.count))
+		{
+			if(keys[x] < other.keys[y])
+			{
+				x++;
+			}
+			else if(keys[x] > other.keys[y])
+			{
+				y++;
+			}
+			else
+			{
+				retval.append(keys[x], Container.and(containers[x], other.containers[y]));
+				x++;
+				y++;
+			}
+		}
+		return retval;
+	}
+
+	/** Returns a new set of the values held by either set */
+	public final LongBitmap or(final LongBitmap other)
+	{
+		LongBitmap retval = new LongBitmap();
+		int x = 0;
+		int y = 0;
+		while((x < count)||(y < other.count))
+		{
+			if((y == other.count)||((x < count)&&(keys[x] < other.keys[y])))
+			{
+				retval.append(keys[x], containers[x].copy());
+				x++;
+			}
+			else if((x == count)||(keys[x] > other.keys[y]))
+			{
+				retval.append(other.keys[y], other.containers[y].copy());
+				y++;
+			}
+			else
+			{
+				retval.append(keys[x], Container.or(containers[x], other.containers[y]));
+				x++;
+				y++;
+			}
+		}
+		return retval;
+	}
+
+	/** Returns a new set of the values held by this set but not the other */
+	public final LongBitmap andNot(final LongBitmap other)
+	{
+		LongBitmap retval = new LongBitmap();
+		int y = 0;
+		for(int x = 0; x < count; x++)
+		{
+			while((y < other.count)&&(other.keys[y] < keys[x]))y++;
+			if((y < other.count)&&(other.keys[y] == keys[x]))
+			{
+				retval.append(keys[x], Container.andNot(containers[x], other.containers[y]));
+			}
+			else
+			{
+				retval.append(keys[x], containers[x].copy());
+			}
+		}
+		return retval;
+	}
+
+	/** Returns a copy of the set */
+	public final LongBitmap copy()
+	{
+		LongBitmap retval = new LongBitmap();
+		for(int x = 0; x < count; x++)
+		{
+			retval.append(keys[x], containers[x].copy());
+		}
+		return retval;
+	}
+
+	/** Adds a container after all those held, unless it is empty */
+	private final void append(final long key, final Container container)
+	{
+		if(container.size == 0)return;
+		insertContainer(count, key, container);
+		cardinality += container.size;
+	}
+
+	private final void insertContainer(final int position, final long key, final Container container)
+	{
+		if(count == keys.length)
+		{
+			keys 		= Arrays.copyOf(keys, count << 1);
+			containers 	= Arrays.copyOf(containers, count << 1);
+		}
+		System.arraycopy(keys, position, keys, position + 1, count - position);
+		System.arraycopy(containers, position, containers, position + 1, count - position);
+		keys[position] 			= key;
+		containers[position] 	= container;
+		count++;
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		out.writeInt(count);
+		for(int x = 0; x < count; x++)
+		{
+			Container container = containers[x];
+			out.writeLong(keys[x]);
+			out.writeInt(container.size);
+			out.writeBoolean(container.words != null);
+			if(container.words != null)
+			{
+				for(long word : container.words)out.writeLong(word);
+			}
+			else
+			{
+				for(int value = 0; value < container.size; value++)out.writeChar(container.values[value]);
+			}
+		}
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		int containerCount = in.readInt();
+		keys 		= new long[Math.max(4, containerCount)];
+		containers 	= new Container[Math.max(4, containerCount)];
+		for(int x = 0; x < containerCount; x++)
+		{
+			long key = in.readLong();
+			int size = in.readInt();
+			if(in.readBoolean())
+			{
+				long[] words = new long[WORDS];
+				for(int word = 0; word < WORDS; word++)words[word] = in.readLong();
+				append(key, new Container(null, words, size));
+			}
+			else
+			{
+				char[] values = new char[Math.max(4, size)];
+				for(int value = 0; value < size; value++)values[value] = in.readChar();
+				append(key, new Container(values, null, size));
+			}
+		}
+	}
+
+	/** The low 16 bits of the values sharing their high 48 bits, held as a sorted array of up to ARRAY_LIMIT values or as a bitmap */
+	private static final class Container {
+		/** The values of an array container, otherwise null */
+		char[] 	values;
+		/** The bits of a bitmap container, otherwise null */
+		long[] 	words;
+		int 	size;
+
+		Container(final char[] values, final long[] words, final int size)
+		{
+			this.values = values;
+			this.words 	= words;
+			this.size 	= size;
+		}
+
+		final boolean contains(final int low)
+		{
+			if(words != null)return (words[low >>> 6] & (1L << low)) != 0;
+			return Arrays.binarySearch(values, 0, size, (char)low) >= 0;
+		}
+
+		final boolean add(final int low)
+		{
+			if(words != null)
+			{
+				long bit = 1L << low;
+				if((words[low >>> 6] & bit) != 0)return false;
+				words[low >>> 6] |= bit;
+				size++;
+				return true;
+			}
+			int position = Arrays.binarySearch(values, 0, size, (char)low);
+			if(position >= 0)return false;
+			if(size == ARRAY_LIMIT)
+			{
+				// too many values for an array
+				words 	= toWords();
+				values 	= null;
+				words[low >>> 6] |= 1L << low;
+				size++;
+				return true;
+			}
+			position = -position - 1;
+			if(size == values.length)values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size << 1));
+			System.arraycopy(values, position, values, position + 1, size - position);
+			values[position] = (char)low;
+			size++;
+			return true;
+		}
+
+		final boolean remove(final int low)
+		{
+			if(words != null)
+			{
+				long bit = 1L << low;
+				if((words[low >>> 6] & bit) == 0)return false;
+				words[low >>> 6] &= ~bit;
+				size--;
+
+				// back to an array once well below the limit, so a container near it does not change at every add and remove
+				if(size <= (ARRAY_LIMIT >> 1))
+				{
+					values 	= toValues(words, size);
+					words 	= null;
+				}
+				return true;
+			}
+			int position = Arrays.binarySearch(values, 0, size, (char)low);
+			if(position < 0)return false;
+			System.arraycopy(values, position + 1, values, position, size - position - 1);
+			size--;
+			return true;
+		}
+
+		/** Returns the smallest value held no less than low, or -1 if there is none */
+		final int ceiling(final int low)
+		{
+			if(words != null)
+			{
+				int word = low >>> 6;
+				long bits = words[word] & (-1L << low);
+				while(true)
+				{
+					if(bits != 0)return (word << 6) + Long.numberOfTrailingZeros(bits);
+					if(++word == WORDS)return -1;
+					bits = words[word];
+				}
+			}
+			int position = Arrays.binarySearch(values, 0, size, (char)low);
+			if(position < 0)position = -position - 1;
+			return (position < size) ? values[position] : -1;
+		}
+
+		final Container copy()
+		{
+			if(words != null)return new Container(null, words.clone(), size);
+			return new Container(Arrays.copyOf(values, Math.max(4, size)), null, size);
+		}
+
+		/** Returns the values held as a new bitmap */
+		private final long[] toWords()
+		{
+			if(words != null)return words.clone();
+			long[] retval = new long[WORDS];
+			for(int x = 0; x < size; x++)
+			{
+				retval[values[x] >>> 6] |= 1L << values[x];
+			}
+			return retval;
+		}
+
+		private static final char[] toValues(final long[] words, final int size)
+		{
+			char[] retval = new char[Math.max(4, size)];
+			int x = 0;
+			for(int word = 0; word < WORDS; word++)
+			{
+				long bits = words[word];
+				while(bits != 0)
+				{
+					retval[x++] = (char)((word << 6) + Long.numberOfTrailingZeros(bits));
+					bits &= bits - 1;
+				}
+			}
+			return retval;
+		}
+
+		/** Returns a container of the values in the words, as an array if there are few enough */
+		private static final Container ofWords(final long[] words)
+		{
+			int size = 0;
+			for(long word : words)size += Long.bitCount(word);
+			if(size <= ARRAY_LIMIT)return new Container(toValues(words, size), null, size);
+			return new Container(null, words, size);
+		}
+
+		static final Container and(final Container a, final Container b)
+		{
+			if((a.words != null)&&(b.words != null))
+			{
+				long[] words = new long[WORDS];
+				for(int word = 0; word < WORDS; word++)words[word] = a.words[word] & b.words[word];
+				return ofWords(words);
+			}
+
+			// keep the values of the array found in the other
+			Container array = (a.words == null) ? a : b;
+			Container other = (array == a) ? b : a;
+			char[] values = new char[Math.max(4, array.size)];
+			int size = 0;
+			for(int x = 0; x < array.size; x++)
+			{
+				if(other.contains(array.values[x]))values[size++] = array.values[x];
+			}
+			return new Container(values, null, size);
+		}
+
+		static final Container or(final Container a, final Container b)
+		{
+			if((a.words == null)&&(b.words == null)&&(a.size + b.size <= ARRAY_LIMIT))
+			{
+				// merge the arrays
+				char[] values = new char[Math.max(4, a.size + b.size)];
+				int x = 0;
+				int y = 0;
+				int size = 0;
+				while((x < a.size)||(y < b.size))
+				{
+					if((y == b.size)||((x < a.size)&&(a.values[x] < b.values[y])))values[size++] = a.values[x++];
+					else if((x == a.size)||(a.values[x] > b.values[y]))values[size++] = b.values[y++];
+					else
+					{
+						values[size++] = a.values[x++];
+						y++;
+					}
+				}
+				return new Container(values, null, size);
+			}
+			long[] words = a.toWords();
+			if(b.words != null)
+			{
+				for(int word = 0; word < WORDS; word++)words[word] |= b.words[word];
+			}
+			else
+			{
+				for(int x = 0; x < b.size; x++)words[b.values[x] >>> 6] |= 1L << b.values[x];
+			}
+			return ofWords(words);
+		}
+
+		static final Container andNot(final Container a, final Container b)
+		{
+			if(a.words == null)
+			{
+				char[] values = new char[Math.max(4, a.size)];
+				int size = 0;
+				for(int x = 0; x < a.size; x++)
+				{
+					if(!b.contains(a.values[x]))values[size++] = a.values[x];
+				}
+				return new Container(values, null, size);
+			}
+			long[] words = a.words.clone();
+			if(b.words != null)
+			{
+				for(int word = 0; word < WORDS; word++)words[word] &= ~b.words[word];
+			}
+			else
+			{
+				for(int x = 0; x < b.size; x++)words[b.values[x] >>> 6] &= ~(1L << b.values[x]);
+			}
+			return ofWords(words);
+		}
+	}
+}
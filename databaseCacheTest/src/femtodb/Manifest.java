@@ -0,0 +1,181 @@
+package femtodb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** A compact binary description of a database or backup directory, written once the directory is complete (after its finish file).
+ * It holds the size of every file in the directory and a CRC32 of the database, tableCore, start and finish files at its top level, followed by a CRC32 of the manifest itself.
+ * Checking the manifest is a single sequential read plus a size check of each file, so the database and tableCore files need not be deserialised when opening.
+ * Anything written to the directory afterwards, such as the new start file written when a database is opened, makes the manifest fail to match. */
+final class Manifest {
+	static final String 		FILENAME 			= "manifest";
+	private static final String TEMPORARY_FILENAME 	= "manifest.tmp";
+	private static final int 	MAGIC 				= 0x46444D46;
+	private static final int 	VERSION 			= 1;
+
+	private Manifest()
+	{}
+
+	/** Writes a manifest describing every file in the directory, doing nothing if the directory has no start and finish files. The manifest is renamed into place so it is never seen half written. */
+	static final void write(final String directory) throws IOException
+	{
+		File directoryFile = new File(directory);
+		File startFile = new File(directory, "start");
+		File finishFile = new File(directory, "finish");
+		if(!startFile.exists() || !finishFile.exists())return;
+
+		List<String> relativePaths = new ArrayList<String>();
+		listFiles(directoryFile, "", relativePaths);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bytes);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeLong(readLongFile(startFile));
+		dos.writeLong(readLongFile(finishFile));
+		dos.writeInt(relativePaths.size());
+		for(String relativePath : relativePaths)
+		{
+			File f = file(directory, relativePath);
+			boolean checksummed = relativePath.indexOf('/') == -1;
+			dos.writeUTF(relativePath);
+			dos.writeLong(f.length());
+			dos.writeBoolean(checksummed);
+			if(checksummed)dos.writeInt(checksum(f));
+		}
+		dos.flush();
+		byte[] contents = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(contents, 0, contents.length);
+
+		File temporaryFile = new File(directory, TEMPORARY_FILENAME);
+		FileOutputStream fos = new FileOutputStream(temporaryFile);
+		try{
+			DataOutputStream out = new DataOutputStream(fos);
+			out.write(contents);
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			fos.getChannel().force(false);
+		}
+		finally
+		{
+			fos.close();
+		}
+		File manifestFile = new File(directory, FILENAME);
+		if(manifestFile.exists())manifestFile.delete();
+		if(!temporaryFile.renameTo(manifestFile))throw new IOException("Unable to rename " + temporaryFile.getPath() + " to " + manifestFile.getPath());
+	}
+
+	/** Returns the start time recorded by the manifest in the directory, or -1 if it is missing, corrupt or any file it describes has changed. */
+	static final long validate(final String directory)
+	{
+		File manifestFile = new File(directory, FILENAME);
+		if(!manifestFile.exists())return -1L;
+		try{
+			byte[] contents = new byte[(int)manifestFile.length()];
+			if(contents.length < 4)return -1L;
+			DataInputStream whole = new DataInputStream(new FileInputStream(manifestFile));
+			try{
+				whole.readFully(contents);
+			}
+			finally
+			{
+				whole.close();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(contents, 0, contents.length - 4);
+			if((int)crc.getValue() != BuffRead.readInt(contents, contents.length - 4))return -1L;
+
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(contents, 0, contents.length - 4));
+			if(dis.readInt() != MAGIC)return -1L;
+			if(dis.readInt() != VERSION)return -1L;
+			long start 	= dis.readLong();
+			long finish = dis.readLong();
+			if(finish < start)return -1L;
+			int entries = dis.readInt();
+			for(int x = 0; x < entries; x++)
+			{
+				String relativePath = dis.readUTF();
+				long length = dis.readLong();
+				boolean checksummed = dis.readBoolean();
+				File f = file(directory, relativePath);
+				if(!f.isFile() || (f.length() != length))return -1L;
+				if(checksummed && (dis.readInt() != checksum(f)))return -1L;
+			}
+			return start;
+		}
+		catch(IOException e)
+		{
+			return -1L;
+		}
+	}
+
+	/** Adds the path (relative to the directory being described, using / as the separator) of every file below dir */
+	private static final void listFiles(final File dir, final String prefix, final List<String> relativePaths)
+	{
+		File[] files = dir.listFiles();
+		if(files == null)return;
+		for(File f : files)
+		{
+			String name = f.getName();
+			if(prefix.isEmpty() && (name.equals(FILENAME) || name.equals(TEMPORARY_FILENAME)))continue;
+			if(f.isDirectory())
+			{
+				listFiles(f, prefix + name + "/", relativePaths);
+			}
+			else
+			{
+				relativePaths.add(prefix + name);
+			}
+		}
+	}
+
+	private static final File file(final String directory, final String relativePath)
+	{
+		return new File(directory + File.separator + relativePath.replace('/', File.separatorChar));
+	}
+
+	private static final int checksum(final File f) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8192];
+		InputStream is = new BufferedInputStream(new FileInputStream(f));
+		try{
+			int read;
+			while((read = is.read(buffer)) != -1)
+			{
+				crc.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		return (int)crc.getValue();
+	}
+
+	/** Reads the time held by a start or finish file */
+	private static final long readLongFile(final File f) throws IOException
+	{
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
+		try{
+			return ois.readLong();
+		}
+		finally
+		{
+			ois.close();
+		}
+	}
+}
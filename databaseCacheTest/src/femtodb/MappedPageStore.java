@@ -0,0 +1,127 @@
+package femtodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Implementation of PageStore that accesses each file through a memory mapping, so reads are served from the operating systems page cache.
+ * Each file is mapped once at the tableCore's file size and the mapping kept while the store is open, so a file stays that size however many rows it holds.
+ * Mappings are only forced to disk when they are dropped, the least recently used beyond MAXIMUM_MAPPINGS, or when the store is closed. */
+public class MappedPageStore extends DefaultPageStore {
+	private static final long serialVersionUID = 1L;
+
+	/** The most files kept mapped, bounding the address space and mapping count used by large tables */
+	static final int 									MAXIMUM_MAPPINGS = 4096;
+
+	/** The mapping of each file by filenumber, least recently used first */
+	private transient LinkedHashMap<Long,MappedByteBuffer> 	mappings;
+
+	MappedPageStore()
+	{}
+
+	@Override
+	public void read(final FileMetadata fmd, final ByteBuffer dest) throws IOException
+	{
+		int bytesToRead = dest.remaining();
+		if(bytesToRead == 0)return;
+		ByteBuffer mapped = mappingOf(fmd, bytesToRead, false).duplicate();
+		mapped.limit(bytesToRead);
+		dest.put(mapped);
+	}
+
+	@Override
+	public void write(final FileMetadata fmd, final ByteBuffer src) throws IOException
+	{
+		int bytesToWrite = src.remaining();
+		if(bytesToWrite == 0)
+		{
+			// there is nothing to map, but the file must exist
+			if(!new File(fmd.filename).exists())new RandomAccessFile(new File(fmd.filename), "rw").close();
+			return;
+		}
+		ByteBuffer mapped = mappingOf(fmd, bytesToWrite, true).duplicate();
+		mapped.put(src);
+	}
+
+	@Override
+	public void delete(final FileMetadata fmd)
+	{
+		synchronized(this)
+		{
+			if(mappings != null)mappings.remove(fmd.filenumber);
+		}
+		super.delete(fmd);
+	}
+
+	/** As DefaultPageStore, but files are kept at the tableCore's file size so need only be large enough for their rows */
+	@Override
+	public boolean validate(final String directory, final List<FileMetadata> fmds, final int tableWidth)
+	{
+		for(FileMetadata fmd : fmds)
+		{
+			File fileToCheck = new File(directory + File.separator + Long.toString(fmd.filenumber));
+			if(!fileToCheck.exists())return false;
+			if(fileToCheck.length() < ((long)fmd.rows * tableWidth))return false;
+		}
+		return true;
+	}
+
+	/** Forces every mapping to disk and drops them */
+	@Override
+	synchronized
+	public void close()
+	{
+		if(mappings == null)return;
+		for(MappedByteBuffer mapped : mappings.values())
+		{
+			mapped.force();
+		}
+		mappings = null;
+	}
+
+	/** Returns the mapping of the file described by fmd, mapping it if it is not mapped or its mapping holds less than required bytes. 
+	 * The file is only grown when writing, a file being read must already hold the required bytes. */
+	synchronized
+	private final MappedByteBuffer mappingOf(final FileMetadata fmd, final int required, final boolean writing) throws IOException
+	{
+		if(mappings == null)mappings = new LinkedHashMap<Long,MappedByteBuffer>(16, 0.75f, true);
+		MappedByteBuffer retval = mappings.get(fmd.filenumber);
+		if((retval != null)&&(retval.capacity() >= required))return retval;
+
+		File file = new File(fmd.filename);
+		if(!writing && !file.exists())throw new IOException("Unable to read file " + fmd.filename + " as it does not exist");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			// the mapping remains valid once the file is closed
+			FileChannel channel = raf.getChannel();
+			long fileLength = channel.size();
+			if(!writing && (fileLength < required))
+			{
+				throw new IOException("Read incorrect number of bytes from file " + fmd.filename + " expected " + required + " and found " + fileLength);
+			}
+			int fileSize = (fmd.owner == null) ? 0 : fmd.owner.getFileSize();
+			retval = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(Math.max(required, fileSize), fileLength));
+		}
+		finally
+		{
+			raf.close();
+		}
+		mappings.put(fmd.filenumber, retval);
+
+		if(mappings.size() > MAXIMUM_MAPPINGS)
+		{
+			Iterator<Map.Entry<Long,MappedByteBuffer>> eldest = mappings.entrySet().iterator();
+			eldest.next().getValue().force();
+			eldest.remove();
+		}
+		return retval;
+	}
+}
@@ -0,0 +1,210 @@
+package femtodb;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Binary format used to save a tableCore's FileMetadata, written in bulk as fixed width records after the tableCore's other fields rather than as one serialised object per file.
+ * The block starts with a magic number, a version and a schema listing the name and width of each record field, so readers skip fields they do not know and default fields that are missing.
+ * Records are streamed through a fixed size chunk, so a table with a great many files needs no more memory to save than one with few.
+ * From version 2 the records are followed by each file's Bloom filter, written as its number of words (zero if it has none) then the words.
+ * From version 3 these are followed by each file's zone map, written as its number of columns (zero if it has none) then each column's minimum and maximum. Earlier readers leave them unread. */
+final class MetadataFormat {
+	private static final int 		MAGIC 			= 0x46444D44;
+	static final int 				VERSION 		= 3;
+
+	/** The bytes of records written or read at a time */
+	private static final int 		CHUNK_SIZE 		= 64 * 1024;
+
+	// the record fields in the order they are written by this version
+	private static final String[] 	FIELD_NAMES 	= {"filenumber", "lowerBound", "upperBound", "smallestPK", "largestPK", "rows", "modificationServiceNumber", "lastUsedServiceNumber", "modified"};
+	private static final int[] 		FIELD_WIDTHS 	= {8, 8, 8, 8, 8, 4, 8, 8, 1};
+	private static final int 		RECORD_WIDTH 	= 61;
+
+	private static final int 		FILENUMBER 					= 0;
+	private static final int 		LOWER_BOUND 				= 1;
+	private static final int 		UPPER_BOUND 				= 2;
+	private static final int 		SMALLEST_PK 				= 3;
+	private static final int 		LARGEST_PK 					= 4;
+	private static final int 		ROWS 						= 5;
+	private static final int 		MODIFICATION_SERVICE_NUMBER = 6;
+	private static final int 		LAST_USED_SERVICE_NUMBER 	= 7;
+	private static final int 		MODIFIED 					= 8;
+	/** Used for fields written by another version that this version does not know */
+	private static final int 		UNKNOWN 					= -1;
+
+	private MetadataFormat()
+	{}
+
+	/** Writes the schema followed by a record for each file */
+	static final void writeFileMetadata(final ObjectOutput out, final List<FileMetadata> fmds) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(FIELD_NAMES.length);
+		for(int field = 0; field < FIELD_NAMES.length; field++)
+		{
+			out.writeUTF(FIELD_NAMES[field]);
+			out.writeByte(FIELD_WIDTHS[field]);
+		}
+
+		int records = fmds.size();
+		out.writeInt(records);
+		int recordsPerChunk = CHUNK_SIZE / RECORD_WIDTH;
+		byte[] chunk = new byte[Math.min(records, recordsPerChunk) * RECORD_WIDTH];
+		int inChunk = 0;
+		for(int x = 0; x < records; x++)
+		{
+			FileMetadata fmd = fmds.get(x);
+			int offset = inChunk * RECORD_WIDTH;
+			BuffWrite.writeLong(chunk, offset, fmd.filenumber);
+			BuffWrite.writeLong(chunk, offset + 8, fmd.lowerBound);
+			BuffWrite.writeLong(chunk, offset + 16, fmd.upperBound);
+			BuffWrite.writeLong(chunk, offset + 24, fmd.smallestPK);
+			BuffWrite.writeLong(chunk, offset + 32, fmd.largestPK);
+			BuffWrite.writeInt(chunk, offset + 40, fmd.rows);
+			BuffWrite.writeLong(chunk, offset + 44, fmd.modificationServiceNumber);
+			BuffWrite.writeLong(chunk, offset + 52, fmd.lastUsedServiceNumber);
+			chunk[offset + 60] = (byte)(fmd.modified ? 1 : 0);
+			inChunk++;
+			if(inChunk == recordsPerChunk)
+			{
+				out.write(chunk, 0, inChunk * RECORD_WIDTH);
+				inChunk = 0;
+			}
+		}
+		if(inChunk > 0)out.write(chunk, 0, inChunk * RECORD_WIDTH);
+		
+		for(int x = 0; x < records; x++)
+		{
+			PrimaryKeyBloomFilter bloomFilter = fmds.get(x).bloomFilter;
+			if(bloomFilter == null)
+			{
+				out.writeInt(0);
+				continue;
+			}
+			long[] words = bloomFilter.getWords();
+			out.writeInt(words.length);
+			for(long word : words)out.writeLong(word);
+		}
+		
+		for(int x = 0; x < records; x++)
+		{
+			ZoneMap zoneMap = fmds.get(x).zoneMap;
+			if(zoneMap == null)
+			{
+				out.writeInt(0);
+				continue;
+			}
+			long[] minimums = zoneMap.getMinimums();
+			long[] maximums = zoneMap.getMaximums();
+			out.writeInt(minimums.length);
+			for(int column = 0; column < minimums.length; column++)
+			{
+				out.writeLong(minimums[column]);
+				out.writeLong(maximums[column]);
+			}
+		}
+	}
+
+	/** Reads the files written by writeFileMetadata by any version. The FileMetadata returned have no owner until finishLoading is called on them. */
+	static final ArrayList<FileMetadata> readFileMetadata(final ObjectInput in) throws IOException
+	{
+		if(in.readInt() != MAGIC)throw new IOException("TableCore file metadata does not start with the expected magic number");
+		int version = in.readInt();
+		if(version < 1)throw new IOException("TableCore file metadata has unknown version " + version);
+
+		// map the fields written onto those this version knows
+		int fields = in.readInt();
+		int[] fieldIds = new int[fields];
+		int[] fieldOffsets = new int[fields];
+		int[] fieldWidths = new int[fields];
+		int recordWidth = 0;
+		for(int field = 0; field < fields; field++)
+		{
+			String fieldName = in.readUTF();
+			fieldWidths[field] = in.readUnsignedByte();
+			fieldOffsets[field] = recordWidth;
+			recordWidth += fieldWidths[field];
+			fieldIds[field] = UNKNOWN;
+			for(int known = 0; known < FIELD_NAMES.length; known++)
+			{
+				if(FIELD_NAMES[known].equals(fieldName) && (FIELD_WIDTHS[known] == fieldWidths[field]))fieldIds[field] = known;
+			}
+		}
+		if(recordWidth == 0)throw new IOException("TableCore file metadata has empty records");
+
+		int records = in.readInt();
+		ArrayList<FileMetadata> retval = new ArrayList<FileMetadata>(records);
+		int recordsPerChunk = Math.max(1, CHUNK_SIZE / recordWidth);
+		byte[] chunk = new byte[Math.min(records, recordsPerChunk) * recordWidth];
+		int remaining = records;
+		while(remaining > 0)
+		{
+			int inChunk = Math.min(remaining, recordsPerChunk);
+			in.readFully(chunk, 0, inChunk * recordWidth);
+			for(int record = 0; record < inChunk; record++)
+			{
+				retval.add(readRecord(chunk, record * recordWidth, fieldIds, fieldOffsets));
+			}
+			remaining -= inChunk;
+		}
+		
+		if(version >= 2)
+		{
+			for(FileMetadata fmd : retval)
+			{
+				int words = in.readInt();
+				if(words < 0)throw new IOException("TableCore file metadata has a Bloom filter of " + words + " words");
+				if(words == 0)continue;
+				long[] bloomFilterWords = new long[words];
+				for(int word = 0; word < words; word++)bloomFilterWords[word] = in.readLong();
+				fmd.bloomFilter = new PrimaryKeyBloomFilter(bloomFilterWords);
+			}
+		}
+		
+		if(version >= 3)
+		{
+			for(FileMetadata fmd : retval)
+			{
+				int columns = in.readInt();
+				if(columns < 0)throw new IOException("TableCore file metadata has a zone map of " + columns + " columns");
+				if(columns == 0)continue;
+				long[] minimums = new long[columns];
+				long[] maximums = new long[columns];
+				for(int column = 0; column < columns; column++)
+				{
+					minimums[column] = in.readLong();
+					maximums[column] = in.readLong();
+				}
+				fmd.zoneMap = new ZoneMap(minimums, maximums);
+			}
+		}
+		return retval;
+	}
+
+	private static final FileMetadata readRecord(final byte[] chunk, final int recordOffset, final int[] fieldIds, final int[] fieldOffsets)
+	{
+		FileMetadata fmd = new FileMetadata();
+		for(int field = 0; field < fieldIds.length; field++)
+		{
+			int offset = recordOffset + fieldOffsets[field];
+			switch(fieldIds[field])
+			{
+				case FILENUMBER: 					fmd.filenumber 					= BuffRead.readLong(chunk, offset); break;
+				case LOWER_BOUND: 					fmd.lowerBound 					= BuffRead.readLong(chunk, offset); break;
+				case UPPER_BOUND: 					fmd.upperBound 					= BuffRead.readLong(chunk, offset); break;
+				case SMALLEST_PK: 					fmd.smallestPK 					= BuffRead.readLong(chunk, offset); break;
+				case LARGEST_PK: 					fmd.largestPK 					= BuffRead.readLong(chunk, offset); break;
+				case ROWS: 							fmd.rows 						= BuffRead.readInt(chunk, offset); break;
+				case MODIFICATION_SERVICE_NUMBER: 	fmd.modificationServiceNumber 	= BuffRead.readLong(chunk, offset); break;
+				case LAST_USED_SERVICE_NUMBER: 		fmd.lastUsedServiceNumber 		= BuffRead.readLong(chunk, offset); break;
+				case MODIFIED: 						fmd.modified 					= (chunk[offset] != 0); break;
+				default: break; // written by a later version, skip it
+			}
+		}
+		return fmd;
+	}
+}
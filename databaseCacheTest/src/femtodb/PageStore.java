@@ -0,0 +1,39 @@
+package femtodb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** Interface implemented by the classes a tableCore uses to move the contents of its files between the disk and its cache pages. */
+public interface PageStore {
+	/** Fills the remaining bytes of dest with the contents of the file described by fmd. */
+	void read(FileMetadata fmd, ByteBuffer dest) throws IOException;
+
+	/** Replaces the contents of the file described by fmd with the remaining bytes of src. */
+	void write(FileMetadata fmd, ByteBuffer src) throws IOException;
+
+	/** Removes the file described by fmd from the disk. */
+	void delete(FileMetadata fmd);
+	
+	/** Copies the files described by fmds into the (already created) directory given by destDirectory. The copies are added to batch, which the caller waits for. */
+	void backup(String destDirectory, List<FileMetadata> fmds, CopyPool.Batch batch) throws IOException;
+	
+	/** Brings up to date a backup previously made into destDirectory, copying only the files described by fmds that were modified after the given service number and removing files no longer described. 
+	 * The copies are added to batch, which the caller waits for. */
+	void backupModified(String destDirectory, List<FileMetadata> fmds, long backedUpServiceNumber, CopyPool.Batch batch) throws IOException;
+	
+	/** Returns a PageStore recording where each file currently lives, used to place a snapshots files into a backup after the files have moved. Stores whose files never move return themselves. */
+	PageStore snapshotLayout();
+	
+	/** Writes contents, the rows of the file described by fmd when the snapshot returning this layout was taken, into the backup being made in destDirectory. */
+	void backupContents(String destDirectory, FileMetadata fmd, ByteBuffer contents) throws IOException;
+	
+	/** Removes from the backup in destDirectory any files not described by fmds. */
+	void removeFromBackup(String destDirectory, List<FileMetadata> fmds);
+	
+	/** Returns true if the directory given by directory holds the files described by fmds, each large enough for its rows of the given table width. */
+	boolean validate(String directory, List<FileMetadata> fmds, int tableWidth);
+	
+	/** Releases any files the PageStore is holding open. */
+	void close() throws IOException;
+}
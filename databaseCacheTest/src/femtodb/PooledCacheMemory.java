@@ -0,0 +1,108 @@
+package femtodb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** CacheMemory whose pages are buffers borrowed from the BufferPool shared by a database's tableCores, one buffer per page.
+ * Only pages holding a buffer may be used, the tableCore taking more as it grows and giving them back when the pool takes pages from it. */
+final class PooledCacheMemory implements CacheMemory {
+	final BufferPool 		pool;
+	final TableCore 		table;
+	final int 				sizeClass;
+	private byte[][] 		pages;
+
+	// guarded by the pool's monitor
+	int 					heldPages;
+	long 					recentDemand;
+
+	PooledCacheMemory(final BufferPool pool, final TableCore table, final int pages, final int pageSize)
+	{
+		this.pool 		= pool;
+		this.table 		= table;
+		this.sizeClass 	= BufferPool.sizeClassOf(pageSize);
+		this.pages 		= new byte[pages][];
+		pool.register(this);
+	}
+
+	/** Gives the page a buffer from the pool, returning false if the pool has none to spare. A reserved buffer is always given. */
+	final boolean acquire(final int page, final boolean reserved)
+	{
+		byte[] buffer = pool.acquire(this, reserved);
+		if(buffer == null)return false;
+		pages[page] = buffer;
+		return true;
+	}
+
+	/** Returns the page's buffer to the pool */
+	final void release(final int page)
+	{
+		byte[] buffer = pages[page];
+		if(buffer == null)return;
+		pages[page] = null;
+		pool.release(this, buffer);
+	}
+
+	/** Changes the number of pages the cache may hold. Buffers of pages beyond the new number must already be released. */
+	final void resize(final int newPages)
+	{
+		pages = Arrays.copyOf(pages, newPages);
+	}
+	
+	/** Returns every buffer to the pool and leaves it */
+	final void releaseAll()
+	{
+		for(int page = 0; page < pages.length; page++)
+		{
+			release(page);
+		}
+		pool.unregister(this);
+	}
+
+	@Override
+	public final ByteBuffer buffer(final int page, final int offset, final int length)
+	{
+		return ByteBuffer.wrap(pages[page], offset, length);
+	}
+
+	@Override
+	public final void get(final int page, final int offset, final byte[] dest, final int destPos, final int length)
+	{
+		System.arraycopy(pages[page], offset, dest, destPos, length);
+	}
+
+	@Override
+	public final void put(final int page, final int offset, final byte[] src, final int srcPos, final int length)
+	{
+		System.arraycopy(src, srcPos, pages[page], offset, length);
+	}
+
+	@Override
+	public final void copy(final int srcPage, final int srcOffset, final int destPage, final int destOffset, final int length)
+	{
+		System.arraycopy(pages[srcPage], srcOffset, pages[destPage], destOffset, length);
+	}
+
+	@Override
+	public final byte readByte(final int page, final int offset)
+	{
+		return pages[page][offset];
+	}
+
+	@Override
+	public final short readShort(final int page, final int offset)
+	{
+		return BuffRead.readShort(pages[page], offset);
+	}
+
+	@Override
+	public final int readInt(final int page, final int offset)
+	{
+		return BuffRead.readInt(pages[page], offset);
+	}
+
+	@Override
+	public final long readLong(final int page, final int offset)
+	{
+		return BuffRead.readLong(pages[page], offset);
+	}
+}
@@ -0,0 +1,68 @@
+package femtodb;
+
+/** A Bloom filter of the primary keys held in one file of a tableCore, so a lookup of a primary key the file does not hold is usually answered without loading the file into the cache.
+ * Keys are only ever added, so keys deleted from the file may still be reported, until the filter is rebuilt when the file is split, combined or loaded without a filter.
+ * Held in the file's FileMetadata and saved with it by MetadataFormat. Guarded by the owning tableCore's lock. */
+final class PrimaryKeyBloomFilter {
+	/** Bits of filter for each row a file may hold, giving about one false positive in a hundred for a full file */
+	static final int 		BITS_PER_KEY 	= 10;
+
+	/** Bits set for each key */
+	static final int 		HASHES 			= 7;
+
+	private final long[] 	words;
+	private final int 		bits;
+
+	/** Creates an empty filter sized for a file holding up to the given number of rows */
+	PrimaryKeyBloomFilter(final int rowsPerFile)
+	{
+		this(new long[Math.max(1, ((rowsPerFile * BITS_PER_KEY) + 63) >> 6)]);
+	}
+
+	/** Creates a filter holding the given bits, as saved by getWords */
+	PrimaryKeyBloomFilter(final long[] words)
+	{
+		this.words 	= words;
+		this.bits 	= words.length << 6;
+	}
+
+	final void add(final long primaryKey)
+	{
+		long hash 	= mix(primaryKey);
+		int hash1 	= (int)hash;
+		int hash2 	= (int)(hash >>> 32);
+		for(int x = 0; x < HASHES; x++)
+		{
+			int bit = ((hash1 + (x * hash2)) & 0x7FFFFFFF) % bits;
+			words[bit >> 6] |= (1L << bit);
+		}
+	}
+
+	/** Returns false only if the primary key has never been added */
+	final boolean mightContain(final long primaryKey)
+	{
+		long hash 	= mix(primaryKey);
+		int hash1 	= (int)hash;
+		int hash2 	= (int)(hash >>> 32);
+		for(int x = 0; x < HASHES; x++)
+		{
+			int bit = ((hash1 + (x * hash2)) & 0x7FFFFFFF) % bits;
+			if((words[bit >> 6] & (1L << bit)) == 0)return false;
+		}
+		return true;
+	}
+
+	/** The bits of the filter, for saving */
+	final long[] getWords()
+	{
+		return words;
+	}
+
+	/** Spreads the bits of sequential primary keys over the whole hash */
+	private static final long mix(long primaryKey)
+	{
+		primaryKey = (primaryKey ^ (primaryKey >>> 33)) * 0xFF51AFD7ED558CCDL;
+		primaryKey = (primaryKey ^ (primaryKey >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return primaryKey ^ (primaryKey >>> 33);
+	}
+}
@@ -0,0 +1,54 @@
+package femtodb;
+
+import java.util.Arrays;
+
+/** An optional hash from primary keys to the cache rows (page * rowsPerFile + row) their rows were last found in, so a point lookup of a cached row is a single probe rather than binary searches of the fileMetadata list and the page (see TableCore.setPrimaryKeyHashIndex).
+ * Entries are hints that are not updated as rows move. A hint is only used if the cache row it gives still holds the primary key,
+ * so rows shifted by inserts and deletes, moved by splits and combines or whose page was freed are found again by the binary searches and their hint replaced.
+ * Each primary key hashes to a single entry, a later key overwriting an earlier one. Guarded by the owning tableCore's lock. */
+final class PrimaryKeyHashIndex {
+	/** Marks an empty entry */
+	private static final long 	EMPTY 			= TableCore.PK_CACHE_NOT_SET;
+
+	/** The most entries held */
+	private static final int 	MAXIMUM_ENTRIES = 1 << 30;
+
+	private final long[] 		primaryKeys;
+	private final int[] 		cacheRows;
+	private final int 			mask;
+
+	/** Creates an index with an entry for each of the given number of cache rows, rounded up to a power of two */
+	PrimaryKeyHashIndex(final int cacheRowCount)
+	{
+		int entries = Math.max(1, Integer.highestOneBit(Math.max(1, cacheRowCount)));
+		if((entries < cacheRowCount)&&(entries < MAXIMUM_ENTRIES))entries = entries << 1;
+		this.primaryKeys 	= new long[entries];
+		this.cacheRows 		= new int[entries];
+		this.mask 			= entries - 1;
+		Arrays.fill(primaryKeys, EMPTY);
+	}
+
+	/** Returns the cache row the primary key was last found in, or -1 if it has no entry */
+	final int get(final long primaryKey)
+	{
+		if(primaryKey == EMPTY)return -1;
+		int entry = entryOf(primaryKey);
+		return (primaryKeys[entry] == primaryKey) ? cacheRows[entry] : -1;
+	}
+
+	/** Records the cache row the primary key was found in */
+	final void put(final long primaryKey, final int cacheRow)
+	{
+		if(primaryKey == EMPTY)return;
+		int entry = entryOf(primaryKey);
+		primaryKeys[entry] 	= primaryKey;
+		cacheRows[entry] 	= cacheRow;
+	}
+
+	/** Spreads sequential primary keys over the entries */
+	private final int entryOf(final long primaryKey)
+	{
+		long hash = primaryKey * 0x9E3779B97F4A7C15L;
+		return ((int)(hash ^ (hash >>> 32))) & mask;
+	}
+}
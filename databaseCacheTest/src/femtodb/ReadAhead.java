@@ -0,0 +1,183 @@
+package femtodb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Used by a tableCore's iterators to read the files they are about to reach in the background.
+ * Each file is read through the PageStore into a staging array without holding the tableCore's lock, then installed into a free or clean cache page under the lock.
+ * The pending map is guarded by the owning tableCore's lock. */
+final class ReadAhead {
+	/** The number of threads reading files for each tableCore */
+	static final int 						READ_AHEAD_THREADS = 2;
+
+	private final TableCore 				owner;
+	private final PageStore 				pageStore;
+	private final ExecutorService 			executor;
+	private final Map<FileMetadata,StagedRead> pending;
+
+	/** The number of reads currently using the PageStore, guarded by this objects monitor */
+	private int								activeReads;
+	private boolean							closed;
+
+	ReadAhead(final TableCore owner, final PageStore pageStore)
+	{
+		this.owner 		= owner;
+		this.pageStore 	= pageStore;
+		this.pending 	= new HashMap<FileMetadata,StagedRead>();
+		this.executor 	= Executors.newFixedThreadPool(READ_AHEAD_THREADS, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(r, "FemtoDB read ahead " + owner.getName());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Starts reading the file in the background unless it is already being read. Must be called holding the owners lock. */
+	final void stage(final FileMetadata fmd, final int tableWidth)
+	{
+		if(pending.containsKey(fmd))return;
+		final StagedRead staged = new StagedRead(fmd);
+		final int bytesToRead = fmd.rows * tableWidth;
+		pending.put(fmd, staged);
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(!staged.start())return; // the file was needed before the read started
+				staged.complete(read(staged.fmd, bytesToRead));
+				owner.installStagedRead(staged);
+			}
+		});
+	}
+
+	/** Removes and returns the read of the given file if one is pending, otherwise returns null. Must be called holding the owners lock. */
+	final StagedRead take(final FileMetadata fmd)
+	{
+		if(pending.isEmpty())return null;
+		return pending.remove(fmd);
+	}
+
+	/** Abandons the pending reads and waits for those using the PageStore to finish, so the PageStore can then be closed. Must be called holding the owners lock.
+	 * The reading threads are not interrupted, as an interrupted FileChannel read closes a channel the PageStore shares with the tableCore. */
+	final void shutdown()
+	{
+		for(StagedRead staged: pending.values())staged.abandon();
+		pending.clear();
+		executor.shutdown();
+		synchronized(this)
+		{
+			closed = true;
+			while(activeReads > 0)
+			{
+				try {
+					wait();
+				} catch (InterruptedException e) {}
+			}
+		}
+	}
+
+	/** Reads the file into a staging array, returning null if it could not be read or read ahead has shut down */
+	private final byte[] read(final FileMetadata fmd, final int bytesToRead)
+	{
+		synchronized(this)
+		{
+			if(closed)return null;
+			activeReads++;
+		}
+		try{
+			byte[] retval = new byte[bytesToRead];
+			pageStore.read(fmd, ByteBuffer.wrap(retval));
+			return retval;
+		}
+		catch(IOException e)
+		{
+			// the file will be read again, reporting the failure, if it is still needed
+			return null;
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				activeReads--;
+				notifyAll();
+			}
+		}
+	}
+
+	/** A file read in the background, along with the state of its FileMetadata when the read was started */
+	static final class StagedRead {
+		final FileMetadata 	fmd;
+		final int 			rows;
+		final long 			modificationServiceNumber;
+		private byte[] 		bytes;
+		private boolean		started;
+		private boolean		abandoned;
+		private boolean		done;
+
+		private StagedRead(final FileMetadata fmd)
+		{
+			this.fmd 						= fmd;
+			this.rows 						= fmd.rows;
+			this.modificationServiceNumber 	= fmd.modificationServiceNumber;
+		}
+
+		/** Called by the reading thread, returning false if the read has been abandoned */
+		synchronized
+		private final boolean start()
+		{
+			if(abandoned)return false;
+			started = true;
+			return true;
+		}
+		
+		/** Stops the read starting if it has not already */
+		synchronized
+		private final void abandon()
+		{
+			if(!started)abandoned = true;
+		}
+		
+		synchronized
+		private final void complete(final byte[] bytes)
+		{
+			this.bytes 	= bytes;
+			this.done 	= true;
+			notifyAll();
+		}
+
+		/** Blocks until the read has finished, returning the files contents or null if it could not be read. 
+		 * A read that has not started is abandoned returning null, as the reading threads may be waiting for the lock held by the caller. */
+		synchronized
+		final byte[] await()
+		{
+			if(!started)
+			{
+				abandoned = true;
+				return null;
+			}
+			while(!done)
+			{
+				try {
+					wait();
+				} catch (InterruptedException e) {}
+			}
+			return bytes;
+		}
+
+		/** Returns true if the staged contents still match the file, which is only certain while it has not been cached or modified since the read started. Must be called holding the owners lock. */
+		final boolean isCurrent()
+		{
+			return (!fmd.cached)&&(fmd.rows == rows)&&(fmd.modificationServiceNumber == modificationServiceNumber);
+		}
+	}
+}
@@ -0,0 +1,6 @@
+package femtodb;
+
+/** Interface implemented by tests of a row made on the row's bytes in place in the tableCore's cache, so a scan only copies out the rows that pass (see TableCore.fastIterator(int, long, long, RowPredicate)). */
+public interface RowPredicate {
+	boolean matches(CacheRow row);
+}
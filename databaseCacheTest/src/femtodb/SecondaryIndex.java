@@ -0,0 +1,370 @@
+package femtodb;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A secondary index mapping the values of one fixed width column of a tableCore to the primary keys of the rows holding them, held in memory as a B+tree (see TableCore.createIndex).
+ * Each entry pairs the column value, encoded as a long ordered as the values are, with a primary key, so entries are unique and ordered by value then primary key.
+ * The tableCore maintains the index as rows are inserted, updated and deleted. It is saved with the tableCore as its entries in order and bulk loaded into full leaves when read.
+ * Leaves emptied by deletes are not merged with their neighbours, leaving the tree to be compacted when the table is next loaded. */
+public final class SecondaryIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** The most entries held in a leaf, and children held in an inner node */
+	static final int 			NODE_SIZE 	= 64;
+
+	private final int 			column;
+	private final byte 			columnType;
+	private final int 			columnByteOffset;
+
+	private transient Node 		root;
+	private transient int 		size;
+
+	SecondaryIndex(final int column, final byte columnType, final int columnByteOffset)
+	{
+		this.column 			= column;
+		this.columnType 		= columnType;
+		this.columnByteOffset 	= columnByteOffset;
+		this.root 				= new Node(true);
+	}
+
+	/** Returns true if columns of the given type can be indexed */
+	static final boolean canIndex(final byte columnType)
+	{
+		switch(columnType)
+		{
+			case TableCore.COLUMN_TYPE_BYTE:
+			case TableCore.COLUMN_TYPE_BOOLEAN:
+			case TableCore.COLUMN_TYPE_SHORT:
+			case TableCore.COLUMN_TYPE_CHAR:
+			case TableCore.COLUMN_TYPE_INT:
+			case TableCore.COLUMN_TYPE_LONG:
+			case TableCore.COLUMN_TYPE_FLOAT:
+			case TableCore.COLUMN_TYPE_DOUBLE:
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns the key a float is indexed by, ordered as the floats are. Negative zero is indexed as zero, as the two compare equal. */
+	public static final long keyOf(final float value)
+	{
+		int bits = Float.floatToIntBits((value == 0.0f) ? 0.0f : value);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	/** Returns the key a double is indexed by, ordered as the doubles are. Negative zero is indexed as zero, as the two compare equal. */
+	public static final long keyOf(final double value)
+	{
+		long bits = Double.doubleToLongBits((value == 0.0) ? 0.0 : value);
+		return bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+	}
+
+	/** Returns the key the indexed column of the row is indexed by. Byte, short, char, int and long values are their own keys, and booleans are one or zero. */
+	final long keyOf(final byte[] row)
+	{
+		return keyOf(row, columnType, columnByteOffset);
+	}
+
+	/** Returns the key a column of the given type, at the given offset in the row, is indexed by */
+	static final long keyOf(final byte[] row, final byte columnType, final int offset)
+	{
+		switch(columnType)
+		{
+			case TableCore.COLUMN_TYPE_BYTE:
+				return row[offset];
+			case TableCore.COLUMN_TYPE_BOOLEAN:
+				return BuffRead.readBoolean(row, offset) ? 1 : 0;
+			case TableCore.COLUMN_TYPE_SHORT:
+				return BuffRead.readShort(row, offset);
+			case TableCore.COLUMN_TYPE_CHAR:
+				return BuffRead.readChar(row, offset);
+			case TableCore.COLUMN_TYPE_INT:
+				return BuffRead.readInt(row, offset);
+			case TableCore.COLUMN_TYPE_FLOAT:
+				return keyOf(BuffRead.readFloat(row, offset));
+			case TableCore.COLUMN_TYPE_DOUBLE:
+				return keyOf(BuffRead.readDouble(row, offset));
+			default:
+				return BuffRead.readLong(row, offset);
+		}
+	}
+
+	final int getColumn() {
+		return column;
+	}
+
+	final byte getColumnType() {
+		return columnType;
+	}
+
+	/** Returns the number of entries in the index */
+	final int size() {
+		return size;
+	}
+
+	/** Adds an entry, doing nothing if it is already present */
+	final void insert(final long key, final long primaryKey)
+	{
+		Node sibling = insert(root, key, primaryKey);
+		if(sibling == null)return;
+
+		// the root was split so the tree grows a level
+		Node newRoot = new Node(false);
+		newRoot.children[0] = root;
+		newRoot.keys[0] 	= root.keys[0];
+		newRoot.pks[0] 		= root.pks[0];
+		newRoot.count 		= 1;
+		insertChildAt(newRoot, 1, sibling);
+		root = newRoot;
+	}
+
+	/** Removes an entry, returning false if it was not present */
+	final boolean remove(final long key, final long primaryKey)
+	{
+		Node node = root;
+		while(!node.leaf)
+		{
+			node = node.children[childFor(node, key, primaryKey)];
+		}
+		int position = position(node, key, primaryKey);
+		if((position == node.count)||(node.keys[position] != key)||(node.pks[position] != primaryKey))return false;
+		int length = node.count - position - 1;
+		System.arraycopy(node.keys, position + 1, node.keys, position, length);
+		System.arraycopy(node.pks, position + 1, node.pks, position, length);
+		node.count--;
+		size--;
+		return true;
+	}
+
+	/** Finds the first entry not before the given key and primary key, placing its key and primary key in result. Returns false if there is none. */
+	final boolean ceiling(final long key, final long primaryKey, final long[] result)
+	{
+		Node node = root;
+		while(!node.leaf)
+		{
+			node = node.children[childFor(node, key, primaryKey)];
+		}
+		int position = position(node, key, primaryKey);
+		while(position == node.count)
+		{
+			// the entry is in a following leaf, which may be empty after deletes
+			node = node.next;
+			if(node == null)return false;
+			position = 0;
+		}
+		result[0] = node.keys[position];
+		result[1] = node.pks[position];
+		return true;
+	}
+
+	/** Finds the first entry after the given key and primary key, placing its key and primary key in result. Returns false if there is none. */
+	final boolean higher(final long key, final long primaryKey, final long[] result)
+	{
+		if(primaryKey != Long.MAX_VALUE)return ceiling(key, primaryKey + 1, result);
+		if(key != Long.MAX_VALUE)return ceiling(key + 1, Long.MIN_VALUE, result);
+		return false;
+	}
+
+	/** Inserts an entry beneath the node, returning the new right sibling of the node if it had to be split */
+	private final Node insert(final Node node, final long key, final long primaryKey)
+	{
+		if(node.leaf)
+		{
+			int position = position(node, key, primaryKey);
+			if((position < node.count)&&(node.keys[position] == key)&&(node.pks[position] == primaryKey))return null;
+			size++;
+			if(node.count < NODE_SIZE)
+			{
+				insertEntryAt(node, position, key, primaryKey);
+				return null;
+			}
+
+			// split the full leaf in half
+			Node right 	= new Node(true);
+			int half 	= NODE_SIZE >> 1;
+			right.count = NODE_SIZE - half;
+			System.arraycopy(node.keys, half, right.keys, 0, right.count);
+			System.arraycopy(node.pks, half, right.pks, 0, right.count);
+			node.count 	= half;
+			right.next 	= node.next;
+			node.next 	= right;
+			if(position <= half)insertEntryAt(node, position, key, primaryKey);
+			else insertEntryAt(right, position - half, key, primaryKey);
+			return right;
+		}
+
+		int child = childFor(node, key, primaryKey);
+		Node sibling = insert(node.children[child], key, primaryKey);
+		if(sibling == null)return null;
+		if(node.count < NODE_SIZE)
+		{
+			insertChildAt(node, child + 1, sibling);
+			return null;
+		}
+
+		// split the full inner node in half, the right node's first separator being its smallest entry
+		Node right 	= new Node(false);
+		int half 	= NODE_SIZE >> 1;
+		right.count = NODE_SIZE - half;
+		System.arraycopy(node.children, half, right.children, 0, right.count);
+		System.arraycopy(node.keys, half, right.keys, 0, right.count);
+		System.arraycopy(node.pks, half, right.pks, 0, right.count);
+		for(int x = half; x < NODE_SIZE; x++)
+		{
+			node.children[x] = null;
+		}
+		node.count 	= half;
+		if(child + 1 <= half)insertChildAt(node, child + 1, sibling);
+		else insertChildAt(right, child + 1 - half, sibling);
+		return right;
+	}
+
+	private final void insertEntryAt(final Node node, final int position, final long key, final long primaryKey)
+	{
+		int length = node.count - position;
+		System.arraycopy(node.keys, position, node.keys, position + 1, length);
+		System.arraycopy(node.pks, position, node.pks, position + 1, length);
+		node.keys[position] = key;
+		node.pks[position] 	= primaryKey;
+		node.count++;
+	}
+
+	private final void insertChildAt(final Node node, final int position, final Node child)
+	{
+		int length = node.count - position;
+		System.arraycopy(node.children, position, node.children, position + 1, length);
+		System.arraycopy(node.keys, position, node.keys, position + 1, length);
+		System.arraycopy(node.pks, position, node.pks, position + 1, length);
+		node.children[position] = child;
+		node.keys[position] 	= child.keys[0];
+		node.pks[position] 		= child.pks[0];
+		node.count++;
+	}
+
+	/** Returns the child of an inner node whose entries include the given entry, being the last child whose separator is not after it */
+	private static final int childFor(final Node node, final long key, final long primaryKey)
+	{
+		int low 	= 1;
+		int high 	= node.count - 1;
+		int retval 	= 0;
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			if(compare(node.keys[mid], node.pks[mid], key, primaryKey) <= 0)
+			{
+				retval 	= mid;
+				low 	= mid + 1;
+			}
+			else
+			{
+				high 	= mid - 1;
+			}
+		}
+		return retval;
+	}
+
+	/** Returns the position of the first entry in a leaf not before the given entry, which is count if there is none */
+	private static final int position(final Node node, final long key, final long primaryKey)
+	{
+		int low 	= 0;
+		int high 	= node.count;
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if(compare(node.keys[mid], node.pks[mid], key, primaryKey) < 0)low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private static final int compare(final long key1, final long primaryKey1, final long key2, final long primaryKey2)
+	{
+		if(key1 != key2)return (key1 < key2) ? -1 : 1;
+		if(primaryKey1 != primaryKey2)return (primaryKey1 < primaryKey2) ? -1 : 1;
+		return 0;
+	}
+
+	/** Writes the entries in order after the other fields */
+	private void writeObject(final ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		out.writeInt(size);
+		Node leaf = root;
+		while(!leaf.leaf)
+		{
+			leaf = leaf.children[0];
+		}
+		for(; leaf != null; leaf = leaf.next)
+		{
+			for(int x = 0; x < leaf.count; x++)
+			{
+				out.writeLong(leaf.keys[x]);
+				out.writeLong(leaf.pks[x]);
+			}
+		}
+	}
+
+	/** Reads the entries into full leaves, then builds the inner nodes above them a level at a time */
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		size = in.readInt();
+		List<Node> level = new ArrayList<Node>();
+		Node leaf = new Node(true);
+		level.add(leaf);
+		for(int x = 0; x < size; x++)
+		{
+			if(leaf.count == NODE_SIZE)
+			{
+				Node nextLeaf = new Node(true);
+				leaf.next = nextLeaf;
+				leaf = nextLeaf;
+				level.add(leaf);
+			}
+			leaf.keys[leaf.count] 	= in.readLong();
+			leaf.pks[leaf.count] 	= in.readLong();
+			leaf.count++;
+		}
+		while(level.size() > 1)
+		{
+			List<Node> parents = new ArrayList<Node>();
+			Node parent = null;
+			for(Node child : level)
+			{
+				if((parent == null)||(parent.count == NODE_SIZE))
+				{
+					parent = new Node(false);
+					parents.add(parent);
+				}
+				parent.children[parent.count] 	= child;
+				parent.keys[parent.count] 		= child.keys[0];
+				parent.pks[parent.count] 		= child.pks[0];
+				parent.count++;
+			}
+			level = parents;
+		}
+		root = level.get(0);
+	}
+
+	/** A node of the tree. A leaf holds count entries in order and is linked to the following leaf.
+	 * An inner node holds count children, each but the first with a separator no greater than any entry beneath it and greater than every entry beneath the children before it. */
+	private static final class Node {
+		final boolean 	leaf;
+		int 			count;
+		final long[] 	keys 		= new long[NODE_SIZE];
+		final long[] 	pks 		= new long[NODE_SIZE];
+		final Node[] 	children;
+		Node 			next;
+
+		Node(final boolean leaf)
+		{
+			this.leaf 		= leaf;
+			this.children 	= leaf ? null : new Node[NODE_SIZE];
+		}
+	}
+}
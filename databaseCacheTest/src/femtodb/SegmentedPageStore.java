@@ -0,0 +1,352 @@
+package femtodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Implementation of PageStore that keeps all of a tableCore's files as fixed size slots within a few large segment files.
+ * A free slot map lets the slots released by combining files get reused when files are split, so no files are created or deleted on the file system. */
+public class SegmentedPageStore implements PageStore, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** The size segment files are allowed to grow to before another segment is started */
+	static final long 						SEGMENT_SIZE_IN_BYTES 	= 1L << 30;
+	static final String						SEGMENT_FILENAME_PREFIX	= "segment";
+
+	/** The size of each slot, which is the tableCore's fileSize */
+	private int								slotSize;
+
+	/** The number of slots held in each segment file */
+	private int								slotsPerSegment;
+
+	/** Maps a files filenumber onto the slot holding its contents */
+	private Map<Long,Integer>				slotOfFile;
+
+	/** Set bits indicate the slot is in use */
+	private BitSet							usedSlots;
+
+	/** The number of segment files that have been created */
+	private int								segments;
+
+	/** The directory holding the segment files, taken from the owning tableCore when first needed */
+	private transient String				directory;
+
+	/** Open segment files indexed by segment number, or null if not yet opened */
+	private transient List<RandomAccessFile> openSegments;
+
+	SegmentedPageStore(final int slotSize)
+	{
+		this.slotSize 		= slotSize;
+		long slots 			= SEGMENT_SIZE_IN_BYTES / slotSize;
+		if(slots < 1)slots 	= 1;
+		slotsPerSegment 	= (int)slots;
+		slotOfFile 			= new HashMap<Long,Integer>();
+		usedSlots			= new BitSet();
+		segments 			= 0;
+	}
+
+	/** Copies the slot layout of another store, used for snapshots */
+	private SegmentedPageStore(final SegmentedPageStore source)
+	{
+		this.slotSize 			= source.slotSize;
+		this.slotsPerSegment 	= source.slotsPerSegment;
+		this.slotOfFile 		= new HashMap<Long,Integer>(source.slotOfFile);
+		this.usedSlots 			= (BitSet)source.usedSlots.clone();
+		this.segments 			= source.segments;
+	}
+
+	@Override
+	public void read(final FileMetadata fmd, final ByteBuffer dest) throws IOException
+	{
+		int bytesToRead = dest.remaining();
+		int slot = slotOf(fmd);
+		if(slot == -1)throw new IOException("No segment slot holds file " + fmd.filenumber + " of " + fmd.owner.getTableDirectory());
+		FileChannel channel = segmentChannel(fmd, slot / slotsPerSegment);
+		long position = slotPosition(slot);
+		while(dest.hasRemaining())
+		{
+			int read = channel.read(dest, position);
+			if(read < 0)
+			{
+				throw new IOException("Read incorrect number of bytes from segment slot " + slot + " for file " + fmd.filenumber + " expected " + bytesToRead + " and read " + (bytesToRead - dest.remaining()));
+			}
+			position += read;
+		}
+	}
+
+	@Override
+	public void write(final FileMetadata fmd, final ByteBuffer src) throws IOException
+	{
+		if(src.remaining() > slotSize)throw new IOException("File " + fmd.filenumber + " of " + src.remaining() + " bytes does not fit a segment slot of " + slotSize + " bytes");
+		int slot = slotOrAllocate(fmd);
+		FileChannel channel = segmentChannel(fmd, slot / slotsPerSegment);
+		long position = slotPosition(slot);
+		while(src.hasRemaining())
+		{
+			position += channel.write(src, position);
+		}
+	}
+
+	@Override
+	synchronized
+	public void delete(final FileMetadata fmd)
+	{
+		Integer slot = slotOfFile.remove(fmd.filenumber);
+		if(slot != null)usedSlots.clear(slot);
+	}
+
+	@Override
+	synchronized
+	public void backup(final String destDirectory, final List<FileMetadata> fmds, final CopyPool.Batch batch) throws IOException
+	{
+		for(int segment = 0; segment < segments; segment++)
+		{
+			File sourceFile = new File(segmentFilename(directory(fmds), segment));
+			File destFile = new File(segmentFilename(destDirectory, segment));
+			if(sourceFile.exists())batch.copyFile(sourceFile, destFile);
+		}
+	}
+
+	@Override
+	synchronized
+	public void backupModified(final String destDirectory, final List<FileMetadata> fmds, final long backedUpServiceNumber, final CopyPool.Batch batch) throws IOException
+	{
+		if(segments == 0)return;
+		String sourceDirectory = directory(fmds);
+		
+		// segments missing from the backup are copied whole
+		boolean[] copied = new boolean[segments];
+		for(int segment = 0; segment < segments; segment++)
+		{
+			File sourceFile = new File(segmentFilename(sourceDirectory, segment));
+			File destFile = new File(segmentFilename(destDirectory, segment));
+			if(sourceFile.exists() && !destFile.exists())
+			{
+				batch.copyFile(sourceFile, destFile);
+				copied[segment] = true;
+			}
+		}
+		
+		// then the slots of modified files are copied into place by one task for each segment, freed slots need no action as the slot map is backed up with the tableCore
+		List<List<Integer>> modifiedSlots = new ArrayList<List<Integer>>();
+		for(int segment = 0; segment < segments; segment++)
+		{
+			modifiedSlots.add(new ArrayList<Integer>());
+		}
+		for(FileMetadata fmd : fmds)
+		{
+			if(fmd.modificationServiceNumber <= backedUpServiceNumber)continue;
+			Integer slot = slotOfFile.get(fmd.filenumber);
+			if(slot == null)continue;
+			int segment = slot / slotsPerSegment;
+			if(!copied[segment])modifiedSlots.get(segment).add(slot);
+		}
+		for(int segment = 0; segment < segments; segment++)
+		{
+			final List<Integer> slots = modifiedSlots.get(segment);
+			if(slots.isEmpty())continue;
+			final File sourceFile = new File(segmentFilename(sourceDirectory, segment));
+			final File destFile = new File(segmentFilename(destDirectory, segment));
+			batch.execute(new CopyPool.CopyTask()
+			{
+				@Override
+				public void run() throws IOException
+				{
+					copySlots(sourceFile, destFile, slots, batch);
+				}
+			});
+		}
+	}
+
+	/** Copies the given slots from one segment file into the same positions of another */
+	private final void copySlots(final File sourceFile, final File destFile, final List<Integer> slots, final CopyPool.Batch batch) throws IOException
+	{
+		RandomAccessFile source = new RandomAccessFile(sourceFile, "r");
+		RandomAccessFile dest = null;
+		long copiedBytes = 0;
+		try{
+			dest = new RandomAccessFile(destFile, "rw");
+			FileChannel sourceChannel 	= source.getChannel();
+			FileChannel destChannel 	= dest.getChannel();
+			ByteBuffer buffer 			= ByteBuffer.allocate(slotSize);
+			for(int slot : slots)
+			{
+				long position = slotPosition(slot);
+				buffer.clear();
+				if(position + slotSize > sourceChannel.size())buffer.limit((int)Math.max(0L, sourceChannel.size() - position));
+				while(buffer.hasRemaining())
+				{
+					if(sourceChannel.read(buffer, position + buffer.position()) < 0)break;
+				}
+				buffer.flip();
+				copiedBytes += buffer.remaining();
+				while(buffer.hasRemaining())
+				{
+					destChannel.write(buffer, position + buffer.position());
+				}
+			}
+		}
+		finally
+		{
+			source.close();
+			if(dest != null)dest.close();
+		}
+		batch.addCopied(slots.size(), copiedBytes);
+	}
+
+	@Override
+	synchronized
+	public PageStore snapshotLayout()
+	{
+		return new SegmentedPageStore(this);
+	}
+
+	@Override
+	public void backupContents(final String destDirectory, final FileMetadata fmd, final ByteBuffer contents) throws IOException
+	{
+		int slot = slotOf(fmd);
+		if(slot == -1)throw new IOException("No segment slot held file " + fmd.filenumber + " when the snapshot was taken");
+		RandomAccessFile raf = new RandomAccessFile(segmentFilename(destDirectory, slot / slotsPerSegment), "rw");
+		try{
+			FileChannel channel = raf.getChannel();
+			long position = slotPosition(slot);
+			while(contents.hasRemaining())
+			{
+				position += channel.write(contents, position);
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	@Override
+	public void removeFromBackup(final String destDirectory, final List<FileMetadata> fmds)
+	{
+		// freed slots need no action as the slot map is backed up with the tableCore
+	}
+
+	@Override
+	synchronized
+	public boolean validate(final String directory, final List<FileMetadata> fmds, final int tableWidth)
+	{
+		long[] segmentLengths = new long[segments];
+		for(int segment = 0; segment < segments; segment++)
+		{
+			File segmentFile = new File(segmentFilename(directory, segment));
+			segmentLengths[segment] = segmentFile.exists() ? segmentFile.length() : -1L;
+		}
+
+		for(FileMetadata fmd : fmds)
+		{
+			Integer slot = slotOfFile.get(fmd.filenumber);
+			if(slot == null)return false;
+			int segment = slot / slotsPerSegment;
+			if(segment >= segments)return false;
+			long expectedEnd = slotPosition(slot) + (long)fmd.rows * tableWidth;
+			if(segmentLengths[segment] < expectedEnd)return false;
+		}
+		return true;
+	}
+
+	@Override
+	synchronized
+	public void close() throws IOException
+	{
+		if(openSegments == null)return;
+		IOException failure = null;
+		for(RandomAccessFile raf : openSegments)
+		{
+			if(raf == null)continue;
+			try{
+				raf.close();
+			}
+			catch(IOException e){failure = e;}
+		}
+		openSegments = null;
+		directory = null;
+		if(failure != null)throw failure;
+	}
+
+	/** Serialises the slot map while holding the PageStores lock, as it may be in use by other threads */
+	synchronized
+	private void writeObject(final ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+	}
+
+	// ***************** slot management **********************
+
+	/** Returns the slot holding the given file, or -1 if it has not yet been written */
+	synchronized
+	private final int slotOf(final FileMetadata fmd)
+	{
+		Integer slot = slotOfFile.get(fmd.filenumber);
+		if(slot == null)return -1;
+		return slot;
+	}
+
+	/** Returns the slot holding the given file, allocating the lowest free slot if it has not yet been written */
+	synchronized
+	private final int slotOrAllocate(final FileMetadata fmd)
+	{
+		Integer slot = slotOfFile.get(fmd.filenumber);
+		if(slot != null)return slot;
+
+		int newSlot = usedSlots.nextClearBit(0);
+		usedSlots.set(newSlot);
+		slotOfFile.put(fmd.filenumber, newSlot);
+		int segment = newSlot / slotsPerSegment;
+		if(segment >= segments)segments = segment + 1;
+		return newSlot;
+	}
+
+	private final long slotPosition(final int slot)
+	{
+		long slotInSegment = slot % slotsPerSegment;
+		return slotInSegment * slotSize;
+	}
+
+	// ***************** segment files *************************
+
+	/** Returns the channel for a given segment, opening (and creating) the segment file if needed */
+	synchronized
+	private final FileChannel segmentChannel(final FileMetadata fmd, final int segment) throws IOException
+	{
+		if(openSegments == null)
+		{
+			openSegments = new ArrayList<RandomAccessFile>();
+			directory = fmd.owner.getTableDirectory();
+		}
+		while(openSegments.size() <= segment)openSegments.add(null);
+		RandomAccessFile raf = openSegments.get(segment);
+		if(raf == null)
+		{
+			raf = new RandomAccessFile(segmentFilename(directory, segment), "rw");
+			openSegments.set(segment, raf);
+		}
+		return raf.getChannel();
+	}
+
+	/** Returns the directory holding the segments, which is needed before any segment has been opened when backing up */
+	private final String directory(final List<FileMetadata> fmds)
+	{
+		if(directory != null)return directory;
+		return fmds.get(0).owner.getTableDirectory();
+	}
+
+	private static final String segmentFilename(final String directory, final int segment)
+	{
+		return directory + File.separator + SEGMENT_FILENAME_PREFIX + Integer.toString(segment);
+	}
+}
@@ -1,16 +1,23 @@
 package femtodb;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -33,12 +40,37 @@ public class TableCore implements Serializable, Lock{
 	static final double 		DEFAULT_ALLOW_COMBINE_OCCUPANCY_RATIO  	= 0.9;
 	static final long			NOT_MODIFIED_LRU_BOOST					= 10;
 	static final long			OVER_HALF_FULL_LRU_BOOST				= 5;
+	static final int			DEFAULT_NOT_MODIFIED_CACHE_BOOST		= 2;
+	static final int			DEFAULT_OVER_HALF_FULL_CACHE_BOOST		= 1;
+	static final int			MINIMUM_POOLED_PAGES					= 2;
+	static final int			DEFAULT_READ_AHEAD_FILES				= 8;
 	static final long  			PK_CACHE_NOT_SET 						= Long.MAX_VALUE;
 	static final short 			FLAG_CACHE_NOT_SET 						= Short.MIN_VALUE;
+	static final String			BACKED_UP_SERVICE_NUMBER_FILENAME		= "servicenumber";
+	/** The number of recent backup ids a table remembers, enough for both the ping and pong backups after failed attempts */
+	static final int			KNOWN_BACKUP_IDS						= 4;
+	private static final Random	BACKUP_ID_GENERATOR						= new Random();
 	
 	static final int			ROW_WRITELOCK							= 0x8000;
 	static final int			ROW_READLOCK							= 0x4000;
+	
+	// column types, recorded as each column is added
+	public static final byte	COLUMN_TYPE_UNKNOWN						= 0;
+	public static final byte	COLUMN_TYPE_BYTE						= 1;
+	public static final byte	COLUMN_TYPE_BOOLEAN						= 2;
+	public static final byte	COLUMN_TYPE_BYTE_ARRAY					= 3;
+	public static final byte	COLUMN_TYPE_SHORT						= 4;
+	public static final byte	COLUMN_TYPE_CHAR						= 5;
+	public static final byte	COLUMN_TYPE_INT							= 6;
+	public static final byte	COLUMN_TYPE_LONG						= 7;
+	public static final byte	COLUMN_TYPE_FLOAT						= 8;
+	public static final byte	COLUMN_TYPE_DOUBLE						= 9;
+	public static final byte	COLUMN_TYPE_CHAR_ARRAY					= 10;
+	public static final byte	COLUMN_TYPE_STRING						= 11;
 
+	/** Set while an online backup streams a snapshot of the tables files, which must be preserved before being overwritten or deleted */
+	private transient BackupSnapshot	backupSnapshot;
+	
 	/** The database that contains this tableCore */
 	private transient FemtoDB	database;
 	
@@ -88,8 +120,14 @@ public class TableCore implements Serializable, Lock{
 			int[]				columnByteWidth;
 	private int					tableWidth;
 	
+	/** The type of each column, see the COLUMN_TYPE constants. Null for tables saved before column types were recorded */
+	private byte[]				columnTypes;
+	
 	// ************ CACHES AND META DATA TABLES **********
 	/** The cache size in bytes. */
+	private long						cacheBytes;
+	
+	/** The cache size of tables saved when it was held as an int, moved into cacheBytes when they are loaded. Zero otherwise */
 	private int							cacheSize;
 	
 	/** Was the target cache size set manually */
@@ -99,8 +137,11 @@ public class TableCore implements Serializable, Lock{
 	private int 						cachePages;
 	
 	
+	/** Should the cache be held off the heap in direct memory (see DirectCacheMemory) */
+	private boolean						offHeapCache;
+	
 	/** The cache for the tableCore. Not serialised and must be reallocated on loading */
-	private transient byte[] 			cache;
+	private transient CacheMemory 		cache;
 	
 	/** Contains the primary keys of each row in the cache if extracted, otherwise PK_CACHE_NOT_SET */
 	private transient long[]			pkCache;
@@ -116,17 +157,83 @@ public class TableCore implements Serializable, Lock{
 	
 	/** Array holding FileMetadata references explaining what is in each cache page, or null if the page is already free */
 	private transient FileMetadata[]	cacheContents;	
+	
+	/** The cache when it borrows its pages from the database's BufferPool, otherwise null */
+	private transient PooledCacheMemory	pooledCache;
+	
+	/** The cache pages holding memory. Only a cache borrowing from a BufferPool has fewer than cachePages. */
+	private transient int				activePages;
+	
+	/** Chooses the cache page to free when a file must be loaded, ClockReplacement unless set */
+	private CacheReplacementPolicy		cacheReplacementPolicy;
+	
+	/** The extra passes of the clock hand an unmodified cache page survives, favouring freeing modified pages */
+	private int							notModifiedCacheBoost;
+	
+	/** The extra passes of the clock hand a cache page no more than half full survives, favouring freeing fuller pages */
+	private int							overHalfFullCacheBoost;
 			
-	/** The meta data on all the tables files, holding what is in each file and its cache status */
+	/** The meta data on all the tables files, holding what is in each file and its cache status. Held in a FileMetadataTree ordered by lowerBound */
 	private List<FileMetadata>			fileMetadata;
 	
+	/** Set when the table was loaded lazily and has not yet been used, so its cache has not been allocated */
+	private transient boolean			dormant;
+	
+	/** Set when the table was loaded lazily and its FileMetadata have not yet been attached to it */
+	private transient boolean			filesDormant;
+	
+	/** The filenumbers of the files cached when the table was last saved, most recently used first, so warmUp can reload them when the database is opened */
+	private long[]						warmFiles;
+	
 	/** Count used for LRU caching and file version marking */
 	private long						serviceNumber;
 	
+	/** The ids of the most recent backups of the table, newest last. A backup is only brought up to date incrementally if the table knows its id, so the backup holds an earlier state 
+	 * of this table rather than a state the table has left behind by being restored from an older backup. Null for tables saved before backups were given ids */
+	private long[]						backupIds;
+	
 	// ***************** RowAccessTypeFactory ***************************
 	private boolean rowAccessTypeFactorySet = false;
 	private RowAccessTypeFactory rowAccessTypeFactory;
 	
+	// ***************** PageStore **************************************
+	/** Moves the contents of the tables files between the disk and the cache, created when the table is made operational */
+	private PageStore pageStore;
+	
+	/** Should the PageStore access files through memory mappings */
+	private boolean memoryMappedIO;
+	
+	/** Should the PageStore keep the files as slots within a few large segment files */
+	private boolean segmentedStorage;
+	
+	// ***************** ReadAhead **************************************
+	/** The most files the iterators read ahead of their position, zero disables read ahead */
+	private int readAheadFiles;
+	
+	/** Reads files in the background for the iterators, created when first needed */
+	private transient ReadAhead readAhead;
+	
+	// ***************** PrimaryKeyHashIndex *****************************
+	/** Should point lookups first probe a hash of where primary keys were last found in the cache */
+	private boolean primaryKeyHashIndexEnabled;
+	
+	/** Hints of the cache rows holding primary keys, null unless enabled */
+	private transient PrimaryKeyHashIndex primaryKeyHashIndex;
+	
+	// ***************** SecondaryIndex *********************************
+	/** The secondary indexes on the tables columns, or null if it has none */
+	private SecondaryIndex[] secondaryIndexes;
+	
+	/** The bitmap indexes on the tables columns, or null if it has none */
+	private BitmapIndex[] bitmapIndexes;
+	
+	/** The trigram indexes on the tables String columns, or null if it has none */
+	private TrigramIndex[] trigramIndexes;
+	
+	// ***************** WriteAheadLog **********************************
+	/** The LSN of the last logged operation on the table. Operations in the log up to this LSN are already held in the tables files or cache, so are skipped when the log is replayed */
+	private long walLSN;
+	
 	/** Indicates the table has been deleted */
 	private boolean							deleted;
 	
@@ -154,6 +261,7 @@ public class TableCore implements Serializable, Lock{
 		columnNames 		= new String[0];
 		columnByteOffset 	= new int[0];
 		columnByteWidth		= new int[0];
+		columnTypes			= new byte[0];
 		tableWidth = 0;
 		
 		cacheSizeSet 		= false;
@@ -172,6 +280,9 @@ public class TableCore implements Serializable, Lock{
 		addShortColumn("femtodb_status");
 		
 		rowAccessTypeFactorySet = false;
+		readAheadFiles			= DEFAULT_READ_AHEAD_FILES;
+		notModifiedCacheBoost	= DEFAULT_NOT_MODIFIED_CACHE_BOOST;
+		overHalfFullCacheBoost	= DEFAULT_OVER_HALF_FULL_CACHE_BOOST;
 		
 		// set service number to a very low number, but not too low for the LRU algorithm
 		serviceNumber 			= Long.MIN_VALUE + NOT_MODIFIED_LRU_BOOST + OVER_HALF_FULL_LRU_BOOST + 100;
@@ -195,6 +306,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_BYTE);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,1);
 		tableWidth++;
@@ -205,6 +317,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_BOOLEAN);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,1);
 		tableWidth++;
@@ -215,6 +328,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_BYTE_ARRAY);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		int trueWidth 		= 4 + width;
 		columnByteWidth 	= addToArray(columnByteWidth,trueWidth);
@@ -226,6 +340,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational)		return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_SHORT);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,2);
 		tableWidth 			+= 2;
@@ -236,6 +351,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational)		return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_CHAR);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,2);
 		tableWidth 			+= 2;
@@ -246,6 +362,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational)		return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_INT);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,4);
 		tableWidth 			+= 4;
@@ -256,6 +373,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_LONG);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,8);
 		tableWidth 			+= 8;
@@ -266,6 +384,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_FLOAT);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,4);
 		tableWidth 			+= 4;
@@ -276,6 +395,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_DOUBLE);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		columnByteWidth 	= addToArray(columnByteWidth,8);
 		tableWidth 			+= 8;
@@ -286,6 +406,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_CHAR_ARRAY);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		int trueWidth 		= 2 + width * 2;
 		columnByteWidth 	= addToArray(columnByteWidth,trueWidth);
@@ -297,6 +418,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(operational) 	return;
 		columnNames 		= addToArray(columnNames, columnName);
+		columnTypes 		= addToArray(columnTypes, COLUMN_TYPE_STRING);
 		columnByteOffset 	= addToArray(columnByteOffset,tableWidth);
 		int trueWidth 		= 2 + width;
 		columnByteWidth 	= addToArray(columnByteWidth,trueWidth);
@@ -318,13 +440,66 @@ public class TableCore implements Serializable, Lock{
 		rowsPerFileSet = true;
 	}
 	
-	public final void setCacheSize(final int cacheSize)
+	/** Sets the cache size in bytes. On heap caches are limited to Integer.MAX_VALUE bytes, larger caches require setOffHeapCache. Once the table is operational use resizeCache. */
+	public final void setCacheSize(final long cacheSize)
 	{
 		if(operational) return;
-		this.cacheSize = cacheSize;
+		this.cacheBytes = cacheSize;
 		cacheSizeSet = true;
 	}
 	
+	/** When set true the cache is allocated off the heap in direct memory, so it is not scanned by the garbage collector and may exceed Integer.MAX_VALUE bytes. */
+	public final void setOffHeapCache(final boolean offHeapCache)
+	{
+		if(operational) return;
+		this.offHeapCache = offHeapCache;
+	}
+	
+	/** When set true the tables files are read and written through memory mappings (see MappedPageStore) rather than file streams. */
+	public final void setMemoryMappedIO(final boolean memoryMappedIO)
+	{
+		if(operational) return;
+		this.memoryMappedIO = memoryMappedIO;
+	}
+	
+	/** Sets the most files the iterators will read in the background ahead of their position. The read ahead doubles with each file stepped through sequentially up to this limit, and is restricted to half the cache pages. Zero disables read ahead. */
+	public final void setReadAheadFiles(final int readAheadFiles)
+	{
+		this.readAheadFiles = readAheadFiles;
+	}
+	
+	/** Sets the weights biasing which cache page is freed. An unmodified page survives notModifiedCacheBoost, and a page no more than half full overHalfFullCacheBoost, more passes of the clock hand than other pages. */
+	synchronized
+	public final void setCacheBoosts(final int notModifiedCacheBoost, final int overHalfFullCacheBoost) throws FemtoDBInvalidValueException
+	{
+		if((notModifiedCacheBoost < 0)||(overHalfFullCacheBoost < 0))throw new FemtoDBInvalidValueException("TableCore " + name + " cache boosts cannot be negative. They were " + notModifiedCacheBoost + " and " + overHalfFullCacheBoost);
+		this.notModifiedCacheBoost 	= notModifiedCacheBoost;
+		this.overHalfFullCacheBoost = overHalfFullCacheBoost;
+		if(cacheReplacementPolicy != null)cacheReplacementPolicy.setBoosts(notModifiedCacheBoost, overHalfFullCacheBoost);
+	}
+	
+	/** Sets the policy choosing which cache page to free when a file must be loaded. TwoQueueReplacement keeps the pages used by point lookups cached while the table is scanned. */
+	public final void setCacheReplacementPolicy(final CacheReplacementPolicy cacheReplacementPolicy)
+	{
+		if(operational) return;
+		this.cacheReplacementPolicy = cacheReplacementPolicy;
+	}
+	
+	/** When set true the tables files are stored as fixed size slots inside a few large segment files (see SegmentedPageStore) rather than one file each. This takes precedence over setMemoryMappedIO. */
+	public final void setSegmentedStorage(final boolean segmentedStorage)
+	{
+		if(operational) return;
+		this.segmentedStorage = segmentedStorage;
+	}
+	
+	/** When set true, seek, update and delete first probe a hash of the cache rows primary keys were last found in (see PrimaryKeyHashIndex), so point lookups of cached rows skip the binary searches. 
+	 * It costs twelve bytes for each row the cache holds. */
+	public final void setPrimaryKeyHashIndex(final boolean primaryKeyHashIndexEnabled)
+	{
+		if(operational) return;
+		this.primaryKeyHashIndexEnabled = primaryKeyHashIndexEnabled;
+	}
+	
 	
 	// *********************************************
 	//          MAKE OPERATIONAL
@@ -333,6 +508,9 @@ public class TableCore implements Serializable, Lock{
 	public final void makeOperational()throws FemtoDBInvalidValueException, FemtoDBIOException
 	{
 		if(operational) return;
+		
+		// the definition is logged as it is now, so replaying the log recreates the table by making the same definition operational
+		byte[] definition = (database.getWriteAheadLog() != null) ? serialisedDefinition() : null;
 		operational = true;
 		
 		long actualFileSize;
@@ -370,23 +548,47 @@ public class TableCore implements Serializable, Lock{
 		
 		if(combineOccupancy <= removeOccupancy) throw new FemtoDBInvalidValueException("TableCore " + name + " Resulting removeOccupancy must be less than combineOccupancy for file combining to function correctly. It was " + removeOccupancy + ":" + combineOccupancy);
 
-		// Validate cache size if set otherwise set it automatically to the default value
+		// Validate cache size if set otherwise set it automatically to the default value, or when sharing a BufferPool this tables share of the pool
+		BufferPool bufferPoolL = usableBufferPool();
 		if(cacheSizeSet)
 		{
-			if(cacheSize < actualFileSize)throw new FemtoDBInvalidValueException("TableCore " + name + " the cache size must be at least the actual file size " + actualFileSize);
+			if(cacheBytes < actualFileSize)throw new FemtoDBInvalidValueException("TableCore " + name + " the cache size must be at least the actual file size " + actualFileSize);
+		}
+		else if(bufferPoolL != null)
+		{
+			// not the whole pool, as the cache size also sizes the tables PrimaryKeyHashIndex
+			cacheBytes = Math.max(bufferPoolL.getBudget() / Math.max(1, database.getTableCores().size()), actualFileSize);
+			if((cacheBytes / actualFileSize) * rowsPerFile > Integer.MAX_VALUE)cacheBytes = (Integer.MAX_VALUE / rowsPerFile) * actualFileSize;
 		}
 		else
 		{
-			cacheSize = DEFAULT_CACHE_SIZE_IN_BYTES;
+			cacheBytes = DEFAULT_CACHE_SIZE_IN_BYTES;
 		}
 		
-		// set the fileSize, cachePages and cacheSize to their final values
+		// set the fileSize, cachePages and cacheBytes to their final values
+		long cachePagesL = cacheBytes / actualFileSize;
+		if(cachePagesL * rowsPerFile > Integer.MAX_VALUE) throw new FemtoDBInvalidValueException("TableCore " + name + " the cache holds more rows than an integer value can index. Its size was " + cacheBytes);
+		if(!offHeapCache && (bufferPoolL == null) && (cachePagesL * actualFileSize) > Integer.MAX_VALUE) throw new FemtoDBInvalidValueException("TableCore " + name + " an on heap cache cannot exceed an integer value, use setOffHeapCache. Its size was " + cacheBytes);
 		fileSize 	= (int)actualFileSize;
-		cachePages 	= cacheSize / (int)actualFileSize;
-		cacheSize 	= cachePages * (int)actualFileSize;
+		cachePages 	= (int)cachePagesL;
+		cacheBytes 	= cachePagesL * actualFileSize;
 		
 		allocateMemory();
 		
+		// create the PageStore
+		if(segmentedStorage)
+		{
+			pageStore = new SegmentedPageStore(fileSize);
+		}
+		else if(memoryMappedIO)
+		{
+			pageStore = new MappedPageStore();
+		}
+		else
+		{
+			pageStore = new DefaultPageStore();
+		}
+		
 		// Initialise nextFileNumber for creating unique filenames
 		nextUnusedFileNumber = 0;
 		
@@ -400,7 +602,7 @@ public class TableCore implements Serializable, Lock{
 		}
 		
 		// Fill the fileMetadata with a single entry referring to an empty file 
-		fileMetadata = new ArrayList<FileMetadata>();
+		fileMetadata = new FileMetadataTree();
 		FileMetadata firstFile = new FileMetadata(
 				this,
 				nextFilenumber(), 
@@ -417,7 +619,9 @@ public class TableCore implements Serializable, Lock{
 		// make firstFile appear to be loaded into the first cache page and will be written to a file when flushed
 		firstFile.cached = true;
 		firstFile.cacheIndex = 0;
-		firstFile.modified = true;
+		firstFile.bloomFilter = new PrimaryKeyBloomFilter(rowsPerFile);
+		firstFile.zoneMap = zoneMapOf(0, 0, 0);
+		markModified(firstFile);
 		
 		// add firstFile into fileMetadata list
 		fileMetadata.add(firstFile);
@@ -435,22 +639,68 @@ public class TableCore implements Serializable, Lock{
 		{
 			rowAccessTypeFactory = new DefaultRowAccessTypeFactory(tableWidth);
 		}
+		
+		if(definition != null)database.logTableOperation(tableNumber, WriteAheadLog.CREATE_TABLE, definition);
 	}	
 	
+	/** Returns the tableCore serialised, used to log its definition before it is made operational */
+	private final byte[] serialisedDefinition() throws FemtoDBIOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try{
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(this);
+			oos.close();
+		}
+		catch(IOException e){throw new FemtoDBIOException("TableCore " + name + " was unable to serialise its definition for the write ahead log",e);}
+		return bos.toByteArray();
+	}
+	
+	/** Returns the database's BufferPool if the cache should borrow its pages from it, otherwise null */
+	private final BufferPool usableBufferPool()
+	{
+		if((database == null)||(offHeapCache))return null;
+		return database.getBufferPool();
+	}
+	
 	private  final void allocateMemory()
 	{
 		// allocate memory for the cache
+		BufferPool bufferPoolL = usableBufferPool();
 		try{
-			cache = new byte[cacheSize];
+			if(offHeapCache)
+			{
+				cache = new DirectCacheMemory(cachePages, fileSize);
+			}
+			else if(bufferPoolL != null)
+			{
+				pooledCache = new PooledCacheMemory(bufferPoolL, this, cachePages, fileSize);
+				cache = pooledCache;
+			}
+			else
+			{
+				cache = new HeapCacheMemory(cachePages, fileSize);
+			}
 		}catch(OutOfMemoryError e)
 		{
 			// re-throw any memory exception providing more information
-			throw new OutOfMemoryError("TableCore " + name + " was unable to allocate its cache of " + cacheSize + " bytes");
+			throw new OutOfMemoryError("TableCore " + name + " was unable to allocate its cache of " + cacheBytes + " bytes");
+		}
+		
+		// a cache sharing a BufferPool starts with a few pages, the primary key and flag caches growing with it
+		activePages = cachePages;
+		if(pooledCache != null)
+		{
+			activePages = Math.min(cachePages, MINIMUM_POOLED_PAGES);
+			for(int page = 0; page < activePages; page++)
+			{
+				pooledCache.acquire(page, true);
+			}
 		}
 		
 		// allocate memory for the pkCache
 		try{
-			int maxRowsInCache = rowsPerFile * cachePages;
+			int maxRowsInCache = rowsPerFile * activePages;
 			pkCache = new long[(maxRowsInCache)];
 			for(int x = 0; x < maxRowsInCache;x++){pkCache[x] = PK_CACHE_NOT_SET;}
 		}catch(OutOfMemoryError e)
@@ -471,9 +721,9 @@ public class TableCore implements Serializable, Lock{
 
 		// allocate memory for the flagCache
 		try{
-			int maxRowsInCache = rowsPerFile * cachePages;
+			int maxRowsInCache = rowsPerFile * activePages;
 			flagCache = new short[(maxRowsInCache)];
-			for(int x = 0; x < maxRowsInCache;x++){pkCache[x] = FLAG_CACHE_NOT_SET;}
+			for(int x = 0; x < maxRowsInCache;x++){flagCache[x] = FLAG_CACHE_NOT_SET;}
 		}catch(OutOfMemoryError e)
 		{
 			// re-throw any memory exception providing more information
@@ -498,7 +748,15 @@ public class TableCore implements Serializable, Lock{
 		{
 			// re-throw any memory exception providing more information
 			throw new OutOfMemoryError("TableCore " + name + " was unable to allocate its cache contents array");
-		}			
+		}
+		
+		// the primary key hash index covers every page the cache may hold
+		if(primaryKeyHashIndexEnabled)primaryKeyHashIndex = new PrimaryKeyHashIndex(cachePages * rowsPerFile);
+		
+		// tables saved before CacheReplacementPolicy existed use the default
+		if(cacheReplacementPolicy == null)cacheReplacementPolicy = new ClockReplacement();
+		cacheReplacementPolicy.allocate(cachePages, rowsPerFile, notModifiedCacheBoost, overHalfFullCacheBoost);
+		if(activePages < cachePages)cacheReplacementPolicy.setActivePages(activePages);
 	}	
 	
 	//******************************************************
@@ -528,21 +786,25 @@ public class TableCore implements Serializable, Lock{
 	private final void loadFileIntoCachePage(final int page, final FileMetadata fmd) throws FemtoDBIOException
 	{
 		// load the file
-		File f = new File(fmd.filename);
 		try
 		{
-			FileInputStream fis = new FileInputStream(f);
-			int bytesToRead = tableWidth * fmd.rows;
-			int readByteCount = fis.read(cache, (page * fileSize), bytesToRead);
-			if(readByteCount != bytesToRead)
-			{
-				fis.close();
-				throw new IOException("TableCore " + name + "(" + tableNumber + ") Read incorrect number of bytes from file " + fmd.filename + " expected " + bytesToRead + " and read " + readByteCount);
-			}
-			fis.close();
+			pageStore.read(fmd, cache.buffer(page, 0, (tableWidth * fmd.rows)));
 		}
-		catch(IOException e){throw new FemtoDBIOException(e.getMessage(),e);}
+		catch(IOException e){throw new FemtoDBIOException("TableCore " + name + "(" + tableNumber + ") " + e.getMessage(),e);}
 		
+		pageLoaded(page, fmd);
+	}
+	
+	/** Fills a given cache page with the contents of a file read ahead of time. The page must be made free before this method is called. */
+	private final void loadStagedFileIntoCachePage(final int page, final FileMetadata fmd, final byte[] staged)
+	{
+		cache.put(page, 0, staged, 0, (tableWidth * fmd.rows));
+		pageLoaded(page, fmd);
+	}
+	
+	/** Records that a file has been loaded into a given cache page */
+	private final void pageLoaded(final int page, final FileMetadata fmd)
+	{
 		// update fmd
 		fmd.cached = true;
 		fmd.cacheIndex = page;
@@ -550,6 +812,7 @@ public class TableCore implements Serializable, Lock{
 		
 		// add to cacheContents
 		cacheContents[page] = fmd;
+		cacheReplacementPolicy.pageLoaded(page, fmd);
 		
 		// Set pkCache and flagCache entries for page loaded page to NOT_SET.
 		// This causes the primary key and flag values to be lazy de-serialised.
@@ -557,6 +820,62 @@ public class TableCore implements Serializable, Lock{
 		int destPos = page * rowsPerFileL;
 		System.arraycopy(pkCacheEraser, 0, pkCache, destPos, rowsPerFileL);
 		System.arraycopy(flagCacheEraser, 0, flagCache, destPos, rowsPerFileL);
+		
+		// files saved before Bloom filters existed, or read without them, get one the first time they are loaded
+		if(fmd.bloomFilter == null)fmd.bloomFilter = bloomFilterOf(page, 0, fmd.rows);
+		if(fmd.zoneMap == null)fmd.zoneMap = zoneMapOf(page, 0, fmd.rows);
+	}
+	
+	/** Returns a Bloom filter holding the primary keys of the given rows of a cache page */
+	private final PrimaryKeyBloomFilter bloomFilterOf(final int page, final int firstRow, final int rows)
+	{
+		PrimaryKeyBloomFilter retval = new PrimaryKeyBloomFilter(rowsPerFile);
+		for(int row = firstRow; row < firstRow + rows; row++)
+		{
+			retval.add(getPrimaryKeyForCacheRow(page, row));
+		}
+		return retval;
+	}
+	
+	/** Returns a zone map of the given rows of a cache page, or null if the table's column types are unknown */
+	private final ZoneMap zoneMapOf(final int page, final int firstRow, final int rows)
+	{
+		if(columnTypes == null)return null;
+		ZoneMap retval 	= new ZoneMap(columnTypes);
+		int tableWidthL = tableWidth;
+		byte[] row 		= new byte[tableWidthL];
+		for(int x = firstRow; x < firstRow + rows; x++)
+		{
+			cache.get(page, x * tableWidthL, row, 0, tableWidthL);
+			zoneInclude(retval, row);
+		}
+		return retval;
+	}
+	
+	/** Widens a file's zone map to hold a row written to it */
+	private final void zoneInclude(final ZoneMap zoneMap, final byte[] row)
+	{
+		if(zoneMap == null)return;
+		byte[] 	columnTypesL 		= columnTypes;
+		int[] 	columnByteOffsetL 	= columnByteOffset;
+		for(int column = 0; column < columnTypesL.length; column++)
+		{
+			if(ZoneMap.isZoned(columnTypesL, column))zoneMap.include(column, SecondaryIndex.keyOf(row, columnTypesL[column], columnByteOffsetL[column]));
+		}
+	}
+	
+	/** Returns false if no row of the file can hold a key from lowKey to highKey in the column. A negative column matches every file */
+	private static final boolean zoneMayMatch(final FileMetadata fmd, final int column, final long lowKey, final long highKey)
+	{
+		if((column < 0)||(fmd.zoneMap == null))return true;
+		return fmd.zoneMap.mayMatch(column, lowKey, highKey);
+	}
+	
+	/** Returns false if the file cannot hold the primary key, so a lookup need not load it */
+	private static final boolean mayHold(final FileMetadata fmd, final long primaryKey)
+	{
+		if(fmd.rows == 0)return false;
+		return (fmd.bloomFilter == null)||(fmd.bloomFilter.mightContain(primaryKey));
 	}
 	
 	/** Fetches a given file into the cache, returning the cache page that it was fetched into. It is forbidden from using cache page given in the argument pageToExclude. 
@@ -573,44 +892,159 @@ public class TableCore implements Serializable, Lock{
 		return pageToForceFree;
 	}
 	
-	/** Find the LRU cache page, other than the page given */
+	/** Find the cache page to free, other than the page given */
 	private final int findLRUCachePageExcludingPage(final int pageToExclude)
 	{
-		long bestValueSoFar = Long.MAX_VALUE;
-		int bestCandidateSoFar = -1;
-		int halfOfRowsPerFile = rowsPerFile >> 1;
-		for(int x = 0; x < cachePages; x++)
+		return findCachePageToFree(pageToExclude, false);
+	}
+	
+	/** Find the cache page to free */
+	private final int findLRUCachePage()
+	{
+		return findCachePageToFree(-1, false);
+	}
+	
+	/** Returns a free page if the policy finds one, otherwise a new page if the BufferPool can spare the memory, otherwise the page the policy chose to free */
+	private final int findCachePageToFree(final int pageToExclude, final boolean cleanOnly)
+	{
+		int page = cacheReplacementPolicy.findVictim(cacheContents, pageToExclude, cleanOnly);
+		if((page != -1)&&(cacheContents[page] == null))return page;
+		int grownPage = growCache();
+		return (grownPage != -1) ? grownPage : page;
+	}
+	
+	/** Adds a page to a cache sharing a BufferPool if the pool can spare the memory, returning the new free page or -1 */
+	private final int growCache()
+	{
+		if((pooledCache == null)||(activePages == cachePages))return -1;
+		if(!pooledCache.acquire(activePages, false))return -1;
+		int page = activePages;
+		activePages++;
+		
+		// grow the primary key and flag caches by doubling, so their cost is spread over the pages added
+		int rowsPerFileL = rowsPerFile;
+		if(activePages * rowsPerFileL > pkCache.length)
 		{
-			if(x == pageToExclude)continue;
-			long value = cacheLRURankingAlgorithm(x,halfOfRowsPerFile);
-			if(value < bestValueSoFar){bestCandidateSoFar = x; bestValueSoFar = value;}
+			int newPages 	= Math.min(cachePages, Math.max(activePages, (pkCache.length / rowsPerFileL) * 2));
+			int oldLength 	= pkCache.length;
+			pkCache 		= Arrays.copyOf(pkCache, newPages * rowsPerFileL);
+			flagCache 		= Arrays.copyOf(flagCache, newPages * rowsPerFileL);
+			Arrays.fill(pkCache, oldLength, pkCache.length, PK_CACHE_NOT_SET);
+			Arrays.fill(flagCache, oldLength, flagCache.length, FLAG_CACHE_NOT_SET);
 		}
-		return bestCandidateSoFar;
+		cacheReplacementPolicy.setActivePages(activePages);
+		return page;
 	}
 	
-	/** Find the LRU cache page */
-	private final int findLRUCachePage()
+	/** Called by the BufferPool to take pages from a cache sharing it, writing and freeing the highest pages. Returns the number of pages given back. */
+	synchronized
+	final int releasePooledPages(final int pages) throws FemtoDBIOException
 	{
-		long bestValueSoFar = Long.MAX_VALUE;
-		int bestCandidateSoFar = -1;
-		int halfOfRowsPerFile = rowsPerFile >> 1;
-		for(int x = 0; x < cachePages; x++)
+		if((pooledCache == null)||(shuttingDown)||(deleted))return 0;
+		int released = 0;
+		while((released < pages)&&(activePages > MINIMUM_POOLED_PAGES))
 		{
-			long value = cacheLRURankingAlgorithm(x,halfOfRowsPerFile);
-			if(value < bestValueSoFar){bestCandidateSoFar = x; bestValueSoFar = value;}
+			int page = activePages - 1;
+			freeCachePage(page);
+			activePages--;
+			cacheReplacementPolicy.setActivePages(activePages);
+			pooledCache.release(page);
+			released++;
 		}
-		return bestCandidateSoFar;
+		return released;
 	}
 	
-	/** Ranking algorithm used to determine best LRU page in cache to swap out */
-	private final long cacheLRURankingAlgorithm(final int page, final int halfOfRowsPerFile)
+	/** Returns the number of cache pages holding memory, which is cachePages unless the cache shares a BufferPool */
+	synchronized
+	final int getActiveCachePages()
 	{
-		FileMetadata fmd = cacheContents[page];
-		if(fmd == null)return Long.MIN_VALUE; // perfect an unused page :-)
-		long retval = fmd.lastUsedServiceNumber;
-		if(fmd.modified) retval -= NOT_MODIFIED_LRU_BOOST;
-		if(fmd.rows > halfOfRowsPerFile)retval -= OVER_HALF_FULL_LRU_BOOST;
-		return retval;
+		return activePages;
+	}
+	
+	/** Changes the size in bytes of an operational table's cache while it is in use, writing and freeing the pages beyond the new size when it shrinks.
+	 * The files held in the pages kept stay cached. A cache sharing a BufferPool is given the new size as the most it may borrow. Before the table is operational use setCacheSize. */
+	synchronized
+	public final void resizeCache(final long newCacheSize) throws FemtoDBInvalidValueException, FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		if(!operational)
+		{
+			setCacheSize(newCacheSize);
+			return;
+		}
+		if(shuttingDown)throw new FemtoDBShuttingDownException();
+		if(deleted)throw new FemtoDBTableDeletedException();
+		
+		long newPagesL = newCacheSize / fileSize;
+		if(newPagesL < 1) throw new FemtoDBInvalidValueException("TableCore " + name + " the cache must hold at least one file of " + fileSize + " bytes. Its size was " + newCacheSize);
+		if(newPagesL * rowsPerFile > Integer.MAX_VALUE) throw new FemtoDBInvalidValueException("TableCore " + name + " the cache holds more rows than an integer value can index. Its size was " + newCacheSize);
+		if(!offHeapCache && (pooledCache == null) && (newPagesL * fileSize) > Integer.MAX_VALUE) throw new FemtoDBInvalidValueException("TableCore " + name + " an on heap cache cannot exceed an integer value, use setOffHeapCache. Its size was " + newCacheSize);
+		int newPages 	= (int)newPagesL;
+		cacheBytes 		= newPagesL * fileSize;
+		cacheSizeSet 	= true;
+		if(newPages == cachePages)return;
+		
+		// a dormant table allocates its cache at the new size when first used
+		if(cacheContents == null)
+		{
+			cachePages = newPages;
+			return;
+		}
+		
+		// write and free the pages beyond the new size
+		int keptPages = Math.min(activePages, newPages);
+		for(int page = keptPages; page < activePages; page++)
+		{
+			freeCachePage(page);
+			if(pooledCache != null)pooledCache.release(page);
+		}
+		
+		// move the kept pages into memory of the new size
+		if(pooledCache != null)
+		{
+			pooledCache.resize(newPages);
+		}
+		else
+		{
+			CacheMemory newCache;
+			try{
+				newCache = offHeapCache ? new DirectCacheMemory(newPages, fileSize) : new HeapCacheMemory(newPages, fileSize);
+			}catch(OutOfMemoryError e)
+			{
+				// re-throw any memory exception providing more information
+				throw new OutOfMemoryError("TableCore " + name + " was unable to allocate its cache of " + cacheBytes + " bytes");
+			}
+			byte[] pageBuffer = new byte[fileSize];
+			for(int page = 0; page < keptPages; page++)
+			{
+				FileMetadata fmd = cacheContents[page];
+				if(fmd == null)continue;
+				int length = tableWidth * fmd.rows;
+				cache.get(page, 0, pageBuffer, 0, length);
+				newCache.put(page, 0, pageBuffer, 0, length);
+			}
+			cache = newCache;
+		}
+		
+		// a cache sharing a BufferPool keeps the pages it holds, the others hold every page
+		int newActivePages 	= (pooledCache != null) ? keptPages : newPages;
+		int rowsPerFileL 	= rowsPerFile;
+		int oldLength 		= Math.min(pkCache.length, newActivePages * rowsPerFileL);
+		pkCache 			= Arrays.copyOf(pkCache, newActivePages * rowsPerFileL);
+		flagCache 			= Arrays.copyOf(flagCache, newActivePages * rowsPerFileL);
+		Arrays.fill(pkCache, oldLength, pkCache.length, PK_CACHE_NOT_SET);
+		Arrays.fill(flagCache, oldLength, flagCache.length, FLAG_CACHE_NOT_SET);
+		cacheContents 		= Arrays.copyOf(cacheContents, newPages);
+		cachePages 			= newPages;
+		activePages 		= newActivePages;
+		if(primaryKeyHashIndex != null)primaryKeyHashIndex = new PrimaryKeyHashIndex(cachePages * rowsPerFileL);
+		
+		// the replacement policy starts again knowing only which pages are in use
+		cacheReplacementPolicy.allocate(cachePages, rowsPerFileL, notModifiedCacheBoost, overHalfFullCacheBoost);
+		if(activePages < cachePages)cacheReplacementPolicy.setActivePages(activePages);
+		for(int page = 0; page < activePages; page++)
+		{
+			if(cacheContents[page] != null)cacheReplacementPolicy.pageLoaded(page, cacheContents[page]);
+		}
 	}
 	
 	/** Free's a given cache page writing its contents to disk. */
@@ -624,6 +1058,7 @@ public class TableCore implements Serializable, Lock{
 		fmd.cached = false;
 		fmd.cacheIndex = -1;
 		cacheContents[page] = null;
+		cacheReplacementPolicy.pageFreed(page, fmd);
 	}
 	
 	/** Writes a cache page to disk. */
@@ -635,19 +1070,168 @@ public class TableCore implements Serializable, Lock{
 		if(fmd.modified)
 		{
 //			System.out.println("containing " + fmd.toString());
-			File f = new File(fmd.filename);
 			try
 			{
-				FileOutputStream fos = new FileOutputStream(f);
-				fos.write(cache, (page * fileSize), (tableWidth * fmd.rows));
-				fos.flush();
-				fos.close();
-				
+				beforeFileChange(fmd);
+				pageStore.write(fmd, cache.buffer(page, 0, (tableWidth * fmd.rows)));
 				fmd.modified = false; // disk now matches cache
 			}
 			catch(IOException e){throw new FemtoDBIOException(e.getMessage(),e);}
 		}
 	}
+	
+	/** Marks a cached file as modified, recording when it first became modified so the BackgroundFlusher can find the oldest modified pages */
+	private final void markModified(final FileMetadata fmd)
+	{
+		if(fmd.modified)return;
+		fmd.modified 	= true;
+		fmd.dirtySince 	= System.currentTimeMillis();
+	}
+	
+	/** Appends an operation that has just been applied to the table to the databases write ahead log, if it has one. Must be called holding the tables lock so the log holds each tables operations in order. */
+	private final void logOperation(final byte operation, final long primaryKey, final short flag, final byte[] row) throws FemtoDBIOException
+	{
+		WriteAheadLog writeAheadLogL = database.getWriteAheadLog();
+		if(writeAheadLogL == null)return;
+		try{
+			walLSN = writeAheadLogL.append(tableNumber, operation, primaryKey, flag, row, ((row == null) ? 0 : tableWidth));
+		}
+		catch(IOException e){throw new FemtoDBIOException("TableCore " + name + " was unable to write to the write ahead log",e);}
+	}
+	
+	/** Blocks until the operations the calling thread has logged are durable. It must be called without holding the tables lock, so that one thread can sync the log for many. */
+	private final void awaitLogged() throws FemtoDBIOException
+	{
+		WriteAheadLog writeAheadLogL = database.getWriteAheadLog();
+		if(writeAheadLogL == null)return;
+		try{
+			writeAheadLogL.awaitDurable();
+		}
+		catch(IOException e){throw new FemtoDBIOException("TableCore " + name + " was unable to sync the write ahead log",e);}
+	}
+	
+	/** Applies an operation read from the write ahead log when the database is opened, unless the table already holds it. The database must not be logging while replaying. */
+	final void replayLogRecord(final long lsn, final byte operation, final long primaryKey, final short flag, final byte[] row) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		if((!operational)||(lsn <= walLSN))return;
+		activate();
+		switch(operation)
+		{
+			case WriteAheadLog.INSERT:
+				insertCoreInternal(primaryKey, flag, row);
+				break;
+			case WriteAheadLog.UPDATE:
+				updateOrIgnoreInternal(primaryKey, flag, row);
+				break;
+			case WriteAheadLog.DELETE:
+				deleteByPrimaryKeyInternal(primaryKey);
+				break;
+		}
+		walLSN = lsn;
+	}
+	
+	final long getWalLSN()
+	{
+		return walLSN;
+	}
+	
+	/** Used by the BackgroundFlusher to write modified cache pages to disk so eviction finds clean pages. Writes up to maxPages pages, oldest modification first,
+	 * taking those modified before the modifiedBefore time (in milliseconds) and any others while more than dirtyRatio of the cache pages are modified.
+	 * @return 	The number of pages written. */
+	synchronized
+	final int flushModifiedPages(final long modifiedBefore, final double dirtyRatio, final int maxPages) throws FemtoDBIOException
+	{
+		if(!operational || shuttingDown || deleted)return 0;
+		
+		// localise class fields for speed
+		FileMetadata[] 	cacheContentsL 	= cacheContents;
+		int				cachePagesL		= cachePages;
+		if(cacheContentsL == null)return 0; // dormant
+		
+		if(maxPages <= 0)return 0;
+		
+		// in one pass count the modified pages and keep the maxPages modified the longest, in a heap with the most recently modified of them at the root
+		int[] 	oldestPages 	= new int[maxPages];
+		long[] 	oldestTimes 	= new long[maxPages];
+		int 	oldestCount 	= 0;
+		int 	modifiedPages 	= 0;
+		for(int page = 0; page < cachePagesL; page++)
+		{
+			FileMetadata fmd = cacheContentsL[page];
+			if((fmd == null)||(!fmd.modified))continue;
+			modifiedPages++;
+			if(oldestCount < maxPages)
+			{
+				oldestPages[oldestCount] = page;
+				oldestTimes[oldestCount] = fmd.dirtySince;
+				oldestCount++;
+				siftUpDirtyHeap(oldestPages, oldestTimes, oldestCount - 1);
+			}
+			else if(fmd.dirtySince < oldestTimes[0])
+			{
+				oldestPages[0] = page;
+				oldestTimes[0] = fmd.dirtySince;
+				siftDownDirtyHeap(oldestPages, oldestTimes, 0, oldestCount);
+			}
+		}
+		
+		// sort them oldest first by repeatedly moving the most recently modified to the end
+		for(int end = oldestCount - 1; end > 0; end--)
+		{
+			swapDirtyHeap(oldestPages, oldestTimes, 0, end);
+			siftDownDirtyHeap(oldestPages, oldestTimes, 0, end);
+		}
+		
+		int allowedModifiedPages = (int)(cachePagesL * dirtyRatio);
+		int written = 0;
+		while(written < oldestCount)
+		{
+			if((oldestTimes[written] > modifiedBefore)&&(modifiedPages <= allowedModifiedPages))break;
+			
+			flushCachePage(oldestPages[written]);
+			modifiedPages--;
+			written++;
+		}
+		return written;
+	}
+	
+	/** Moves the entry at index towards the root of the heap used by flushModifiedPages until its parent was modified at least as recently */
+	private static final void siftUpDirtyHeap(final int[] pages, final long[] times, int index)
+	{
+		while(index > 0)
+		{
+			int parent = (index - 1) / 2;
+			if(times[parent] >= times[index])return;
+			swapDirtyHeap(pages, times, parent, index);
+			index = parent;
+		}
+	}
+	
+	/** Moves the entry at index away from the root of the first size entries of the heap used by flushModifiedPages until neither child was modified more recently */
+	private static final void siftDownDirtyHeap(final int[] pages, final long[] times, int index, final int size)
+	{
+		while(true)
+		{
+			int newest 	= index;
+			int left 	= (2 * index) + 1;
+			int right 	= left + 1;
+			if((left < size)&&(times[left] > times[newest]))newest = left;
+			if((right < size)&&(times[right] > times[newest]))newest = right;
+			if(newest == index)return;
+			swapDirtyHeap(pages, times, index, newest);
+			index = newest;
+		}
+	}
+	
+	private static final void swapDirtyHeap(final int[] pages, final long[] times, final int a, final int b)
+	{
+		int 	page 	= pages[a];
+		long 	time 	= times[a];
+		pages[a] 		= pages[b];
+		times[a] 		= times[b];
+		pages[b] 		= page;
+		times[b] 		= time;
+	}
 
 	//******************************************************
 	//******************************************************
@@ -771,43 +1355,44 @@ public class TableCore implements Serializable, Lock{
 		
 		// code common to both front or back combination
 		targetFMD.rows = targetFMD.rows + toCombineFMD.rows;
+		targetFMD.bloomFilter = bloomFilterOf(targetFMD.cacheIndex, 0, targetFMD.rows);
+		targetFMD.zoneMap = zoneMapOf(targetFMD.cacheIndex, 0, targetFMD.rows);
 		
-		// use largest modificationServiceNumber
-		long toCombineFMDModificationServiceNumber = toCombineFMD.modificationServiceNumber;
-		if(toCombineFMDModificationServiceNumber > targetFMD.modificationServiceNumber)targetFMD.modificationServiceNumber = toCombineFMDModificationServiceNumber;
+		// the target now holds rows from another file so must be backed up again
+		targetFMD.modificationServiceNumber = serviceNumber;
 		
 		// use largest lastUsedServiceNumber
 		long toCombineFMDLastUsedServiceNumber = toCombineFMD.lastUsedServiceNumber;
 		if(toCombineFMDLastUsedServiceNumber > targetFMD.lastUsedServiceNumber)targetFMD.lastUsedServiceNumber = toCombineFMDLastUsedServiceNumber;	
-		targetFMD.modified = true;
+		markModified(targetFMD);
 
 		// free up toCombine cache and remove file
 		cacheContents[page] = null;
-		File f = new File(toCombineFMD.filename);
-		f.delete();
-		fileMetadata.remove(toCombineFMD);		
+		cacheReplacementPolicy.pageFreed(page, null);
+		beforeFileChange(toCombineFMD);
+		pageStore.delete(toCombineFMD);
+		if(!fileMetadata.remove(toCombineFMD))throw new IllegalStateException("TableCore " + name + " file " + toCombineFMD.filenumber + " was not found by its lowerBound");
 	}
 	
 	private final void combineWithFront(final int page, final FileMetadata toCombineFMD, final FileMetadata frontFMD)
 	{
 		frontFMD.upperBound 	= toCombineFMD.upperBound;
-		frontFMD.largestPK 		= toCombineFMD.largestPK;
+		// an emptied file's largestPK is not one of its rows
+		if(toCombineFMD.rows > 0)frontFMD.largestPK = toCombineFMD.largestPK;
 		
 		// localise things used several times
 		int frontFMDCacheIndex 	= frontFMD.cacheIndex;
 		int frontFMDRows 		= frontFMD.rows;
 		int toCombineFMDRows 	= toCombineFMD.rows;
 		int rowsPerFileL		= rowsPerFile;
-		int fileSizeL			= fileSize;
 		int tableWidthL			= tableWidth;
-		byte[] cacheL			= cache;
+		CacheMemory cacheL		= cache;
 		long[] pkCacheL			= pkCache;
 		short[] flagCacheL		= flagCache;
 		
 		// append the rows in toCombine's cache after the rows in front's cache 
-		int srcPos = page * fileSizeL;
-		int destPos = frontFMDCacheIndex * fileSizeL + tableWidthL * frontFMDRows;
-		System.arraycopy(cacheL, srcPos, cacheL, destPos, (toCombineFMDRows * tableWidthL));	
+		int destPos = tableWidthL * frontFMDRows;
+		cacheL.copy(page, 0, frontFMDCacheIndex, destPos, (toCombineFMDRows * tableWidthL));	
 		
 		// append pk and flag cache entries after the rows in the front's cache
 		int srcPos2 = page * rowsPerFileL;
@@ -819,23 +1404,22 @@ public class TableCore implements Serializable, Lock{
 	private final void combineWithBack(final int page, final FileMetadata toCombineFMD, final FileMetadata backFMD)
 	{
 		backFMD.lowerBound 		= toCombineFMD.lowerBound;
-		backFMD.smallestPK 		= toCombineFMD.smallestPK;
+		// an emptied file's smallestPK is not one of its rows
+		if(toCombineFMD.rows > 0)backFMD.smallestPK = toCombineFMD.smallestPK;
 		
 		// localise things used several times
 		int backFMDCacheIndex 	= backFMD.cacheIndex;
 		int backFMDRows 		= backFMD.rows;
 		int toCombineFMDRows 	= toCombineFMD.rows;
 		int rowsPerFileL		= rowsPerFile;
-		int fileSizeL			= fileSize;
 		int tableWidthL			= tableWidth;
-		byte[] cacheL			= cache;
+		CacheMemory cacheL		= cache;
 		long[] pkCacheL			= pkCache;
 		short[] flagCacheL		= flagCache;
 		
 		// shift the back's cache up to make room
-		int srcPos1 	= backFMDCacheIndex * fileSizeL;
-		int destPos1 	= srcPos1 + tableWidthL * toCombineFMDRows;
-		System.arraycopy(cacheL, srcPos1, cacheL, destPos1, (backFMDRows * tableWidthL));	
+		int destPos1 	= tableWidthL * toCombineFMDRows;
+		cacheL.copy(backFMDCacheIndex, 0, backFMDCacheIndex, destPos1, (backFMDRows * tableWidthL));	
 
 		// shift the back's pk and flag cache to make room
 		int srcPos2 	= backFMDCacheIndex * rowsPerFileL;
@@ -844,9 +1428,7 @@ public class TableCore implements Serializable, Lock{
 		System.arraycopy(flagCacheL, srcPos2, flagCacheL, destPos2, backFMDRows );
 		
 		// insert rows in toCombine's cache into the space made in back's cache 
-		int srcPos3		= page * fileSizeL;
-		int destPos3	= srcPos1;
-		System.arraycopy(cacheL, srcPos3, cacheL, destPos3, (toCombineFMDRows * tableWidthL));	
+		cacheL.copy(page, 0, backFMDCacheIndex, 0, (toCombineFMDRows * tableWidthL));	
 
 		// insert rows in toCombine's pk and flag cache into the space made in back's cache 
 		int srcPos4 	= page * rowsPerFileL;
@@ -876,6 +1458,7 @@ public class TableCore implements Serializable, Lock{
 		fmd.largestPK 	= primaryKeyOfLastRowInFirst;
 		fmd.upperBound 	= primaryKeyOfFirstRowInSecond;
 		fmd.rows 		= newRowsInFirst;
+		fmd.modificationServiceNumber = serviceNumber;
 		
 		// create metadata for the second file
 		FileMetadata secondFile = new FileMetadata(
@@ -888,19 +1471,22 @@ public class TableCore implements Serializable, Lock{
 				false, 	// not cached		
 				0, 		// dont care
 				newRowsInSecond,
-				fmd.modificationServiceNumber
+				serviceNumber
 		);
 		
 		int indexInFMDTable = fileMetadata.indexOf(fmd);
+		if(indexInFMDTable < 0)throw new IllegalStateException("TableCore " + name + " file " + fmd.filenumber + " was not found by its lowerBound");
 		fileMetadata.add((indexInFMDTable+1), secondFile);
 		
+		// each half gets a filter of just its own rows
+		fmd.bloomFilter 		= bloomFilterOf(page, 0, newRowsInFirst);
+		secondFile.bloomFilter 	= bloomFilterOf(page, newRowsInFirst, newRowsInSecond);
+		fmd.zoneMap 			= zoneMapOf(page, 0, newRowsInFirst);
+		secondFile.zoneMap 		= zoneMapOf(page, newRowsInFirst, newRowsInSecond);
+		
 		// create the second file
-		File f = new File(secondFile.filename);
 		try{
-			FileOutputStream fos = new FileOutputStream(f);
-			fos.write(cache, (page * fileSize) + (newRowsInFirst * tableWidth), (newRowsInSecond * tableWidth));
-			fos.flush();
-			fos.close();	
+			pageStore.write(secondFile, cache.buffer(page, (newRowsInFirst * tableWidth), (newRowsInSecond * tableWidth)));
 		}
 		catch(IOException e){throw new FemtoDBIOException(e.getMessage(),e);}
 
@@ -945,8 +1531,15 @@ public class TableCore implements Serializable, Lock{
 	 * @throws FemtoDBShuttingDownException 
 	 * @throws FemtoDBTableDeletedException 
 	 */
-	synchronized
 	private final boolean insertCore(final long primaryKey, final short flag, final byte[] toInsert) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		boolean retval = insertCoreInternal(primaryKey, flag, toInsert);
+		if(retval)awaitLogged();
+		return retval;
+	}
+	
+	synchronized
+	private final boolean insertCoreInternal(final long primaryKey, final short flag, final byte[] toInsert) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
 	{
 		if(shuttingDown)throw new FemtoDBShuttingDownException();
 		if(deleted)throw new FemtoDBTableDeletedException();
@@ -963,6 +1556,8 @@ public class TableCore implements Serializable, Lock{
 		if(fmdRows == 0)
 		{
 			insertIntoEmptyPage(primaryKey, toInsert, page, fmd);
+			indexInsert(primaryKey, toInsert);
+			logOperation(WriteAheadLog.INSERT, primaryKey, flag, toInsert);
 			return true;
 		}
 		
@@ -984,14 +1579,13 @@ public class TableCore implements Serializable, Lock{
 		}
 		
 		// localise class fields for speed
-		byte[]	cacheL				= cache;
+		CacheMemory cacheL			= cache;
 		long[] 	pkCacheL 			= pkCache;
 		short[] flagCacheL 			= flagCache;
 		int 	tableWidthL 		= tableWidth;
 		
-		// calculate the pages start indexes
+		// calculate the pages start index
 		int 	pkCachePageStart 	= page * rowsPerFile;
-		int		cachePageStart 		= page * fileSize;
 		
 		// make room for the insert into pkCache and flagCache
 		int srcPos1 				= pkCachePageStart + insertRow;
@@ -1000,43 +1594,49 @@ public class TableCore implements Serializable, Lock{
 		System.arraycopy(flagCacheL, srcPos1, flagCacheL, desPos1, (fmdRows - insertRow) );
 		
 		// make room for the insert into the cache
-		int srcPos2 				= cachePageStart + insertRow * tableWidthL;
-		System.arraycopy(cacheL, srcPos2, cacheL, (srcPos2 + tableWidthL), (fmdRows - insertRow) * tableWidthL);
+		int srcPos2 				= insertRow * tableWidthL;
+		cacheL.copy(page, srcPos2, page, (srcPos2 + tableWidthL), (fmdRows - insertRow) * tableWidthL);
 
 		// perform the insert
 		pkCacheL[srcPos1] 			= primaryKey;
 		flagCacheL[srcPos1]			= flag;
-		System.arraycopy(toInsert, 0, cacheL, srcPos2, tableWidthL);
+		cacheL.put(page, srcPos2, toInsert, 0, tableWidthL);
+		if(primaryKeyHashIndex != null)primaryKeyHashIndex.put(primaryKey, srcPos1);
+		if(fmd.bloomFilter != null)fmd.bloomFilter.add(primaryKey);
+		zoneInclude(fmd.zoneMap, toInsert);
 		
 		// update file meta data
 		if(primaryKey > fmd.largestPK)	fmd.largestPK 	= primaryKey;
 		if(primaryKey < fmd.smallestPK)	fmd.smallestPK 	= primaryKey;
 		fmd.lastUsedServiceNumber 		= serviceNumber;
 		fmd.modificationServiceNumber 	= serviceNumber;
-		fmd.modified					= true;
+		markModified(fmd);
 		fmd.rows++;
+		indexInsert(primaryKey, toInsert);
 		
 		// split the file when it is full, so that new inserts cannot cause it to pop !
 		if(fmd.rows == rowsPerFile)splitFile(page, fmd);
+		logOperation(WriteAheadLog.INSERT, primaryKey, flag, toInsert);
 		return true;
 	}	
 	
 	private final void insertIntoEmptyPage(final long primaryKey, final byte[] toInsert, final int page, final FileMetadata fmd)
 	{
 		int 	pkCachePageStart 		= page * rowsPerFile;
-		int		cachePageStart 			= page * fileSize;
 		
 		// perform the insert
 		pkCache[pkCachePageStart] 		= primaryKey;
 		flagCache[pkCachePageStart]		= FLAG_CACHE_NOT_SET;
-		System.arraycopy(toInsert, 0, cache, cachePageStart, tableWidth);
+		cache.put(page, 0, toInsert, 0, tableWidth);
+		if(fmd.bloomFilter != null)fmd.bloomFilter.add(primaryKey);
+		zoneInclude(fmd.zoneMap, toInsert);
 		
 		// update the file meta data
 		fmd.largestPK 					= primaryKey;
 		fmd.smallestPK 					= primaryKey;
 		fmd.lastUsedServiceNumber 		= serviceNumber;
 		fmd.modificationServiceNumber 	= serviceNumber;
-		fmd.modified					= true;
+		markModified(fmd);
 		fmd.rows++;
 	}
 	
@@ -1092,41 +1692,56 @@ public class TableCore implements Serializable, Lock{
 	 * @throws FemtoDBShuttingDownException 
 	 * @throws FemtoDBTableDeletedException 
 	 */
-	synchronized
 	final boolean updateOrIgnore(final long primaryKey, final short flag, final byte[] toUpdate) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		boolean retval = updateOrIgnoreInternal(primaryKey, flag, toUpdate);
+		if(retval)awaitLogged();
+		return retval;
+	}
+	
+	synchronized
+	private final boolean updateOrIgnoreInternal(final long primaryKey, final short flag, final byte[] toUpdate) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
 	{
 		if(shuttingDown)throw new FemtoDBShuttingDownException();
 		if(deleted)throw new FemtoDBTableDeletedException();
 		serviceNumber++;
-		int fileMetadataListIndex 	= fileMetadataBinarySearch(primaryKey);		
-		FileMetadata fmd 			= fileMetadata.get(fileMetadataListIndex);
-
-		// Ensure the file containing the range the primary key falls in is loaded into the cache
-		int page = cachePageOf(fmd);
 		
-		// Find the update point
-		int updateRow = primaryKeyBinarySearch(page, primaryKey, false,false);		
-		if(updateRow == -1)
+		// Find the update point, loading the file the primary key falls in into the cache
+		int srcPos1 = findCacheRow(primaryKey);
+		if(srcPos1 == -1)
 		{
 			return false; // primary key does not exist
 		}
+		int 	page 				= srcPos1 / rowsPerFile;
+		int 	updateRow 			= srcPos1 - (page * rowsPerFile);
+		FileMetadata fmd 			= cacheContents[page];
 		
 		// localise class fields for speed
 		int 	tableWidthL 		= tableWidth;
 			
 		// calculate indexes
-		int 	srcPos1 			= page * rowsPerFile + updateRow;		
-		int 	srcPos2 			= page * fileSize + updateRow * tableWidthL;
+		int 	srcPos2 			= updateRow * tableWidthL;
+
+		// keep the row being replaced while the indexes are updated
+		byte[] oldRow = null;
+		if(hasIndexes())
+		{
+			oldRow = new byte[tableWidthL];
+			cache.get(page, srcPos2, oldRow, 0, tableWidthL);
+		}
 
 		// perform the insert
 		pkCache[srcPos1] 			= primaryKey;
 		flagCache[srcPos1]			= flag;
-		System.arraycopy(toUpdate, 0, cache, srcPos2, tableWidthL);
+		cache.put(page, srcPos2, toUpdate, 0, tableWidthL);
+		if(oldRow != null)indexUpdate(primaryKey, oldRow, toUpdate);
+		zoneInclude(fmd.zoneMap, toUpdate);
 		
 		// update file meta data
 		fmd.lastUsedServiceNumber 		= serviceNumber;
 		fmd.modificationServiceNumber 	= serviceNumber;
-		fmd.modified					= true;	
+		markModified(fmd);
+		logOperation(WriteAheadLog.UPDATE, primaryKey, flag, toUpdate);
 		return true;
 	}
 	
@@ -1141,6 +1756,7 @@ public class TableCore implements Serializable, Lock{
 		serviceNumber++;
 		int fileMetadataListIndex 	= fileMetadataBinarySearch(primaryKey);		
 		FileMetadata fmd 			= fileMetadata.get(fileMetadataListIndex);
+		if(!mayHold(fmd, primaryKey))return -1; // primary key does not exist
 
 		// Ensure the file containing the range the primary key falls in is loaded into the cache
 		int page = cachePageOf(fmd);
@@ -1166,6 +1782,7 @@ public class TableCore implements Serializable, Lock{
 		serviceNumber++;
 		int fileMetadataListIndex 	= fileMetadataBinarySearch(primaryKey);		
 		FileMetadata fmd 			= fileMetadata.get(fileMetadataListIndex);
+		if(!mayHold(fmd, primaryKey))return -1; // primary key does not exist
 
 		// Ensure the file containing the range the primary key falls in is loaded into the cache
 		int page = cachePageOf(fmd);
@@ -1184,11 +1801,11 @@ public class TableCore implements Serializable, Lock{
 	{
 		
 		int src1 = page * rowsPerFile + row;
-		int src2 = page * fileSize + row * tableWidth;
+		int src2 = row * tableWidth;
 		short tablesCurrentFlags = flagCache[src1];
 		if(tablesCurrentFlags == FLAG_CACHE_NOT_SET)
 		{
-			tablesCurrentFlags = BuffRead.readShort(cache, src2 + 8);
+			tablesCurrentFlags = cache.readShort(page, src2 + 8);
 		}
 		if((tablesCurrentFlags & ROW_READLOCK) != 0)return true;
 		return false;	
@@ -1197,11 +1814,11 @@ public class TableCore implements Serializable, Lock{
 	final boolean isRowWriteLockedLowLevel(int page, int row)
 	{
 		int src1 = page * rowsPerFile + row;
-		int src2 = page * fileSize + row * tableWidth;
+		int src2 = row * tableWidth;
 		short tablesCurrentFlags = flagCache[src1];
 		if(tablesCurrentFlags == FLAG_CACHE_NOT_SET)
 		{
-			tablesCurrentFlags = BuffRead.readShort(cache, src2 + 8);
+			tablesCurrentFlags = cache.readShort(page, src2 + 8);
 		}
 		if((tablesCurrentFlags & ROW_WRITELOCK) != 0)return true;
 		return false;	
@@ -1214,32 +1831,19 @@ public class TableCore implements Serializable, Lock{
 	//******************************************************	
 	
 	/** Returns the underlying byte array representation of a row, given a primary key and serviceNumber. Introduced during the initial testing phase */
+	synchronized
 	final byte[] seekByteArray(final long primaryKey) throws FemtoDBIOException
 	{
 		serviceNumber++;
-//		System.out.println("seeking " + primaryKey);
-		int fileMetadataListIndex = fileMetadataBinarySearch(primaryKey);
-//		System.out.println("is in metafile index " + fileMetadataListIndex);
-		// ensure the file containing the range the primary key falls in is loaded into the cache
-		FileMetadata fmd = fileMetadata.get(fileMetadataListIndex);
-		int page = cachePageOf(fmd);
+		int cacheRow = findCacheRow(primaryKey);
+		if(cacheRow == -1)return null;	// primary key not found
+		int page 	= cacheRow / rowsPerFile;
+		int row 	= cacheRow - (page * rowsPerFile);
 		
-		if(fmd.rows == 0)
-		{
-				System.out.println("empty tableCore!");
-				return null;	// empty tableCore!		
-		}
-		Integer row = primaryKeyBinarySearch(page, primaryKey, false, false);
-		if(row == null)
-			{
-				System.out.println("primary key not found!");
-				return null;		// primary key not found
-			}
 		byte[] retval = new byte[tableWidth];
-		
-		int srcPos = page * fileSize + row * tableWidth;	
-		System.arraycopy(cache, srcPos, retval, 0, tableWidth);
-		fmd.lastUsedServiceNumber 		= serviceNumber;
+		int srcPos = row * tableWidth;	
+		cache.get(page, srcPos, retval, 0, tableWidth);
+		cacheContents[page].lastUsedServiceNumber = serviceNumber;
 		return retval;
 	}
 	
@@ -1251,33 +1855,44 @@ public class TableCore implements Serializable, Lock{
 	{
 		if(shuttingDown)throw new FemtoDBShuttingDownException();
 		if(deleted)throw new FemtoDBTableDeletedException();
-		serviceNumber++;
-//		System.out.println("seeking " + primaryKey);
-		int fileMetadataListIndex = fileMetadataBinarySearch(primaryKey);
-//		System.out.println("is in metafile index " + fileMetadataListIndex);
-		// ensure the file containing the range the primary key falls in is loaded into the cache
-		FileMetadata fmd = fileMetadata.get(fileMetadataListIndex);
+		return readRow(primaryKey);
+	}
+	
+	/** Returns the cache row (page * rowsPerFile + row) holding the primary key, loading the file it falls in into the cache, or -1 if there is no such row. 
+	 * The primary key hash index is probed first if the table has one. */
+	private final int findCacheRow(final long primaryKey) throws FemtoDBIOException
+	{
+		int cacheRow = hashedCacheRow(primaryKey);
+		if(cacheRow != -1)return cacheRow;
 		
+		// ensure the file containing the range the primary key falls in is loaded into the cache
+		FileMetadata fmd = fileMetadata.get(fileMetadataBinarySearch(primaryKey));
+		if(!mayHold(fmd, primaryKey))return -1;	// empty tableCore or a key the file does not hold
 		int page = cachePageOf(fmd);
+		int row = primaryKeyBinarySearch(page, primaryKey, false, false);
+		if(row == -1)return -1;		// primary key not found
 		
-		if(fmd.rows == 0)
-		{
-				System.out.println("empty tableCore!");
-				return null;	// empty tableCore!		
-		}
-		Integer row = primaryKeyBinarySearch(page, primaryKey, false, false);
-		if(row == null)
-		{
-				System.out.println("primary key not found!");
-				return null;		// primary key not found
-		}
+		cacheRow = page * rowsPerFile + row;
+		if(primaryKeyHashIndex != null)primaryKeyHashIndex.put(primaryKey, cacheRow);
+		return cacheRow;
+	}
+	
+	/** Returns the cache row the primary key hash index gives for the primary key if it still holds the primary key, otherwise -1 */
+	private final int hashedCacheRow(final long primaryKey)
+	{
+		PrimaryKeyHashIndex primaryKeyHashIndexL = primaryKeyHashIndex;
+		if(primaryKeyHashIndexL == null)return -1;
+		int cacheRow = primaryKeyHashIndexL.get(primaryKey);
+		if(cacheRow == -1)return -1;
 		
-		int flagSrcPos = page * rowsPerFile + row;
-		RowAccessType retval = rowAccessTypeFactory.createRowAccessType(primaryKey, flagCache[flagSrcPos], this);	
-		int srcPos = page * fileSize + row * tableWidth;	
-		System.arraycopy(cache, srcPos, retval.byteArray, 0, tableWidth);
-		fmd.lastUsedServiceNumber = serviceNumber;
-		return retval;
+		// the hint is only good while the page holds the row, as rows move without the hints being updated
+		int page 	= cacheRow / rowsPerFile;
+		int row 	= cacheRow - (page * rowsPerFile);
+		if(page >= activePages)return -1;
+		FileMetadata fmd = cacheContents[page];
+		if((fmd == null)||(row >= fmd.rows))return -1;
+		if(getPrimaryKeyForCacheRow(page, row) != primaryKey)return -1;
+		return cacheRow;
 	}
 	
 	//******************************************************
@@ -1289,8 +1904,15 @@ public class TableCore implements Serializable, Lock{
 	/** Deletes a row in the tableCore given its primary key and a serviceNumber for the operation. Returns true if the primary key existed. 
 	 * @throws FemtoDBShuttingDownException 
 	 * @throws FemtoDBTableDeletedException */
-	synchronized
 	public final boolean deleteByPrimaryKey(final long primaryKey) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		boolean retval = deleteByPrimaryKeyInternal(primaryKey);
+		if(retval)awaitLogged();
+		return retval;
+	}
+	
+	synchronized
+	private final boolean deleteByPrimaryKeyInternal(final long primaryKey) throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
 	{
 		System.out.println("DELETE BY PRIMARY KEY");
 		System.out.println("--------------------------------");
@@ -1303,10 +1925,21 @@ public class TableCore implements Serializable, Lock{
 		if(shuttingDown)throw new FemtoDBShuttingDownException();
 		if(deleted)throw new FemtoDBTableDeletedException();
 		serviceNumber++;
+		
+		// a cached row found by the primary key hash index needs no searching
+		int cacheRow = hashedCacheRow(primaryKey);
+		if(cacheRow != -1)
+		{
+			int page = cacheRow / rowsPerFile;
+			deleteRow(primaryKey, page, cacheRow - (page * rowsPerFile));
+			return true;
+		}
+		
 		int fileMetadataListIndex = fileMetadataBinarySearch(primaryKey);
 		System.out.println("fileMetadataListIndex " + fileMetadataListIndex + " for primary Key " + primaryKey);
 		// ensure the file containing the range the primary key falls in is loaded into the cache
 		FileMetadata fmd = fileMetadata.get(fileMetadataListIndex);
+		if((fmd.rows != 0)&&(!mayHold(fmd, primaryKey)))return false;	// primary key not found
 		
 		int page = cachePageOf(fmd);
 		System.out.println("check cache page " + page);
@@ -1345,6 +1978,7 @@ public class TableCore implements Serializable, Lock{
 	{
 		FileMetadata fmd = cacheContents[page];
 		int fmdRows = fmd.rows;
+		if(hasIndexes())indexRemove(primaryKey, page, row);
 		
 		if(fmdRows == 1)
 		{
@@ -1373,16 +2007,17 @@ public class TableCore implements Serializable, Lock{
 		
 		// Shift following cache rows up over deleted row
 		int tableWidthL = tableWidth;
-		int destPos2 = page * fileSize + row * tableWidthL;
+		int destPos2 = row * tableWidthL;
 		int srcPos2 = destPos2 + tableWidthL;
 		int length2 = length1 * tableWidthL;
-		System.arraycopy(cache, srcPos2, cache, destPos2, length2);
+		cache.copy(page, srcPos2, page, destPos2, length2);
 		
 		// update the remaining fileMetadata
 		fmd.lastUsedServiceNumber 		= serviceNumber;
 		fmd.modificationServiceNumber 	= serviceNumber;
-		fmd.modified = true;
+		markModified(fmd);
 		fmd.rows--;
+		logOperation(WriteAheadLog.DELETE, primaryKey, FLAG_CACHE_NOT_SET, null);
 		
 		// try to combine with neighbours
 		tryToCombine(page,fmd);
@@ -1390,39 +2025,591 @@ public class TableCore implements Serializable, Lock{
 	
 	//******************************************************
 	//******************************************************
-	//         START OF GENERIC PRIMARY KEY SEARCHING CODE
+	//         START OF SECONDARY INDEX CODE
+	//******************************************************
 	//******************************************************
-	//******************************************************	
-
 	
-	/** Returns the fileMetadata list index for a FileMetadata object that contains the given primary key */ 
-	private final int fileMetadataBinarySearch(final long primaryKey)
+	/** Creates a secondary index on the given column, so Filt can find the rows matching a comparison on it without scanning the table. The rows of an operational table are indexed at once.
+	 * Byte, boolean, short, char, int, long, float and double columns other than the primary key and status columns can be indexed. Indexing a column already indexed does nothing. 
+	 * @throws FemtoDBShuttingDownException 
+	 * @throws FemtoDBTableDeletedException */
+	synchronized
+	public final void createIndex(final int column) throws FemtoDBInvalidValueException, FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
 	{
-		final List<FileMetadata> treeL = fileMetadata;
-		int minIndex 	= 0;
-		int maxIndex 	= treeL.size();
+		if(shuttingDown)throw new FemtoDBShuttingDownException();
+		if(deleted)throw new FemtoDBTableDeletedException();
+		if((column < 2)||(column >= columnNames.length))throw new FemtoDBInvalidValueException("TableCore " + name + " column " + column + " cannot be indexed");
+		byte columnType = getColumnType(column);
+		if(!SecondaryIndex.canIndex(columnType))throw new FemtoDBInvalidValueException("TableCore " + name + " column " + columnNames[column] + " is not of a type that can be indexed");
+		if(indexOf(column) != null)return;
 		
-		int testIndex 	= (maxIndex + minIndex) >> 1;
-		FileMetadata bte = treeL.get(testIndex);
-		boolean toBig 	= (primaryKey < bte.lowerBound);
-		boolean toSmall = (primaryKey >= bte.upperBound);
+		SecondaryIndex index = new SecondaryIndex(column, columnType, columnByteOffset[column]);
+		if(operational)
+		{
+			// index the existing rows, loading files does not combine or split them so the fileMetadata list is unchanged
+			activate();
+			int 	tableWidthL = tableWidth;
+			byte[] 	row 		= new byte[tableWidthL];
+			for(FileMetadata fmd : fileMetadata)
+			{
+				if(fmd.rows == 0)continue;
+				int page = cachePageOf(fmd);
+				for(int x = 0; x < fmd.rows; x++)
+				{
+					cache.get(page, x * tableWidthL, row, 0, tableWidthL);
+					index.insert(index.keyOf(row), getPrimaryKeyForCacheRow(page, x));
+				}
+			}
+		}
 		
-		while( toBig || toSmall )
+		SecondaryIndex[] secondaryIndexesL = secondaryIndexes;
+		if(secondaryIndexesL == null)secondaryIndexesL = new SecondaryIndex[0];
+		secondaryIndexesL = Arrays.copyOf(secondaryIndexesL, secondaryIndexesL.length + 1);
+		secondaryIndexesL[secondaryIndexesL.length - 1] = index;
+		secondaryIndexes = secondaryIndexesL;
+	}
+	
+	/** Removes the secondary index on the given column, returning false if it had none */
+	synchronized
+	public final boolean dropIndex(final int column)
+	{
+		SecondaryIndex index = indexOf(column);
+		if(index == null)return false;
+		SecondaryIndex[] secondaryIndexesL = secondaryIndexes;
+		if(secondaryIndexesL.length == 1)
 		{
-			if(toBig)
+			secondaryIndexes = null;
+			return true;
+		}
+		SecondaryIndex[] retained = new SecondaryIndex[secondaryIndexesL.length - 1];
+		int x = 0;
+		for(SecondaryIndex other : secondaryIndexesL)
+		{
+			if(other != index)retained[x++] = other;
+		}
+		secondaryIndexes = retained;
+		return true;
+	}
+	
+	/** Returns true if the column has a secondary index */
+	synchronized
+	public final boolean hasIndex(final int column)
+	{
+		return indexOf(column) != null;
+	}
+	
+	/** Returns the type of the given column as one of the COLUMN_TYPE constants, which is COLUMN_TYPE_UNKNOWN for tables saved before column types were recorded */
+	public final byte getColumnType(final int column)
+	{
+		if((columnTypes == null)||(column < 0)||(column >= columnTypes.length))return COLUMN_TYPE_UNKNOWN;
+		return columnTypes[column];
+	}
+	
+	/** Returns a FemtoDBIterator over the rows whose indexed column has a key from lowKey to highKey inclusive, ordered by the key then primary key, or null if the column has no index.
+	 * Keys are the column values, with floats and doubles given by SecondaryIndex.keyOf. There are no rows if lowKey is greater than highKey.
+	 * Each step finds the next entry after the last returned, so the iterator is unaffected by rows inserted, updated or deleted while it is used. 
+	 * Like fastIterator it does not support remove or setToo. */
+	synchronized
+	public final FemtoDBIterator indexIterator(final int column, final long lowKey, final long highKey)
+	{
+		final SecondaryIndex index = indexOf(column);
+		if(index == null)return null;
+		return (new FemtoDBIterator()
+				{
+					/** The key and primary key of the last row returned */
+					long 			lastKey;
+					long 			lastPK;
+					boolean 		started 				= false;
+					final long[] 	entry 					= new long[2];
+					
+					RowAccessType 	nextRow;
+					boolean 		hasNextCalledLast 		= false;
+					
+					@Override
+					public final boolean hasNext() throws FemtoDBIOException {
+						synchronized(TableCore.this)
+						{
+							// if next() was not called since last call, then send previous result
+							if(hasNextCalledLast)return (nextRow != null);
+							hasNextCalledLast 	= true;
+							nextRow 			= null;
+							boolean found = started ? index.higher(lastKey, lastPK, entry) : index.ceiling(lowKey, Long.MIN_VALUE, entry);
+							while(found && (entry[0] <= highKey))
+							{
+								lastKey = entry[0];
+								lastPK 	= entry[1];
+								started = true;
+								nextRow = readRow(lastPK);
+								if(nextRow != null)return true;
+								found = index.higher(lastKey, lastPK, entry);
+							}
+							return false;
+						}
+					}
+					
+					@Override
+					public final RowAccessType next() throws FemtoDBIOException {
+						synchronized(TableCore.this)
+						{
+							if(!hasNextCalledLast)hasNext();
+							hasNextCalledLast = false;
+							return nextRow;
+						}
+					}
+					
+					@Override
+					public final void remove() {
+						throw new UnsupportedOperationException();
+					}
+					
+					@Override
+					public final void reset() 
+					{
+						synchronized(TableCore.this)
+						{
+							started 			= false;
+							hasNextCalledLast 	= false;
+							nextRow 			= null;
+						}
+					}
+					
+					@Override
+					public final void setToo(final long startPoint) {
+						// the rows are not in primary key order
+						throw new UnsupportedOperationException();
+					}
+				});
+	}
+	
+	/** Returns the secondary index on the given column, or null if it has none */
+	private final SecondaryIndex indexOf(final int column)
+	{
+		SecondaryIndex[] secondaryIndexesL = secondaryIndexes;
+		if(secondaryIndexesL == null)return null;
+		for(SecondaryIndex index : secondaryIndexesL)
+		{
+			if(index.getColumn() == column)return index;
+		}
+		return null;
+	}
+	
+	/** Returns true if the table has secondary or bitmap indexes to maintain */
+	private final boolean hasIndexes()
+	{
+		return (secondaryIndexes != null)||(bitmapIndexes != null)||(trigramIndexes != null);
+	}
+	
+	/** Adds a row just inserted to the secondary, bitmap and trigram indexes */
+	private final void indexInsert(final long primaryKey, final byte[] row)
+	{
+		SecondaryIndex[] secondaryIndexesL = secondaryIndexes;
+		if(secondaryIndexesL != null)
+		{
+			for(SecondaryIndex index : secondaryIndexesL)
 			{
-				maxIndex = testIndex;		
+				index.insert(index.keyOf(row), primaryKey);
 			}
-			else
+		}
+		BitmapIndex[] bitmapIndexesL = bitmapIndexes;
+		if(bitmapIndexesL != null)
+		{
+			for(BitmapIndex index : bitmapIndexesL)
 			{
-				minIndex = testIndex;
+				index.insert(index.keyOf(row), primaryKey);
+			}
+		}
+		TrigramIndex[] trigramIndexesL = trigramIndexes;
+		if(trigramIndexesL != null)
+		{
+			for(TrigramIndex index : trigramIndexesL)
+			{
+				index.insert(index.stringOf(row), primaryKey);
 			}
-			testIndex 	= (maxIndex + minIndex) >> 1;
-			bte 		= treeL.get(testIndex);
-			toBig 		= (primaryKey < bte.lowerBound);
-			toSmall 	= (primaryKey >= bte.upperBound);	
 		}
-		return testIndex;		
+	}
+	
+	/** Moves an updated row's entries in the secondary, bitmap and trigram indexes whose column has changed */
+	private final void indexUpdate(final long primaryKey, final byte[] oldRow, final byte[] newRow)
+	{
+		if(secondaryIndexes != null)
+		{
+			for(SecondaryIndex index : secondaryIndexes)
+			{
+				long oldKey = index.keyOf(oldRow);
+				long newKey = index.keyOf(newRow);
+				if(oldKey == newKey)continue;
+				index.remove(oldKey, primaryKey);
+				index.insert(newKey, primaryKey);
+			}
+		}
+		if(bitmapIndexes != null)
+		{
+			for(BitmapIndex index : bitmapIndexes)
+			{
+				long oldKey = index.keyOf(oldRow);
+				long newKey = index.keyOf(newRow);
+				if(oldKey == newKey)continue;
+				index.remove(oldKey, primaryKey);
+				index.insert(newKey, primaryKey);
+			}
+		}
+		if(trigramIndexes != null)
+		{
+			for(TrigramIndex index : trigramIndexes)
+			{
+				String oldString = index.stringOf(oldRow);
+				String newString = index.stringOf(newRow);
+				if((oldString != null)&&(oldString.equals(newString)))continue;
+				index.remove(oldString, primaryKey);
+				index.insert(newString, primaryKey);
+			}
+		}
+	}
+	
+	/** Removes a row about to be deleted from the secondary, bitmap and trigram indexes, the row being in the cache */
+	private final void indexRemove(final long primaryKey, final int page, final int row)
+	{
+		int 	tableWidthL = tableWidth;
+		byte[] 	oldRow 		= new byte[tableWidthL];
+		cache.get(page, row * tableWidthL, oldRow, 0, tableWidthL);
+		if(secondaryIndexes != null)
+		{
+			for(SecondaryIndex index : secondaryIndexes)
+			{
+				index.remove(index.keyOf(oldRow), primaryKey);
+			}
+		}
+		if(bitmapIndexes != null)
+		{
+			for(BitmapIndex index : bitmapIndexes)
+			{
+				index.remove(index.keyOf(oldRow), primaryKey);
+			}
+		}
+		if(trigramIndexes != null)
+		{
+			for(TrigramIndex index : trigramIndexes)
+			{
+				index.remove(index.stringOf(oldRow), primaryKey);
+			}
+		}
+	}
+	
+	//******************************************************
+	//******************************************************
+	//         START OF BITMAP INDEX CODE
+	//******************************************************
+	//******************************************************
+	
+	/** Creates a bitmap index on the given column, holding the primary keys of the rows with each of its values, so the rows matching several conditions on low cardinality columns are found by combining bitmaps (see bitmapOf). 
+	 * The rows of an operational table are indexed at once. Byte, boolean and short columns other than the status column can have a bitmap index. Indexing a column already indexed does nothing. 
+	 * @throws FemtoDBShuttingDownException 
+	 * @throws FemtoDBTableDeletedException */
+	synchronized
+	public final void createBitmapIndex(final int column) throws FemtoDBInvalidValueException, FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		if(shuttingDown)throw new FemtoDBShuttingDownException();
+		if(deleted)throw new FemtoDBTableDeletedException();
+		if((column < 2)||(column >= columnNames.length))throw new FemtoDBInvalidValueException("TableCore " + name + " column " + column + " cannot have a bitmap index");
+		byte columnType = getColumnType(column);
+		if(!BitmapIndex.canIndex(columnType))throw new FemtoDBInvalidValueException("TableCore " + name + " column " + columnNames[column] + " is not of a type that can have a bitmap index");
+		if(bitmapIndexOf(column) != null)return;
+		
+		BitmapIndex index = new BitmapIndex(column, columnType, columnByteOffset[column]);
+		if(operational)
+		{
+			// index the existing rows, loading files does not combine or split them so the fileMetadata list is unchanged
+			activate();
+			int 	tableWidthL = tableWidth;
+			byte[] 	row 		= new byte[tableWidthL];
+			for(FileMetadata fmd : fileMetadata)
+			{
+				if(fmd.rows == 0)continue;
+				int page = cachePageOf(fmd);
+				for(int x = 0; x < fmd.rows; x++)
+				{
+					cache.get(page, x * tableWidthL, row, 0, tableWidthL);
+					index.insert(index.keyOf(row), getPrimaryKeyForCacheRow(page, x));
+				}
+			}
+		}
+		
+		BitmapIndex[] bitmapIndexesL = bitmapIndexes;
+		if(bitmapIndexesL == null)bitmapIndexesL = new BitmapIndex[0];
+		bitmapIndexesL = Arrays.copyOf(bitmapIndexesL, bitmapIndexesL.length + 1);
+		bitmapIndexesL[bitmapIndexesL.length - 1] = index;
+		bitmapIndexes = bitmapIndexesL;
+	}
+	
+	/** Removes the bitmap index on the given column, returning false if it had none */
+	synchronized
+	public final boolean dropBitmapIndex(final int column)
+	{
+		BitmapIndex index = bitmapIndexOf(column);
+		if(index == null)return false;
+		BitmapIndex[] bitmapIndexesL = bitmapIndexes;
+		if(bitmapIndexesL.length == 1)
+		{
+			bitmapIndexes = null;
+			return true;
+		}
+		BitmapIndex[] retained = new BitmapIndex[bitmapIndexesL.length - 1];
+		int x = 0;
+		for(BitmapIndex other : bitmapIndexesL)
+		{
+			if(other != index)retained[x++] = other;
+		}
+		bitmapIndexes = retained;
+		return true;
+	}
+	
+	/** Returns true if the column has a bitmap index */
+	synchronized
+	public final boolean hasBitmapIndex(final int column)
+	{
+		return bitmapIndexOf(column) != null;
+	}
+	
+	/** Returns a new bitmap of the primary keys of the rows whose column has a value from lowValue to highValue inclusive, or null if the column has no bitmap index. 
+	 * Booleans have the values one and zero. The bitmaps of several values or columns are combined with LongBitmap's and, or and andNot, and the rows read with bitmapIterator. */
+	synchronized
+	public final LongBitmap bitmapOf(final int column, final long lowValue, final long highValue)
+	{
+		BitmapIndex index = bitmapIndexOf(column);
+		if(index == null)return null;
+		return index.primaryKeysOf(lowValue, highValue);
+	}
+	
+	/** Returns a FemtoDBIterator over the rows whose column has a value from lowValue to highValue inclusive, ordered by primary key, or null if the column has no bitmap index */
+	synchronized
+	public final FemtoDBIterator bitmapIterator(final int column, final long lowValue, final long highValue)
+	{
+		LongBitmap primaryKeys = bitmapOf(column, lowValue, highValue);
+		if(primaryKeys == null)return null;
+		return bitmapIterator(primaryKeys);
+	}
+	
+	/** Returns a FemtoDBIterator over the rows with the primary keys in the bitmap, ordered by primary key. Primary keys without a row are skipped.
+	 * Each step reads the row of the next primary key, so the iterator is unaffected by rows inserted, updated or deleted while it is used. It does not support remove. */
+	public final FemtoDBIterator bitmapIterator(final LongBitmap primaryKeys)
+	{
+		return (new FemtoDBIterator()
+				{
+					/** The primary key to look from for the next row */
+					long 			nextFrom 				= Long.MIN_VALUE;
+					boolean 		finished 				= false;
+					final long[] 	primaryKey 				= new long[1];
+					
+					RowAccessType 	nextRow;
+					boolean 		hasNextCalledLast 		= false;
+					
+					@Override
+					public final boolean hasNext() throws FemtoDBIOException {
+						synchronized(TableCore.this)
+						{
+							// if next() was not called since last call, then send previous result
+							if(hasNextCalledLast)return (nextRow != null);
+							hasNextCalledLast 	= true;
+							nextRow 			= null;
+							while((!finished)&&(primaryKeys.ceiling(nextFrom, primaryKey)))
+							{
+								if(primaryKey[0] == Long.MAX_VALUE)finished = true;
+								else nextFrom = primaryKey[0] + 1;
+								nextRow = readRow(primaryKey[0]);
+								if(nextRow != null)return true;
+							}
+							finished = true;
+							return false;
+						}
+					}
+					
+					@Override
+					public final RowAccessType next() throws FemtoDBIOException {
+						synchronized(TableCore.this)
+						{
+							if(!hasNextCalledLast)hasNext();
+							hasNextCalledLast = false;
+							return nextRow;
+						}
+					}
+					
+					@Override
+					public final void remove() {
+						throw new UnsupportedOperationException();
+					}
+					
+					@Override
+					public final void reset() 
+					{
+						setToo(Long.MIN_VALUE);
+					}
+					
+					@Override
+					public final void setToo(final long startPoint) 
+					{
+						synchronized(TableCore.this)
+						{
+							nextFrom 			= startPoint;
+							finished 			= false;
+							hasNextCalledLast 	= false;
+							nextRow 			= null;
+						}
+					}
+				});
+	}
+	
+	/** Returns the bitmap index on the given column, or null if it has none */
+	private final BitmapIndex bitmapIndexOf(final int column)
+	{
+		BitmapIndex[] bitmapIndexesL = bitmapIndexes;
+		if(bitmapIndexesL == null)return null;
+		for(BitmapIndex index : bitmapIndexesL)
+		{
+			if(index.getColumn() == column)return index;
+		}
+		return null;
+	}
+	
+	//******************************************************
+	//******************************************************
+	//         START OF TRIGRAM INDEX CODE
+	//******************************************************
+	//******************************************************
+	
+	/** Creates a trigram index on the given String column, so Filt finds the rows containing, starting with or ending with a value by reading only the rows holding all its trigrams. 
+	 * The rows of an operational table are indexed at once. Indexing a column already indexed does nothing. 
+	 * @throws FemtoDBShuttingDownException 
+	 * @throws FemtoDBTableDeletedException */
+	synchronized
+	public final void createTrigramIndex(final int column) throws FemtoDBInvalidValueException, FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		if(shuttingDown)throw new FemtoDBShuttingDownException();
+		if(deleted)throw new FemtoDBTableDeletedException();
+		if((column < 2)||(column >= columnNames.length))throw new FemtoDBInvalidValueException("TableCore " + name + " column " + column + " cannot have a trigram index");
+		if(getColumnType(column) != COLUMN_TYPE_STRING)throw new FemtoDBInvalidValueException("TableCore " + name + " column " + columnNames[column] + " is not a String column so cannot have a trigram index");
+		if(trigramIndexOf(column) != null)return;
+		
+		TrigramIndex index = new TrigramIndex(column, columnByteOffset[column]);
+		if(operational)
+		{
+			// index the existing rows, loading files does not combine or split them so the fileMetadata list is unchanged
+			activate();
+			int 	tableWidthL = tableWidth;
+			byte[] 	row 		= new byte[tableWidthL];
+			for(FileMetadata fmd : fileMetadata)
+			{
+				if(fmd.rows == 0)continue;
+				int page = cachePageOf(fmd);
+				for(int x = 0; x < fmd.rows; x++)
+				{
+					cache.get(page, x * tableWidthL, row, 0, tableWidthL);
+					index.insert(index.stringOf(row), getPrimaryKeyForCacheRow(page, x));
+				}
+			}
+		}
+		
+		TrigramIndex[] trigramIndexesL = trigramIndexes;
+		if(trigramIndexesL == null)trigramIndexesL = new TrigramIndex[0];
+		trigramIndexesL = Arrays.copyOf(trigramIndexesL, trigramIndexesL.length + 1);
+		trigramIndexesL[trigramIndexesL.length - 1] = index;
+		trigramIndexes = trigramIndexesL;
+	}
+	
+	/** Removes the trigram index on the given column, returning false if it had none */
+	synchronized
+	public final boolean dropTrigramIndex(final int column)
+	{
+		TrigramIndex index = trigramIndexOf(column);
+		if(index == null)return false;
+		TrigramIndex[] trigramIndexesL = trigramIndexes;
+		if(trigramIndexesL.length == 1)
+		{
+			trigramIndexes = null;
+			return true;
+		}
+		TrigramIndex[] retained = new TrigramIndex[trigramIndexesL.length - 1];
+		int x = 0;
+		for(TrigramIndex other : trigramIndexesL)
+		{
+			if(other != index)retained[x++] = other;
+		}
+		trigramIndexes = retained;
+		return true;
+	}
+	
+	/** Returns true if the column has a trigram index */
+	synchronized
+	public final boolean hasTrigramIndex(final int column)
+	{
+		return trigramIndexOf(column) != null;
+	}
+	
+	/** Returns a new bitmap of the primary keys of the rows whose column may contain the value, for reading with bitmapIterator and filtering. 
+	 * Returns null if the column has no trigram index or the value has fewer than three characters, when every row must be filtered. */
+	synchronized
+	public final LongBitmap candidatesContaining(final int column, final String value)
+	{
+		TrigramIndex index = trigramIndexOf(column);
+		if(index == null)return null;
+		return index.candidates(value, false, false);
+	}
+	
+	/** As candidatesContaining for the rows whose column may start with the value, returning null if the column has no trigram index or the value is empty */
+	synchronized
+	public final LongBitmap candidatesStartingWith(final int column, final String value)
+	{
+		TrigramIndex index = trigramIndexOf(column);
+		if((index == null)||(value.length() == 0))return null;
+		return index.candidates(value, true, false);
+	}
+	
+	/** As candidatesContaining for the rows whose column may end with the value, returning null if the column has no trigram index or the value is empty */
+	synchronized
+	public final LongBitmap candidatesEndingWith(final int column, final String value)
+	{
+		TrigramIndex index = trigramIndexOf(column);
+		if((index == null)||(value.length() == 0))return null;
+		return index.candidates(value, false, true);
+	}
+	
+	/** Returns the trigram index on the given column, or null if it has none */
+	private final TrigramIndex trigramIndexOf(final int column)
+	{
+		TrigramIndex[] trigramIndexesL = trigramIndexes;
+		if(trigramIndexesL == null)return null;
+		for(TrigramIndex index : trigramIndexesL)
+		{
+			if(index.getColumn() == column)return index;
+		}
+		return null;
+	}
+	
+	/** Returns a RowAccessType for the row with the given primary key, or null if there is no such row */
+	private final RowAccessType readRow(final long primaryKey) throws FemtoDBIOException
+	{
+		serviceNumber++;
+		int cacheRow = findCacheRow(primaryKey);
+		if(cacheRow == -1)return null;
+		int page 	= cacheRow / rowsPerFile;
+		int row 	= cacheRow - (page * rowsPerFile);
+		
+		RowAccessType retval = rowAccessTypeFactory.createRowAccessType(primaryKey, flagCache[cacheRow], this);	
+		cache.get(page, row * tableWidth, retval.byteArray, 0, tableWidth);
+		cacheContents[page].lastUsedServiceNumber = serviceNumber;
+		return retval;
+	}
+	
+	//******************************************************
+	//******************************************************
+	//         START OF GENERIC PRIMARY KEY SEARCHING CODE
+	//******************************************************
+	//******************************************************	
+
+	
+	/** Returns the fileMetadata list index for a FileMetadata object that contains the given primary key */ 
+	private final int fileMetadataBinarySearch(final long primaryKey)
+	{
+		return ((FileMetadataTree)fileMetadata).indexOfKey(primaryKey);
 	}
 	
 	/** Returns the cache index for a given primary key. Requires the index for the containing file in the fileMetadata list. 
@@ -1494,6 +2681,14 @@ public class TableCore implements Serializable, Lock{
 	 * @return The FemtoDBIterator
 	 */
 	public final FemtoDBIterator fastIterator()
+	{
+		return fastIterator(-1, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	/** Returns a FemtoDBIterator as fastIterator does, skipping the files whose zone maps show they hold no value of the column from lowKey to highKey.
+	 * Keys are the column values, with floats and doubles given by SecondaryIndex.keyOf. Rows in the files not skipped are all returned, so the iterator is used as the source of a filter on the column (see Filt). 
+	 * Files skipped are neither loaded nor read ahead. A negative column skips no files. */
+	public final FemtoDBIterator fastIterator(final int column, final long lowKey, final long highKey)
 	{
 		return (new FemtoDBIterator()
 				{
@@ -1501,6 +2696,9 @@ public class TableCore implements Serializable, Lock{
 					int fmdRows;
 					int currentRow;
 					
+					/** The number of files read ahead when stepping into the next file, growing while the iteration is sequential */
+					int readAheadWindow = 0;
+					
 					boolean 		hasNextCalledLast 		= false;
 					boolean 		hasNextCalledLastResult = false;
 					
@@ -1521,7 +2719,7 @@ public class TableCore implements Serializable, Lock{
 							if(hasNextFMD == null)
 							{
 								hasNextFMD			= fileMetadataL.get(0);
-								hasNextRows 		= hasNextFMD.rows;
+								hasNextRows 		= zoneMayMatch(hasNextFMD, column, lowKey, highKey) ? hasNextFMD.rows : 0;
 								hasNextCurrentRow 	= -1;
 							}
 							
@@ -1543,7 +2741,7 @@ public class TableCore implements Serializable, Lock{
 							while(hasNextFMDIndex < fmdSize)
 							{
 								hasNextFMD = fileMetadataL.get(hasNextFMDIndex);
-								if(hasNextFMD.rows > 0)
+								if((hasNextFMD.rows > 0)&&(zoneMayMatch(hasNextFMD, column, lowKey, highKey)))
 								{
 									hasNextCalledLast 		= true;
 									hasNextCalledLastResult = true;
@@ -1570,8 +2768,10 @@ public class TableCore implements Serializable, Lock{
 							if(fmd == null)
 							{
 								fmd			= fileMetadataL.get(0);
-								fmdRows 	= fmd.rows;
+								fmdRows 	= zoneMayMatch(fmd, column, lowKey, highKey) ? fmd.rows : 0;
 								currentRow 	= -1;
+								readAheadWindow = growReadAheadWindow(0);
+								readAheadAfter(0, readAheadWindow, column, lowKey, highKey);
 							}
 							
 							// try stepping forward
@@ -1592,19 +2792,161 @@ public class TableCore implements Serializable, Lock{
 							while(nextFMDIndex < fmdSize)
 							{
 								FileMetadata nextFMD = fileMetadataL.get(nextFMDIndex);
-								if(nextFMD.rows > 0)
+								if((nextFMD.rows > 0)&&(zoneMayMatch(nextFMD, column, lowKey, highKey)))
 								{
 									fmd = nextFMD;
 									currentRow = 0;
-									fmdRows = nextFMD.rows;
-									
-									RowAccessType retval = getRowAccessType(nextFMD, 0);
-									fmd.lastUsedServiceNumber = serviceNumber;
-									return retval;
+									fmdRows = nextFMD.rows;
+									readAheadWindow = growReadAheadWindow(readAheadWindow);
+									readAheadAfter(nextFMDIndex, readAheadWindow, column, lowKey, highKey);
+									
+									RowAccessType retval = getRowAccessType(nextFMD, 0);
+									fmd.lastUsedServiceNumber = serviceNumber;
+									return retval;
+								}
+								nextFMDIndex++;
+							}
+							return null;
+						}
+					}
+
+					@Override
+					public final void remove() {
+						// We don't support remove() because it may alter the fileMetadata tableCore, corrupting the iterator
+						throw new UnsupportedOperationException();
+					}
+					
+					@Override
+					public final void reset() 
+					{
+						fmd = null;
+						hasNextCalledLast 		= false;
+						hasNextCalledLastResult = false;
+						readAheadWindow			= 0;
+					}
+					
+					public final void setToo(final long startPoint) throws FemtoDBIOException 
+					{
+						synchronized(TableCore.this)
+						{
+								FileMetadata fmdContainingStart = null;
+								List<FileMetadata> fileMetadataL = fileMetadata;
+								int fmdIndex = fileMetadataBinarySearch(startPoint);
+								fmdContainingStart = fileMetadataL.get(fmdIndex);
+								int page = cachePageOf(fmdContainingStart);
+								
+								// find the row for either the startPoint or the position immediately before it
+								int row = primaryKeyBinarySearch(page, startPoint, true, true);
+								
+								if(row == -1)
+								{
+									// we hit the primaryKey so we need to step back
+									long startPointMinusOne = startPoint - 1;
+									fmdIndex = fileMetadataBinarySearch(startPointMinusOne);
+									fmdContainingStart = fileMetadataL.get(fmdIndex);
+									page = cachePageOf(fmdContainingStart);
+									row = primaryKeyBinarySearch(page, startPoint, true, false);
+								}
+								
+								//handle case of no rows
+								if(row >= fmdContainingStart.rows)
+								{
+									// reset the iterator
+									reset();
+									return;
+								}
+								
+								fmd = fmdContainingStart;
+								currentRow = row;
+								fmdRows = fmdContainingStart.rows;
+								readAheadWindow = 0;
+						}
+					}
+				});	
+	}
+
+	
+	/** Returns a FemtoDBIterator as fastIterator(column, lowKey, highKey) does, returning only the rows the predicate matches. 
+	 * The predicate reads each row in place in the cache, so rows it rejects are never copied into a RowAccessType. 
+	 * hasNext steps forward to the next matching row, loading the files it passes. A null predicate matches every row. */
+	public final FemtoDBIterator fastIterator(final int column, final long lowKey, final long highKey, final RowPredicate predicate)
+	{
+		if(predicate == null)return fastIterator(column, lowKey, highKey);
+		return (new FemtoDBIterator()
+				{
+					FileMetadata fmd = null;
+					int fmdRows;
+					int currentRow;
+					
+					/** The number of files read ahead when stepping into the next file, growing while the iteration is sequential */
+					int readAheadWindow = 0;
+					
+					/** True if the predicate matched the row at currentRow and next() has not yet returned it */
+					boolean matched 	= false;
+					boolean finished 	= false;
+					
+					CacheRow cacheRow 	= null;
+					
+					@Override
+					public final boolean hasNext() throws FemtoDBIOException {
+						synchronized(TableCore.this)
+						{
+							if(matched)return true;
+							if(finished)return false;
+							List<FileMetadata> fileMetadataL = fileMetadata;
+							if(fmd == null)
+							{
+								fmd			= fileMetadataL.get(0);
+								fmdRows 	= zoneMayMatch(fmd, column, lowKey, highKey) ? fmd.rows : 0;
+								currentRow 	= -1;
+								readAheadWindow = growReadAheadWindow(0);
+								readAheadAfter(0, readAheadWindow, column, lowKey, highKey);
+							}
+							if((cacheRow == null)||(!cacheRow.views(cache)))cacheRow = new CacheRow(cache, columnByteOffset, columnTypes);
+							
+							while(true)
+							{
+								// try stepping forward
+								currentRow++;
+								if(currentRow >= fmdRows)
+								{
+									// Seek forward through fileMetadata list for the next file that may hold a match
+									int nextFMDIndex = fileMetadataL.indexOf(fmd) + 1;
+									int fmdSize = fileMetadataL.size();
+									while((nextFMDIndex < fmdSize)&&((fileMetadataL.get(nextFMDIndex).rows == 0)||(!zoneMayMatch(fileMetadataL.get(nextFMDIndex), column, lowKey, highKey))))nextFMDIndex++;
+									if(nextFMDIndex >= fmdSize)
+									{
+										finished = true;
+										return false;
+									}
+									fmd = fileMetadataL.get(nextFMDIndex);
+									currentRow = 0;
+									fmdRows = fmd.rows;
+									readAheadWindow = growReadAheadWindow(readAheadWindow);
+									readAheadAfter(nextFMDIndex, readAheadWindow, column, lowKey, highKey);
+								}
+								
+								// test the row in place in the cache
+								serviceNumber++;
+								int page = cachePageOf(fmd);
+								fmd.lastUsedServiceNumber = serviceNumber;
+								cacheRow.moveTo(page, currentRow * tableWidth);
+								if(predicate.matches(cacheRow))
+								{
+									matched = true;
+									return true;
 								}
-								nextFMDIndex++;
 							}
-							return null;
+						}
+					}
+
+					@Override
+					public final RowAccessType next() throws FemtoDBIOException {
+						synchronized(TableCore.this)
+						{
+							if(!hasNext())return null;
+							matched = false;
+							return getRowAccessType(fmd, currentRow);
 						}
 					}
 
@@ -1618,20 +2960,9 @@ public class TableCore implements Serializable, Lock{
 					public final void reset() 
 					{
 						fmd = null;
-						hasNextCalledLast 		= false;
-						hasNextCalledLastResult = false;
-					}
-					
-					/** Private method used by Fast Iterator only */
-					private final RowAccessType getRowAccessType(final FileMetadata fmd, final int row) throws FemtoDBIOException
-					{
-						int page = cachePageOf(fmd);
-						long primaryKey = getPrimaryKeyForCacheRow(page, row);					
-						int flagSrcPos = page * rowsPerFile + row;						
-						RowAccessType retval = rowAccessTypeFactory.createRowAccessType(primaryKey, flagCache[flagSrcPos], TableCore.this);
-						int srcPos = page * fileSize + row * tableWidth;
-						System.arraycopy(cache, srcPos, retval.byteArray, 0, tableWidth);
-						return retval;		
+						matched 		= false;
+						finished 		= false;
+						readAheadWindow	= 0;
 					}
 					
 					public final void setToo(final long startPoint) throws FemtoDBIOException 
@@ -1667,12 +2998,26 @@ public class TableCore implements Serializable, Lock{
 								
 								fmd = fmdContainingStart;
 								currentRow = row;
-								fmdRows = fmdContainingStart.rows;
+								fmdRows = zoneMayMatch(fmdContainingStart, column, lowKey, highKey) ? fmdContainingStart.rows : 0;
+								matched 		= false;
+								finished 		= false;
+								readAheadWindow = 0;
 						}
 					}
 				});	
 	}
-
+	
+	/** Returns a new RowAccessType holding a copy of the row of the file, loading the file into the cache if necessary. Used by the fast iterators */
+	private final RowAccessType getRowAccessType(final FileMetadata fmd, final int row) throws FemtoDBIOException
+	{
+		int page = cachePageOf(fmd);
+		long primaryKey = getPrimaryKeyForCacheRow(page, row);					
+		int flagSrcPos = page * rowsPerFile + row;						
+		RowAccessType retval = rowAccessTypeFactory.createRowAccessType(primaryKey, flagCache[flagSrcPos], TableCore.this);
+		int srcPos = row * tableWidth;
+		cache.get(page, srcPos, retval.byteArray, 0, tableWidth);
+		return retval;		
+	}
 	
 	/** Iterates over all the table rows. 
 	 * It implements the remove method and allows insertions and deletions 
@@ -1688,6 +3033,9 @@ public class TableCore implements Serializable, Lock{
 					boolean			hasPrimaryKey = false;
 					long 			primaryKey;
 					
+					/** The number of files read ahead when stepping into the next file, growing while the iteration is sequential */
+					int 			readAheadWindow = 0;
+					
 					@Override
 					public final boolean hasNext() throws FemtoDBConcurrentModificationException, FemtoDBIOException{	
 						synchronized(TableCore.this)
@@ -1780,6 +3128,8 @@ public class TableCore implements Serializable, Lock{
 										nextFMD = fileMetadataL.get(nextFMDIndex);
 										if(nextFMD.rows > 0)
 										{
+											readAheadWindow = growReadAheadWindow(readAheadWindow);
+											readAheadAfter(nextFMDIndex, readAheadWindow);
 											RowAccessType retval = getRowAccessType(nextFMD, 0);
 											nextFMD.lastUsedServiceNumber = serviceNumber;
 											primaryKey = retval.primaryKey;
@@ -1801,6 +3151,8 @@ public class TableCore implements Serializable, Lock{
 									FileMetadata nextFMD = fileMetadataL.get(fmdIndex);
 									if(nextFMD.rows > 0)
 									{
+										readAheadWindow = growReadAheadWindow(0);
+										readAheadAfter(fmdIndex, readAheadWindow);
 										RowAccessType retval = getRowAccessType(nextFMD, 0);
 										primaryKey = retval.primaryKey;
 										hasPrimaryKey = true;
@@ -1816,6 +3168,11 @@ public class TableCore implements Serializable, Lock{
 
 					@Override
 					public final void remove() throws FemtoDBConcurrentModificationException, FemtoDBIOException {
+						removeInternal();
+						awaitLogged();
+					}
+					
+					private final void removeInternal() throws FemtoDBConcurrentModificationException, FemtoDBIOException {
 						synchronized(TableCore.this)
 						{
 							serviceNumber++;
@@ -1874,6 +3231,7 @@ public class TableCore implements Serializable, Lock{
 					{
 						hasPrimaryKey = false;
 						primaryKey = -1;
+						readAheadWindow = 0;
 					}
 					
 					/** Private method used by the Iterator only */
@@ -1883,8 +3241,8 @@ public class TableCore implements Serializable, Lock{
 						long primaryKey = getPrimaryKeyForCacheRow(page, row);
 						int flagSrcPos = page * rowsPerFile + row;						
 						RowAccessType retval = rowAccessTypeFactory.createRowAccessType(primaryKey, flagCache[flagSrcPos],TableCore.this);
-						int srcPos = page * fileSize + row * tableWidth;
-						System.arraycopy(cache, srcPos, retval.byteArray, 0, tableWidth);
+						int srcPos = row * tableWidth;
+						cache.get(page, srcPos, retval.byteArray, 0, tableWidth);
 						return retval;		
 					}
 
@@ -1922,6 +3280,7 @@ public class TableCore implements Serializable, Lock{
 
 								primaryKey = getPrimaryKeyForCacheRow(page, row);
 								hasPrimaryKey = true;
+								readAheadWindow = 0;
 						}
 					}
 				});
@@ -1947,10 +3306,80 @@ public class TableCore implements Serializable, Lock{
 		{
 //			System.out.println("fmd " + fmd.filename + " says it isnt cached so loading");
 //			System.out.println("fmd " + fmd.hashCode());
+			if(readAhead != null)
+			{
+				// use the file if it is being read ahead, waiting for the read to finish
+				ReadAhead.StagedRead staged = readAhead.take(fmd);
+				if(staged != null)
+				{
+					byte[] stagedBytes = staged.await();
+					if((stagedBytes != null)&&(staged.isCurrent()))
+					{
+						int pageToForceFree = findLRUCachePage();
+						freeCachePage(pageToForceFree);
+						loadStagedFileIntoCachePage(pageToForceFree, fmd, stagedBytes);
+						return pageToForceFree;
+					}
+				}
+			}
 			return loadFileIntoCache(fmd);
 		}
 	}
 	
+	/** Used by the iterators when stepping into the file at the given fileMetadata index. Starts reading up to count of the following files in the background. */
+	private final void readAheadAfter(final int fmdIndex, final int count)
+	{
+		readAheadAfter(fmdIndex, count, -1, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	/** As above, not reading the files whose zone maps show they hold no value of the column from lowKey to highKey */
+	private final void readAheadAfter(final int fmdIndex, final int count, final int column, final long lowKey, final long highKey)
+	{
+		if((count <= 0)||(shuttingDown)||(deleted))return;
+		if(readAhead == null)readAhead = new ReadAhead(this, pageStore);
+		
+		List<FileMetadata> fileMetadataL = fileMetadata;
+		int lastIndex = fmdIndex + count;
+		if(lastIndex >= fileMetadataL.size())lastIndex = fileMetadataL.size() - 1;
+		for(int x = fmdIndex + 1; x <= lastIndex; x++)
+		{
+			FileMetadata fmd = fileMetadataL.get(x);
+			if((!fmd.cached)&&(fmd.rows > 0)&&(zoneMayMatch(fmd, column, lowKey, highKey)))readAhead.stage(fmd, tableWidth);
+		}
+	}
+	
+	/** Returns the number of files the iterators should read ahead after stepping sequentially into the next file, doubling the previous amount up to the limits */
+	private final int growReadAheadWindow(final int window)
+	{
+		int maxWindow = readAheadFiles;
+		if(maxWindow > (cachePages >> 1))maxWindow = cachePages >> 1;
+		if(window <= 0)return (maxWindow < 1) ? 0 : 1;
+		int retval = window << 1;
+		if(retval > maxWindow)retval = maxWindow;
+		return retval;
+	}
+	
+	/** Called by the ReadAhead threads once a file has been read. If it is still required it is placed in a free or clean cache page, as writing a modified page would stall the iterators. */
+	synchronized
+	final void installStagedRead(final ReadAhead.StagedRead staged)
+	{
+		if((readAhead == null)||(shuttingDown)||(deleted))return;
+		if(readAhead.take(staged.fmd) != staged)return; // already used or abandoned
+		byte[] stagedBytes = staged.await();
+		if((stagedBytes == null)||(!staged.isCurrent()))return;
+		
+		// find a page that can be freed without writing
+		int bestCandidateSoFar = findCachePageToFree(-1, true);
+		if(bestCandidateSoFar == -1)return;
+		
+		try{
+			freeCachePage(bestCandidateSoFar);
+		}
+		catch(FemtoDBIOException e){return;} // cannot happen as the page is not modified
+		loadStagedFileIntoCachePage(bestCandidateSoFar, staged.fmd, stagedBytes);
+		staged.fmd.lastUsedServiceNumber = serviceNumber;
+	}
+	
 	private long getPrimaryKeyForCacheRow(final int page, final int row)
 	{
 		// try the pkCache
@@ -1963,8 +3392,8 @@ public class TableCore implements Serializable, Lock{
 			}
 		
 		// get from cache bytes
-		int cacheIndex = (page * fileSize) + (tableWidth * row);
-		long deserialisedResult = BuffRead.readLong(cache, cacheIndex);
+		int cacheIndex = tableWidth * row;
+		long deserialisedResult = cache.readLong(page, cacheIndex);
 		pkCache[pkCacheIndex] = deserialisedResult;
 //		System.out.println("des res = " + deserialisedResult);
 		return deserialisedResult;
@@ -1979,6 +3408,15 @@ public class TableCore implements Serializable, Lock{
 		return retval;
 	}
 
+	/** Returns a new byte array consisting of the passed in array appended with the passed in value */
+	private  final byte[] addToArray(final byte[] in, final byte toAdd)
+	{
+		int len = in.length;
+		byte[] retval = Arrays.copyOf(in, len+1);
+		retval[len] = toAdd;
+		return retval;
+	}
+	
 	/** Returns a new String array consisting of the passed in array  appended with the passed in value */
 	private  final String[] addToArray(final String[] in, final String toAdd)
 	{
@@ -2028,81 +3466,406 @@ public class TableCore implements Serializable, Lock{
 		
 		if(operational)
 		{
-			flushCache();			
+			shutdownReadAhead();
+			flushCache();
+			try {
+				pageStore.close();
+			} catch (IOException e) {
+				throw new FemtoDBIOException("TableCore " + name + " was unable to close its files during shutdown",e);
+			}
+			releasePooledCache();
 		}
 	}
 	
+	/** Gives back every page borrowed from the BufferPool, once the cache is no longer used */
+	private final void releasePooledCache()
+	{
+		if(pooledCache == null)return;
+		pooledCache.releaseAll();
+		pooledCache = null;
+	}
+	
+	/** Stops any reads ahead, so the PageStore can be closed */
+	private final void shutdownReadAhead()
+	{
+		if(readAhead == null)return;
+		readAhead.shutdown();
+		readAhead = null;
+	}
+	
 	final void flushCache() throws FemtoDBIOException
     {
-    	if(!operational)return;
+    	if(!operational || dormant)return;
     	for(int page = 0; page < cachePages; page++)
     	{
     		flushCachePage(page);
     	}	
     }
 	
+	/** Serialises the tableCore while holding its lock, as the database file is written by backups while the table is in use. 
+	 * The files are written in bulk by MetadataFormat after the other fields, rather than as one serialised object each. */
+	synchronized
+	private void writeObject(final ObjectOutputStream out) throws IOException
+	{
+		// a table not used since it was loaded keeps the working set it was saved with
+		if(cacheContents != null)warmFiles = cachedFilesByRecency();
+		
+		List<FileMetadata> fileMetadataL = fileMetadata;
+		fileMetadata = null;
+		try{
+			out.defaultWriteObject();
+		}
+		finally
+		{
+			fileMetadata = fileMetadataL;
+		}
+		if(operational)MetadataFormat.writeFileMetadata(out, (fileMetadataL != null) ? fileMetadataL : new ArrayList<FileMetadata>());
+	}
+	
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		
+		// tables saved before caches could exceed Integer.MAX_VALUE bytes hold their cache size as an int
+		if(cacheSize != 0)
+		{
+			cacheBytes 	= cacheSize;
+			cacheSize 	= 0;
+		}
+		
+		// tables saved before MetadataFormat existed hold their files as serialised objects, and tables never made operational have none
+		if((fileMetadata == null)&&(operational))fileMetadata = MetadataFormat.readFileMetadata(in);
+		if(fileMetadata != null)fileMetadata = new FileMetadataTree(fileMetadata);
+	}
+	
+	/** Attaches a loaded tableCore to its database, allocating its cache and attaching its files so it is ready for use */
 	synchronized
     final void finishLoading(final FemtoDB database)
+    {
+		finishLoadingLazily(database);
+		activate();
+    }
+	
+	/** Attaches a loaded tableCore to its database, leaving its cache unallocated and its files unattached until activate is called when the table is first used.
+	 * Opening a database then costs memory and time only for the tables used. */
+	synchronized
+    final void finishLoadingLazily(final FemtoDB database)
     {
     	this.database = database;
 		tableDirectory = database.getPath() + File.separator + Long.toString(tableNumber);
 		this.shuttingDown = false;
 		this.tableLock = new ReentrantLock(true);
+
+		// tables saved before PageStore existed use the default
+		if(pageStore == null)pageStore = new DefaultPageStore();
 		
-		if(operational)
-    	{
-    		allocateMemory();
-    		for(int x = 0; x < fileMetadata.size(); x++)
-    		{
-    			fileMetadata.get(x).finishLoading(this);
-    		}
-    	}	
+		dormant 		= operational;
+		filesDormant 	= operational;
     }
+	
+	/** Makes a table loaded lazily ready for use, allocating its cache and attaching its files. Does nothing if it is already active. */
+	synchronized
+	final void activate()
+	{
+		if(!dormant)return;
+		attachFiles();
+		allocateMemory();
+		dormant = false;
+	}
+	
+	/** Starts reading the files that were cached when the table was last saved back into its cache in the background, most recently used first, using the ReadAhead threads.
+	 * Only as many files as the cache holds are read, and each is placed in a free or clean page only if it has not been used or modified by then.
+	 * Returns the number of files being read, activating the table unless it has none. */
+	synchronized
+	final int warmUp()
+	{
+		long[] warmFilesL = warmFiles;
+		if((!operational)||(deleted)||(shuttingDown)||(warmFilesL == null)||(warmFilesL.length == 0))return 0;
+		activate();
+		if(readAhead == null)readAhead = new ReadAhead(this, pageStore);
+		
+		Map<Long,FileMetadata> byFilenumber = new HashMap<Long,FileMetadata>();
+		for(FileMetadata fmd : fileMetadata)
+		{
+			byFilenumber.put(fmd.filenumber, fmd);
+		}
+		int staged = 0;
+		for(int x = 0; (x < warmFilesL.length)&&(staged < cachePages); x++)
+		{
+			FileMetadata fmd = byFilenumber.get(warmFilesL[x]);
+			if((fmd == null)||(fmd.cached)||(fmd.rows == 0))continue; // since combined, deleted or used
+			readAhead.stage(fmd, tableWidth);
+			staged++;
+		}
+		return staged;
+	}
+	
+	/** Returns the filenumbers of the files in the cache, most recently used first */
+	private final long[] cachedFilesByRecency()
+	{
+		List<FileMetadata> cached = new ArrayList<FileMetadata>();
+		for(FileMetadata fmd : cacheContents)
+		{
+			if(fmd != null)cached.add(fmd);
+		}
+		Collections.sort(cached, new Comparator<FileMetadata>()
+		{
+			@Override
+			public int compare(final FileMetadata a, final FileMetadata b)
+			{
+				return Long.compare(b.lastUsedServiceNumber, a.lastUsedServiceNumber);
+			}
+		});
+		long[] retval = new long[cached.size()];
+		for(int x = 0; x < retval.length; x++)
+		{
+			retval[x] = cached.get(x).filenumber;
+		}
+		return retval;
+	}
+	
+	/** Returns the number of files in the cache */
+	synchronized
+	final int getCachedFileCount()
+	{
+		if(cacheContents == null)return 0;
+		int retval = 0;
+		for(FileMetadata fmd : cacheContents)
+		{
+			if(fmd != null)retval++;
+		}
+		return retval;
+	}
+	
+	/** Indicates the table was loaded lazily and has not been used since */
+	synchronized
+	final boolean isDormant()
+	{
+		return dormant;
+	}
+	
+	/** Attaches the FileMetadata of a table loaded lazily, which is all a backup needs from a table that has not been used */
+	private final void attachFiles()
+	{
+		if(!filesDormant)return;
+		for(int x = 0; x < fileMetadata.size(); x++)
+		{
+			fileMetadata.get(x).finishLoading(this);
+		}
+		filesDormant = false;
+	}
     
-	final void backupCompletely(final String destDirectory) throws FemtoDBIOException
+	final void backupCompletely(final String destDirectory, final boolean online, final CopyPool pool) throws FemtoDBIOException
+	{
+		backup(destDirectory, false, online, pool);
+	}
+	
+	/** Brings the tables backup in destDirectory up to date, copying only the files modified since the service number recorded by its last backup. 
+	 * If no service number was recorded, or the backup is not one the table knows (see backupIds), the table is backed up completely. */
+	final void backupIncremental(final String destDirectory, final boolean online, final CopyPool pool) throws FemtoDBIOException
 	{
+		backup(destDirectory, true, online, pool);
+	}
+	
+	/** Backs up the table. An offline backup holds the tables lock throughout, an online backup only holds it while taking a snapshot of the tables files which is then streamed into the backup. Files are copied by the pools threads. */
+	private final void backup(final String destDirectory, final boolean incremental, final boolean online, final CopyPool pool) throws FemtoDBIOException
+	{
+		BackupSnapshot snapshot = null;
 		boolean requiresLockForBackupL = backupNeedsLock;
 		if(requiresLockForBackupL)tableLock.lock();
 		try{
-			 backupCompletelyInternal(destDirectory);
+			if(online)
+			{
+				snapshot = takeBackupSnapshot(destDirectory, incremental);
+			}
+			else
+			{
+				backupInternal(destDirectory, incremental, pool);
+			}
 		}
 		finally
 		{
 			if(requiresLockForBackupL)tableLock.unlock();
 		}
+		if(snapshot == null)return;
+		
+		String tableDirectoryString = destDirectory + File.separator + Long.toString(tableNumber);
+		try {
+			snapshot.stream(pool);
+		} catch (IOException e) {
+			throw new FemtoDBIOException("During online backup of table " + name + " IOException occured copying table data to directory:" + tableDirectoryString,e);
+		}
+		finally
+		{
+			releaseBackupSnapshot();
+		}
+		generateBackedUpServiceNumberFile(tableDirectoryString, snapshot.serviceNumber, snapshot.backupId);
 	}
 	
     synchronized
-    private final void backupCompletelyInternal(final String destDirectory)  throws FemtoDBIOException
+    private final void backupInternal(final String destDirectory, final boolean incremental, final CopyPool pool)  throws FemtoDBIOException
     {  			
+		// the earlier backup is checked before the table file records the id of this one
+		String tableDirectoryString = destDirectory + File.separator + Long.toString(tableNumber);
+		long backedUpServiceNumber 	= -1L;
+		long backupId 				= 0L;
+		if(operational)
+		{
+			backedUpServiceNumber 	= prepareBackupDirectory(tableDirectoryString, incremental);
+			backupId 				= newBackupId();
+		}
 		
     	// create or overwrite the table file
 		generateTableFile(this,destDirectory);
     	
     	if(!operational)return;
-    	
-    	// create empty directory to hold the data files if it does not exist
-		String tableDirectoryString = destDirectory + File.separator + Long.toString(tableNumber);
-		File tableDirectoryFile = new File(tableDirectoryString);
-		if(tableDirectoryFile.exists())tableDirectoryFile.delete();
-		tableDirectoryFile.mkdirs();
+    	attachFiles();
 		
 		// backup the data files
 		flushCache();
-	
-    	for(FileMetadata fmd : fileMetadata)
-    	{
-    		File sourceFile = new File(fmd.filename);
-    		String fullDestString = tableDirectoryString + File.separator + Long.toString(fmd.filenumber);
-    		File destFile = new File(fullDestString);
-    		try {
-				FileUtils.copyFile(sourceFile, destFile);
-			} catch (IOException e) {
-				throw new FemtoDBIOException("During backup or save of table " + name + " IOException occured copying table data to file:" + fullDestString,e);
+		try {
+			CopyPool.Batch batch = pool.newBatch();
+			if(backedUpServiceNumber == -1L)
+			{
+				pageStore.backup(tableDirectoryString, fileMetadata, batch);
 			}
+			else
+			{
+				pageStore.backupModified(tableDirectoryString, fileMetadata, backedUpServiceNumber, batch);
+			}
+			batch.await();
+		} catch (IOException e) {
+			throw new FemtoDBIOException("During backup or save of table " + name + " IOException occured copying table data to directory:" + tableDirectoryString,e);
+		}
+		
+		// every file modified from now on will have a larger modificationServiceNumber
+		generateBackedUpServiceNumberFile(tableDirectoryString, serviceNumber, backupId);
+    }
+    
+    /** Writes the table file and takes a snapshot of the tables files for an online backup, returning null if the table has no files. From now on files are preserved before being overwritten or deleted until the snapshot is released. */
+    synchronized
+    private final BackupSnapshot takeBackupSnapshot(final String destDirectory, final boolean incremental)  throws FemtoDBIOException
+    {
+		// the earlier backup is checked before the table file records the id of this one
+		String tableDirectoryString = destDirectory + File.separator + Long.toString(tableNumber);
+		long backedUpServiceNumber 	= -1L;
+		long backupId 				= 0L;
+		if(operational)
+		{
+			backedUpServiceNumber 	= prepareBackupDirectory(tableDirectoryString, incremental);
+			backupId 				= newBackupId();
+		}
+		
+    	// create or overwrite the table file
+		generateTableFile(this,destDirectory);
+    	
+    	if(!operational)return null;
+    	attachFiles();
+		
+		// the snapshot is taken from disk
+		flushCache();
+		backupSnapshot = new BackupSnapshot(pageStore, tableDirectoryString, tableWidth, fileMetadata, serviceNumber, backedUpServiceNumber, backupId);
+		return backupSnapshot;
+    }
+    
+    synchronized
+    private final void releaseBackupSnapshot()
+    {
+    	backupSnapshot = null;
+    }
+    
+    /** Called before a file is overwritten or deleted on disk, so an online backup in progress keeps the contents it snapshotted */
+    private final void beforeFileChange(final FileMetadata fmd)
+    {
+    	BackupSnapshot backupSnapshotL = backupSnapshot;
+    	if(backupSnapshotL != null)backupSnapshotL.preserve(fmd);
+    }
+    
+    /** Returns the service number recorded by an earlier backup in the given directory, or -1 having emptied the directory when the table must be backed up completely */
+    private final long prepareBackupDirectory(final String tableDirectoryString, final boolean incremental)
+    {
+		File tableDirectoryFile = new File(tableDirectoryString);
+		long backedUpServiceNumber = incremental ? readBackedUpServiceNumber(tableDirectoryString) : -1L;
+		
+		// create empty directory to hold the data files unless bringing an earlier backup up to date
+		if(backedUpServiceNumber == -1L)
+		{
+			if(tableDirectoryFile.exists())FileUtils.recursiveDelete(tableDirectoryFile);
+			tableDirectoryFile.mkdirs();
+		}
+		return backedUpServiceNumber;
+    }
+    
+    /** Gives a backup being taken a new id and remembers it, dropping the oldest id remembered. Called before the table file is written so a table restored from the backup knows its id */
+    private final long newBackupId()
+    {
+    	long retval = BACKUP_ID_GENERATOR.nextLong();
+    	long[] backupIdsL = (backupIds == null) ? new long[0] : backupIds;
+    	int kept = Math.min(backupIdsL.length, KNOWN_BACKUP_IDS - 1);
+    	long[] newBackupIds = new long[kept + 1];
+    	System.arraycopy(backupIdsL, backupIdsL.length - kept, newBackupIds, 0, kept);
+    	newBackupIds[kept] = retval;
+    	backupIds = newBackupIds;
+    	return retval;
+    }
+    
+    private final boolean isKnownBackupId(final long backupId)
+    {
+    	long[] backupIdsL = backupIds;
+    	if(backupIdsL == null)return false;
+    	for(long known : backupIdsL)
+    	{
+    		if(known == backupId)return true;
     	}
+    	return false;
     }
     
+    /** Records the service number the backup in the given directory is up to date with, and the id of the backup */
+	private final void generateBackedUpServiceNumberFile(final String tableDirectoryString, final long backedUpServiceNumber, final long backupId) throws FemtoDBIOException
+	{
+		String serviceNumberFileString = tableDirectoryString + File.separator + BACKED_UP_SERVICE_NUMBER_FILENAME;
+		ObjectOutputStream oos = null;
+		try {
+			oos = new ObjectOutputStream(new FileOutputStream(serviceNumberFileString));
+			oos.writeLong(backedUpServiceNumber);
+			oos.writeLong(backupId);
+		} catch (IOException e) {
+			throw new FemtoDBIOException("Unable to backup table " + name + " an IOException occured creating the following file: " + serviceNumberFileString, e);
+		} finally
+		{
+			if(oos != null)
+			{
+				try {
+					oos.close();
+				} catch (IOException e) {
+					throw new FemtoDBIOException("Unable to backup table " + name + " an IOException occured closing the following file: " + serviceNumberFileString, e);
+				}
+			}
+		}
+	}
+	
+	/** Returns the service number recorded by the last backup in the given directory, or -1 if there is none or the backup is not one this table knows. 
+	 * A backup taken before the table was restored from an older backup is unknown to it, as its files may hold changes the table no longer has, as are backups recorded without an id. */
+	private final long readBackedUpServiceNumber(final String tableDirectoryString)
+	{
+		ObjectInputStream ois = null;
+		try {
+			ois = new ObjectInputStream(new FileInputStream(tableDirectoryString + File.separator + BACKED_UP_SERVICE_NUMBER_FILENAME));
+			long retval 	= ois.readLong();
+			long backupId 	= ois.readLong();
+			if((!isKnownBackupId(backupId))||(retval > serviceNumber))return -1L;
+			return retval;
+		} catch (IOException e) {
+			return -1L;
+		} finally
+		{
+			if(ois != null)
+			{
+				try {ois.close();} catch (IOException e) {}
+			}
+		}
+	}
+    
 	/** Serialises a given tableCore object into to the directory given by the destString argument. It does not serialise the associated tableCores data files. */
 	private final void generateTableFile(final TableCore t, final String destDirectory) throws FemtoDBIOException
 	{
@@ -2164,23 +3927,25 @@ public class TableCore implements Serializable, Lock{
 	final boolean validateTable(final String path)
 	{
 		String tableDirectoryString = path + File.separator + Long.toString(tableNumber);
-    	int tableWidthL = tableWidth;
-		for(FileMetadata fmd : fileMetadata)
-    	{
-    		String fileString = tableDirectoryString + File.separator + Long.toString(fmd.filenumber);
-    		File fileToCheck = new File(fileString);
-    		if( !fileToCheck.exists() )return false;
-    		long fileToCheckSize = fileToCheck.length();
-    		long expectedSize = fmd.rows * tableWidthL;
-    		if( fileToCheckSize != expectedSize )return false;
-    	}
-		return true;	
+		PageStore pageStoreL = pageStore;
+		if(pageStoreL == null)pageStoreL = new DefaultPageStore(); // tables saved before PageStore existed
+		return pageStoreL.validate(tableDirectoryString, fileMetadata, tableWidth);
 	}
 	
 	synchronized
 	void deleteTable(final String path) throws FemtoDBIOException
 	{
 		deleted = true;
+		shutdownReadAhead();
+		releasePooledCache();
+		if(pageStore != null)
+		{
+			try {
+				pageStore.close();
+			} catch (IOException e) {
+				throw new FemtoDBIOException("TableCore " + name + " was unable to close its files while being deleted",e);
+			}
+		}
 		deleteTableFile(this, path);
 		deleteTableDataDirectory(this, path);
 	}
@@ -2205,7 +3970,7 @@ public class TableCore implements Serializable, Lock{
 		retval = retval + "combineOccupancyRatio: " + combineOccupancyRatio + "\n";
 		retval = retval + "combineOccupancy: " 		+ combineOccupancy + "\n";
 		retval = retval + "nextFileNumber: " 		+ nextUnusedFileNumber + "\n";
-		retval = retval + "cacheSize: " + cacheSize + "\n";
+		retval = retval + "cacheSize: " + cacheBytes + "\n";
 		retval = retval + "cachePages: " + cachePages + "\n";
 		int len = columnNames.length;
 		retval = retval + ".......\n";
@@ -2240,10 +4005,10 @@ public class TableCore implements Serializable, Lock{
 
 	public final String cacheToString()
 	{
-		int cachePagesL 	= cachePages;
+		int cachePagesL 	= activePages;
 		int rowsPerFileL 	= rowsPerFile;
-		int fileSizeL 		= fileSize;
 		int tableWidthL 	= tableWidth;
+		byte[] rowBytes 	= new byte[tableWidthL];
 		String retval = "";
 		for(int page = 0; page < cachePagesL; page ++)
 		{
@@ -2256,8 +4021,8 @@ public class TableCore implements Serializable, Lock{
 				int pkCacheRow = page * rowsPerFileL + row;
 				retval = retval + fwid(Long.toString(pkCache[pkCacheRow]),20) + "|";
 				retval = retval + fwid(Short.toString(flagCache[pkCacheRow]),6) + "|";
-				int cacheIndex = page * fileSizeL + row * tableWidthL;
-				retval = retval + bytesToString(cache, cacheIndex, tableWidth);
+				cache.get(page, row * tableWidthL, rowBytes, 0, tableWidthL);
+				retval = retval + bytesToString(rowBytes, 0, tableWidth);
 				retval = retval + "\n";
 			}
 		}
@@ -2376,6 +4141,15 @@ public class TableCore implements Serializable, Lock{
 	final String getTableDirectory()
 	{return tableDirectory;}
 	
+	final String getName()
+	{return name;}
+	
+	final boolean isOperational()
+	{return operational;}
+	
+	final long getCacheSize()
+	{return cacheBytes;}
+	
 	final double getRemoveOccupancyRatio() {
 		return removeOccupancyRatio;
 	}
@@ -2398,6 +4172,10 @@ public class TableCore implements Serializable, Lock{
 		return tableWidth;
 	}
 
+	final int getFileSize() {
+		return fileSize;
+	}
+
 	final RowAccessTypeFactory getRowAccessTypeFactory() {
 		return rowAccessTypeFactory;
 	}
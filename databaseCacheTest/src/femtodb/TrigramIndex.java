@@ -0,0 +1,137 @@
+package femtodb;
+
+import java.io.Serializable;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/** A trigram index on a String column of a tableCore, mapping each run of three characters found in the column to a LongBitmap of the primary keys of the rows holding it (see TableCore.createTrigramIndex).
+ * Each string is indexed padded with two start markers before it and two end markers after it, so the trigrams of a value anchored at the start or end find the strings starting or ending with it.
+ * The primary keys found are candidates, holding every trigram of the value, which are verified by filtering their rows. Values shorter than three characters cannot narrow the candidates for contains.
+ * The tableCore maintains the index as rows are inserted, updated and deleted, and saves it with itself. */
+final class TrigramIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// markers padding the strings, outside the range of chars
+	private static final long 					START 		= 0x10000L;
+	private static final long 					END 		= 0x10001L;
+
+	/** The bits each character of a trigram is shifted by */
+	private static final int 					CHAR_BITS 	= 17;
+
+	private final int 							column;
+	private final int 							columnByteOffset;
+
+	/** The primary keys of the rows holding each trigram */
+	private final HashMap<Long, LongBitmap> 	postings 	= new HashMap<Long, LongBitmap>();
+
+	TrigramIndex(final int column, final int columnByteOffset)
+	{
+		this.column 			= column;
+		this.columnByteOffset 	= columnByteOffset;
+	}
+
+	/** Returns the string in the indexed column of the row, or null if it cannot be decoded */
+	final String stringOf(final byte[] row)
+	{
+		try {
+			return BuffRead.readString(row, columnByteOffset);
+		} catch (UTFDataFormatException e) {
+			return null;
+		}
+	}
+
+	final void insert(final String value, final long primaryKey)
+	{
+		if(value == null)return;
+		for(long trigram : trigramsOf(value, true, true))
+		{
+			LongBitmap bitmap = postings.get(trigram);
+			if(bitmap == null)
+			{
+				bitmap = new LongBitmap();
+				postings.put(trigram, bitmap);
+			}
+			bitmap.add(primaryKey);
+		}
+	}
+
+	final void remove(final String value, final long primaryKey)
+	{
+		if(value == null)return;
+		for(long trigram : trigramsOf(value, true, true))
+		{
+			LongBitmap bitmap = postings.get(trigram);
+			if(bitmap == null)continue;
+			bitmap.remove(primaryKey);
+			if(bitmap.isEmpty())postings.remove(trigram);
+		}
+	}
+
+	/** Returns a new bitmap of the primary keys of the rows that may hold the value, anchored at the start and or end of the string, or null if the value is too short to narrow them */
+	final LongBitmap candidates(final String value, final boolean atStart, final boolean atEnd)
+	{
+		long[] trigrams = trigramsOf(value, atStart, atEnd);
+		if(trigrams.length == 0)return null;
+
+		// intersect the rarest trigrams first, so the bitmaps combined stay small
+		LongBitmap[] bitmaps = new LongBitmap[trigrams.length];
+		for(int x = 0; x < trigrams.length; x++)
+		{
+			bitmaps[x] = postings.get(trigrams[x]);
+			if(bitmaps[x] == null)return new LongBitmap();
+		}
+		Arrays.sort(bitmaps, new Comparator<LongBitmap>()
+		{
+			@Override
+			public int compare(final LongBitmap a, final LongBitmap b)
+			{
+				return Long.compare(a.cardinality(), b.cardinality());
+			}
+		});
+		LongBitmap retval = bitmaps[0].copy();
+		for(int x = 1; (x < bitmaps.length)&&(!retval.isEmpty()); x++)
+		{
+			retval = retval.and(bitmaps[x]);
+		}
+		return retval;
+	}
+
+	/** Returns the distinct trigrams of the value, padded by two start markers and or two end markers, in ascending order */
+	static final long[] trigramsOf(final String value, final boolean atStart, final boolean atEnd)
+	{
+		int length = value.length();
+		long[] padded = new long[length + 4];
+		int size = 0;
+		if(atStart)
+		{
+			padded[size++] = START;
+			padded[size++] = START;
+		}
+		for(int x = 0; x < length; x++)padded[size++] = value.charAt(x);
+		if(atEnd)
+		{
+			padded[size++] = END;
+			padded[size++] = END;
+		}
+		if(size < 3)return new long[0];
+
+		long[] retval = new long[size - 2];
+		for(int x = 0; x < retval.length; x++)
+		{
+			retval[x] = (padded[x] << (CHAR_BITS << 1)) | (padded[x + 1] << CHAR_BITS) | padded[x + 2];
+		}
+		Arrays.sort(retval);
+		int distinct = 0;
+		for(int x = 0; x < retval.length; x++)
+		{
+			if((x == 0)||(retval[x] != retval[distinct - 1]))retval[distinct++] = retval[x];
+		}
+		return Arrays.copyOf(retval, distinct);
+	}
+
+	final int getColumn() {
+		return column;
+	}
+}
@@ -0,0 +1,254 @@
+package femtodb;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/** A scan resistant CacheReplacementPolicy based on the 2Q algorithm, so a single pass over a table by an iterator or Filt does not free the pages used by point lookups.
+ * A file loaded for the first time enters a small first in first out queue of pages, and when freed from it is remembered in a ghost list of filenumbers holding no data.
+ * Only a file loaded again while remembered enters the main queue, whose pages are chosen with the same weighted clock as ClockReplacement.
+ * Pages are taken from the first in queue while it holds more than a quarter of the cache, so files read once by a scan pass through it leaving the main queue untouched. */
+public final class TwoQueueReplacement implements CacheReplacementPolicy, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private static final byte 				FREE 		= 0;
+	private static final byte 				FIRST_IN 	= 1;
+	private static final byte 				MAIN 		= 2;
+	private static final int 				NONE 		= -1;
+
+	/** Which queue each page is in */
+	private transient byte[] 				queues;
+
+	// the free pages as a stack, with the position of each page in it
+	private transient int[] 				freePages;
+	private transient int[] 				freePositions;
+	private transient int 					freeCount;
+
+	// the first in queue as a list linked through the page numbers, oldest first
+	private transient int[] 				previous;
+	private transient int[] 				next;
+	private transient int 					firstInHead;
+	private transient int 					firstInTail;
+	private transient int 					firstInCount;
+	private transient int 					firstInCapacity;
+
+	// the main queue, chosen from with a weighted clock
+	private transient int[] 				weights;
+	private transient long[] 				seenServiceNumbers;
+	private transient int 					hand;
+	private transient int 					mainCount;
+
+	/** The filenumbers of files recently freed from the first in queue, oldest first */
+	private transient LinkedHashSet<Long> 	ghosts;
+	private transient int 					ghostCapacity;
+
+	private transient int 					activePages;
+	private transient int 					halfOfRowsPerFile;
+	private transient int 					notModifiedBoost;
+	private transient int 					overHalfFullBoost;
+
+	@Override
+	public final void allocate(final int cachePages, final int rowsPerFile, final int notModifiedBoost, final int overHalfFullBoost)
+	{
+		queues 				= new byte[cachePages];
+		freePages 			= new int[cachePages];
+		freePositions 		= new int[cachePages];
+		for(int page = 0; page < cachePages; page++)
+		{
+			// the lowest pages are used first
+			freePages[page] 						= cachePages - 1 - page;
+			freePositions[cachePages - 1 - page] 	= page;
+		}
+		freeCount 			= cachePages;
+		previous 			= new int[cachePages];
+		next 				= new int[cachePages];
+		firstInHead 		= NONE;
+		firstInTail 		= NONE;
+		firstInCount 		= 0;
+		firstInCapacity 	= Math.max(1, cachePages >> 2);
+		weights 			= new int[cachePages];
+		seenServiceNumbers 	= new long[cachePages];
+		hand 				= 0;
+		mainCount 			= 0;
+		ghosts 				= new LinkedHashSet<Long>();
+		ghostCapacity 		= Math.max(1, cachePages >> 1);
+		activePages 		= cachePages;
+		halfOfRowsPerFile 	= rowsPerFile >> 1;
+		setBoosts(notModifiedBoost, overHalfFullBoost);
+	}
+
+	@Override
+	public final void setActivePages(final int activePages)
+	{
+		// pages given up are free, and leave the free pages
+		for(int page = activePages; page < this.activePages; page++)
+		{
+			removeFree(page);
+		}
+		for(int page = this.activePages; page < activePages; page++)
+		{
+			freePositions[page] 	= freeCount;
+			freePages[freeCount++] 	= page;
+		}
+		this.activePages 	= activePages;
+		firstInCapacity 	= Math.max(1, activePages >> 2);
+		ghostCapacity 		= Math.max(1, activePages >> 1);
+		if(hand >= activePages)hand = 0;
+	}
+
+	@Override
+	public final void setBoosts(final int notModifiedBoost, final int overHalfFullBoost)
+	{
+		this.notModifiedBoost 	= notModifiedBoost;
+		this.overHalfFullBoost 	= overHalfFullBoost;
+	}
+
+	@Override
+	public final void pageLoaded(final int page, final FileMetadata fmd)
+	{
+		if(queues[page] != FREE)removeFromQueue(page);
+		removeFree(page);
+		seenServiceNumbers[page] = fmd.lastUsedServiceNumber;
+		if(ghosts.remove(fmd.filenumber))
+		{
+			// used again since it was last freed
+			queues[page] 	= MAIN;
+			weights[page] 	= weightOf(fmd);
+			mainCount++;
+		}
+		else
+		{
+			queues[page] 	= FIRST_IN;
+			appendFirstIn(page);
+		}
+	}
+
+	@Override
+	public final void pageFreed(final int page, final FileMetadata fmd)
+	{
+		if(queues[page] == FREE)return;
+		if((queues[page] == FIRST_IN)&&(fmd != null))remember(fmd.filenumber);
+		removeFromQueue(page);
+		freePositions[page] 	= freeCount;
+		freePages[freeCount++] 	= page;
+	}
+
+	@Override
+	public final int findVictim(final FileMetadata[] cacheContents, final int pageToExclude, final boolean cleanOnly)
+	{
+		// a free page
+		for(int x = freeCount - 1; x >= 0; x--)
+		{
+			if(freePages[x] != pageToExclude)return freePages[x];
+		}
+
+		int retval = NONE;
+		if((firstInCount > firstInCapacity)||(mainCount == 0))retval = findFirstIn(cacheContents, pageToExclude, cleanOnly);
+		if(retval == NONE)retval = findMain(cacheContents, pageToExclude, cleanOnly);
+		if(retval == NONE)retval = findFirstIn(cacheContents, pageToExclude, cleanOnly);
+		return retval;
+	}
+
+	/** Returns the oldest page in the first in queue that may be chosen */
+	private final int findFirstIn(final FileMetadata[] cacheContents, final int pageToExclude, final boolean cleanOnly)
+	{
+		for(int page = firstInHead; page != NONE; page = next[page])
+		{
+			if(page == pageToExclude)continue;
+			if(cleanOnly && (cacheContents[page] != null) && cacheContents[page].modified)continue;
+			return page;
+		}
+		return NONE;
+	}
+
+	/** Sweeps the clock hand over the main queue as ClockReplacement does */
+	private final int findMain(final FileMetadata[] cacheContents, final int pageToExclude, final boolean cleanOnly)
+	{
+		int[] 	weightsL 			= weights;
+		long[] 	seenServiceNumbersL = seenServiceNumbers;
+		byte[] 	queuesL 			= queues;
+		int 	pages 				= activePages;
+
+		long maxSteps = (long)pages * (ClockReplacement.REFERENCED_WEIGHT + notModifiedBoost + overHalfFullBoost + 2);
+		int handL = hand;
+		for(long step = 0; step < maxSteps; step++)
+		{
+			int page = handL;
+			handL++;
+			if(handL == pages)handL = 0;
+			if((queuesL[page] != MAIN)||(page == pageToExclude))continue;
+
+			FileMetadata fmd = cacheContents[page];
+			if(fmd == null){hand = handL; return page;}
+			if(cleanOnly && fmd.modified)continue;
+
+			if(fmd.lastUsedServiceNumber != seenServiceNumbersL[page])
+			{
+				// used since the hand last passed
+				seenServiceNumbersL[page] 	= fmd.lastUsedServiceNumber;
+				weightsL[page] 				= weightOf(fmd);
+			}
+			if(weightsL[page] <= 0){hand = handL; return page;}
+			weightsL[page]--;
+		}
+		hand = handL;
+		return NONE;
+	}
+
+	private final void remember(final long filenumber)
+	{
+		ghosts.add(filenumber);
+		if(ghosts.size() > ghostCapacity)
+		{
+			Iterator<Long> it = ghosts.iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	private final void appendFirstIn(final int page)
+	{
+		previous[page] 	= firstInTail;
+		next[page] 		= NONE;
+		if(firstInTail == NONE)firstInHead = page;
+		else next[firstInTail] = page;
+		firstInTail = page;
+		firstInCount++;
+	}
+
+	private final void removeFromQueue(final int page)
+	{
+		if(queues[page] == FIRST_IN)
+		{
+			int previousPage 	= previous[page];
+			int nextPage 		= next[page];
+			if(previousPage == NONE)firstInHead = nextPage;
+			else next[previousPage] = nextPage;
+			if(nextPage == NONE)firstInTail = previousPage;
+			else previous[nextPage] = previousPage;
+			firstInCount--;
+		}
+		else if(queues[page] == MAIN)
+		{
+			mainCount--;
+		}
+		queues[page] = FREE;
+	}
+
+	private final void removeFree(final int page)
+	{
+		int position = freePositions[page];
+		if((position >= freeCount)||(freePages[position] != page))return; // not free
+		int last = freePages[--freeCount];
+		freePages[position] 	= last;
+		freePositions[last] 	= position;
+	}
+
+	private final int weightOf(final FileMetadata fmd)
+	{
+		int retval = ClockReplacement.REFERENCED_WEIGHT;
+		if(!fmd.modified)retval += notModifiedBoost;
+		if(fmd.rows <= halfOfRowsPerFile)retval += overHalfFullBoost;
+		return retval;
+	}
+}
@@ -0,0 +1,334 @@
+package femtodb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** Append only log of the inserts, updates and deletes applied to a databases tables since its last backups, so they can be replayed on top of a backup after a crash.
+ * Tables being made operational or deleted are logged too, so tables created since the backup are recreated before their rows are replayed.
+ * The log is a series of segment files, a new one being started each time the database is backed up or opened.
+ * Threads append records while holding their tables lock, then wait for them to become durable after releasing it.
+ * The first waiting thread syncs the log for every thread waiting at that time (group commit). */
+final class WriteAheadLog {
+	static final byte 			INSERT 					= 1;
+	static final byte 			UPDATE 					= 2;
+	static final byte 			DELETE 					= 3;
+	/** The record holds the serialised tableCore as it was before it was made operational */
+	static final byte 			CREATE_TABLE 			= 4;
+	static final byte 			DELETE_TABLE 			= 5;
+
+	static final String 		SEGMENT_FILENAME_PREFIX = "wal";
+
+	/** The size of a record before its row bytes: lsn, table number, operation, primary key, flag and row length */
+	private static final int	RECORD_HEADER_SIZE 		= 8 + 8 + 1 + 8 + 2 + 4;
+
+	private final String 		directory;
+	private final long 			groupCommitDelayMillis;
+
+	/** The segment being appended to */
+	private long 				segment;
+	private FileOutputStream 	segmentStream;
+	private BufferedOutputStream segmentBuffer;
+
+	/** The LSN given to the last appended record */
+	private long 				lastLSN;
+
+	/** All records up to this LSN have been synced to disk */
+	private long 				durableLSN;
+
+	/** Set while a thread is syncing the log on behalf of the others */
+	private boolean 			syncing;
+
+	/** The LSN of the last record appended by each thread, used to decide how long it must wait */
+	private final ThreadLocal<long[]> threadsLastLSN = new ThreadLocal<long[]>()
+	{
+		@Override
+		protected long[] initialValue(){return new long[1];}
+	};
+
+	/** Creates a log in the given directory, which will be appended to after any existing records once startSegment has been called.
+	 * A thread waiting for its records to become durable first waits groupCommitDelayMillis so other threads can join the sync. */
+	WriteAheadLog(final String directory, final long groupCommitDelayMillis)
+	{
+		this.directory 				= directory;
+		this.groupCommitDelayMillis = groupCommitDelayMillis;
+		this.segment 				= -1;
+	}
+
+	/** Returns the segment numbers of the log files present in ascending order */
+	final List<Long> segments()
+	{
+		List<Long> retval = new ArrayList<Long>();
+		File[] files = new File(directory).listFiles();
+		if(files == null)return retval;
+		for(File f : files)
+		{
+			String name = f.getName();
+			if(!name.startsWith(SEGMENT_FILENAME_PREFIX))continue;
+			try{
+				retval.add(Long.parseLong(name.substring(SEGMENT_FILENAME_PREFIX.length())));
+			}
+			catch(NumberFormatException e){}
+		}
+		Collections.sort(retval);
+		return retval;
+	}
+
+	/** Reads every record in the log passing them to the database to be replayed, and sets the next LSN to follow the largest seen.
+	 * Replay stops at the first incomplete or corrupt record, so only a prefix of the logged operations is ever applied. The log is truncated there, 
+	 * removing the rest of that segment and every later segment, so the records appended next follow the last record replayed. */
+	final void replay(final FemtoDB database) throws IOException
+	{
+		List<Long> segmentNumbers = segments();
+		for(int i = 0; i < segmentNumbers.size(); i++)
+		{
+			File segmentFile = new File(segmentFilename(segmentNumbers.get(i)));
+			long validLength = replaySegment(segmentFile, database);
+			if(validLength == segmentFile.length())continue;
+			
+			truncate(segmentFile, validLength);
+			for(int j = i + 1; j < segmentNumbers.size(); j++)
+			{
+				File laterSegment = new File(segmentFilename(segmentNumbers.get(j)));
+				if(!laterSegment.delete())throw new IOException("Unable to delete log segment " + laterSegment + " following a corrupt record");
+			}
+			break;
+		}
+		durableLSN = lastLSN;
+	}
+	
+	/** Replays the records of a segment up to its end or its first incomplete or corrupt record, returning the length of the segment holding the records replayed */
+	private final long replaySegment(final File segmentFile, final FemtoDB database) throws IOException
+	{
+		long segmentLength = segmentFile.length();
+		long validLength = 0;
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+		try{
+			CRC32 crc = new CRC32();
+			while(true)
+			{
+				int length;
+				byte[] record;
+				int expectedCRC;
+				try{
+					length = dis.readInt();
+					if((length < RECORD_HEADER_SIZE)||(length > segmentLength))return validLength;
+					record = new byte[length];
+					dis.readFully(record);
+					expectedCRC = dis.readInt();
+				}
+				catch(EOFException e){return validLength;}
+
+				crc.reset();
+				crc.update(record, 0, length);
+				if((int)crc.getValue() != expectedCRC)return validLength;
+
+				long lsn 			= BuffRead.readLong(record, 0);
+				long tableNumber 	= BuffRead.readLong(record, 8);
+				byte operation 		= record[16];
+				long primaryKey 	= BuffRead.readLong(record, 17);
+				short flag 			= BuffRead.readShort(record, 25);
+				int rowLength 		= BuffRead.readInt(record, 27);
+				if(rowLength != (length - RECORD_HEADER_SIZE))return validLength;
+				byte[] row = null;
+				if(rowLength > 0)
+				{
+					row = new byte[rowLength];
+					System.arraycopy(record, RECORD_HEADER_SIZE, row, 0, rowLength);
+				}
+				database.replayLogRecord(lsn, tableNumber, operation, primaryKey, flag, row);
+				if(lsn > lastLSN)lastLSN = lsn;
+				validLength += 4 + length + 4;
+			}
+		}
+		finally
+		{
+			dis.close();
+		}
+	}
+	
+	/** Cuts a segment back to the given length, syncing it so the removed records cannot reappear */
+	private final void truncate(final File segmentFile, final long length) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+		try{
+			raf.setLength(length);
+			raf.getFD().sync();
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/** Makes sure new LSNs follow the given LSN, used so they follow those held by tables whose log records have been deleted */
+	synchronized
+	final void advanceLSN(final long lsn)
+	{
+		if(lsn > lastLSN)lastLSN = lsn;
+		if(lsn > durableLSN)durableLSN = lsn;
+	}
+
+	/** Syncs and closes the current segment then starts appending to a new segment, returning its number. */
+	synchronized
+	final long startSegment() throws IOException
+	{
+		waitForSync();
+		closeSegment();
+		List<Long> existing = segments();
+		long newSegment = existing.isEmpty() ? 0 : existing.get(existing.size() - 1) + 1;
+		if(newSegment <= segment)newSegment = segment + 1;
+		new File(directory).mkdirs();
+		segmentStream 	= new FileOutputStream(segmentFilename(newSegment));
+		segmentBuffer 	= new BufferedOutputStream(segmentStream);
+		segment 		= newSegment;
+		return newSegment;
+	}
+
+	/** Deletes the segments before the given segment, as no backup still needs them */
+	synchronized
+	final void deleteSegmentsBefore(final long firstSegmentNeeded)
+	{
+		for(Long segmentNumber : segments())
+		{
+			if(segmentNumber < firstSegmentNeeded)new File(segmentFilename(segmentNumber)).delete();
+		}
+	}
+
+	/** Appends a record to the log returning its LSN. The record is not durable until awaitDurable has returned. */
+	synchronized
+	final long append(final long tableNumber, final byte operation, final long primaryKey, final short flag, final byte[] row, final int rowLength) throws IOException
+	{
+		if(segmentBuffer == null)throw new IOException("The write ahead log in " + directory + " is closed");
+		long lsn = ++lastLSN;
+
+		byte[] record = new byte[RECORD_HEADER_SIZE + rowLength];
+		BuffWrite.writeLong(record, 0, lsn);
+		BuffWrite.writeLong(record, 8, tableNumber);
+		record[16] = operation;
+		BuffWrite.writeLong(record, 17, primaryKey);
+		BuffWrite.writeShort(record, 25, flag);
+		BuffWrite.writeInt(record, 27, rowLength);
+		if(rowLength > 0)System.arraycopy(row, 0, record, RECORD_HEADER_SIZE, rowLength);
+
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		byte[] lengthAndCRC = new byte[4];
+		BuffWrite.writeInt(lengthAndCRC, 0, record.length);
+		segmentBuffer.write(lengthAndCRC);
+		segmentBuffer.write(record);
+		BuffWrite.writeInt(lengthAndCRC, 0, (int)crc.getValue());
+		segmentBuffer.write(lengthAndCRC);
+
+		threadsLastLSN.get()[0] = lsn;
+		return lsn;
+	}
+
+	/** Blocks until every record appended by the calling thread is durable.
+	 * If no other thread is syncing the log the caller does so, on behalf of all the threads whose records have been appended. */
+	final void awaitDurable() throws IOException
+	{
+		long lsn = threadsLastLSN.get()[0];
+		synchronized(this)
+		{
+			while(durableLSN < lsn)
+			{
+				if(!syncing)break;
+				waitUninterruptibly();
+			}
+			if(durableLSN >= lsn)return;
+			syncing = true;
+		}
+
+		// this thread leads the sync, giving others a chance to append first
+		if(groupCommitDelayMillis > 0)
+		{
+			try {
+				Thread.sleep(groupCommitDelayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		long syncedLSN = 0;
+		IOException failure = null;
+		try{
+			FileOutputStream toSync;
+			synchronized(this)
+			{
+				toSync = segmentStream;
+				if(toSync != null)
+				{
+					segmentBuffer.flush();
+					syncedLSN = lastLSN;
+				}
+			}
+			// appends can continue into the buffer while the file is synced, a closed log has already been synced
+			if(toSync != null)toSync.getChannel().force(false);
+		}
+		catch(IOException e){failure = e;}
+		finally
+		{
+			synchronized(this)
+			{
+				if((failure == null)&&(syncedLSN > durableLSN))durableLSN = syncedLSN;
+				syncing = false;
+				notifyAll();
+			}
+		}
+		if(failure != null)throw failure;
+	}
+
+	/** Syncs and closes the log */
+	synchronized
+	final void close() throws IOException
+	{
+		waitForSync();
+		closeSegment();
+	}
+
+	/** Waits for any thread syncing the log to finish. Must be called holding the logs monitor. */
+	private final void waitForSync()
+	{
+		while(syncing)waitUninterruptibly();
+	}
+
+	/** Syncs and closes the current segment, making all its records durable. Must be called holding the logs monitor. */
+	private final void closeSegment() throws IOException
+	{
+		if(segmentBuffer == null)return;
+		try{
+			segmentBuffer.flush();
+			segmentStream.getChannel().force(false);
+			durableLSN = lastLSN;
+		}
+		finally
+		{
+			segmentBuffer.close();
+			segmentBuffer = null;
+			segmentStream = null;
+		}
+	}
+
+	private final void waitUninterruptibly()
+	{
+		try {
+			wait();
+		} catch (InterruptedException e) {}
+	}
+
+	private final String segmentFilename(final long segmentNumber)
+	{
+		return directory + File.separator + SEGMENT_FILENAME_PREFIX + Long.toString(segmentNumber);
+	}
+}
@@ -0,0 +1,78 @@
+package femtodb;
+
+import java.util.Arrays;
+
+/** The smallest and largest value of each numeric column held in one file of a tableCore, so an iterator filtering on a column range skips files that cannot hold a matching row (see TableCore.fastIterator(int, long, long)).
+ * Values are held as the keys a SecondaryIndex would give them. Ranges only widen as rows are inserted and updated, so rows deleted or changed may leave them wider than the rows held, until they are rebuilt when the file is split, combined or loaded without one.
+ * Held in the file's FileMetadata and saved with it by MetadataFormat. Guarded by the owning tableCore's lock. */
+final class ZoneMap {
+	/** The femtodb_status column, whose row flags change without the row being written, so is not zoned */
+	private static final int STATUS_COLUMN = 1;
+
+	private final long[] 	minimums;
+	private final long[] 	maximums;
+
+	/** Creates a zone map for a file holding no rows, in which every column of the given types that can be indexed has an empty range and every other column matches any range */
+	ZoneMap(final byte[] columnTypes)
+	{
+		int columns = columnTypes.length;
+		minimums = new long[columns];
+		maximums = new long[columns];
+		for(int column = 0; column < columns; column++)
+		{
+			if(isZoned(columnTypes, column))
+			{
+				minimums[column] = Long.MAX_VALUE;
+				maximums[column] = Long.MIN_VALUE;
+			}
+			else
+			{
+				minimums[column] = Long.MIN_VALUE;
+				maximums[column] = Long.MAX_VALUE;
+			}
+		}
+	}
+
+	/** Creates a zone map holding the given ranges, as saved by getMinimums and getMaximums */
+	ZoneMap(final long[] minimums, final long[] maximums)
+	{
+		this.minimums = minimums;
+		this.maximums = maximums;
+	}
+
+	/** Returns true if the column of a table with the given column types has a range */
+	static final boolean isZoned(final byte[] columnTypes, final int column)
+	{
+		return (column != STATUS_COLUMN)&&(SecondaryIndex.canIndex(columnTypes[column]));
+	}
+
+	/** Widens the column's range to hold the key */
+	final void include(final int column, final long key)
+	{
+		if(key < minimums[column])minimums[column] = key;
+		if(key > maximums[column])maximums[column] = key;
+	}
+
+	/** Returns false if no row of the file can hold a key from lowKey to highKey in the column */
+	final boolean mayMatch(final int column, final long lowKey, final long highKey)
+	{
+		if(column >= minimums.length)return true;
+		return (lowKey <= maximums[column])&&(highKey >= minimums[column])&&(lowKey <= highKey);
+	}
+
+	final long[] getMinimums()
+	{
+		return minimums;
+	}
+
+	final long[] getMaximums()
+	{
+		return maximums;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "minimums " + Arrays.toString(minimums) + " maximums " + Arrays.toString(maximums);
+	}
+}
@@ -1,6 +1,9 @@
 package femtodbiterators;
 import femtodb.FemtoDBIterator;
+import femtodb.LongBitmap;
 import femtodb.RowAccessType;
+import femtodb.SecondaryIndex;
+import femtodb.TableCore;
 import femtodbexceptions.FemtoDBConcurrentModificationException;
 import femtodbexceptions.FemtoDBIOException;
 
@@ -165,6 +168,141 @@ public class Filt{
 		return null;
 	}
 	
+	// *******************************************************
+	// ************** TABLE CONSTRUCTORS *********************
+	// *******************************************************
+	// These filter a whole table, using the column's secondary index when it has one of the compared type (see TableCore.createIndex), then its bitmap index 
+	// (see TableCore.createBitmapIndex), and otherwise testing the column in place in the cache as its fastIterator scans, skipping the files whose zone maps 
+	// show they hold no matching value, so only the matching rows are copied out. Comparisons that are not one range of the column filter its whole fastIterator.
+	// Strings compared by contains, starts with or ends with are filtered from the rows found through the column's trigram index when it has one.
+	// The rows found through a secondary index are ordered by the column rather than the primary key, and as with fastIterator cannot be removed.
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final byte compareValue)
+	{
+		long[] range = keyRange(table, column, TableCore.COLUMN_TYPE_BYTE, op, compareValue);
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final char compareValue)
+	{
+		long[] range = keyRange(table, column, TableCore.COLUMN_TYPE_CHAR, op, compareValue);
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final short compareValue)
+	{
+		long[] range = keyRange(table, column, TableCore.COLUMN_TYPE_SHORT, op, compareValue);
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final int compareValue)
+	{
+		long[] range = keyRange(table, column, TableCore.COLUMN_TYPE_INT, op, compareValue);
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final long compareValue)
+	{
+		long[] range = keyRange(table, column, TableCore.COLUMN_TYPE_LONG, op, compareValue);
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final float compareValue)
+	{
+		long[] range = null;
+		if(!Float.isNaN(compareValue))range = keyRange(table, column, TableCore.COLUMN_TYPE_FLOAT, op, SecondaryIndex.keyOf(compareValue), SecondaryIndex.keyOf(Float.POSITIVE_INFINITY));
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final double compareValue)
+	{
+		long[] range = null;
+		if(!Double.isNaN(compareValue))range = keyRange(table, column, TableCore.COLUMN_TYPE_DOUBLE, op, SecondaryIndex.keyOf(compareValue), SecondaryIndex.keyOf(Double.POSITIVE_INFINITY));
+		FemtoDBIterator ranged = rangeFilt(table, column, range);
+		if(ranged != null)return ranged;
+		return getFilt(column, op, compareValue, table.fastIterator());
+	}
+	
+	public static final FemtoDBIterator getFilt(final TableCore table, final int column, final String op, final String compareValue)
+	{
+		// the rows holding every trigram of the value are read through the column's trigram index (see TableCore.createTrigramIndex) then verified by the filter.
+		// The trigrams are case sensitive, so comparisons ignoring case filter the whole fastIterator.
+		LongBitmap candidates = null;
+		if(!calcIgnoreCase(op))switch(calcOp(op)){
+		case INT_CONTAINS:
+			candidates = table.candidatesContaining(column, compareValue);
+			break;
+		case INT_STARTS_WITH:
+			candidates = table.candidatesStartingWith(column, compareValue);
+			break;
+		case INT_ENDS_WITH:
+			candidates = table.candidatesEndingWith(column, compareValue);
+			break;
+		}
+		if(candidates == null)return getFilt(column, op, compareValue, table.fastIterator());
+		return getFilt(column, op, compareValue, table.bitmapIterator(candidates));
+	}
+	
+	/** Returns an iterator over the rows of the table whose column keys lie in the range, or null if there is no range. 
+	 * The rows are found through the column's secondary or bitmap index, or otherwise by testing the column in place in the cache of the files whose zone maps may hold the range. */
+	private static final FemtoDBIterator rangeFilt(final TableCore table, final int column, final long[] range)
+	{
+		if(range == null)return null;
+		FemtoDBIterator retval = table.indexIterator(column, range[0], range[1]);
+		if(retval == null)retval = table.bitmapIterator(column, range[0], range[1]);
+		if(retval == null)retval = table.fastIterator(column, range[0], range[1], new KeyRangePredicate(column, range[0], range[1]));
+		return retval;
+	}
+	
+	/** Returns the lowest and highest column key matching a comparison, or null if the column is not of the given type or the matching keys are not one range. 
+	 * There are no matching keys if the lowest is greater than the highest. */
+	private static final long[] keyRange(final TableCore table, final int column, final byte columnType, final String op, final long key)
+	{
+		if(table.getColumnType(column) != columnType)return null;
+		boolean invert = calcInvert(op);
+		switch(calcOp(op)){
+		case INT_LT:
+			if(invert)return new long[]{key, Long.MAX_VALUE};
+			if(key == Long.MIN_VALUE)return new long[]{Long.MAX_VALUE, Long.MIN_VALUE};
+			return new long[]{Long.MIN_VALUE, key - 1};
+		case INT_EQ:
+			if(invert)return null;
+			return new long[]{key, key};
+		case INT_GT:
+			if(invert)return new long[]{Long.MIN_VALUE, key};
+			if(key == Long.MAX_VALUE)return new long[]{Long.MAX_VALUE, Long.MIN_VALUE};
+			return new long[]{key + 1, Long.MAX_VALUE};
+		}
+		return null;
+	}
+	
+	/** As above for floats and doubles, whose NaN values are keyed above positive infinity. A NaN never compares true, so inverted operators have no range. */
+	private static final long[] keyRange(final TableCore table, final int column, final byte columnType, final String op, final long key, final long positiveInfinityKey)
+	{
+		if((table.getColumnType(column) != columnType)||(calcInvert(op)))return null;
+		switch(calcOp(op)){
+		case INT_LT:
+			return new long[]{Long.MIN_VALUE, key - 1};
+		case INT_EQ:
+			return new long[]{key, key};
+		case INT_GT:
+			return new long[]{key + 1, positiveInfinityKey};
+		}
+		return null;
+	}
+	
 	private static final int calcOp(String op)
 	{	
 		if(op == "<"){return INT_LT;}
@@ -193,6 +331,8 @@ public class Filt{
 		if(op == ">IGNORECASE"){return INT_GT_IGNORE_CASE;}
 		if(op == "CONTAINS"){return INT_CONTAINS;}
 		if(op == "CONTAINSIGNORECASE"){return INT_CONTAINS;}
+		if(op == "STARTSWITH"){return INT_STARTS_WITH;}
+		if(op == "ENDSWITH"){return INT_ENDS_WITH;}
 		
 		return 0;
 	}
@@ -210,4 +350,13 @@ public class Filt{
 		if(op == "<="){return true;}
 		return false;
 	}	
+	
+	private static final boolean calcIgnoreCase(String op)
+	{
+		if(op == "<IGNORECASE"){return true;}
+		if(op == "=IGNORECASE"){return true;}
+		if(op == ">IGNORECASE"){return true;}
+		if(op == "CONTAINSIGNORECASE"){return true;}
+		return false;
+	}
 }
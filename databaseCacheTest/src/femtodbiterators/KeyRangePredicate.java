@@ -0,0 +1,24 @@
+package femtodbiterators;
+
+import femtodb.CacheRow;
+import femtodb.RowPredicate;
+
+/** Matches the rows whose column key, as a SecondaryIndex would give it, is from lowKey to highKey inclusive. Used by Filt to test rows in place in the cache. */
+final class KeyRangePredicate implements RowPredicate{
+	private final int 	column;
+	private final long 	lowKey;
+	private final long 	highKey;
+	
+	KeyRangePredicate(final int column, final long lowKey, final long highKey)
+	{
+		this.column 	= column;
+		this.lowKey 	= lowKey;
+		this.highKey 	= highKey;
+	}
+	
+	@Override
+	public boolean matches(final CacheRow row) {
+		long key = row.keyOf(column);
+		return (key >= lowKey)&&(key <= highKey);
+	}
+}
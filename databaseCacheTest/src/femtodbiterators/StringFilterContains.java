@@ -30,6 +30,7 @@ public class StringFilterContains implements FemtoDBIterator{
 			if(temp.getString(columnL).contains(compareValueL))
 			{
 				currentRow = temp;
+				return true;
 			}
 		}
 	}
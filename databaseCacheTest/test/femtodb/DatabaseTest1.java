@@ -1,9 +1,11 @@
 package femtodb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 //import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
-//import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.After;
@@ -17,6 +19,7 @@ import femtodbexceptions.FemtoDBInvalidValueException;
 //import femtodbexceptions.FemtoDBTableDeletedException;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 
 
 public class DatabaseTest1 {
@@ -303,6 +306,1437 @@ public class DatabaseTest1 {
 			fail();
 		}
 	}
+	
+	// ************************************************
+	// ************************************************
+	// **********   testBackgroundFlusher()   ********** 
+	// ************************************************
+	// ************************************************	
+	@Test
+	public void testBackgroundFlusher()
+	{	
+		System.out.println("DatabaseTest1 - testBackgroundFlusher()");
+		try{
+			FemtoDB fdb = new FemtoDB("debug1");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// create a table in the database
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			
+			// make the table operational
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+			
+			// flush any page modified for more than 10 milliseconds
+			fdb.startBackgroundFlusher(5, 10, 1.0);
+				
+			// insert a load of stuff
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 15; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// the files on disk only match the metadata once every modified page has been written
+			boolean flushed = false;
+			for(int x = 0; (x < 500)&&(!flushed); x++)
+			{
+				Thread.sleep(10);
+				flushed = table1.validateTable("debug1");
+			}
+			assertTrue(flushed);
+			assertEquals(null, fdb.getBackgroundFlusherFailure());
+			
+			// the flusher is stopped by shutdown and the database reopens intact
+			fdb.shutdown();
+			FemtoDB fdb2 = FemtoDB.open("debug1", null);
+			TableCore table2 =  fdb2.getTable("table1");
+			assertNotNull(table2);
+			for(int x = 1; x < 15; x++)
+			{
+				byte[] readBack = table2.seekByteArray((long)x);
+				assertEquals((2*x), BuffRead.readInt(readBack, 10));
+			}
+		}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********     testWriteAheadLog()     ********* 
+	// ************************************************
+	// ************************************************
+
+	@Test
+	public void testWriteAheadLog()
+	{	
+		System.out.println("DatabaseTest1 - testWriteAheadLog()");
+		try{
+			// ***************** CREATE DATABASE TO CRASH ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			fbackup.mkdir();
+			
+			// create a table in the database
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			
+			// make the table operational
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+			fdb.enableWriteAheadLog(1);
+			
+			// insert a load of stuff, half before the backup and half after
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 41; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+				if(x == 20)fdb.backup();
+			}
+			
+			// update and delete rows either side of the backup
+			for(int x = 1; x < 41; x += 3)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (3 * x));	
+				table1.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert);
+			}
+			for(int x = 2; x < 41; x += 3)
+			{
+				table1.deleteByPrimaryKey((long)x);
+			}
+			
+			// *****************  CRASH, LOSING THE DATABASE ******************
+			FileUtils.recursiveDelete(new File("debug1"));
+			new File("debug1").mkdir();
+			
+			// *****************  RECOVER FROM THE BACKUP AND THE LOG *********
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table2 =  fdb2.getTable("table1");
+			assertNotNull(table2);
+			
+			// read back database contents		
+			byte[] readBack;
+			int rows = 0;
+			FemtoDBIterator it = table2.fastIterator();
+			while(it.hasNext())
+			{
+				readBack = it.next().byteArray;
+				long pk = BuffRead.readLong(readBack, 0);
+				int readInt = BuffRead.readInt(readBack, 10);
+				assertTrue((pk % 3) != 2);
+				if((pk % 3) == 1)assertEquals((3*pk), readInt);
+				else assertEquals((2*pk), readInt);
+				rows++;
+			}
+			assertEquals(27, rows);
+			
+			// a clean shutdown and open must not apply the log a second time
+			fdb2.shutdown();
+			FemtoDB fdb3 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table3 =  fdb3.getTable("table1");
+			rows = 0;
+			it = table3.fastIterator();
+			while(it.hasNext())
+			{
+				it.next();
+				rows++;
+			}
+			assertEquals(27, rows);
+			fdb3.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// ******  testWriteAheadLogTableCreation() ******* 
+	// ************************************************
+	// ************************************************
 
+	@Test
+	public void testWriteAheadLogTableCreation()
+	{	
+		System.out.println("DatabaseTest1 - testWriteAheadLogTableCreation()");
+		try{
+			// ***************** CREATE DATABASE TO CRASH ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			fbackup.mkdir();
+			
+			// a table created before the backup but made operational after it
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			fdb.enableWriteAheadLog(1);
+			fdb.backup();
+			table1.makeOperational();
+			
+			// tables created after the backup, one of which is then deleted
+			TableCore[] created = new TableCore[2];
+			for(int t = 0; t < 2; t++)
+			{
+				created[t] =  fdb.createTable("table" + (t + 2), "pk");
+				created[t].setRowsPerFile(5);
+				created[t].setRemoveOccupancyRatio(0.4);
+				created[t].setCombineOccupancyRatio(0.8);
+				created[t].addIntegerColumn("payload");
+				created[t].setCacheSize(140);
+				created[t].makeOperational();
+			}
+			
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 21; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				if(x <= 5)table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+				created[0].insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+				created[1].insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			fdb.deleteTable("table3");
+			
+			// *****************  CRASH, LOSING THE DATABASE ******************
+			FileUtils.recursiveDelete(new File("debug1"));
+			new File("debug1").mkdir();
+			
+			// *****************  RECOVER FROM THE BACKUP AND THE LOG *********
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			assertNull(fdb2.getTable("table3"));
+			TableCore table2 =  fdb2.getTable("table2");
+			assertNotNull(table2);
+			int rows = 0;
+			FemtoDBIterator it = table2.fastIterator();
+			while(it.hasNext())
+			{
+				byte[] readBack = it.next().byteArray;
+				long pk = BuffRead.readLong(readBack, 0);
+				assertEquals((2*pk), BuffRead.readInt(readBack, 10));
+				rows++;
+			}
+			assertEquals(20, rows);
+			
+			rows = 0;
+			it = fdb2.getTable("table1").fastIterator();
+			while(it.hasNext())
+			{
+				it.next();
+				rows++;
+			}
+			assertEquals(5, rows);
+			
+			// tables created after recovery do not reuse the numbers of those recreated
+			TableCore table4 = fdb2.createTable("table4", "pk");
+			assertTrue(table4.getTableNumber() > table2.getTableNumber());
+			fdb2.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// ******  testWriteAheadLogCorruptRecord() ******* 
+	// ************************************************
+	// ************************************************
 
+	@Test
+	public void testWriteAheadLogCorruptRecord()
+	{	
+		System.out.println("DatabaseTest1 - testWriteAheadLogCorruptRecord()");
+		try{
+			// ***************** CREATE DATABASE TO CRASH ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			fbackup.mkdir();
+			
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+			fdb.enableWriteAheadLog(1);
+			fdb.backup();
+			
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 11; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// crash, recover, then log ten more rows in a later segment and crash again
+			FileUtils.recursiveDelete(new File("debug1"));
+			new File("debug1").mkdir();
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table2 =  fdb2.getTable("table1");
+			for(int x = 11; x < 21; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table2.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			FileUtils.recursiveDelete(new File("debug1"));
+			new File("debug1").mkdir();
+			
+			// corrupt the record inserting row 6 in the earlier segment, each insert record taking 4 + 31 + 14 + 4 bytes
+			String walDirectory = "debug1backup" + File.separator + FemtoDB.WAL_DIRECTORY_NAME;
+			java.util.List<Long> segments = new WriteAheadLog(walDirectory, 0).segments();
+			long corruptSegment = segments.get(segments.size() - 2);
+			RandomAccessFile raf = new RandomAccessFile(walDirectory + File.separator + WriteAheadLog.SEGMENT_FILENAME_PREFIX + corruptSegment, "rw");
+			raf.seek((5 * 53) + 20);
+			int b = raf.read();
+			raf.seek((5 * 53) + 20);
+			raf.write(b ^ 0xFF);
+			raf.close();
+			
+			// only the rows logged before the corrupt record are recovered, and the later segment is discarded
+			FemtoDB fdb3 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table3 =  fdb3.getTable("table1");
+			int rows = 0;
+			FemtoDBIterator it = table3.fastIterator();
+			while(it.hasNext())
+			{
+				long pk = BuffRead.readLong(it.next().byteArray, 0);
+				assertTrue(pk <= 5);
+				rows++;
+			}
+			assertEquals(5, rows);
+			assertEquals(5 * 53, new File(walDirectory + File.separator + WriteAheadLog.SEGMENT_FILENAME_PREFIX + corruptSegment).length());
+			// the later segment was deleted, so its number is reused by the segment the reopened database appends to
+			assertEquals(0, new File(walDirectory + File.separator + WriteAheadLog.SEGMENT_FILENAME_PREFIX + segments.get(segments.size() - 1)).length());
+			fdb3.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********   testIncrementalBackup()   ********* 
+	// ************************************************
+	// ************************************************
+
+	@Test
+	public void testIncrementalBackup()
+	{	
+		System.out.println("DatabaseTest1 - testIncrementalBackup()");
+		try{
+			// ***************** CREATE DATABASE TO BACKUP ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// create a table in the database
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			
+			// make the table operational
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+				
+			// insert a load of stuff
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 41; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// the first backups to ping and pong are complete
+			fdb.backup();
+			fdb.backup();
+			
+			// mark the files held by ping, which the next backup brings up to date
+			File pingTableDirectory = new File("debug1backup" + File.separator + "ping" + File.separator + table1.getTableNumber());
+			for(File dataFile : pingTableDirectory.listFiles())
+			{
+				dataFile.setLastModified(0);
+			}
+			
+			// modify the end of the table only, deleting enough rows to combine files
+			for(int x = 31; x < 41; x++)
+			{
+				if((x % 2) == 0)
+				{
+					table1.deleteByPrimaryKey((long)x);
+				}
+				else
+				{
+					BuffWrite.writeLong(toInsert, 0, (long)x);
+					BuffWrite.writeShort(toInsert, 8, (10 * x));
+					BuffWrite.writeInt(toInsert, 10, (3 * x));	
+					table1.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert);
+				}
+			}
+			fdb.backup();
+			
+			// the untouched files were not copied again
+			int untouched = 0;
+			int copied = 0;
+			int dataFiles = 0;
+			for(File dataFile : pingTableDirectory.listFiles())
+			{
+				if(!dataFile.getName().matches("[0-9]+"))continue;
+				dataFiles++;
+				if(dataFile.lastModified() == 0)untouched++;
+				else copied++;
+			}
+			assertTrue(untouched > 0);
+			assertTrue(copied > 0);
+			
+			// the files of combined away files were removed
+			File dbTableDirectory = new File("debug1" + File.separator + table1.getTableNumber());
+			int dbDataFiles = 0;
+			for(File dataFile : dbTableDirectory.listFiles())
+			{
+				if(dataFile.getName().matches("[0-9]+"))dbDataFiles++;
+			}
+			assertEquals(dbDataFiles, dataFiles);
+			
+			// *****************  OPEN FROM THE INCREMENTAL BACKUP *********
+			fdb.shutdown();
+			File f2 = new File("debug1");
+			if(f2.exists())FileUtils.recursiveDelete(f2);
+			f2.mkdir();
+			
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table2 =  fdb2.getTable("table1");
+			assertNotNull(table2);
+			
+			// read back database contents		
+			int rows = 0;
+			FemtoDBIterator it = table2.fastIterator();
+			while(it.hasNext())
+			{
+				byte[] readBack = it.next().byteArray;
+				long pk = BuffRead.readLong(readBack, 0);
+				int readInt = BuffRead.readInt(readBack, 10);
+				if(pk > 30)
+				{
+					assertTrue((pk % 2) == 1);
+					assertEquals((3*pk), readInt);
+				}
+				else assertEquals((2*pk), readInt);
+				rows++;
+			}
+			assertEquals(35, rows);
+			fdb2.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// ***  testIncrementalBackupAfterRestore()  ****** 
+	// ************************************************
+	// ************************************************
+
+	@Test
+	public void testIncrementalBackupAfterRestore()
+	{	
+		System.out.println("DatabaseTest1 - testIncrementalBackupAfterRestore()");
+		try{
+			// ***************** CREATE DATABASE TO BACKUP ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// create a table in the database
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			
+			// make the table operational
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+			
+			// complete backups to ping then pong, then ping is brought up to date after the second half of the table changes
+			updateRows(table1, 1, 40, 2);
+			fdb.backup();
+			fdb.backup();
+			updateRows(table1, 21, 40, 3);
+			for(int x = 0; x < 1000; x++)table1.seekByteArray(1L);
+			fdb.backup();
+			fdb.shutdown();
+			
+			// *****************  RESTORE FROM THE OLDER PONG BACKUP *********
+			File f2 = new File("debug1");
+			FileUtils.recursiveDelete(f2);
+			f2.mkdir();
+			File pingFinish = new File("debug1backup" + File.separator + "ping" + File.separator + "finish");
+			File hiddenFinish = new File("debug1backup" + File.separator + "pingfinish");
+			assertTrue(pingFinish.renameTo(hiddenFinish));
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			assertTrue(hiddenFinish.renameTo(pingFinish));
+			
+			// change the second half of the table again, its service number passing the one ping recorded, then backup to pong then ping
+			TableCore table2 =  fdb2.getTable("table1");
+			updateRows(table2, 21, 40, 4);
+			for(int x = 0; x < 3000; x++)table2.seekByteArray(1L);
+			fdb2.backup();
+			fdb2.backup();
+			fdb2.shutdown();
+			
+			// *****************  OPEN FROM PING, WHICH MUST HOLD THE CHANGES MADE AFTER THE RESTORE *********
+			FileUtils.recursiveDelete(f2);
+			f2.mkdir();
+			File pongFinish = new File("debug1backup" + File.separator + "pong" + File.separator + "finish");
+			assertTrue(pongFinish.delete());
+			FemtoDB fdb3 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table3 =  fdb3.getTable("table1");
+			int rows = 0;
+			FemtoDBIterator it = table3.fastIterator();
+			while(it.hasNext())
+			{
+				byte[] readBack = it.next().byteArray;
+				long pk = BuffRead.readLong(readBack, 0);
+				assertEquals(((pk > 20) ? 4 : 2) * pk, BuffRead.readInt(readBack, 10));
+				rows++;
+			}
+			assertEquals(40, rows);
+			fdb3.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	/** Inserts or updates the rows from first to last, their payloads being multiple times their primary keys */
+	private static void updateRows(final TableCore table, final int first, final int last, final int multiple) throws Exception
+	{
+		byte[] toInsert = new byte[8+2+4];
+		for(int x = first; x <= last; x++)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (multiple * x));	
+			if(!table.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert))table.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********     testOnlineBackup()     ********** 
+	// ************************************************
+	// ************************************************
+
+	@Test
+	public void testOnlineBackup()
+	{	
+		System.out.println("DatabaseTest1 - testOnlineBackup()");
+		try{
+			// ***************** CREATE DATABASE TO BACKUP ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			fdb.setOnlineBackup(true);
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// create a table in the database
+			final TableCore table1 =  fdb.createTable("table1", "pk");
+			
+			// make the table operational
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+				
+			// insert a load of stuff
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 201; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, x);	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// keep updating, inserting and deleting rows while backing up, each row keeps its primary key modulo 1000 as its payload
+			final boolean[] stop = new boolean[1];
+			final Exception[] writerFailure = new Exception[1];
+			Thread writer = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					byte[] toWrite = new byte[8+2+4];
+					try{
+						for(int round = 1; !stop[0]; round++)
+						{
+							for(int x = 1; x < 201; x += 7)
+							{
+								BuffWrite.writeLong(toWrite, 0, (long)x);
+								BuffWrite.writeShort(toWrite, 8, (10 * x));
+								BuffWrite.writeInt(toWrite, 10, (x + (1000 * round)));	
+								table1.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toWrite);
+							}
+							long pk = 1000 + round;
+							BuffWrite.writeLong(toWrite, 0, pk);
+							BuffWrite.writeInt(toWrite, 10, (int)pk);	
+							table1.insertOrIgnoreByteArrayByPrimaryKey(pk, toWrite);
+							if(round > 5)table1.deleteByPrimaryKey(pk - 5);
+						}
+					}
+					catch(Exception e){writerFailure[0] = e;}
+				}
+			};
+			writer.start();
+			for(int x = 0; x < 6; x++)
+			{
+				fdb.backup();
+			}
+			stop[0] = true;
+			writer.join();
+			assertNull(writerFailure[0]);
+			fdb.shutdown();
+			
+			// *****************  OPEN FROM THE ONLINE BACKUP *********
+			File f2 = new File("debug1");
+			if(f2.exists())FileUtils.recursiveDelete(f2);
+			f2.mkdir();
+			
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table2 =  fdb2.getTable("table1");
+			assertNotNull(table2);
+			
+			// every row must be as it was at some point during the backup
+			int originalRows = 0;
+			FemtoDBIterator it = table2.fastIterator();
+			while(it.hasNext())
+			{
+				byte[] readBack = it.next().byteArray;
+				long pk = BuffRead.readLong(readBack, 0);
+				int readInt = BuffRead.readInt(readBack, 10);
+				if(pk < 1000)
+				{
+					assertEquals(pk, readInt % 1000);
+					originalRows++;
+				}
+				else assertEquals(pk, readInt);
+			}
+			assertEquals(200, originalRows);
+			fdb2.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********  testParallelBackupRestore()  ******** 
+	// ************************************************
+	// ************************************************
+
+	@Test
+	public void testParallelBackupRestore()
+	{	
+		System.out.println("DatabaseTest1 - testParallelBackupRestore()");
+		try{
+			// ***************** CREATE DATABASE TO BACKUP ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			fdb.setBackupThreads(3);
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// create tables in the database, the last using segmented storage
+			byte[] toInsert = new byte[8+2+4];
+			for(int table = 0; table < 4; table++)
+			{
+				TableCore table1 =  fdb.createTable("table" + table, "pk");
+				table1.setRowsPerFile(5);
+				table1.setRemoveOccupancyRatio(0.4);
+				table1.setCombineOccupancyRatio(0.8);
+				table1.addIntegerColumn("payload");
+				table1.setCacheSize(140);
+				if(table == 3)table1.setSegmentedStorage(true);
+				table1.makeOperational();
+				for(int x = 1; x < 101; x++)
+				{
+					BuffWrite.writeLong(toInsert, 0, (long)x);
+					BuffWrite.writeShort(toInsert, 8, (10 * x));
+					BuffWrite.writeInt(toInsert, 10, (x + table));	
+					table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+				}
+			}
+			
+			// *****************  BACKUP THEN LOSE THE DATABASE ******************
+			fdb.backup();
+			BackupStatistics backupStatistics = fdb.getLastBackupStatistics();
+			assertNotNull(backupStatistics);
+			assertEquals(3, backupStatistics.getThreads());
+			assertTrue(backupStatistics.getFiles() > 0);
+			assertTrue(backupStatistics.getBytes() >= (4 * 100 * 14));
+			fdb.shutdown();
+			
+			File f2 = new File("debug1");
+			if(f2.exists())FileUtils.recursiveDelete(f2);
+			f2.mkdir();
+			
+			// *****************  RESTORE USING SEVERAL THREADS *********
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup", 3);
+			BackupStatistics restoreStatistics = fdb2.getLastRestoreStatistics();
+			assertNotNull(restoreStatistics);
+			assertTrue(restoreStatistics.getBytes() >= backupStatistics.getBytes());
+			
+			for(int table = 0; table < 4; table++)
+			{
+				TableCore table2 =  fdb2.getTable("table" + table);
+				assertNotNull(table2);
+				for(int x = 1; x < 101; x++)
+				{
+					byte[] readBack = table2.seekByteArray((long)x);
+					assertEquals((x + table), BuffRead.readInt(readBack, 10));
+				}
+			}
+			fdb2.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********       testManifest()       ********** 
+	// ************************************************
+	// ************************************************
+
+	@Test
+	public void testManifest()
+	{	
+		System.out.println("DatabaseTest1 - testManifest()");
+		try{
+			// ***************** CREATE DATABASE TO SHUTDOWN ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// create a table in the database
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			
+			// make the table operational
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(140);
+			table1.makeOperational();
+				
+			// insert a load of stuff
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 31; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			fdb.backup();
+			fdb.shutdown();
+			
+			// *****************  THE MANIFESTS MATCH THEIR DIRECTORIES *********
+			assertTrue(Manifest.validate("debug1") != -1L);
+			assertTrue(Manifest.validate("debug1backup" + File.separator + "ping") != -1L);
+			
+			// opening the database writes a new start file, so the manifest no longer matches until shutdown
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			assertEquals(-1L, Manifest.validate("debug1"));
+			fdb2.shutdown();
+			assertTrue(Manifest.validate("debug1") != -1L);
+			
+			// a data file changing size is noticed
+			File dataDirectory = new File("debug1" + File.separator + table1.getTableNumber());
+			File dataFile = dataDirectory.listFiles()[0];
+			RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+			raf.setLength(raf.length() + 1);
+			raf.close();
+			assertEquals(-1L, Manifest.validate("debug1"));
+			
+			// as is a tableCore file changing
+			assertTrue(Manifest.validate("debug1backup" + File.separator + "ping") != -1L);
+			File tableFile = new File("debug1backup" + File.separator + "ping" + File.separator + "tableCore" + table1.getTableNumber());
+			raf = new RandomAccessFile(tableFile, "rw");
+			raf.seek(raf.length() - 1);
+			int lastByte = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(lastByte ^ 0xFF);
+			raf.close();
+			assertEquals(-1L, Manifest.validate("debug1backup" + File.separator + "ping"));
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void testLazyTableActivation()
+	{	
+		System.out.println("DatabaseTest1 - testLazyTableActivation()");
+		try{
+			// ***************** CREATE DATABASE TO SHUTDOWN ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// create two tables in the database
+			for(int table = 1; table <= 2; table++)
+			{
+				TableCore t =  fdb.createTable("table" + table, "pk");
+				t.setRowsPerFile(5);
+				t.setRemoveOccupancyRatio(0.4);
+				t.setCombineOccupancyRatio(0.8);
+				t.addIntegerColumn("payload");
+				t.setCacheSize(140);
+				t.makeOperational();
+				
+				byte[] toInsert = new byte[8+2+4];
+				for(int x = 1; x < 31; x++)
+				{
+					BuffWrite.writeLong(toInsert, 0, (long)x);
+					BuffWrite.writeShort(toInsert, 8, (10 * x));
+					BuffWrite.writeInt(toInsert, 10, (table * x));	
+					t.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+				}
+			}
+			fdb.shutdown();
+			
+			// *****************  TABLES ARE ONLY ACTIVATED WHEN FIRST OBTAINED *********
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			for(TableCore t : fdb2.getTableCores())
+			{
+				assertTrue(t.isDormant());
+			}
+			
+			TableCore table2 = fdb2.getTable("table2");
+			assertFalse(table2.isDormant());
+			for(int x = 1; x < 31; x++)
+			{
+				assertEquals(2 * x, BuffRead.readInt(table2.seekByteArray((long)x), 10));
+			}
+			
+			// the unused table is backed up without being activated
+			fdb2.backup();
+			assertTrue(fdb2.getTableCores().get(0).isDormant());
+			fdb2.shutdown();
+			
+			// and is intact in the backup
+			FileUtils.recursiveDelete(new File("debug1"));
+			FemtoDB fdb3 = FemtoDB.open("debug1", "debug1backup");
+			TableCore table1 = fdb3.getTable("table1");
+			for(int x = 1; x < 31; x++)
+			{
+				assertEquals(x, BuffRead.readInt(table1.seekByteArray((long)x), 10));
+			}
+			fdb3.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void testBufferPool()
+	{	
+		System.out.println("DatabaseTest1 - testBufferPool()");
+		try{
+			// ***************** CREATE DATABASE SHARING ONE BUFFER POOL ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// room for twenty pages between the tables, each table's cache size defaulting to the pool shared between the tables held when it was made operational
+			fdb.setBufferPoolSize(20 * BufferPool.MINIMUM_SIZE_CLASS);
+			TableCore[] tables = new TableCore[2];
+			for(int table = 0; table < 2; table++)
+			{
+				tables[table] =  fdb.createTable("table" + table, "pk");
+				tables[table].setRowsPerFile(5);
+				tables[table].setRemoveOccupancyRatio(0.4);
+				tables[table].setCombineOccupancyRatio(0.8);
+				tables[table].addIntegerColumn("payload");
+				tables[table].makeOperational();
+				assertEquals(TableCore.MINIMUM_POOLED_PAGES, tables[table].getActiveCachePages());
+			}
+			assertTrue(tables[1].getCacheSize() <= (fdb.getBufferPoolSize() / 2));
+			assertTrue(tables[1].getCacheSize() < tables[0].getCacheSize());
+			
+			// the pool cannot be replaced while the tables are using it
+			try {
+				fdb.setBufferPoolSize(40 * BufferPool.MINIMUM_SIZE_CLASS);
+				fail();
+			} catch (FemtoDBInvalidValueException e) {
+			}
+			assertEquals(20 * BufferPool.MINIMUM_SIZE_CLASS, fdb.getBufferPoolSize());
+			
+			// the first table takes what the second is not using
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 301; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				tables[0].insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			assertEquals(20 - TableCore.MINIMUM_POOLED_PAGES, tables[0].getActiveCachePages());
+			assertTrue(fdb.getBufferPool().getAllocatedBytes() <= fdb.getBufferPool().getBudget());
+			
+			// then gives pages up once the second table is busy
+			for(int x = 1; x < 301; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (3 * x));	
+				tables[1].insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			long giveUp = System.currentTimeMillis() + 10000;
+			while((tables[1].getActiveCachePages() <= TableCore.MINIMUM_POOLED_PAGES)&&(System.currentTimeMillis() < giveUp))
+			{
+				for(int x = 1; x < 301; x += 7)
+				{
+					assertEquals(3 * x, BuffRead.readInt(tables[1].seekByteArray((long)x), 10));
+				}
+			}
+			assertTrue(tables[1].getActiveCachePages() > TableCore.MINIMUM_POOLED_PAGES);
+			assertTrue(tables[0].getActiveCachePages() < 20 - TableCore.MINIMUM_POOLED_PAGES);
+			assertTrue(fdb.getBufferPool().getAllocatedBytes() <= fdb.getBufferPool().getBudget());
+			
+			// neither table lost anything
+			for(int x = 1; x < 301; x++)
+			{
+				assertEquals(2 * x, BuffRead.readInt(tables[0].seekByteArray((long)x), 10));
+				assertEquals(3 * x, BuffRead.readInt(tables[1].seekByteArray((long)x), 10));
+			}
+			fdb.shutdown();
+			
+			// the pool is remembered when the database is opened
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			assertEquals(20 * BufferPool.MINIMUM_SIZE_CLASS, fdb2.getBufferPoolSize());
+			TableCore table0 = fdb2.getTable("table0");
+			for(int x = 1; x < 301; x++)
+			{
+				assertEquals(2 * x, BuffRead.readInt(table0.seekByteArray((long)x), 10));
+			}
+			assertTrue(table0.getActiveCachePages() > TableCore.MINIMUM_POOLED_PAGES);
+			fdb2.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void testWarmUpOnOpen()
+	{	
+		System.out.println("DatabaseTest1 - testWarmUpOnOpen()");
+		try{
+			// ***************** CREATE DATABASE TO SHUTDOWN ******************
+			FemtoDB fdb = new FemtoDB("debug1");
+			fdb.setBackupDirectory("debug1backup");
+			fdb.setWarmUpOnOpen(true);
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// ensure backup does not exist
+			File fbackup = new File("debug1backup");
+			if(fbackup.exists())FileUtils.recursiveDelete(fbackup);
+			
+			// a table with many more files than its cache of four pages holds
+			TableCore t =  fdb.createTable("table1", "pk");
+			t.setRowsPerFile(5);
+			t.setRemoveOccupancyRatio(0.4);
+			t.setCombineOccupancyRatio(0.8);
+			t.addIntegerColumn("payload");
+			t.setCacheSize(280);
+			t.makeOperational();
+			
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 101; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				t.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// the working set is the first few files
+			for(int x = 1; x < 11; x++)
+			{
+				assertEquals(2 * x, BuffRead.readInt(t.seekByteArray((long)x), 10));
+			}
+			int cachedFiles = t.getCachedFileCount();
+			assertEquals(4, cachedFiles);
+			fdb.shutdown();
+			
+			// *****************  THE CACHE IS RELOADED IN THE BACKGROUND ON OPEN *********
+			FemtoDB fdb2 = FemtoDB.open("debug1", "debug1backup");
+			assertTrue(fdb2.isWarmUpOnOpen());
+			TableCore table1 = fdb2.getTableCores().get(0);
+			assertFalse(table1.isDormant());
+			long giveUp = System.currentTimeMillis() + 10000;
+			while((table1.getCachedFileCount() < cachedFiles)&&(System.currentTimeMillis() < giveUp))
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(cachedFiles, table1.getCachedFileCount());
+			for(int x = 1; x < 101; x++)
+			{
+				assertEquals(2 * x, BuffRead.readInt(table1.seekByteArray((long)x), 10));
+			}
+			fdb2.shutdown();
+			
+			// *****************  A DATABASE NOT WARMED UP LEAVES ITS TABLES DORMANT *********
+			FemtoDB fdb3 = FemtoDB.open("debug1", "debug1backup");
+			fdb3.setWarmUpOnOpen(false);
+			fdb3.shutdown();
+			FemtoDB fdb4 = FemtoDB.open("debug1", "debug1backup");
+			assertTrue(fdb4.getTableCores().get(0).isDormant());
+			fdb4.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********   testShutdownDuringReadAhead()   ********** 
+	// ************************************************
+	// ************************************************	
+	@Test
+	public void testShutdownDuringReadAhead()
+	{	
+		System.out.println("DatabaseTest1 - testShutdownDuringReadAhead()");
+		try{
+			FemtoDB fdb = new FemtoDB("debug1");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// a segmented table with many more files than its cache of four pages holds, reading files ahead of its iterators
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(280);
+			table1.setSegmentedStorage(true);
+			table1.setReadAheadFiles(4);
+			table1.makeOperational();
+			
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 200; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// shut down with reads ahead in flight and modified pages still to write, many times over
+			for(int round = 1; round < 51; round++)
+			{
+				FemtoDBIterator iterator = table1.fastIterator();
+				for(int x = 1; x < 100; x++)
+				{
+					assertEquals((long)x, iterator.next().primaryKey);
+				}
+				for(int x = 190; x < 200; x++)
+				{
+					BuffWrite.writeLong(toInsert, 0, (long)x);
+					BuffWrite.writeShort(toInsert, 8, (10 * x));
+					BuffWrite.writeInt(toInsert, 10, (1000 * round) + x);	
+					table1.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert);
+				}
+				fdb.shutdown();
+				
+				fdb = FemtoDB.open("debug1", null);
+				table1 = fdb.getTable("table1");
+				assertNotNull(table1);
+				for(int x = 190; x < 200; x++)
+				{
+					assertEquals((1000 * round) + x, BuffRead.readInt(table1.seekByteArray((long)x), 10));
+				}
+			}
+			for(int x = 1; x < 190; x++)
+			{
+				assertEquals(2 * x, BuffRead.readInt(table1.seekByteArray((long)x), 10));
+			}
+			fdb.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// ************************************************
+	// ************************************************
+	// **********   testShutdownDuringBackgroundFlush()   ********** 
+	// ************************************************
+	// ************************************************	
+	@Test
+	public void testShutdownDuringBackgroundFlush()
+	{	
+		System.out.println("DatabaseTest1 - testShutdownDuringBackgroundFlush()");
+		try{
+			FemtoDB fdb = new FemtoDB("debug1");
+			
+			// make a fresh directory
+			File f = new File("debug1");
+			if(f.exists())FileUtils.recursiveDelete(f);
+			f.mkdir();
+			
+			// this must follow the making of the directory!
+			fdb.setPath("debug1");
+			
+			// a segmented table, so every page is written through one shared FileChannel
+			TableCore table1 =  fdb.createTable("table1", "pk");
+			table1.setRowsPerFile(5);
+			table1.setRemoveOccupancyRatio(0.4);
+			table1.setCombineOccupancyRatio(0.8);
+			table1.addIntegerColumn("payload");
+			table1.setCacheSize(14000);
+			table1.setSegmentedStorage(true);
+			table1.makeOperational();
+			
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 1000; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				table1.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			
+			// shut down while the flusher is writing every modified page, many times over
+			for(int round = 1; round < 21; round++)
+			{
+				fdb.startBackgroundFlusher(1, 0, 0.0);
+				for(int x = 1; x < 1000; x++)
+				{
+					BuffWrite.writeLong(toInsert, 0, (long)x);
+					BuffWrite.writeShort(toInsert, 8, (10 * x));
+					BuffWrite.writeInt(toInsert, 10, (1000 * round) + x);	
+					table1.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert);
+				}
+				fdb.shutdown();
+				
+				fdb = FemtoDB.open("debug1", null);
+				table1 = fdb.getTable("table1");
+				assertNotNull(table1);
+				for(int x = 1; x < 1000; x++)
+				{
+					assertEquals((1000 * round) + x, BuffRead.readInt(table1.seekByteArray((long)x), 10));
+				}
+			}
+			fdb.shutdown();
+			
+		// catch any stuff going wrong
+		}
+		catch (FemtoDBInvalidValueException e) {fail();} 
+		catch (FemtoDBIOException e) {
+			System.err.println(e);
+			e.printStackTrace();
+			fail();}
+		catch (Exception e)
+		{
+			System.err.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
 }
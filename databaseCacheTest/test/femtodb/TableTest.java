@@ -3,6 +3,7 @@ package femtodb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -14,8 +15,12 @@ import femtodbexceptions.FemtoDBConcurrentModificationException;
 import femtodbexceptions.FemtoDBIOException;
 import femtodbexceptions.FemtoDBInvalidValueException;
 import femtodbexceptions.FemtoDBShuttingDownException;
+import femtodbexceptions.FemtoDBStringExceedsColumnSizeException;
 import femtodbexceptions.FemtoDBTableDeletedException;
+import femtodbiterators.Filt;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -23,6 +28,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class TableTest {
 
@@ -1062,4 +1075,1779 @@ public class TableTest {
 			fail();			
 		}
 	}
+	
+	//********************** testSequentialWriteReadDeleteMemoryMapped ***********************
+	
+	@Test
+	public void testSequentialWriteReadDeleteMemoryMapped() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{	
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, using a cache of only two pages so files get evicted and reloaded
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		tut.setMemoryMappedIO(true);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		byte[] toInsert = new byte[8+2+4];
+		byte[] readBack;
+		
+		// insert a load of stuff
+		for(int x = 1; x < 30; x++)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (2 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		
+		// read it back
+		for(int x = 1; x < 30; x++)
+		{
+			readBack = tut.seekByteArray((long)x);
+			assertNotNull(readBack);
+			assertEquals((2*x), BuffRead.readInt(readBack, 10));
+		}
+		
+		// delete every other row and check the rest survives the combines
+		for(int x = 1; x < 30; x += 2)
+		{
+			assertTrue(tut.deleteByPrimaryKey(x));
+		}
+		for(int x = 2; x < 30; x += 2)
+		{
+			readBack = tut.seekByteArray((long)x);
+			assertNotNull(readBack);
+			assertEquals((2*x), BuffRead.readInt(readBack, 10));
+		}
+		
+		// check the flushed files hold the expected rows
+		tut.flushCache();
+		assertTrue(tut.validateTable("debug1"));
+	}
+	
+	//********************** testSequentialWriteReadDeleteSegmented ***********************
+	
+	@Test
+	public void testSequentialWriteReadDeleteSegmented() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{	
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, using a cache of only two pages so files get evicted and reloaded
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		tut.setSegmentedStorage(true);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		byte[] toInsert = new byte[8+2+4];
+		byte[] readBack;
+		
+		// insert a load of stuff
+		for(int x = 1; x < 30; x++)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (2 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		
+		// delete every other row, combining files and freeing their slots
+		for(int x = 1; x < 30; x += 2)
+		{
+			assertTrue(tut.deleteByPrimaryKey(x));
+		}
+		
+		// insert again, splitting files into the freed slots
+		for(int x = 1; x < 30; x += 2)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (3 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		
+		// read it back
+		for(int x = 1; x < 30; x++)
+		{
+			readBack = tut.seekByteArray((long)x);
+			assertNotNull(readBack);
+			int expected = ((x & 1) == 1) ? (3*x) : (2*x);
+			assertEquals(expected, BuffRead.readInt(readBack, 10));
+		}
+		
+		// all the files live in the one segment
+		tut.flushCache();
+		assertTrue(tut.validateTable("debug1"));
+		String[] tableFiles = new File("debug1" + File.separator + "0").list();
+		assertEquals(1, tableFiles.length);
+		assertEquals("segment0", tableFiles[0]);
+	}
+	
+	//********************** testSequentialWriteReadDeleteOffHeap ***********************
+	
+	@Test
+	public void testSequentialWriteReadDeleteOffHeap() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{	
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, using an off heap cache of only two pages so files get evicted and reloaded
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		tut.setOffHeapCache(true);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		byte[] toInsert = new byte[8+2+4];
+		byte[] readBack;
+		
+		// insert a load of stuff in reverse so rows get shifted within the pages
+		for(int x = 29; x > 0; x--)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (2 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		
+		// read it back
+		for(int x = 1; x < 30; x++)
+		{
+			readBack = tut.seekByteArray((long)x);
+			assertNotNull(readBack);
+			assertEquals((2*x), BuffRead.readInt(readBack, 10));
+		}
+		
+		// delete every other row and check the rest survives the combines
+		for(int x = 1; x < 30; x += 2)
+		{
+			assertTrue(tut.deleteByPrimaryKey(x));
+		}
+		FemtoDBIterator fastIterator = tut.fastIterator();
+		for(int x = 2; x < 30; x += 2)
+		{
+			assertTrue(fastIterator.hasNext());
+			RowAccessType rat = fastIterator.next();
+			assertEquals((long)x, rat.primaryKey);
+			assertEquals((2*x), BuffRead.readInt(rat.byteArray, 10));
+		}
+		assertFalse(fastIterator.hasNext());
+		
+		// check the flushed files hold the expected rows
+		tut.flushCache();
+		assertTrue(tut.validateTable("debug1"));
+	}
+	
+	//********************** readAheadIteratorTest ***********************
+	
+	@Test
+	public void readAheadIteratorTest() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{	
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, with a cache of eight pages so files can be read ahead into it
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(560);
+		tut.setReadAheadFiles(4);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// insert enough rows to need many more files than the cache holds
+		byte[] toInsert = new byte[8+2+4];
+		for(int x = 1; x < 200; x++)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (2 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		
+		// scan with both iterators several times, so read ahead files get installed and used
+		RowAccessType rat;
+		for(int pass = 0; pass < 3; pass++)
+		{
+			FemtoDBIterator fastIterator = tut.fastIterator();
+			for(int x = 1; x < 200; x++)
+			{
+				assertTrue(fastIterator.hasNext());
+				rat = fastIterator.next();
+				assertEquals((long)x, rat.primaryKey);
+				assertEquals((2*x), BuffRead.readInt(rat.byteArray, 10));
+			}
+			assertFalse(fastIterator.hasNext());
+			
+			FemtoDBIterator safeIterator = tut.safeIterator();
+			for(int x = 1; x < 200; x++)
+			{
+				rat = safeIterator.next();
+				assertNotNull(rat);
+				assertEquals((long)x, rat.primaryKey);
+				assertEquals((2*x), BuffRead.readInt(rat.byteArray, 10));
+			}
+			assertNull(safeIterator.next());
+			
+			// modify rows between scans so staged files can become stale
+			for(int x = 1 + pass; x < 200; x += 7)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				tut.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert);
+			}
+		}
+		
+		// check the flushed files hold the expected rows
+		tut.flushCache();
+		assertTrue(tut.validateTable("debug1"));
+	}
+	
+	//********************** testMetadataFormat ***********************
+	
+	@Test
+	public void testMetadataFormat()
+	{
+		System.out.println("testMetadataFormat");
+		
+		// more files than fit in one chunk
+		List<FileMetadata> fmds = new ArrayList<FileMetadata>();
+		for(int x = 0; x < 3000; x++)
+		{
+			FileMetadata fmd = new FileMetadata();
+			fmd.filenumber 					= x;
+			fmd.lowerBound 					= x * 10L;
+			fmd.upperBound 					= (x * 10L) + 9;
+			fmd.smallestPK 					= (x * 10L) + 1;
+			fmd.largestPK 					= (x * 10L) + 8;
+			fmd.rows 						= x % 7;
+			fmd.modificationServiceNumber 	= x * 3L;
+			fmd.lastUsedServiceNumber 		= x * 5L;
+			fmd.modified 					= (x % 2) == 0;
+			fmds.add(fmd);
+		}
+		
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			MetadataFormat.writeFileMetadata(oos, fmds);
+			oos.close();
+			
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			List<FileMetadata> readBack = MetadataFormat.readFileMetadata(ois);
+			ois.close();
+			
+			assertEquals(fmds.size(), readBack.size());
+			for(int x = 0; x < fmds.size(); x++)
+			{
+				FileMetadata expected 	= fmds.get(x);
+				FileMetadata actual 	= readBack.get(x);
+				assertEquals(expected.filenumber, actual.filenumber);
+				assertEquals(expected.lowerBound, actual.lowerBound);
+				assertEquals(expected.upperBound, actual.upperBound);
+				assertEquals(expected.smallestPK, actual.smallestPK);
+				assertEquals(expected.largestPK, actual.largestPK);
+				assertEquals(expected.rows, actual.rows);
+				assertEquals(expected.modificationServiceNumber, actual.modificationServiceNumber);
+				assertEquals(expected.lastUsedServiceNumber, actual.lastUsedServiceNumber);
+				assertEquals(expected.modified, actual.modified);
+			}
+		}
+		catch(IOException e)
+		{
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	//********************** testClockReplacement ***********************
+	
+	@Test
+	public void testClockReplacement()
+	{
+		System.out.println("testClockReplacement");
+		
+		// four full pages, the second modified
+		FileMetadata[] cacheContents = new FileMetadata[4];
+		ClockReplacement clock = new ClockReplacement();
+		clock.allocate(4, 10, TableCore.DEFAULT_NOT_MODIFIED_CACHE_BOOST, TableCore.DEFAULT_OVER_HALF_FULL_CACHE_BOOST);
+		for(int page = 0; page < 4; page++)
+		{
+			FileMetadata fmd = new FileMetadata();
+			fmd.rows 					= 10;
+			fmd.lastUsedServiceNumber 	= page;
+			fmd.modified 				= (page == 1);
+			cacheContents[page] 		= fmd;
+			clock.pageLoaded(page, fmd);
+		}
+		
+		// modified pages are freed before clean ones, unless only clean pages may be freed
+		assertEquals(1, clock.findVictim(cacheContents, -1, false));
+		assertTrue(clock.findVictim(cacheContents, -1, true) != 1);
+		
+		// a page in use survives while the others are not used
+		FileMetadata hot = cacheContents[3];
+		for(int miss = 0; miss < 100; miss++)
+		{
+			hot.lastUsedServiceNumber = 1000 + miss;
+			int victim = clock.findVictim(cacheContents, -1, false);
+			assertTrue(victim != 3);
+			
+			// load another file into the page freed
+			FileMetadata fmd = new FileMetadata();
+			fmd.rows 					= 10;
+			fmd.lastUsedServiceNumber 	= 1000 + miss;
+			cacheContents[victim] 		= fmd;
+			clock.pageLoaded(victim, fmd);
+		}
+		
+		// free pages are used first and the excluded page never
+		cacheContents[2] = null;
+		assertEquals(2, clock.findVictim(cacheContents, -1, false));
+		assertTrue(clock.findVictim(cacheContents, 2, false) != 2);
+	}
+	
+	//********************** testTwoQueueReplacement ***********************
+	
+	@Test
+	public void testTwoQueueReplacement()
+	{
+		System.out.println("testTwoQueueReplacement");
+		
+		// two files used by point lookups, and enough others between to free them once so they are remembered and enter the main queue
+		FileMetadata[] cacheContents = new FileMetadata[8];
+		CacheReplacementPolicy policy = new TwoQueueReplacement();
+		policy.allocate(8, 10, TableCore.DEFAULT_NOT_MODIFIED_CACHE_BOOST, TableCore.DEFAULT_OVER_HALF_FULL_CACHE_BOOST);
+		long[] serviceNumber = new long[1];
+		for(long filenumber = 0; filenumber < 10; filenumber++)
+		{
+			useFile(policy, cacheContents, filenumber, serviceNumber);
+		}
+		useFile(policy, cacheContents, 0, serviceNumber);
+		useFile(policy, cacheContents, 1, serviceNumber);
+		
+		// a scan of many files read once does not free them
+		for(long filenumber = 100; filenumber < 1000; filenumber++)
+		{
+			useFile(policy, cacheContents, filenumber, serviceNumber);
+			if((filenumber % 10) == 0)
+			{
+				assertTrue(useFile(policy, cacheContents, 0, serviceNumber));
+				assertTrue(useFile(policy, cacheContents, 1, serviceNumber));
+			}
+		}
+		
+		// whereas the scan frees them from a clock
+		cacheContents = new FileMetadata[8];
+		policy = new ClockReplacement();
+		policy.allocate(8, 10, TableCore.DEFAULT_NOT_MODIFIED_CACHE_BOOST, TableCore.DEFAULT_OVER_HALF_FULL_CACHE_BOOST);
+		useFile(policy, cacheContents, 0, serviceNumber);
+		useFile(policy, cacheContents, 1, serviceNumber);
+		for(long filenumber = 100; filenumber < 120; filenumber++)
+		{
+			useFile(policy, cacheContents, filenumber, serviceNumber);
+		}
+		assertFalse(useFile(policy, cacheContents, 0, serviceNumber));
+	}
+	
+	/** Uses a full file as the tableCore would, loading it into the cache if needed. Returns true if it was already cached. */
+	private static boolean useFile(final CacheReplacementPolicy policy, final FileMetadata[] cacheContents, final long filenumber, final long[] serviceNumber)
+	{
+		serviceNumber[0]++;
+		for(FileMetadata fmd : cacheContents)
+		{
+			if((fmd != null)&&(fmd.filenumber == filenumber))
+			{
+				fmd.lastUsedServiceNumber = serviceNumber[0];
+				return true;
+			}
+		}
+		int page = policy.findVictim(cacheContents, -1, false);
+		if(cacheContents[page] != null)
+		{
+			FileMetadata freed = cacheContents[page];
+			cacheContents[page] = null;
+			policy.pageFreed(page, freed);
+		}
+		FileMetadata fmd = new FileMetadata();
+		fmd.filenumber 				= filenumber;
+		fmd.rows 					= 10;
+		fmd.lastUsedServiceNumber 	= serviceNumber[0];
+		cacheContents[page] 		= fmd;
+		policy.pageLoaded(page, fmd);
+		return false;
+	}
+	
+	//********************** testResizeCache ***********************
+	
+	@Test
+	public void testResizeCache() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{	
+		System.out.println("testResizeCache");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, with a cache of two pages
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		assertEquals(2, tut.getActiveCachePages());
+		
+		byte[] toInsert = new byte[8+2+4];
+		byte[] readBack;
+		for(int x = 59; x > 0; x--)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (2 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		
+		try {
+			// grow the live cache, keeping the modified pages it holds
+			tut.resizeCache(700);
+			assertEquals(10, tut.getActiveCachePages());
+			for(int x = 60; x < 100; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (2 * x));	
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			for(int x = 1; x < 100; x++)
+			{
+				readBack = tut.seekByteArray((long)x);
+				assertNotNull(readBack);
+				assertEquals((2*x), BuffRead.readInt(readBack, 10));
+			}
+			
+			// shrink it again, writing the pages freed
+			tut.resizeCache(140);
+			assertEquals(2, tut.getActiveCachePages());
+			for(int x = 1; x < 100; x += 2)
+			{
+				assertTrue(tut.deleteByPrimaryKey(x));
+			}
+			for(int x = 2; x < 100; x += 2)
+			{
+				readBack = tut.seekByteArray((long)x);
+				assertNotNull(readBack);
+				assertEquals((2*x), BuffRead.readInt(readBack, 10));
+			}
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// a cache must hold at least one file
+		try {
+			tut.resizeCache(10);
+			fail();
+		} catch (FemtoDBInvalidValueException e) {}
+		
+		// check the flushed files hold the expected rows
+		tut.flushCache();
+		assertTrue(tut.validateTable("debug1"));
+	}
+	
+	//********************** testSecondaryIndexTree ***********************
+	
+	@Test
+	public void testSecondaryIndexTree()
+	{
+		System.out.println("testSecondaryIndexTree");
+		
+		// many entries sharing few keys, so leaves and inner nodes split, with every other entry then removed
+		SecondaryIndex index = new SecondaryIndex(2, TableCore.COLUMN_TYPE_INT, 10);
+		TreeSet<Long> expected = new TreeSet<Long>();
+		Random random = new Random(42);
+		for(long pk = 0; pk < 20000; pk++)
+		{
+			long key = random.nextInt(500);
+			index.insert(key, pk);
+			expected.add(key * 1000000 + pk);
+		}
+		int x = 0;
+		for(Long entry : new ArrayList<Long>(expected))
+		{
+			if((x++ % 2) == 0)continue;
+			assertTrue(index.remove(entry / 1000000, entry % 1000000));
+			expected.remove(entry);
+		}
+		assertFalse(index.remove(1000, 1));
+		assertEquals(expected.size(), index.size());
+		checkIndexEntries(index, expected);
+		
+		// ceiling finds the first entry with a key
+		long[] result = new long[2];
+		assertTrue(index.ceiling(250, Long.MIN_VALUE, result));
+		long first = expected.ceiling(250L * 1000000);
+		assertEquals(first / 1000000, result[0]);
+		assertEquals(first % 1000000, result[1]);
+		assertFalse(index.ceiling(500, Long.MIN_VALUE, result));
+		
+		// saved and loaded the index holds the same entries
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(index);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			SecondaryIndex readBack = (SecondaryIndex)ois.readObject();
+			ois.close();
+			checkIndexEntries(readBack, expected);
+			
+			// and still takes inserts
+			readBack.insert(7, 999999);
+			expected.add(7L * 1000000 + 999999);
+			checkIndexEntries(readBack, expected);
+		}
+		catch(Exception e)
+		{
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+		
+		// float and double keys are ordered as the values are
+		float[] floats = {Float.NEGATIVE_INFINITY, -3.5f, -0.0f, 1.0e-30f, 2.0f, Float.MAX_VALUE, Float.POSITIVE_INFINITY};
+		for(int y = 1; y < floats.length; y++)
+		{
+			assertTrue(SecondaryIndex.keyOf(floats[y - 1]) < SecondaryIndex.keyOf(floats[y]));
+			assertTrue(SecondaryIndex.keyOf((double)floats[y - 1]) < SecondaryIndex.keyOf((double)floats[y]));
+		}
+		assertEquals(SecondaryIndex.keyOf(0.0f), SecondaryIndex.keyOf(-0.0f));
+		assertTrue(SecondaryIndex.keyOf(Float.NaN) > SecondaryIndex.keyOf(Float.POSITIVE_INFINITY));
+	}
+	
+	/** Steps through the index checking it holds the expected entries, each encoded as key * 1000000 + primary key */
+	private void checkIndexEntries(final SecondaryIndex index, final TreeSet<Long> expected)
+	{
+		long[] entry = new long[2];
+		boolean found = index.ceiling(Long.MIN_VALUE, Long.MIN_VALUE, entry);
+		for(Long expectedEntry : expected)
+		{
+			assertTrue(found);
+			assertEquals(expectedEntry / 1000000, entry[0]);
+			assertEquals(expectedEntry % 1000000, entry[1]);
+			found = index.higher(entry[0], entry[1], entry);
+		}
+		assertFalse(found);
+	}
+	
+	//********************** testSecondaryIndex ***********************
+	
+	@Test
+	public void testSecondaryIndex() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{	
+		System.out.println("testSecondaryIndex");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		try {
+			tut.makeOperational();
+			
+			// the primary key and non numeric columns cannot be indexed
+			try {
+				tut.createIndex(0);
+				fail();
+			} catch (FemtoDBInvalidValueException e) {}
+			
+			// half the rows are indexed when the index is created, the rest as inserted
+			byte[] toInsert = new byte[8+2+4];
+			for(int x = 1; x < 81; x++)
+			{
+				if(x == 41)tut.createIndex(2);
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, (x % 7));	
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+			}
+			assertTrue(tut.hasIndex(2));
+			
+			// move some rows to other values and delete others
+			for(int x = 10; x < 81; x += 10)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)x);
+				BuffWrite.writeShort(toInsert, 8, (10 * x));
+				BuffWrite.writeInt(toInsert, 10, 100 + x);	
+				assertTrue(tut.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert));
+			}
+			for(int x = 3; x < 81; x += 3)
+			{
+				assertTrue(tut.deleteByPrimaryKey(x));
+			}
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// the index finds the same rows as filtering every row
+		String[] ops = {"==", "<", ">", ">=", "<="};
+		for(String op : ops)
+		{
+			for(int value = -1; value < 182; value += 3)
+			{
+				int expected = 0;
+				FemtoDBIterator all = tut.fastIterator();
+				while(all.hasNext())
+				{
+					int payload = all.next().get_int(2);
+					if(matches(op, payload, value))expected++;
+				}
+				int found = 0;
+				FemtoDBIterator filtered = Filt.getFilt(tut, 2, op, value);
+				while(filtered.hasNext())
+				{
+					assertTrue(matches(op, filtered.next().get_int(2), value));
+					found++;
+				}
+				assertEquals(expected, found);
+			}
+		}
+		
+		// save and load the tableCore, the index is saved with it
+		try {
+			tut.flushCache();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(tut);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			TableCore tut2 = (TableCore)ois.readObject();
+			ois.close();
+			tut2.finishLoading(fdb);
+			assertTrue(tut2.hasIndex(2));
+			FemtoDBIterator filtered = tut2.indexIterator(2, 4, 4);
+			int found = 0;
+			while(filtered.hasNext())
+			{
+				RowAccessType rat = filtered.next();
+				assertEquals(4, rat.get_int(2));
+				assertTrue((rat.getPrimaryKey() % 3) != 0);
+				found++;
+			}
+			assertEquals(8, found);
+		} catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	private boolean matches(final String op, final int payload, final int value)
+	{
+		if(op.equals("=="))return payload == value;
+		if(op.equals("<"))return payload < value;
+		if(op.equals(">"))return payload > value;
+		if(op.equals(">="))return payload >= value;
+		return payload <= value;
+	}
+	
+	//********************** testMixedOperations ***********************
+	
+	@Test
+	public void testMixedOperations() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{	
+		System.out.println("testMixedOperations");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore with small files, so files are often emptied and combined into their neighbours
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(280);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// random inserts, deletes and seeks checked against the keys and payloads the table should hold
+		TreeSet<Long> expected = new TreeSet<Long>();
+		int[] payloads = new int[200];
+		Random random = new Random(7);
+		byte[] row = new byte[8+2+4];
+		for(int operation = 0; operation < 3000; operation++)
+		{
+			long primaryKey = random.nextInt(200);
+			int payload = random.nextInt();
+			BuffWrite.writeLong(row, 0, primaryKey);
+			BuffWrite.writeShort(row, 8, 0);
+			BuffWrite.writeInt(row, 10, payload);
+			switch(random.nextInt(3))
+			{
+				case 0:
+					assertEquals(!expected.contains(primaryKey), tut.insertOrIgnoreByteArrayByPrimaryKey(primaryKey, row));
+					if(expected.add(primaryKey))payloads[(int)primaryKey] = payload;
+					break;
+				case 1:
+					assertEquals(expected.contains(primaryKey), tut.deleteByPrimaryKey(primaryKey));
+					expected.remove(primaryKey);
+					break;
+				default:
+					byte[] readBack = tut.seekByteArray(primaryKey);
+					if(expected.contains(primaryKey))
+					{
+						assertNotNull(readBack);
+						assertEquals(payloads[(int)primaryKey], BuffRead.readInt(readBack, 10));
+					}
+					else
+					{
+						assertNull(readBack);
+					}
+			}
+		}
+		
+		// the table holds each key once, in order
+		FemtoDBIterator it = tut.fastIterator();
+		for(Long primaryKey : expected)
+		{
+			assertTrue(it.hasNext());
+			assertEquals(primaryKey.longValue(), it.next().getPrimaryKey());
+		}
+		assertFalse(it.hasNext());
+		for(long primaryKey = 0; primaryKey < 200; primaryKey++)
+		{
+			assertEquals(expected.contains(primaryKey), tut.seek(primaryKey) != null);
+		}
+	}
+	
+	//********************** testPrimaryKeyHashIndex ***********************
+	
+	@Test
+	public void testPrimaryKeyHashIndex() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{	
+		System.out.println("testPrimaryKeyHashIndex");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, with a cache of four pages so rows move between pages and files
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(280);
+		tut.setPrimaryKeyHashIndex(true);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// random inserts, updates, deletes and seeks checked against a map of what the table should hold
+		Map<Long,Integer> expected = new HashMap<Long,Integer>();
+		Random random = new Random(7);
+		byte[] row = new byte[8+2+4];
+		for(int operation = 0; operation < 3000; operation++)
+		{
+			long primaryKey = random.nextInt(200);
+			int payload = random.nextInt();
+			BuffWrite.writeLong(row, 0, primaryKey);
+			BuffWrite.writeShort(row, 8, 0);
+			BuffWrite.writeInt(row, 10, payload);
+			switch(random.nextInt(4))
+			{
+				case 0:
+					assertEquals(!expected.containsKey(primaryKey), tut.insertOrIgnoreByteArrayByPrimaryKey(primaryKey, row));
+					if(!expected.containsKey(primaryKey))expected.put(primaryKey, payload);
+					break;
+				case 1:
+					assertEquals(expected.containsKey(primaryKey), tut.updateOrIgnore(primaryKey, TableCore.FLAG_CACHE_NOT_SET, row));
+					if(expected.containsKey(primaryKey))expected.put(primaryKey, payload);
+					break;
+				case 2:
+					assertEquals(expected.containsKey(primaryKey), tut.deleteByPrimaryKey(primaryKey));
+					expected.remove(primaryKey);
+					break;
+				default:
+					byte[] readBack = tut.seekByteArray(primaryKey);
+					if(expected.containsKey(primaryKey))
+					{
+						assertNotNull(readBack);
+						assertEquals((int)expected.get(primaryKey), BuffRead.readInt(readBack, 10));
+					}
+					else
+					{
+						assertNull(readBack);
+					}
+			}
+		}
+		
+		// every key reads back as expected, twice so the second read uses the hints
+		for(int pass = 0; pass < 2; pass++)
+		{
+			for(long primaryKey = 0; primaryKey < 200; primaryKey++)
+			{
+				RowAccessType rat = tut.seek(primaryKey);
+				if(expected.containsKey(primaryKey))
+				{
+					assertNotNull(rat);
+					assertEquals((int)expected.get(primaryKey), rat.get_int(2));
+				}
+				else
+				{
+					assertNull(rat);
+				}
+			}
+		}
+		
+		tut.flushCache();
+		assertTrue(tut.validateTable("debug1"));
+	}
+	
+	//********************** testLoadBaselineTable ***********************
+	
+	/** A table of one integer column made operational with five rows per file and a 280 byte cache, serialised before the cache size was held as a long */
+	private static final String BASELINE_TABLE = 
+			"aced00057372001166656d746f64622e5461626c65436f7265000000000000000102001a5a000f6261636b75704e656564734c6f636b49000a636163" +
+			"68655061676573490009636163686553697a655a000c636163686553697a65536574490010636f6d62696e654f63637570616e6379440015636f6d62" +
+			"696e654f63637570616e6379526174696f5a000764656c6574656449000866696c6553697a654a00146e657874556e7573656446696c654e756d6265" +
+			"725a000b6f7065726174696f6e616c49000f72656d6f76654f63637570616e637944001472656d6f76654f63637570616e6379526174696f5a001772" +
+			"6f7741636365737354797065466163746f727953657449000b726f777350657246696c655a000e726f777350657246696c655365744a000d73657276" +
+			"6963654e756d6265725a001173687574646f776e4e656564734c6f636b5a000c7368757474696e67446f776e4a000b7461626c654e756d6265724900" +
+			"0a7461626c6557696474685b0010636f6c756d6e427974654f66667365747400025b495b000f636f6c756d6e42797465576964746871007e00015b00" +
+			"0b636f6c756d6e4e616d65737400135b4c6a6176612f6c616e672f537472696e673b4c000c66696c654d657461646174617400104c6a6176612f7574" +
+			"696c2f4c6973743b4c00046e616d657400124c6a6176612f6c616e672f537472696e673b4c0014726f7741636365737354797065466163746f727974" +
+			"001e4c66656d746f64622f526f7741636365737354797065466163746f72793b787000000000040000011801000000043fe999999999999a00000000" +
+			"46000000000000000101000000023fd999999999999a0000000005018000000000000073000000000000000000000000000e757200025b494dba6026" +
+			"76eab2a502000078700000000300000000000000080000000a7571007e000700000003000000080000000200000004757200135b4c6a6176612e6c61" +
+			"6e672e537472696e673badd256e7e91d7b47020000787000000003740002706b74000e66656d746f64625f7374617475737400077061796c6f616473" +
+			"7200136a6176612e7574696c2e41727261794c6973747881d21d99c7619d03000149000473697a657870000000017704000000017372001466656d74" +
+			"6f64622e46696c654d6574616461746100000000000000010200094a000a66696c656e756d6265724a00096c617267657374504b4a00156c61737455" +
+			"736564536572766963654e756d6265724a000a6c6f776572426f756e644a00196d6f64696669636174696f6e536572766963654e756d6265725a0008" +
+			"6d6f646966696564490004726f77734a000a736d616c6c657374504b4a000a7570706572426f756e6478700000000000000000800000000000000000" +
+			"0000000000000080000000000000000000000000000000000000000080000000000000007fffffffffffffff787400067461626c6531737200236665" +
+			"6d746f64622e44656661756c74526f7741636365737354797065466163746f727900000000000000010200007870";
+	
+	@Test
+	public void testLoadBaselineTable() throws IOException, ClassNotFoundException
+	{
+		System.out.println("testLoadBaselineTable");
+		
+		byte[] serialised = new byte[BASELINE_TABLE.length() / 2];
+		for(int x = 0; x < serialised.length; x++)
+		{
+			serialised[x] = (byte)Integer.parseInt(BASELINE_TABLE.substring(2 * x, (2 * x) + 2), 16);
+		}
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialised));
+		TableCore tut = (TableCore)ois.readObject();
+		ois.close();
+		assertEquals("table1", tut.getName());
+		assertTrue(tut.isOperational());
+		assertEquals(280L, tut.getCacheSize());
+	}
+	
+	//********************** testFileMetadataTree ***********************
+	
+	@Test
+	public void testFileMetadataTree()
+	{
+		System.out.println("testFileMetadataTree");
+		
+		// files split and combined as a table does, checked against an ArrayList
+		FileMetadataTree tree = new FileMetadataTree();
+		List<FileMetadata> expected = new ArrayList<FileMetadata>();
+		FileMetadata first = new FileMetadata();
+		first.lowerBound = Long.MIN_VALUE;
+		first.upperBound = Long.MAX_VALUE;
+		tree.add(first);
+		expected.add(first);
+		Random random = new Random(11);
+		for(int op = 0; op < 20000; op++)
+		{
+			int index = random.nextInt(expected.size());
+			FileMetadata fmd = expected.get(index);
+			if((random.nextInt(3) != 0)||(expected.size() == 1))
+			{
+				// split, giving the new file the top of the range
+				long lower = (fmd.lowerBound == Long.MIN_VALUE) ? -(1L << 40) : fmd.lowerBound;
+				long upper = (fmd.upperBound == Long.MAX_VALUE) ? (1L << 40) : fmd.upperBound;
+				if(upper - lower < 2)continue;
+				FileMetadata second = new FileMetadata();
+				second.lowerBound = lower + 1 + (long)(random.nextDouble() * (upper - lower - 1));
+				second.upperBound = fmd.upperBound;
+				fmd.upperBound = second.lowerBound;
+				int treeIndex = tree.indexOf(fmd);
+				assertEquals(index, treeIndex);
+				tree.add(treeIndex + 1, second);
+				expected.add(index + 1, second);
+			}
+			else if(index > 0)
+			{
+				// combine with front
+				expected.get(index - 1).upperBound = fmd.upperBound;
+				assertTrue(tree.remove(fmd));
+				expected.remove(index);
+			}
+			else
+			{
+				// combine with back, which briefly shares the removed file's lowerBound
+				expected.get(index + 1).lowerBound = fmd.lowerBound;
+				assertTrue(tree.remove(fmd));
+				expected.remove(index);
+			}
+			assertEquals(expected.size(), tree.size());
+			
+			// the file holding a primary key
+			long primaryKey = random.nextLong() >> 20;
+			int holding = 0;
+			while((holding + 1 < expected.size())&&(expected.get(holding + 1).lowerBound <= primaryKey))holding++;
+			assertEquals(holding, tree.indexOfKey(primaryKey));
+		}
+		assertEquals(expected, tree);
+		for(int x = 0; x < expected.size(); x++)
+		{
+			assertEquals(x, tree.indexOf(expected.get(x)));
+		}
+		assertEquals(-1, tree.indexOf(new FileMetadata()));
+		assertEquals(expected, new FileMetadataTree(expected));
+		
+		// the iterator walks the files in order, and removing through it keeps its place
+		Iterator<FileMetadata> it = tree.iterator();
+		int position = 0;
+		while(it.hasNext())
+		{
+			assertTrue(expected.get(position) == it.next());
+			if((position % 3) == 0)
+			{
+				it.remove();
+				expected.remove(position);
+			}
+			else position++;
+		}
+		assertEquals(expected.size(), position);
+		assertEquals(expected, tree);
+	}
+	
+	//********************** testBloomFilter ***********************
+	
+	@Test
+	public void testBloomFilter() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException
+	{
+		System.out.println("testBloomFilter");
+		
+		// no false negatives and few false positives for a full file
+		PrimaryKeyBloomFilter filter = new PrimaryKeyBloomFilter(1000);
+		for(long pk = 0; pk < 1000; pk++)filter.add(pk * 2);
+		int falsePositives = 0;
+		for(long pk = 0; pk < 1000; pk++)
+		{
+			assertTrue(filter.mightContain(pk * 2));
+			if(filter.mightContain((pk * 2) + 1))falsePositives++;
+		}
+		assertTrue(falsePositives < 30);
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore holding the even primary keys
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		byte[] toInsert = new byte[8+2+4];
+		try {
+			tut.makeOperational();
+			for(int x = 1; x < 60; x++)
+			{
+				BuffWrite.writeLong(toInsert, 0, (long)(x * 2));
+				BuffWrite.writeInt(toInsert, 10, x);	
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)(x * 2), toInsert);
+			}
+			
+			// deleted keys stay in the filter until it is rebuilt, but are not found
+			assertTrue(tut.deleteByPrimaryKey(40L));
+			assertNull(tut.seekByteArray(40L));
+			tut.flushCache();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// save and load the tableCore, the filters being saved with its files
+		TableCore tut2 = null;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(tut);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			tut2 = (TableCore)ois.readObject();
+			ois.close();	
+		} catch (IOException e) {
+			fail();
+		} catch (ClassNotFoundException e) {
+			fail();
+		}
+		FemtoDB fdb2 = new FemtoDB("debug1");
+		fdb2.setPath("debug1");
+		tut2.finishLoading(fdb2);
+		assertEquals(0, tut2.getCachedFileCount());
+		
+		// missing primary keys are rejected without loading files
+		for(int x = 1; x < 60; x++)
+		{
+			assertNull(tut2.seekByteArray((long)((x * 2) + 1)));
+			assertEquals(-1, tut2.checkRowReadLock((long)((x * 2) + 1)));
+			assertFalse(tut2.deleteByPrimaryKey((long)((x * 2) + 1)));
+		}
+		assertEquals(0, tut2.getCachedFileCount());
+		
+		// present primary keys are all found
+		for(int x = 1; x < 60; x++)
+		{
+			byte[] readBack = tut2.seekByteArray((long)(x * 2));
+			if(x == 20)
+			{
+				assertNull(readBack);
+				continue;
+			}
+			assertEquals(x, BuffRead.readInt(readBack, 10));
+		}
+	}
+	
+	//********************** testZoneMap ***********************
+	
+	@Test
+	public void testZoneMap() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{
+		System.out.println("testZoneMap");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore with a payload rising with the primary key, as a time would
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(140);
+		byte[] row = new byte[8+2+4];
+		try {
+			tut.makeOperational();
+			for(int x = 1; x <= 200; x++)
+			{
+				BuffWrite.writeLong(row, 0, (long)x);
+				BuffWrite.writeInt(row, 10, x);	
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, row);
+			}
+			for(int x = 1; x <= 200; x += 7)tut.deleteByPrimaryKey((long)x);
+			
+			// an update moves a row's payload outside its file's range
+			BuffWrite.writeLong(row, 0, 51L);
+			BuffWrite.writeInt(row, 10, 1000);	
+			assertTrue(tut.updateOrIgnore(51L, TableCore.FLAG_CACHE_NOT_SET, row));
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// a selective range reads only the few files that may hold it
+		assertTrue(rowCount(tut.fastIterator()) > 150);
+		assertTrue(rowCount(tut.fastIterator(2, 191, Long.MAX_VALUE)) <= 15);
+		assertTrue(rowCount(tut.fastIterator(2, 1000, 1000)) <= 5);
+		assertEquals(0, rowCount(tut.fastIterator(2, 2000, Long.MAX_VALUE)));
+		assertEquals(0, rowCount(tut.fastIterator(2, 5, 4)));
+		
+		// filters find the same rows as filtering every row
+		String[] ops = {"==", "<", ">", ">=", "<=", "!="};
+		for(String op : ops)
+		{
+			for(int value = -1; value < 205; value += 6)
+			{
+				int expected = 0;
+				FemtoDBIterator all = tut.fastIterator();
+				while(all.hasNext())
+				{
+					int payload = all.next().get_int(2);
+					if(op.equals("!=") ? (payload != value) : matches(op, payload, value))expected++;
+				}
+				assertEquals(expected, rowCount(Filt.getFilt(tut, 2, op, value)));
+			}
+		}
+		assertEquals(1, rowCount(Filt.getFilt(tut, 2, "==", 1000)));
+		
+		// save and load the tableCore, the zone maps being saved with its files
+		try {
+			tut.flushCache();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(tut);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			TableCore tut2 = (TableCore)ois.readObject();
+			ois.close();
+			tut2.finishLoading(fdb);
+			assertTrue(rowCount(tut2.fastIterator(2, 191, Long.MAX_VALUE)) <= 15);
+			assertEquals(1, rowCount(Filt.getFilt(tut2, 2, "==", 1000)));
+		} catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	private int rowCount(final FemtoDBIterator it) throws FemtoDBConcurrentModificationException, FemtoDBIOException
+	{
+		int retval = 0;
+		while(it.hasNext())
+		{
+			it.next();
+			retval++;
+		}
+		return retval;
+	}
+	
+	//********************** testLongBitmap ***********************
+	
+	@Test
+	public void testLongBitmap()
+	{
+		System.out.println("testLongBitmap");
+		
+		// sparse values of both signs and dense runs, so both kinds of container are used, checked against TreeSets
+		Random random = new Random(23);
+		LongBitmap a = new LongBitmap();
+		LongBitmap b = new LongBitmap();
+		TreeSet<Long> expectedA = new TreeSet<Long>();
+		TreeSet<Long> expectedB = new TreeSet<Long>();
+		for(int x = 0; x < 20000; x++)
+		{
+			long sparse = random.nextLong();
+			long dense = random.nextInt(30000) - 10000;
+			assertEquals(expectedA.add(sparse), a.add(sparse));
+			assertEquals(expectedA.add(dense), a.add(dense));
+			long other = random.nextInt(30000) - 10000;
+			assertEquals(expectedB.add(other), b.add(other));
+		}
+		
+		// removing most of a dense container turns it back into an array
+		for(long value = 0; value < 50000; value += 2)
+		{
+			assertEquals(expectedA.remove(value), a.remove(value));
+		}
+		assertFalse(a.remove(Long.MAX_VALUE));
+		assertEquals(expectedA.size(), a.cardinality());
+		checkBitmap(a, expectedA);
+		checkBitmap(b, expectedB);
+		assertTrue(a.contains(expectedA.first()));
+		
+		TreeSet<Long> expected = new TreeSet<Long>(expectedA);
+		expected.retainAll(expectedB);
+		checkBitmap(a.and(b), expected);
+		expected = new TreeSet<Long>(expectedA);
+		expected.addAll(expectedB);
+		checkBitmap(a.or(b), expected);
+		expected = new TreeSet<Long>(expectedA);
+		expected.removeAll(expectedB);
+		checkBitmap(a.andNot(b), expected);
+		checkBitmap(a.and(new LongBitmap()), new TreeSet<Long>());
+		
+		// the operands are unchanged, and a bitmap is serialisable
+		checkBitmap(a, expectedA);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(a);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			checkBitmap((LongBitmap)ois.readObject(), expectedA);
+			ois.close();
+		} catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	private void checkBitmap(final LongBitmap bitmap, final TreeSet<Long> expected)
+	{
+		assertEquals(expected.size(), bitmap.cardinality());
+		long[] result = new long[1];
+		long from = Long.MIN_VALUE;
+		for(Long value : expected)
+		{
+			assertTrue(bitmap.ceiling(from, result));
+			assertEquals(value.longValue(), result[0]);
+			if(value == Long.MAX_VALUE)return;
+			from = value + 1;
+		}
+		assertFalse(bitmap.ceiling(from, result));
+	}
+	
+	//********************** testBitmapIndex ***********************
+	
+	@Test
+	public void testBitmapIndex() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{
+		System.out.println("testBitmapIndex");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore with three status like columns
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addByteColumn("state");
+		tut.addShortColumn("region");
+		tut.addBooleanColumn("flagged");
+		tut.setCacheSize(140);
+		byte[] row = new byte[8+2+1+2+1];
+		try {
+			tut.createBitmapIndex(2);
+			tut.makeOperational();
+			for(int x = 1; x <= 300; x++)
+			{
+				BuffWrite.writeLong(row, 0, (long)x);
+				row[10] = (byte)(x % 4);
+				BuffWrite.writeShort(row, 11, x % 7);
+				BuffWrite.writeBoolean(row, 13, (x % 3) == 0);
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, row);
+			}
+			
+			// existing rows are indexed when an index is created
+			tut.createBitmapIndex(3);
+			tut.createBitmapIndex(4);
+			assertTrue(tut.hasBitmapIndex(4));
+			
+			// deletes and updates move rows between bitmaps
+			for(int x = 1; x <= 300; x += 10)tut.deleteByPrimaryKey((long)x);
+			BuffWrite.writeLong(row, 0, 2L);
+			row[10] = 3;
+			BuffWrite.writeShort(row, 11, 6);
+			BuffWrite.writeBoolean(row, 13, false);
+			assertTrue(tut.updateOrIgnore(2L, TableCore.FLAG_CACHE_NOT_SET, row));
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		try {
+			tut.createBitmapIndex(5);
+			fail();
+		} catch (FemtoDBInvalidValueException e) {
+		}
+		try {
+			tut.createBitmapIndex(1);
+			fail();
+		} catch (FemtoDBInvalidValueException e) {
+		}
+		
+		// state 3 and region 6 and not flagged, answered from the bitmaps alone
+		LongBitmap matching = tut.bitmapOf(2, 3, 3).and(tut.bitmapOf(3, 6, 6)).andNot(tut.bitmapOf(4, 1, 1));
+		TreeSet<Long> expected = new TreeSet<Long>();
+		for(long x = 1; x <= 300; x++)
+		{
+			if((x % 10) == 1)continue;
+			if(x == 2){expected.add(x); continue;}
+			if(((x % 4) == 3)&&((x % 7) == 6)&&((x % 3) != 0))expected.add(x);
+		}
+		checkBitmap(matching, expected);
+		
+		// state 0 or 1, read through the rows
+		expected.clear();
+		for(long x = 3; x <= 300; x++)
+		{
+			if(((x % 10) != 1)&&((x % 4) <= 1))expected.add(x);
+		}
+		FemtoDBIterator it = tut.bitmapIterator(2, 0, 1);
+		for(Long primaryKey : expected)
+		{
+			assertTrue(it.hasNext());
+			RowAccessType rat = it.next();
+			assertEquals(primaryKey.longValue(), rat.getPrimaryKey());
+			assertTrue(rat.get_byte(2) <= 1);
+		}
+		assertFalse(it.hasNext());
+		assertEquals(expected.size(), rowCount(Filt.getFilt(tut, 2, "<", (byte)2)));
+		int region6 = 0;
+		FemtoDBIterator all = tut.fastIterator();
+		while(all.hasNext())
+		{
+			if(all.next().get_short(3) == 6)region6++;
+		}
+		assertEquals(region6, rowCount(Filt.getFilt(tut, 3, "==", (short)6)));
+		
+		// save and load the tableCore, the bitmap indexes are saved with it
+		try {
+			tut.flushCache();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(tut);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			TableCore tut2 = (TableCore)ois.readObject();
+			ois.close();
+			tut2.finishLoading(fdb);
+			assertTrue(tut2.hasBitmapIndex(3));
+			checkBitmap(tut2.bitmapOf(2, 0, 1), expected);
+			assertTrue(tut2.dropBitmapIndex(2));
+			assertNull(tut2.bitmapOf(2, 0, 1));
+		} catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	//********************** testTrigramIndex ***********************
+	
+	@Test
+	public void testTrigramIndex() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException, FemtoDBStringExceedsColumnSizeException
+	{
+		System.out.println("testTrigramIndex");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore with a name column
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addStringColumn("name", 20);
+		tut.setCacheSize(320);
+		String[] words = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel"};
+		TreeMap<Long, String> names = new TreeMap<Long, String>();
+		byte[] row = new byte[8+2+2+20];
+		try {
+			tut.makeOperational();
+			for(int x = 1; x <= 200; x++)
+			{
+				String name = words[x % 8] + words[(x / 8) % 8] + (x % 5);
+				BuffWrite.writeLong(row, 0, (long)x);
+				BuffWrite.writeString(row, 10, 22, name);
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, row);
+				names.put((long)x, name);
+			}
+			
+			// existing rows are indexed when an index is created
+			tut.createTrigramIndex(2);
+			assertTrue(tut.hasTrigramIndex(2));
+			
+			// deletes and updates move rows between trigrams
+			for(int x = 1; x <= 200; x += 10)
+			{
+				tut.deleteByPrimaryKey((long)x);
+				names.remove((long)x);
+			}
+			BuffWrite.writeLong(row, 0, 2L);
+			BuffWrite.writeString(row, 10, 22, "zuluecho");
+			assertTrue(tut.updateOrIgnore(2L, TableCore.FLAG_CACHE_NOT_SET, row));
+			names.put(2L, "zuluecho");
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		try {
+			tut.createTrigramIndex(1);
+			fail();
+		} catch (FemtoDBInvalidValueException e) {
+		}
+		
+		// the candidates hold every matching row, and the filters find exactly the matching rows
+		String[] values = {"echo", "ech", "lie", "zulu", "otel3", "xyz"};
+		for(String value : values)
+		{
+			TreeSet<Long> containing = new TreeSet<Long>();
+			TreeSet<Long> startingWith = new TreeSet<Long>();
+			TreeSet<Long> endingWith = new TreeSet<Long>();
+			for(Map.Entry<Long, String> entry : names.entrySet())
+			{
+				if(entry.getValue().contains(value))containing.add(entry.getKey());
+				if(entry.getValue().startsWith(value))startingWith.add(entry.getKey());
+				if(entry.getValue().endsWith(value))endingWith.add(entry.getKey());
+			}
+			assertTrue(containsAll(tut.candidatesContaining(2, value), containing));
+			assertTrue(containsAll(tut.candidatesStartingWith(2, value), startingWith));
+			assertTrue(containsAll(tut.candidatesEndingWith(2, value), endingWith));
+			assertEquals(containing.size(), rowCount(Filt.getFilt(tut, 2, "CONTAINS", value)));
+			assertEquals(containing.size(), rowCount(Filt.getFilt(tut, 2, "CONTAINSIGNORECASE", value)));
+			assertEquals(startingWith.size(), rowCount(Filt.getFilt(tut, 2, "STARTSWITH", value)));
+			assertEquals(endingWith.size(), rowCount(Filt.getFilt(tut, 2, "ENDSWITH", value)));
+		}
+		assertTrue(tut.candidatesContaining(2, "xyz").isEmpty());
+		assertNull(tut.candidatesContaining(2, "ec"));
+		assertNotNull(tut.candidatesStartingWith(2, "e"));
+		
+		// save and load the tableCore, the trigram index is saved with it
+		try {
+			tut.flushCache();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(tut);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			TableCore tut2 = (TableCore)ois.readObject();
+			ois.close();
+			tut2.finishLoading(fdb);
+			assertTrue(tut2.hasTrigramIndex(2));
+			assertEquals(1, rowCount(Filt.getFilt(tut2, 2, "STARTSWITH", "zulu")));
+			assertTrue(tut2.dropTrigramIndex(2));
+			assertNull(tut2.candidatesContaining(2, "echo"));
+		} catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	/** Returns true if the candidates hold every primary key expected */
+	private static boolean containsAll(LongBitmap candidates, TreeSet<Long> expected)
+	{
+		if(candidates == null)return false;
+		for(Long primaryKey : expected)
+		{
+			if(!candidates.contains(primaryKey))return false;
+		}
+		return true;
+	}
+	
+	//********************** testStringFilterContains ***********************
+	
+	@Test
+	public void testStringFilterContains() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException, FemtoDBStringExceedsColumnSizeException
+	{
+		System.out.println("testStringFilterContains");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore with a name column
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.addStringColumn("name", 20);
+		tut.setCacheSize(320);
+		String[] words = {"alpha", "bravo", "charlie", "delta"};
+		byte[] row = new byte[8+2+2+20];
+		try {
+			tut.makeOperational();
+			for(int x = 1; x <= 40; x++)
+			{
+				BuffWrite.writeLong(row, 0, (long)x);
+				BuffWrite.writeString(row, 10, 22, words[x % 4] + x);
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, row);
+			}
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// the rows containing the value are returned in order, read through the whole table and through the trigram index
+		for(int pass = 0; pass < 2; pass++)
+		{
+			FemtoDBIterator it = Filt.getFilt(tut, 2, "CONTAINS", "rav");
+			for(long x = 1; x <= 40; x += 4)
+			{
+				assertTrue(it.hasNext());
+				RowAccessType rat = it.next();
+				assertEquals(x, rat.getPrimaryKey());
+				assertTrue(rat.getString(2).contains("rav"));
+			}
+			assertFalse(it.hasNext());
+			assertEquals(3, rowCount(Filt.getFilt(tut, 2, "CONTAINS", "lta1")));
+			try {
+				tut.createTrigramIndex(2);
+			} catch (FemtoDBInvalidValueException e) {
+				fail();
+			}
+		}
+	}
+	
+	//********************** testRowPredicate ***********************
+	
+	@Test
+	public void testRowPredicate() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, FemtoDBConcurrentModificationException
+	{
+		System.out.println("testRowPredicate");
+		
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore with an int and a float column
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("count");
+		tut.addFloatColumn("price");
+		tut.setCacheSize(180);
+		byte[] row = new byte[8+2+4+4];
+		try {
+			tut.makeOperational();
+			for(int x = 1; x <= 300; x++)
+			{
+				BuffWrite.writeLong(row, 0, (long)x);
+				BuffWrite.writeInt(row, 10, (x * 37) % 101);
+				BuffWrite.writeFloat(row, 14, (x % 13) - 6.5f);
+				tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, row);
+			}
+			for(int x = 1; x <= 300; x += 9)tut.deleteByPrimaryKey((long)x);
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		// count the rows copied out of the cache
+		final DefaultRowAccessTypeFactory factory = new DefaultRowAccessTypeFactory(8+2+4+4);
+		final int[] created = new int[1];
+		tut.setRowAccessTypeFactory(new RowAccessTypeFactory()
+		{
+			@Override
+			public RowAccessType createRowAccessType(long primaryKey, short flags, TableCore tableCore)
+			{
+				created[0]++;
+				return factory.createRowAccessType(primaryKey, flags, tableCore);
+			}
+
+			@Override
+			public void reclaim(RowAccessType rat)
+			{
+				factory.reclaim(rat);
+			}
+		});
+		
+		// a predicate on both columns, read in place
+		RowPredicate predicate = new RowPredicate()
+		{
+			@Override
+			public boolean matches(CacheRow cacheRow)
+			{
+				return (cacheRow.get_int(2) < 10)&&(cacheRow.get_float(3) > 0.0f);
+			}
+		};
+		TreeSet<Long> expected = new TreeSet<Long>();
+		FemtoDBIterator all = tut.fastIterator();
+		while(all.hasNext())
+		{
+			RowAccessType rat = all.next();
+			if((rat.get_int(2) < 10)&&(rat.get_float(3) > 0.0f))expected.add(rat.getPrimaryKey());
+		}
+		assertTrue(expected.size() > 0);
+		created[0] = 0;
+		FemtoDBIterator it = tut.fastIterator(-1, Long.MIN_VALUE, Long.MAX_VALUE, predicate);
+		for(Long primaryKey : expected)
+		{
+			assertTrue(it.hasNext());
+			assertTrue(it.hasNext());
+			assertEquals(primaryKey.longValue(), it.next().getPrimaryKey());
+		}
+		assertFalse(it.hasNext());
+		assertNull(it.next());
+		assertEquals(expected.size(), created[0]);
+		
+		// setToo and reset
+		it.setToo(150L);
+		assertTrue(it.hasNext());
+		assertEquals(expected.higher(150L).longValue(), it.next().getPrimaryKey());
+		it.reset();
+		assertEquals(expected.size(), rowCount(it));
+		
+		// Filt tests the column in place when it has no index, copying out only the matching rows
+		int cheap = 0;
+		all = tut.fastIterator();
+		while(all.hasNext())
+		{
+			if(all.next().get_float(3) < -5.0f)cheap++;
+		}
+		created[0] = 0;
+		assertEquals(cheap, rowCount(Filt.getFilt(tut, 3, "<", -5.0f)));
+		assertEquals(cheap, created[0]);
+		assertEquals(0, rowCount(Filt.getFilt(tut, 2, ">", 100)));
+	}
+	
+	//********************** testFlushModifiedPages ***********************
+	
+	@Test
+	public void testFlushModifiedPages() throws FemtoDBIOException, FemtoDBShuttingDownException, FemtoDBTableDeletedException, InterruptedException
+	{	
+		// make a fresh directory
+		File f = new File("debug1");
+		if(f.exists())FileUtils.recursiveDelete(f);
+		f.mkdir();
+		
+		FemtoDB fdb = new FemtoDB("debug1");
+		fdb.setPath("debug1");
+		
+		// create the tableCore, with a cache of 100 pages so every file stays cached
+		TableCore tut = new TableCore(fdb, "debugtable1", 0, "pk");
+		tut.setRowsPerFile(5);
+		tut.setRemoveOccupancyRatio(0.4);
+		tut.setCombineOccupancyRatio(0.8);
+		tut.addIntegerColumn("payload");
+		tut.setCacheSize(7000);
+		try {
+			tut.makeOperational();
+		} catch (FemtoDBInvalidValueException e) {
+			fail();
+		}
+		
+		byte[] toInsert = new byte[8+2+4];
+		for(int x = 1; x < 100; x++)
+		{
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (2 * x));	
+			tut.insertOrIgnoreByteArrayByPrimaryKey((long)x, toInsert);
+		}
+		tut.flushCache();
+		
+		// modify six files, three of them before the cut off time
+		long cutOff = 0;
+		for(int x = 1; x < 90; x += 15)
+		{
+			if(x == 46)
+			{
+				Thread.sleep(5);
+				cutOff = System.currentTimeMillis();
+				Thread.sleep(5);
+			}
+			BuffWrite.writeLong(toInsert, 0, (long)x);
+			BuffWrite.writeShort(toInsert, 8, (10 * x));
+			BuffWrite.writeInt(toInsert, 10, (3 * x));	
+			tut.updateOrIgnore((long)x, TableCore.FLAG_CACHE_NOT_SET, toInsert);
+			Thread.sleep(2);
+		}
+		
+		// only the pages modified before the cut off are written, oldest first and at most maxPages at a time
+		assertEquals(0, tut.flushModifiedPages(cutOff - 10000, 1.0, 4));
+		assertEquals(2, tut.flushModifiedPages(cutOff, 1.0, 2));
+		assertEquals(1, tut.flushModifiedPages(cutOff, 1.0, 4));
+		assertEquals(0, tut.flushModifiedPages(cutOff, 1.0, 4));
+		
+		// newer pages are written while more than dirtyRatio of the pages are modified
+		assertEquals(1, tut.flushModifiedPages(Long.MIN_VALUE, 0.02, 4));
+		assertEquals(0, tut.flushModifiedPages(Long.MIN_VALUE, 0.02, 4));
+		assertEquals(2, tut.flushModifiedPages(Long.MIN_VALUE, 0.0, 4));
+		assertEquals(0, tut.flushModifiedPages(Long.MIN_VALUE, 0.0, 4));
+		
+		// check the flushed files hold the expected rows
+		assertTrue(tut.validateTable("debug1"));
+		for(int x = 1; x < 100; x++)
+		{
+			assertEquals(((x < 90)&&((x % 15) == 1)) ? (3 * x) : (2 * x), BuffRead.readInt(tut.seekByteArray((long)x), 10));
+		}
+	}
 }